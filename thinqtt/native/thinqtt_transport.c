@@ -0,0 +1,687 @@
+/*
+ * Native socket transport for thinqtt.MQTTNativeTransport.
+ *
+ * Reads, writes and connects are submitted as operations tagged with a
+ * token and reported back as completions of (token, result), where the
+ * result is a byte count, or 0, or minus the errno.
+ *
+ * With io_uring each operation is an SQE, and poll() submits all of the
+ * queued SQEs and reaps the CQEs in one io_uring_enter() call. Without
+ * it, epoll reports readiness for every socket in one epoll_wait() call
+ * and the operations are then done with recv() and send(). Writes are
+ * tried straight away, as they rarely have to wait.
+ */
+
+#include <jni.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <poll.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+
+#include <linux/io_uring.h>
+#include <linux/time_types.h>
+
+/* Must match MQTTNativeTransport */
+#define OP_READ    0
+#define OP_WRITE   1
+#define OP_CONNECT 2
+
+/* user_data of the internal wakeup read and poll timeout */
+#define WAKE_DATA    (~(uint64_t) 0)
+#define TIMEOUT_DATA (~(uint64_t) 1)
+
+#define EPOLL_EVENTS 256
+
+struct fd_ops {
+	char *read_buf;
+	int read_len;
+	int read_token;
+	char *write_buf;
+	int write_len;
+	int write_token;
+	int connect_token;
+	unsigned char read_armed;
+	unsigned char write_armed;
+	unsigned char connect_armed;
+	unsigned char registered;
+	uint32_t events;
+};
+
+struct transport {
+	int uring;
+	int wake_fd;
+
+	/* io_uring */
+	int ring_fd;
+	void *ring;
+	size_t ring_len;
+	struct io_uring_sqe *sqes;
+	size_t sqes_len;
+	unsigned *sq_head;
+	unsigned *sq_tail;
+	unsigned *sq_array;
+	unsigned sq_mask;
+	unsigned sq_entries;
+	unsigned sq_local_tail;
+	unsigned to_submit;
+	unsigned *cq_head;
+	unsigned *cq_tail;
+	unsigned cq_mask;
+	struct io_uring_cqe *cqes;
+	uint64_t wake_value;
+	struct __kernel_timespec timeout;
+
+	/* epoll */
+	int epoll_fd;
+	struct fd_ops *ops;
+	int ops_len;
+
+	/* Completions not yet returned to Java */
+	jlong *ready;
+	int ready_head;
+	int ready_count;
+	int ready_cap;
+};
+
+static jlong completion(int token, int result)
+{
+	return ((jlong) (uint32_t) token << 32) | (uint32_t) result;
+}
+
+static int push_ready(struct transport *t, int token, int result)
+{
+	if (t->ready_head + t->ready_count == t->ready_cap) {
+		if (t->ready_head > 0) {
+			memmove(t->ready, t->ready + t->ready_head, t->ready_count * sizeof(jlong));
+			t->ready_head = 0;
+		} else {
+			int cap = t->ready_cap ? t->ready_cap * 2 : 256;
+			jlong *ready = realloc(t->ready, cap * sizeof(jlong));
+			if (ready == NULL)
+				return -ENOMEM;
+			t->ready = ready;
+			t->ready_cap = cap;
+		}
+	}
+	t->ready[t->ready_head + t->ready_count++] = completion(token, result);
+	return 0;
+}
+
+static int take_ready(struct transport *t, jlong *out, int max)
+{
+	int n = t->ready_count < max ? t->ready_count : max;
+	memcpy(out, t->ready + t->ready_head, n * sizeof(jlong));
+	t->ready_head += n;
+	t->ready_count -= n;
+	if (t->ready_count == 0)
+		t->ready_head = 0;
+	return n;
+}
+
+/* ------------------------------------------------------------------
+ * io_uring
+ */
+
+static int uring_enter(struct transport *t, unsigned submit, unsigned wait, unsigned flags)
+{
+	int ret = syscall(__NR_io_uring_enter, t->ring_fd, submit, wait, flags, NULL, 0);
+	return ret < 0 ? -errno : ret;
+}
+
+static int uring_submit(struct transport *t, unsigned wait)
+{
+	int ret;
+
+	__atomic_store_n(t->sq_tail, t->sq_local_tail, __ATOMIC_RELEASE);
+	ret = uring_enter(t, t->to_submit, wait, wait ? IORING_ENTER_GETEVENTS : 0);
+	if (ret >= 0) {
+		t->to_submit -= ret;
+		return 0;
+	}
+	/* Interrupted waits and a full completion queue are retried by the next poll */
+	return ret == -EINTR || ret == -EBUSY || ret == -EAGAIN ? 0 : ret;
+}
+
+static struct io_uring_sqe *uring_sqe(struct transport *t)
+{
+	unsigned head = __atomic_load_n(t->sq_head, __ATOMIC_ACQUIRE);
+	struct io_uring_sqe *sqe;
+	unsigned index;
+
+	if (t->sq_local_tail - head >= t->sq_entries) {
+		/* Submission queue is full, so hand it to the kernel early */
+		if (uring_submit(t, 0) < 0)
+			return NULL;
+		head = __atomic_load_n(t->sq_head, __ATOMIC_ACQUIRE);
+		if (t->sq_local_tail - head >= t->sq_entries)
+			return NULL;
+	}
+	index = t->sq_local_tail & t->sq_mask;
+	sqe = &t->sqes[index];
+	memset(sqe, 0, sizeof(*sqe));
+	t->sq_array[index] = index;
+	t->sq_local_tail++;
+	t->to_submit++;
+	return sqe;
+}
+
+static int uring_arm_wake(struct transport *t)
+{
+	struct io_uring_sqe *sqe = uring_sqe(t);
+	if (sqe == NULL)
+		return -EBUSY;
+	sqe->opcode = IORING_OP_READ;
+	sqe->fd = t->wake_fd;
+	sqe->addr = (uint64_t) (uintptr_t) &t->wake_value;
+	sqe->len = sizeof(t->wake_value);
+	sqe->user_data = WAKE_DATA;
+	return 0;
+}
+
+static int uring_open(struct transport *t, unsigned entries)
+{
+	struct io_uring_params p;
+	size_t sq_len, cq_len;
+	int fd;
+
+	memset(&p, 0, sizeof(p));
+	fd = syscall(__NR_io_uring_setup, entries, &p);
+	if (fd < 0)
+		return -errno;
+	/* Fast poll (5.7) means socket operations wait in the kernel, and implies a single ring mapping */
+	if (!(p.features & IORING_FEAT_FAST_POLL) || !(p.features & IORING_FEAT_SINGLE_MMAP)) {
+		close(fd);
+		return -ENOSYS;
+	}
+
+	sq_len = p.sq_off.array + p.sq_entries * sizeof(unsigned);
+	cq_len = p.cq_off.cqes + p.cq_entries * sizeof(struct io_uring_cqe);
+	t->ring_len = sq_len > cq_len ? sq_len : cq_len;
+	t->ring = mmap(NULL, t->ring_len, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE,
+			fd, IORING_OFF_SQ_RING);
+	if (t->ring == MAP_FAILED) {
+		close(fd);
+		return -errno;
+	}
+	t->sqes_len = p.sq_entries * sizeof(struct io_uring_sqe);
+	t->sqes = mmap(NULL, t->sqes_len, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE,
+			fd, IORING_OFF_SQES);
+	if (t->sqes == MAP_FAILED) {
+		int err = errno;
+		munmap(t->ring, t->ring_len);
+		close(fd);
+		return -err;
+	}
+
+	t->ring_fd = fd;
+	t->sq_head = (unsigned *) ((char *) t->ring + p.sq_off.head);
+	t->sq_tail = (unsigned *) ((char *) t->ring + p.sq_off.tail);
+	t->sq_array = (unsigned *) ((char *) t->ring + p.sq_off.array);
+	t->sq_mask = *(unsigned *) ((char *) t->ring + p.sq_off.ring_mask);
+	t->sq_entries = p.sq_entries;
+	t->sq_local_tail = *t->sq_tail;
+	t->cq_head = (unsigned *) ((char *) t->ring + p.cq_off.head);
+	t->cq_tail = (unsigned *) ((char *) t->ring + p.cq_off.tail);
+	t->cq_mask = *(unsigned *) ((char *) t->ring + p.cq_off.ring_mask);
+	t->cqes = (struct io_uring_cqe *) ((char *) t->ring + p.cq_off.cqes);
+	t->uring = 1;
+	return uring_arm_wake(t);
+}
+
+/* Moves completed CQEs to the ready list */
+static int uring_reap(struct transport *t)
+{
+	unsigned head = *t->cq_head;
+	unsigned tail = __atomic_load_n(t->cq_tail, __ATOMIC_ACQUIRE);
+	int err = 0;
+
+	while (head != tail && err == 0) {
+		struct io_uring_cqe *cqe = &t->cqes[head & t->cq_mask];
+		if (cqe->user_data == WAKE_DATA)
+			err = uring_arm_wake(t);
+		else if (cqe->user_data != TIMEOUT_DATA)
+			err = push_ready(t, (int) cqe->user_data, cqe->res);
+		head++;
+	}
+	__atomic_store_n(t->cq_head, head, __ATOMIC_RELEASE);
+	return err;
+}
+
+static int uring_poll(struct transport *t, int timeout)
+{
+	int err;
+
+	if ((err = uring_reap(t)) != 0)
+		return err;
+	if (t->ready_count > 0 || timeout == 0) {
+		if ((err = uring_submit(t, 0)) != 0)
+			return err;
+		return uring_reap(t);
+	}
+
+	if (timeout > 0) {
+		struct io_uring_sqe *sqe = uring_sqe(t);
+		if (sqe == NULL)
+			return -EBUSY;
+		t->timeout.tv_sec = timeout / 1000;
+		t->timeout.tv_nsec = (long long) (timeout % 1000) * 1000000;
+		sqe->opcode = IORING_OP_TIMEOUT;
+		sqe->addr = (uint64_t) (uintptr_t) &t->timeout;
+		sqe->len = 1;
+		/* Also completes on the first other completion, so it never outlives this poll */
+		sqe->off = 1;
+		sqe->user_data = TIMEOUT_DATA;
+	}
+	if ((err = uring_submit(t, 1)) != 0)
+		return err;
+	return uring_reap(t);
+}
+
+static int uring_read(struct transport *t, int fd, char *buf, int len, int token)
+{
+	struct io_uring_sqe *sqe = uring_sqe(t);
+	if (sqe == NULL)
+		return -EBUSY;
+	sqe->opcode = IORING_OP_RECV;
+	sqe->fd = fd;
+	sqe->addr = (uint64_t) (uintptr_t) buf;
+	sqe->len = len;
+	sqe->user_data = (uint32_t) token;
+	return 0;
+}
+
+static int uring_write(struct transport *t, int fd, char *buf, int len, int token)
+{
+	struct io_uring_sqe *sqe = uring_sqe(t);
+	if (sqe == NULL)
+		return -EBUSY;
+	sqe->opcode = IORING_OP_SEND;
+	sqe->fd = fd;
+	sqe->addr = (uint64_t) (uintptr_t) buf;
+	sqe->len = len;
+	sqe->msg_flags = MSG_NOSIGNAL;
+	sqe->user_data = (uint32_t) token;
+	return 0;
+}
+
+static int uring_connect(struct transport *t, int fd, int token)
+{
+	struct io_uring_sqe *sqe = uring_sqe(t);
+	if (sqe == NULL)
+		return -EBUSY;
+	sqe->opcode = IORING_OP_POLL_ADD;
+	sqe->fd = fd;
+	sqe->poll_events = POLLOUT;
+	sqe->user_data = (uint32_t) token;
+	return 0;
+}
+
+/* ------------------------------------------------------------------
+ * epoll
+ */
+
+static struct fd_ops *epoll_ops(struct transport *t, int fd)
+{
+	if (fd >= t->ops_len) {
+		int len = t->ops_len ? t->ops_len : 1024;
+		struct fd_ops *ops;
+		while (len <= fd)
+			len *= 2;
+		ops = realloc(t->ops, len * sizeof(struct fd_ops));
+		if (ops == NULL)
+			return NULL;
+		memset(ops + t->ops_len, 0, (len - t->ops_len) * sizeof(struct fd_ops));
+		t->ops = ops;
+		t->ops_len = len;
+	}
+	return &t->ops[fd];
+}
+
+static int epoll_update(struct transport *t, int fd, struct fd_ops *o)
+{
+	uint32_t events = (o->read_armed ? EPOLLIN | EPOLLRDHUP : 0)
+			| (o->write_armed || o->connect_armed ? EPOLLOUT : 0);
+	struct epoll_event ev;
+
+	if (events == o->events && o->registered)
+		return 0;
+	ev.events = events;
+	ev.data.fd = fd;
+	if (epoll_ctl(t->epoll_fd, o->registered ? EPOLL_CTL_MOD : EPOLL_CTL_ADD, fd, &ev) < 0)
+		return -errno;
+	o->registered = 1;
+	o->events = events;
+	return 0;
+}
+
+static int epoll_open(struct transport *t)
+{
+	struct epoll_event ev;
+
+	t->epoll_fd = epoll_create1(EPOLL_CLOEXEC);
+	if (t->epoll_fd < 0)
+		return -errno;
+	ev.events = EPOLLIN;
+	ev.data.fd = t->wake_fd;
+	if (epoll_ctl(t->epoll_fd, EPOLL_CTL_ADD, t->wake_fd, &ev) < 0)
+		return -errno;
+	return 0;
+}
+
+static int epoll_poll(struct transport *t, int timeout)
+{
+	struct epoll_event events[EPOLL_EVENTS];
+	int n, i, err;
+
+	n = epoll_wait(t->epoll_fd, events, EPOLL_EVENTS, t->ready_count > 0 ? 0 : timeout);
+	if (n < 0)
+		return errno == EINTR ? 0 : -errno;
+
+	for (i = 0; i < n; i++) {
+		int fd = events[i].data.fd;
+		uint32_t ev = events[i].events;
+		struct fd_ops *o;
+		ssize_t r;
+
+		if (fd == t->wake_fd) {
+			uint64_t value;
+			if (read(fd, &value, sizeof(value)) < 0 && errno != EAGAIN)
+				return -errno;
+			continue;
+		}
+		o = &t->ops[fd];
+		if (o->connect_armed && (ev & (EPOLLOUT | EPOLLERR | EPOLLHUP))) {
+			o->connect_armed = 0;
+			if ((err = push_ready(t, o->connect_token, 0)) != 0)
+				return err;
+		}
+		if (o->read_armed && (ev & (EPOLLIN | EPOLLRDHUP | EPOLLERR | EPOLLHUP))) {
+			r = recv(fd, o->read_buf, o->read_len, MSG_DONTWAIT);
+			if (r >= 0 || errno != EAGAIN) {
+				o->read_armed = 0;
+				if ((err = push_ready(t, o->read_token, r >= 0 ? (int) r : -errno)) != 0)
+					return err;
+			}
+		}
+		if (o->write_armed && (ev & (EPOLLOUT | EPOLLERR | EPOLLHUP))) {
+			r = send(fd, o->write_buf, o->write_len, MSG_DONTWAIT | MSG_NOSIGNAL);
+			if (r >= 0 || errno != EAGAIN) {
+				o->write_armed = 0;
+				if ((err = push_ready(t, o->write_token, r >= 0 ? (int) r : -errno)) != 0)
+					return err;
+			}
+		}
+		if ((err = epoll_update(t, fd, o)) != 0)
+			return err;
+	}
+	return 0;
+}
+
+static int epoll_read(struct transport *t, int fd, char *buf, int len, int token)
+{
+	struct fd_ops *o = epoll_ops(t, fd);
+	if (o == NULL)
+		return -ENOMEM;
+	o->read_buf = buf;
+	o->read_len = len;
+	o->read_token = token;
+	o->read_armed = 1;
+	return epoll_update(t, fd, o);
+}
+
+static int epoll_write(struct transport *t, int fd, char *buf, int len, int token)
+{
+	struct fd_ops *o = epoll_ops(t, fd);
+	ssize_t r;
+
+	if (o == NULL)
+		return -ENOMEM;
+	r = send(fd, buf, len, MSG_DONTWAIT | MSG_NOSIGNAL);
+	if (r >= 0 || errno != EAGAIN)
+		return push_ready(t, token, r >= 0 ? (int) r : -errno);
+	o->write_buf = buf;
+	o->write_len = len;
+	o->write_token = token;
+	o->write_armed = 1;
+	return epoll_update(t, fd, o);
+}
+
+static int epoll_connect(struct transport *t, int fd, int token)
+{
+	struct fd_ops *o = epoll_ops(t, fd);
+	if (o == NULL)
+		return -ENOMEM;
+	o->connect_token = token;
+	o->connect_armed = 1;
+	return epoll_update(t, fd, o);
+}
+
+/* Completes the operations still waiting on fd as cancelled */
+static void epoll_forget(struct transport *t, int fd)
+{
+	struct fd_ops *o;
+
+	if (fd >= t->ops_len)
+		return;
+	o = &t->ops[fd];
+	if (o->connect_armed)
+		push_ready(t, o->connect_token, -ECANCELED);
+	if (o->read_armed)
+		push_ready(t, o->read_token, -ECANCELED);
+	if (o->write_armed)
+		push_ready(t, o->write_token, -ECANCELED);
+	if (o->registered)
+		epoll_ctl(t->epoll_fd, EPOLL_CTL_DEL, fd, NULL);
+	memset(o, 0, sizeof(*o));
+}
+
+/* ------------------------------------------------------------------
+ * JNI
+ */
+
+static void destroy(struct transport *t)
+{
+	if (t->uring) {
+		munmap(t->sqes, t->sqes_len);
+		munmap(t->ring, t->ring_len);
+		close(t->ring_fd);
+	}
+	if (t->epoll_fd >= 0)
+		close(t->epoll_fd);
+	if (t->wake_fd >= 0)
+		close(t->wake_fd);
+	free(t->ops);
+	free(t->ready);
+	free(t);
+}
+
+JNIEXPORT jlong JNICALL Java_thinqtt_MQTTNativeTransport_create(JNIEnv *env, jclass cls,
+		jint entries, jboolean forceEpoll)
+{
+	struct transport *t = calloc(1, sizeof(struct transport));
+	int err = 0;
+
+	if (t == NULL)
+		return -ENOMEM;
+	t->epoll_fd = -1;
+	t->wake_fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+	if (t->wake_fd < 0) {
+		err = -errno;
+		destroy(t);
+		return err;
+	}
+	if (forceEpoll || uring_open(t, entries) != 0) {
+		if (t->uring) {
+			munmap(t->sqes, t->sqes_len);
+			munmap(t->ring, t->ring_len);
+			close(t->ring_fd);
+			t->uring = 0;
+		}
+		err = epoll_open(t);
+	}
+	if (err != 0) {
+		destroy(t);
+		return err;
+	}
+	return (jlong) (uintptr_t) t;
+}
+
+JNIEXPORT jboolean JNICALL Java_thinqtt_MQTTNativeTransport_isIoUring(JNIEnv *env, jclass cls,
+		jlong handle)
+{
+	return ((struct transport *) (uintptr_t) handle)->uring ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL Java_thinqtt_MQTTNativeTransport_destroy(JNIEnv *env, jclass cls,
+		jlong handle)
+{
+	destroy((struct transport *) (uintptr_t) handle);
+}
+
+JNIEXPORT void JNICALL Java_thinqtt_MQTTNativeTransport_wakeup(JNIEnv *env, jclass cls,
+		jlong handle)
+{
+	uint64_t one = 1;
+	ssize_t r = write(((struct transport *) (uintptr_t) handle)->wake_fd, &one, sizeof(one));
+	(void) r;
+}
+
+JNIEXPORT jint JNICALL Java_thinqtt_MQTTNativeTransport_poll(JNIEnv *env, jclass cls,
+		jlong handle, jlongArray completions, jint timeout)
+{
+	struct transport *t = (struct transport *) (uintptr_t) handle;
+	jint max = (*env)->GetArrayLength(env, completions);
+	jlong *out;
+	int err, n;
+
+	err = t->uring ? uring_poll(t, timeout) : epoll_poll(t, timeout);
+	if (err < 0)
+		return err;
+	if (t->ready_count == 0)
+		return 0;
+	out = (*env)->GetPrimitiveArrayCritical(env, completions, NULL);
+	if (out == NULL)
+		return -ENOMEM;
+	n = take_ready(t, out, max);
+	(*env)->ReleasePrimitiveArrayCritical(env, completions, out, 0);
+	return n;
+}
+
+JNIEXPORT jint JNICALL Java_thinqtt_MQTTNativeTransport_connect(JNIEnv *env, jclass cls,
+		jlong handle, jbyteArray address, jint port, jint token)
+{
+	struct transport *t = (struct transport *) (uintptr_t) handle;
+	struct sockaddr_storage sa;
+	socklen_t sa_len;
+	jsize addr_len = (*env)->GetArrayLength(env, address);
+	int one = 1, fd, err;
+
+	memset(&sa, 0, sizeof(sa));
+	if (addr_len == 4) {
+		struct sockaddr_in *in4 = (struct sockaddr_in *) &sa;
+		in4->sin_family = AF_INET;
+		in4->sin_port = htons(port);
+		(*env)->GetByteArrayRegion(env, address, 0, 4, (jbyte *) &in4->sin_addr);
+		sa_len = sizeof(*in4);
+	} else if (addr_len == 16) {
+		struct sockaddr_in6 *in6 = (struct sockaddr_in6 *) &sa;
+		in6->sin6_family = AF_INET6;
+		in6->sin6_port = htons(port);
+		(*env)->GetByteArrayRegion(env, address, 0, 16, (jbyte *) &in6->sin6_addr);
+		sa_len = sizeof(*in6);
+	} else {
+		return -EAFNOSUPPORT;
+	}
+
+	fd = socket(sa.ss_family, SOCK_STREAM | SOCK_NONBLOCK | SOCK_CLOEXEC, 0);
+	if (fd < 0)
+		return -errno;
+	setsockopt(fd, IPPROTO_TCP, TCP_NODELAY, &one, sizeof(one));
+	if (connect(fd, (struct sockaddr *) &sa, sa_len) < 0 && errno != EINPROGRESS) {
+		err = -errno;
+		close(fd);
+		return err;
+	}
+	err = t->uring ? uring_connect(t, fd, token) : epoll_connect(t, fd, token);
+	if (err != 0) {
+		close(fd);
+		return err;
+	}
+	return fd;
+}
+
+JNIEXPORT jint JNICALL Java_thinqtt_MQTTNativeTransport_finishConnect(JNIEnv *env, jclass cls,
+		jlong handle, jint fd)
+{
+	struct transport *t = (struct transport *) (uintptr_t) handle;
+	int err = 0;
+	socklen_t len = sizeof(err);
+
+	if (getsockopt(fd, SOL_SOCKET, SO_ERROR, &err, &len) < 0)
+		return errno;
+	if (err == 0 && t->uring) {
+		/* io_uring waits for blocking sockets itself, without blocking the caller */
+		int flags = fcntl(fd, F_GETFL);
+		if (flags < 0 || fcntl(fd, F_SETFL, flags & ~O_NONBLOCK) < 0)
+			return errno;
+	}
+	return err;
+}
+
+JNIEXPORT jint JNICALL Java_thinqtt_MQTTNativeTransport_submitRead(JNIEnv *env, jclass cls,
+		jlong handle, jint fd, jobject buf, jint off, jint len, jint token)
+{
+	struct transport *t = (struct transport *) (uintptr_t) handle;
+	char *addr = (*env)->GetDirectBufferAddress(env, buf);
+
+	if (addr == NULL)
+		return -EINVAL;
+	return t->uring ? uring_read(t, fd, addr + off, len, token)
+			: epoll_read(t, fd, addr + off, len, token);
+}
+
+JNIEXPORT jint JNICALL Java_thinqtt_MQTTNativeTransport_submitWrite(JNIEnv *env, jclass cls,
+		jlong handle, jint fd, jobject buf, jint off, jint len, jint token)
+{
+	struct transport *t = (struct transport *) (uintptr_t) handle;
+	char *addr = (*env)->GetDirectBufferAddress(env, buf);
+
+	if (addr == NULL)
+		return -EINVAL;
+	return t->uring ? uring_write(t, fd, addr + off, len, token)
+			: epoll_write(t, fd, addr + off, len, token);
+}
+
+JNIEXPORT void JNICALL Java_thinqtt_MQTTNativeTransport_close(JNIEnv *env, jclass cls,
+		jlong handle, jint fd)
+{
+	struct transport *t = (struct transport *) (uintptr_t) handle;
+
+	if (!t->uring)
+		epoll_forget(t, fd);
+	/* Shutting down first completes any operations io_uring still has on fd */
+	shutdown(fd, SHUT_RDWR);
+	close(fd);
+}
+
+JNIEXPORT jstring JNICALL Java_thinqtt_MQTTNativeTransport_strerror(JNIEnv *env, jclass cls,
+		jint err)
+{
+	char buf[128];
+
+	if (strerror_r(err, buf, sizeof(buf)) != 0)
+		snprintf(buf, sizeof(buf), "errno %d", err);
+	return (*env)->NewStringUTF(env, buf);
+}
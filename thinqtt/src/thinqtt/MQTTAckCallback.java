@@ -0,0 +1,20 @@
+package thinqtt;
+
+/**
+ * Receives inbound messages that are not acknowledged to the broker 
+ * until the application says so, in place of MQTTCallback.messageArrived.
+ *
+ * A QoS 1 message comes with an ack handle that is passed to 
+ * MQTTClient.ack or MQTTClient.ackUpTo once the message has been
+ * processed. Acks reach the broker in the order the messages arrived,
+ * so the broker redelivers everything after the last message that
+ * was fully processed if the connection is lost.
+ */
+public interface MQTTAckCallback {
+
+	/**
+	 * @param ackHandle the handle to acknowledge the message with, or -1
+	 * for a QoS 0 or 2 message, which needs no acknowledgement
+	 */
+	public void messageArrived(String topic, byte[] payload, int qos, boolean retained, long ackHandle);
+}
@@ -0,0 +1,116 @@
+package thinqtt;
+
+/**
+ * The inbound QoS 1 messages awaiting an application ack, in arrival 
+ * order.
+ *
+ * Each message is given a handle from a running sequence and its 
+ * message ID is held in a ring of ints. Acks may come in any order, but
+ * a message ID is only released for its PUBACK once every message that
+ * arrived before it has been acked too, so several PUBACKs can go out
+ * together.
+ */
+class MQTTAckTracker {
+
+	private int[] ids = new int[64];
+	private boolean[] acked = new boolean[64];
+	// The handle of the oldest outstanding message, at ring position head
+	private long first = 0;
+	private int head = 0;
+	private int count = 0;
+
+	/**
+	 * @return the handle for a message that has arrived
+	 */
+	synchronized long add(int messageId) {
+		if (count == ids.length) {
+			grow();
+		}
+		int i = (head + count) & (ids.length - 1);
+		ids[i] = messageId;
+		acked[i] = false;
+		count++;
+		return first + count - 1;
+	}
+
+	/**
+	 * Marks one message as acked.
+	 * @return the message IDs now ready for PUBACK, oldest first
+	 */
+	synchronized int[] ack(long handle) {
+		if (handle < first) {
+			return null;
+		}
+		check(handle);
+		acked[index(handle)] = true;
+		return release();
+	}
+
+	/**
+	 * Marks a message, and every message that arrived before it, as acked.
+	 * @return the message IDs now ready for PUBACK, oldest first
+	 */
+	synchronized int[] ackUpTo(long handle) {
+		if (handle < first) {
+			return null;
+		}
+		check(handle);
+		for (long h = first; h <= handle; h++) {
+			acked[index(h)] = true;
+		}
+		return release();
+	}
+
+	/**
+	 * Forgets every outstanding message, as the broker will redeliver 
+	 * them on the new connection. Their handles are ignored from now on.
+	 */
+	synchronized void reset() {
+		first += count;
+		head = 0;
+		count = 0;
+	}
+
+	synchronized int outstanding() {
+		return count;
+	}
+
+	private int[] release() {
+		int n = 0;
+		while (n < count && acked[(head + n) & (ids.length - 1)]) {
+			n++;
+		}
+		if (n == 0) {
+			return null;
+		}
+		int[] ready = new int[n];
+		for (int i = 0; i < n; i++) {
+			ready[i] = ids[(head + i) & (ids.length - 1)];
+		}
+		head = (head + n) & (ids.length - 1);
+		count -= n;
+		first += n;
+		return ready;
+	}
+
+	private void check(long handle) {
+		if (handle >= first + count)
+			throw new IllegalArgumentException("Unknown ack handle " + handle);
+	}
+
+	private int index(long handle) {
+		return (int) ((head + (handle - first)) & (ids.length - 1));
+	}
+
+	private void grow() {
+		int[] newIds = new int[ids.length * 2];
+		boolean[] newAcked = new boolean[ids.length * 2];
+		for (int i = 0; i < count; i++) {
+			newIds[i] = ids[(head + i) & (ids.length - 1)];
+			newAcked[i] = acked[(head + i) & (ids.length - 1)];
+		}
+		ids = newIds;
+		acked = newAcked;
+		head = 0;
+	}
+}
@@ -0,0 +1,91 @@
+package thinqtt;
+
+/**
+ * Bounds the frames handed from a client's reader thread to its worker
+ * pool.
+ *
+ * Frames are counted, in messages and in bytes, from dispatch until a
+ * worker has finished with them. When either count reaches its high
+ * watermark the client stops reading from the socket, and it starts
+ * again once both counts are at or below their low watermarks. A stall
+ * in the callbacks therefore pushes back on the broker through TCP flow
+ * control instead of filling the heap with queued frames.
+ */
+public class MQTTBackpressure {
+
+	private final MQTTClient client;
+	private final int highMessages;
+	private final int lowMessages;
+	private final long highBytes;
+	private final long lowBytes;
+
+	private int messages = 0;
+	private long bytes = 0;
+	private boolean paused = false;
+	private long pauseStart;
+	private long pausedNanos = 0;
+	private long pauseCount = 0;
+
+	public MQTTBackpressure(MQTTClient client, int highMessages, int lowMessages,
+			long highBytes, long lowBytes) {
+		if (lowMessages > highMessages || lowBytes > highBytes)
+			throw new IllegalArgumentException("Low watermarks cannot be above high watermarks.");
+		this.client = client;
+		this.highMessages = highMessages;
+		this.lowMessages = lowMessages;
+		this.highBytes = highBytes;
+		this.lowBytes = lowBytes;
+	}
+
+	/**
+	 * Called on the reader thread as a frame is handed to the pool.
+	 */
+	synchronized void dispatched(int frameBytes) {
+		messages++;
+		bytes += frameBytes;
+		if (!paused && (messages >= highMessages || bytes >= highBytes)) {
+			paused = true;
+			pauseCount++;
+			pauseStart = System.nanoTime();
+			client.pauseReading();
+		}
+	}
+
+	/**
+	 * Called by a worker once it has finished with a frame.
+	 */
+	synchronized void completed(int frameBytes) {
+		messages--;
+		bytes -= frameBytes;
+		if (paused && messages <= lowMessages && bytes <= lowBytes) {
+			paused = false;
+			pausedNanos += System.nanoTime() - pauseStart;
+			client.resumeReading();
+		}
+	}
+
+	public synchronized boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * @return the total time socket reads have been paused, including
+	 * the current pause
+	 */
+	public synchronized long getPausedMillis() {
+		long nanos = pausedNanos + (paused ? System.nanoTime() - pauseStart : 0);
+		return nanos / 1000000L;
+	}
+
+	public synchronized long getPauseCount() {
+		return pauseCount;
+	}
+
+	public synchronized int getQueuedMessages() {
+		return messages;
+	}
+
+	public synchronized long getQueuedBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,56 @@
+package thinqtt;
+
+/**
+ * What became of each message of a batch passed to
+ * MQTTClient.publishBatch(), by its position in the batch.
+ */
+public class MQTTBatchResult {
+
+	/** Written to the connection */
+	public static final int SENT 		= 0;
+	/** Held in the offline queue until the client is connected */
+	public static final int QUEUED 		= 1;
+	/** Dropped because the offline queue was full */
+	public static final int DROPPED 	= 2;
+	/** Refused because the offline queue was full, by POLICY_REJECT */
+	public static final int REJECTED 	= 3;
+
+	private final int[] ids;
+	private final int[] statuses;
+
+	MQTTBatchResult(int[] ids, int[] statuses) {
+		this.ids = ids;
+		this.statuses = statuses;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @return the message ID of the i-th message, or 0 if it was sent at
+	 * QoS 0, queued, or not accepted at all
+	 */
+	public int getMessageId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * @return SENT, QUEUED, DROPPED or REJECTED
+	 */
+	public int getStatus(int i) {
+		return statuses[i];
+	}
+
+	/**
+	 * @return true if every message was sent or queued
+	 */
+	public boolean isAccepted() {
+		for (int status : statuses) {
+			if (status == DROPPED || status == REJECTED) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
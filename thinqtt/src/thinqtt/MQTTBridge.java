@@ -0,0 +1,839 @@
+package thinqtt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bridges two brokers by forwarding PUBLISH frames between them as they
+ * arrived, without decoding them into messages and encoding them again.
+ *
+ * Of each frame only the fixed header, the topic and the message ID are
+ * read. The topic prefix of the route it matched is replaced by the
+ * route's target prefix, in place when the two are the same length, and
+ * the message ID is replaced by one allocated on the other connection.
+ * The payload is never looked at.
+ *
+ * Acknowledgements are relayed end to end: a QoS 1 message is only
+ * PUBACKed to the broker it came from once the other broker has PUBACKed
+ * it, and each step of the QoS 2 exchange is passed through in the same
+ * way, so a message is not released by one broker until the other holds
+ * it. Messages forwarded to a broker that is not connected are kept, up
+ * to 65534 of them, and sent with the DUP flag when it is; beyond that
+ * the bridge stops reading from the broker they come from. QoS 0 messages
+ * for a broker that is not connected are dropped.
+ *
+ * Both connections use the same client ID and, unless the cleanSession
+ * property is set, persistent sessions, so that neither broker forgets
+ * what the bridge has not yet acknowledged while it reconnects. Routes
+ * in the two directions must not overlap, or messages will loop.
+ */
+public class MQTTBridge {
+
+	private static Logger log = Logger.getLogger(MQTTBridge.class.getName());
+
+	private static final int SOCKET_TIMEOUT = 5000;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int ACTIVITY_TICK = 1000;
+	// IDs 1 to MAX_INFLIGHT carry forwarded messages, and the last one subscriptions
+	private static final int MAX_INFLIGHT = 65534;
+	private static final int SUBSCRIBE_ID = 65535;
+
+	private static final int SENT = 0;
+	private static final int RECEIVED = 1;
+	private static final int RELEASED = 2;
+
+	private static class Route {
+		final String filter;
+		final int qos;
+		final byte[] from;
+		final byte[] to;
+
+		Route(String filter, int qos, String from, String to) {
+			this.filter = filter;
+			this.qos = qos;
+			this.from = from.getBytes(StandardCharsets.UTF_8);
+			this.to = to.getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * A QoS 1 or 2 message forwarded to one side and not yet complete.
+	 */
+	private static class Forward {
+		final int sourceId;
+		final byte[] frame;
+		final int qos;
+		int state = SENT;
+
+		Forward(int sourceId, byte[] frame, int qos) {
+			this.sourceId = sourceId;
+			this.frame = frame;
+			this.qos = qos;
+		}
+	}
+
+	/**
+	 * Passes writes through but not flushes, so that the flush in each
+	 * MQTTEncoder call does not send every acknowledgement on its own.
+	 */
+	private static class Deferred extends FilterOutputStream {
+		Deferred(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {}
+	}
+
+	private final String clientId;
+	private final Side local;
+	private final Side remote;
+	private final AtomicBoolean isRunning = new AtomicBoolean(false);
+	private final AtomicLong forwarded = new AtomicLong(0);
+	private final AtomicLong forwardedBytes = new AtomicLong(0);
+	private final AtomicLong unrouted = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private Timer timer;
+	private long keepAlive;
+	private boolean cleanSession;
+	private int maxPacketSize;
+
+	/**
+	 * @param localUri the broker outbound routes read from
+	 * @param remoteUri the broker inbound routes read from
+	 * @param clientId the client ID used on both connections
+	 */
+	public MQTTBridge(URI localUri, URI remoteUri, String clientId) {
+		if (localUri == null || remoteUri == null)
+			throw new IllegalArgumentException("URI cannot be null.");
+		if (clientId == null || clientId.length() == 0 || clientId.length() > 23)
+			throw new IllegalArgumentException("Client ID cannot be empty or more than 23 characters.");
+		this.clientId = clientId;
+		this.local = new Side("local", localUri);
+		this.remote = new Side("remote", remoteUri);
+		local.peer = remote;
+		remote.peer = local;
+	}
+
+	/**
+	 * Forwards messages matching topicFilter on the local broker to the
+	 * remote one, replacing localPrefix at the start of each topic with
+	 * remotePrefix.
+	 * @param qos the QoS of the subscription on the local broker
+	 */
+	public void addOutbound(String topicFilter, int qos, String localPrefix, String remotePrefix) {
+		local.addRoute(new Route(checkRoute(topicFilter, qos, localPrefix, remotePrefix), qos,
+				localPrefix, remotePrefix));
+	}
+
+	/**
+	 * Forwards messages matching topicFilter on the remote broker to the
+	 * local one, replacing remotePrefix at the start of each topic with
+	 * localPrefix.
+	 * @param qos the QoS of the subscription on the remote broker
+	 */
+	public void addInbound(String topicFilter, int qos, String remotePrefix, String localPrefix) {
+		remote.addRoute(new Route(checkRoute(topicFilter, qos, remotePrefix, localPrefix), qos,
+				remotePrefix, localPrefix));
+	}
+
+	private String checkRoute(String topicFilter, int qos, String fromPrefix, String toPrefix) {
+		MQTTTopic.validateFilter(topicFilter);
+		if (qos < 0 || qos > 2)
+			throw new IllegalArgumentException(MQTTClient.MQTT_INVALID_QOS + qos);
+		if (fromPrefix == null || toPrefix == null || MQTTTopic.isWildcard(fromPrefix)
+				|| MQTTTopic.isWildcard(toPrefix))
+			throw new IllegalArgumentException("Topic prefixes cannot be null or contain wildcards.");
+		if (!topicFilter.startsWith(fromPrefix))
+			throw new IllegalArgumentException("Topic filter must begin with the prefix it maps from.");
+		if (isRunning.get())
+			throw new IllegalStateException("Routes must be added before the bridge connects.");
+		return topicFilter;
+	}
+
+	public void connect() {
+		connect(new Properties());
+	}
+
+	/**
+	 * Starts connecting to both brokers, each on its own thread, which
+	 * reconnects whenever its connection is lost. Takes the keepAliveSecs,
+	 * reconnectIntervalInc, reconnectIntervalMax, cleanSession and
+	 * maxPacketSize properties MQTTClient does, and localUser,
+	 * localPassword, remoteUser and remotePassword.
+	 */
+	public void connect(Properties connectionProperties) {
+		if (!isRunning.compareAndSet(false, true)) {
+			return;
+		}
+		keepAlive = Integer.parseInt(connectionProperties.getProperty("keepAliveSecs", "60")) * 1000L;
+		cleanSession = Boolean.parseBoolean(connectionProperties.getProperty("cleanSession", "False"));
+		maxPacketSize = Integer.parseInt(connectionProperties.getProperty("maxPacketSize",
+				String.valueOf(MQTTDecoder.MAX_PACKET_SIZE)));
+		long reconnectInc = Integer.parseInt(connectionProperties.getProperty("reconnectIntervalInc", "3")) * 1000L;
+		long reconnectMax = Integer.parseInt(connectionProperties.getProperty("reconnectIntervalMax", "120")) * 1000L;
+		local.configure(connectionProperties.getProperty("localUser"),
+				connectionProperties.getProperty("localPassword"), reconnectInc, reconnectMax);
+		remote.configure(connectionProperties.getProperty("remoteUser"),
+				connectionProperties.getProperty("remotePassword"), reconnectInc, reconnectMax);
+
+		timer = new Timer("thinqtt-bridge-keepalive-" + clientId, true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				local.checkActivity();
+				remote.checkActivity();
+			}
+		}, ACTIVITY_TICK, ACTIVITY_TICK);
+		new Thread(local, "thinqtt-bridge-local-" + clientId).start();
+		new Thread(remote, "thinqtt-bridge-remote-" + clientId).start();
+	}
+
+	/**
+	 * Disconnects from both brokers. Messages not yet acknowledged end to
+	 * end are redelivered by the broker they came from, as long as it
+	 * keeps the bridge's session.
+	 */
+	public void disconnect() {
+		if (!isRunning.compareAndSet(true, false)) {
+			return;
+		}
+		timer.cancel();
+		local.disconnect();
+		remote.disconnect();
+		synchronized (this) {
+			// Wakes a reader waiting for a free message ID
+			notifyAll();
+		}
+	}
+
+	public boolean isConnected() {
+		return local.connected && remote.connected;
+	}
+
+	/**
+	 * @return the number of PUBLISH frames forwarded in either direction
+	 */
+	public long getForwardedCount() {
+		return forwarded.get();
+	}
+
+	/**
+	 * @return the total size of the frames forwarded
+	 */
+	public long getForwardedBytes() {
+		return forwardedBytes.get();
+	}
+
+	/**
+	 * @return the number of messages that matched no route, which are
+	 * acknowledged and discarded
+	 */
+	public long getUnroutedCount() {
+		return unrouted.get();
+	}
+
+	/**
+	 * @return the number of QoS 0 messages dropped because the broker they
+	 * were for was not connected
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of QoS 1 and 2 messages forwarded in either
+	 * direction and not yet acknowledged end to end
+	 */
+	public synchronized int getInflightCount() {
+		return local.inflightCount + remote.inflightCount;
+	}
+
+	/**
+	 * One of the two connections, with the state of the messages
+	 * forwarded to it. State is guarded by the bridge, and the output
+	 * stream by the Side itself.
+	 */
+	private class Side implements Runnable {
+		final String name;
+		final URI uri;
+		final List<Route> routes = new ArrayList<Route>();
+		Side peer;
+		MQTTReconnectController reconnect;
+		String user;
+		String password;
+
+		volatile Socket socket;
+		DataInputStream in;
+		BufferedOutputStream buffered;
+		DataOutputStream out;
+		volatile boolean connected = false;
+		volatile long lastPing;
+		volatile long pingSent;
+
+		// Messages forwarded to this side, by the ID they were given here
+		final Forward[] inflight = new Forward[MAX_INFLIGHT + 1];
+		int inflightCount = 0;
+		int nextId = 0;
+		// The ID on the peer, plus 1, of each message received from this side
+		// and forwarded, by its ID here
+		final int[] forwardedAs = new int[SUBSCRIBE_ID + 1];
+
+		Side(String name, URI uri) {
+			this.name = name;
+			this.uri = uri;
+		}
+
+		void addRoute(Route route) {
+			routes.add(route);
+		}
+
+		void configure(String user, String password, long reconnectInc, long reconnectMax) {
+			this.user = user;
+			this.password = password;
+			this.reconnect = new MQTTReconnectController(reconnectInc, reconnectMax);
+		}
+
+		@Override
+		public void run() {
+			while (isRunning.get()) {
+				long delay = reconnect.nextDelay();
+				if (delay > 0) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) { /* nop */ }
+					if (!isRunning.get()) {
+						break;
+					}
+				}
+				try {
+					open();
+					reconnect.reset();
+					for (;;) {
+						handle(readFrame());
+						if (in.available() == 0) {
+							flush();
+							peer.flush();
+						}
+					}
+				} catch (IOException e) {
+					if (isRunning.get()) {
+						log.warning("Bridge connection to " + uri + " lost: " + e);
+					}
+				} finally {
+					close();
+				}
+			}
+		}
+
+		private void open() throws IOException {
+			Socket s = new Socket();
+			socket = s;
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(SOCKET_TIMEOUT);
+			s.connect(new InetSocketAddress(uri.getHost(), uri.getPort() == -1 ? 1883 : uri.getPort()),
+					SOCKET_TIMEOUT);
+			in = new DataInputStream(new BufferedInputStream(s.getInputStream(), BUFFER_SIZE));
+			synchronized (this) {
+				buffered = new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE);
+				out = new DataOutputStream(new Deferred(buffered));
+				MQTTEncoder.writeConnect(out, clientId, user, password, null, null, 0, false,
+						cleanSession, (int) (keepAlive / 1000));
+				buffered.flush();
+			}
+
+			byte[] connAck = readFrame();
+			if ((connAck[0] & 0xFF) >> 4 != MQTTMessage.CONNACK || connAck.length < 4)
+				throw new ProtocolException("Expected CONNACK from " + uri);
+			int code = connAck[3] & 0xFF;
+			if (code != 0)
+				throw new IOException(code <= 5 ? MQTTClient.CONNECTION_ERRMSG[code - 1]
+						: MQTTClient.CONNECTION_ERRMSG[5] + code);
+			s.setSoTimeout(0);
+			log.info("Bridge " + clientId + " connected to " + name + " broker " + uri);
+
+			List<byte[]> resend = new ArrayList<byte[]>();
+			List<Integer> release = new ArrayList<Integer>();
+			synchronized (MQTTBridge.this) {
+				connected = true;
+				lastPing = System.currentTimeMillis();
+				pingSent = 0;
+				for (int id = 1; id <= MAX_INFLIGHT; id++) {
+					Forward f = inflight[id];
+					if (f == null) {
+						continue;
+					}
+					if (f.state == SENT) {
+						byte[] dup = f.frame.clone();
+						dup[0] |= 0x08;
+						resend.add(dup);
+					} else if (f.state == RELEASED) {
+						release.add(id);
+					}
+				}
+			}
+			synchronized (this) {
+				if (!routes.isEmpty()) {
+					String[] filters = new String[routes.size()];
+					int[] qos = new int[routes.size()];
+					for (int i = 0; i < filters.length; i++) {
+						filters[i] = routes.get(i).filter;
+						qos[i] = routes.get(i).qos;
+					}
+					MQTTEncoder.writeSubscribe(out, SUBSCRIBE_ID, filters, qos);
+				}
+				for (byte[] frame : resend) {
+					buffered.write(frame);
+				}
+				for (int id : release) {
+					MQTTEncoder.writePubRel(out, id);
+				}
+				buffered.flush();
+			}
+			if (!resend.isEmpty() || !release.isEmpty()) {
+				log.info("Bridge " + clientId + " resent " + resend.size() + " messages and "
+						+ release.size() + " releases to " + uri);
+			}
+		}
+
+		/**
+		 * Reads one frame whole, header and all.
+		 */
+		private byte[] readFrame() throws IOException {
+			int header = in.readUnsignedByte();
+			int remaining = MQTTDecoder.readRemainingLength(in);
+			if (remaining > maxPacketSize)
+				throw new ProtocolException("Packet of " + remaining + " bytes exceeds the maximum of "
+						+ maxPacketSize);
+			byte[] frame = new byte[1 + MQTTEncoder.remainingLengthSize(remaining) + remaining];
+			frame[0] = (byte) header;
+			int off = MQTTEncoder.putRemainingLength(frame, 1, remaining);
+			in.readFully(frame, off, remaining);
+			return frame;
+		}
+
+		/**
+		 * Acts on a frame from readFrame(). A frame too short for what its
+		 * type must carry is a ProtocolException, which drops the connection.
+		 */
+		private void handle(byte[] frame) throws IOException {
+			int type = (frame[0] & 0xFF) >> 4;
+			int off = headerLength(frame);
+			pingSent = 0;
+			switch (type) {
+			case MQTTMessage.PUBLISH:
+				onPublish(frame, off);
+				break;
+			case MQTTMessage.PUBACK:
+			case MQTTMessage.PUBCOMP:
+				onComplete(type, ackId(frame, off));
+				break;
+			case MQTTMessage.PUBREC:
+				onPubRec(ackId(frame, off));
+				break;
+			case MQTTMessage.PUBREL:
+				onPubRel(ackId(frame, off));
+				break;
+			case MQTTMessage.SUBACK:
+				if (frame.length - off - 2 != routes.size())
+					throw new ProtocolException("SUBACK from " + uri + " does not match the bridge subscription");
+				for (int i = off + 2; i < frame.length; i++) {
+					if ((frame[i] & 0xFF) == MQTTSubscribeCallback.FAILURE) {
+						log.severe(name + " broker " + uri + " refused bridge subscription to "
+								+ routes.get(i - off - 2).filter);
+					}
+				}
+				break;
+			case MQTTMessage.PINGRESP:
+				break;
+			default:
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("Bridge ignored packet type " + type + " from " + uri);
+				}
+			}
+		}
+
+		/**
+		 * Forwards a PUBLISH from this side to the peer.
+		 */
+		private void onPublish(byte[] frame, int off) throws IOException {
+			int qos = (frame[0] >> 1) & 0x03;
+			if (qos == 3 || frame.length - off < 2)
+				throw new ProtocolException("Malformed PUBLISH");
+			int topic = off + 2;
+			int topicLength = id(frame, off);
+			if (topic + topicLength + (qos > 0 ? 2 : 0) > frame.length)
+				throw new ProtocolException("Malformed PUBLISH");
+			int sourceId = qos > 0 ? id(frame, topic + topicLength) : 0;
+
+			Route route = route(frame, topic, topicLength);
+			byte[] rewritten = route != null ? rewrite(frame, off, topicLength, route) : null;
+			if (rewritten == null) {
+				unrouted.incrementAndGet();
+				if (qos == 1) {
+					writeAck(MQTTMessage.PUBACK, sourceId);
+				} else if (qos == 2) {
+					writeAck(MQTTMessage.PUBREC, sourceId);
+				}
+				return;
+			}
+			rewritten[0] &= ~0x08;
+
+			boolean send;
+			boolean redelivery = false;
+			boolean received = false;
+			synchronized (MQTTBridge.this) {
+				if (qos > 0 && forwardedAs[sourceId] != 0) {
+					// A message already forwarded, whose PUBREC may have been
+					// lost with the connection
+					redelivery = true;
+					received = peer.inflight[forwardedAs[sourceId] - 1].state == RECEIVED;
+				} else if (qos > 0) {
+					int id = peer.allocate(new Forward(sourceId, rewritten, qos));
+					if (id == 0) {
+						return;
+					}
+					forwardedAs[sourceId] = id + 1;
+					int idOffset = headerLength(rewritten) + 2 + id(rewritten, headerLength(rewritten));
+					rewritten[idOffset] = (byte) (id >> 8);
+					rewritten[idOffset + 1] = (byte) id;
+				}
+				send = peer.connected;
+			}
+			if (redelivery) {
+				if (received) {
+					writeAck(MQTTMessage.PUBREC, sourceId);
+				}
+				return;
+			}
+			if (send) {
+				peer.write(rewritten);
+			} else if (qos == 0) {
+				dropped.incrementAndGet();
+				return;
+			}
+			forwarded.incrementAndGet();
+			forwardedBytes.addAndGet(rewritten.length);
+		}
+
+		/**
+		 * A PUBACK or PUBCOMP for a message forwarded to this side, which
+		 * completes it here and is passed back to where it came from.
+		 */
+		private void onComplete(int type, int id) throws IOException {
+			int sourceId;
+			synchronized (MQTTBridge.this) {
+				Forward f = id <= MAX_INFLIGHT ? inflight[id] : null;
+				if (f == null) {
+					return;
+				}
+				inflight[id] = null;
+				inflightCount--;
+				peer.forwardedAs[f.sourceId] = 0;
+				sourceId = f.sourceId;
+				MQTTBridge.this.notifyAll();
+			}
+			peer.writeAck(type, sourceId);
+		}
+
+		private void onPubRec(int id) throws IOException {
+			int sourceId;
+			synchronized (MQTTBridge.this) {
+				Forward f = id <= MAX_INFLIGHT ? inflight[id] : null;
+				if (f == null || f.qos != 2) {
+					return;
+				}
+				if (f.state == SENT) {
+					f.state = RECEIVED;
+				}
+				sourceId = f.sourceId;
+			}
+			peer.writeAck(MQTTMessage.PUBREC, sourceId);
+		}
+
+		/**
+		 * A PUBREL for a message received from this side, passed on to
+		 * where it was forwarded.
+		 */
+		private void onPubRel(int sourceId) throws IOException {
+			int id;
+			synchronized (MQTTBridge.this) {
+				id = forwardedAs[sourceId] - 1;
+				if (id > 0) {
+					peer.inflight[id].state = RELEASED;
+				}
+			}
+			if (id > 0) {
+				peer.writeAck(MQTTMessage.PUBREL, id);
+			} else {
+				// Already complete, or never forwarded
+				writeAck(MQTTMessage.PUBCOMP, sourceId);
+			}
+		}
+
+		/**
+		 * @return the message ID an acknowledgement starts with
+		 */
+		private int ackId(byte[] frame, int off) throws ProtocolException {
+			if (frame.length - off < 2)
+				throw new ProtocolException("Malformed packet of type " + ((frame[0] & 0xFF) >> 4)
+						+ " from " + uri);
+			return id(frame, off);
+		}
+
+		/**
+		 * Takes a message ID for f, waiting while all are in use. Called
+		 * holding the bridge's lock.
+		 * @return the ID, or 0 if the bridge has been disconnected
+		 */
+		private int allocate(Forward f) {
+			while (inflightCount == MAX_INFLIGHT) {
+				if (!isRunning.get()) {
+					return 0;
+				}
+				try {
+					MQTTBridge.this.wait(ACTIVITY_TICK);
+				} catch (InterruptedException e) {
+					return 0;
+				}
+			}
+			do {
+				nextId = nextId % MAX_INFLIGHT + 1;
+			} while (inflight[nextId] != null);
+			inflight[nextId] = f;
+			inflightCount++;
+			return nextId;
+		}
+
+		/**
+		 * @return the first route whose prefix the topic starts with and
+		 * whose filter it matches
+		 */
+		private Route route(byte[] frame, int topic, int topicLength) {
+			String name = null;
+			for (Route r : routes) {
+				if (!startsWith(frame, topic, topicLength, r.from)) {
+					continue;
+				}
+				// The broker only sends what matches one of the filters
+				if (routes.size() == 1) {
+					return r;
+				}
+				if (name == null) {
+					name = new String(frame, topic, topicLength, StandardCharsets.UTF_8);
+				}
+				if (MQTTTopic.matches(r.filter, name)) {
+					return r;
+				}
+			}
+			return null;
+		}
+
+		void write(byte[] frame) {
+			synchronized (this) {
+				if (buffered == null) {
+					return;
+				}
+				try {
+					buffered.write(frame);
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		void writeAck(int type, int id) {
+			synchronized (this) {
+				if (out == null) {
+					return;
+				}
+				try {
+					switch (type) {
+					case MQTTMessage.PUBACK:
+						MQTTEncoder.writePubAck(out, id);
+						break;
+					case MQTTMessage.PUBREC:
+						MQTTEncoder.writePubRec(out, id);
+						break;
+					case MQTTMessage.PUBREL:
+						MQTTEncoder.writePubRel(out, id);
+						break;
+					case MQTTMessage.PUBCOMP:
+						MQTTEncoder.writePubComp(out, id);
+						break;
+					}
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		void flush() {
+			synchronized (this) {
+				if (buffered == null) {
+					return;
+				}
+				try {
+					buffered.flush();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		/**
+		 * Sends a ping every half keepalive period, and drops the
+		 * connection if one goes unanswered for a whole period.
+		 */
+		void checkActivity() {
+			if (!connected) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long ping = pingSent;
+			if (ping > 0 && now - ping > keepAlive) {
+				fail(new IOException("No response to ping in " + keepAlive + "ms"));
+				return;
+			}
+			if (now - lastPing > keepAlive / 2) {
+				lastPing = now;
+				if (ping == 0) {
+					pingSent = now;
+				}
+				synchronized (this) {
+					try {
+						if (out != null) {
+							MQTTEncoder.writePing(out);
+							buffered.flush();
+						}
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Closes the socket, so that the reader sees the failure and
+		 * reconnects.
+		 */
+		private void fail(IOException e) {
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Bridge connection to " + uri + " failed: " + e.getMessage());
+			}
+			closeSocket();
+		}
+
+		private void closeSocket() {
+			Socket s = socket;
+			try {
+				if (s != null) {
+					s.close();
+				}
+			} catch (IOException e) {}
+		}
+
+		private void close() {
+			synchronized (MQTTBridge.this) {
+				connected = false;
+			}
+			synchronized (this) {
+				buffered = null;
+				out = null;
+			}
+			closeSocket();
+		}
+
+		void disconnect() {
+			synchronized (this) {
+				try {
+					if (out != null) {
+						MQTTEncoder.writeDisconnect(out);
+						buffered.flush();
+					}
+				} catch (IOException e) {}
+			}
+			closeSocket();
+		}
+	}
+
+	/**
+	 * Replaces the route's prefix at the start of the topic, in place if
+	 * the two prefixes are the same length.
+	 * @return the frame to forward, or null if the topic would be too long
+	 */
+	private static byte[] rewrite(byte[] frame, int off, int topicLength, Route route) {
+		int topic = off + 2;
+		if (route.from.length == route.to.length) {
+			System.arraycopy(route.to, 0, frame, topic, route.to.length);
+			return frame;
+		}
+		int newTopicLength = topicLength - route.from.length + route.to.length;
+		if (newTopicLength > 0xFFFF) {
+			return null;
+		}
+		int remaining = frame.length - off - route.from.length + route.to.length;
+		if (remaining > MQTTEncoder.MAX_REMAINING_LENGTH) {
+			return null;
+		}
+		byte[] result = new byte[1 + MQTTEncoder.remainingLengthSize(remaining) + remaining];
+		result[0] = frame[0];
+		int p = MQTTEncoder.putRemainingLength(result, 1, remaining);
+		result[p++] = (byte) (newTopicLength >> 8);
+		result[p++] = (byte) newTopicLength;
+		System.arraycopy(route.to, 0, result, p, route.to.length);
+		p += route.to.length;
+		int rest = topic + route.from.length;
+		System.arraycopy(frame, rest, result, p, frame.length - rest);
+		return result;
+	}
+
+	private static boolean startsWith(byte[] frame, int topic, int topicLength, byte[] prefix) {
+		if (prefix.length > topicLength) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (frame[topic + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the length of the fixed header, where the variable header starts
+	 */
+	private static int headerLength(byte[] frame) {
+		int off = 1;
+		while ((frame[off++] & 0x80) != 0);
+		return off;
+	}
+
+	private static int id(byte[] frame, int off) {
+		return ((frame[off] & 0xFF) << 8) | (frame[off + 1] & 0xFF);
+	}
+}
@@ -0,0 +1,140 @@
+package thinqtt;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The brokers a client may connect to, with their health and measured
+ * round trip times.
+ *
+ * select() prefers healthy brokers with the lowest RTT divided by
+ * weight. Brokers without an RTT sample yet are taken ahead of measured
+ * ones, the highest weight first and in list order between equal
+ * weights, so with equal weights the first URI is the initial choice. A
+ * broker that fails is avoided for a cool-down period that doubles with
+ * each consecutive failure.
+ */
+public class MQTTBrokerList {
+
+	private static final long MIN_COOLDOWN = 1000L;
+	private static final long MAX_COOLDOWN = 5 * 60 * 1000L;
+	// Weight of the newest sample in the moving average
+	private static final double RTT_ALPHA = 0.25;
+
+	private static class Broker {
+		final URI uri;
+		final int weight;
+		double rtt = -1;
+		int failures = 0;
+		long retryAfter = 0;
+
+		Broker(URI uri, int weight) {
+			this.uri = uri;
+			this.weight = weight;
+		}
+	}
+
+	private final List<Broker> brokers = new ArrayList<Broker>();
+
+	public MQTTBrokerList(URI... uris) {
+		for (URI uri : uris) {
+			add(uri, 1);
+		}
+	}
+
+	public synchronized MQTTBrokerList add(URI uri, int weight) {
+		if (uri == null)
+			throw new IllegalArgumentException("URI cannot be null.");
+		if (weight <= 0)
+			throw new IllegalArgumentException("Broker weight must be positive.");
+		brokers.add(new Broker(uri, weight));
+		return this;
+	}
+
+	public synchronized int size() {
+		return brokers.size();
+	}
+
+	/**
+	 * @return the best broker to connect to
+	 */
+	public synchronized URI select() {
+		return select(null);
+	}
+
+	/**
+	 * @return the best broker other than exclude, or null if there is no other
+	 */
+	public synchronized URI select(URI exclude) {
+		long now = System.currentTimeMillis();
+		Broker best = null;
+		Broker leastRecentlyFailed = null;
+		for (Broker b : brokers) {
+			if (b.uri.equals(exclude)) {
+				continue;
+			}
+			if (b.retryAfter > now) {
+				if (leastRecentlyFailed == null || b.retryAfter < leastRecentlyFailed.retryAfter) {
+					leastRecentlyFailed = b;
+				}
+				continue;
+			}
+			if (best == null || score(b) < score(best)) {
+				best = b;
+			}
+		}
+		// Every broker is cooling down, so try the one closest to being retried
+		best = best != null ? best : leastRecentlyFailed;
+		return best != null ? best.uri : null;
+	}
+
+	public synchronized void recordRtt(URI uri, long millis) {
+		Broker b = find(uri);
+		if (b != null) {
+			b.rtt = b.rtt < 0 ? millis : b.rtt + RTT_ALPHA * (millis - b.rtt);
+		}
+	}
+
+	public synchronized void recordFailure(URI uri) {
+		Broker b = find(uri);
+		if (b != null) {
+			b.failures++;
+			long cooldown = Math.min(MAX_COOLDOWN, MIN_COOLDOWN << Math.min(b.failures - 1, 16));
+			b.retryAfter = System.currentTimeMillis() + cooldown;
+		}
+	}
+
+	public synchronized void recordSuccess(URI uri) {
+		Broker b = find(uri);
+		if (b != null) {
+			b.failures = 0;
+			b.retryAfter = 0;
+		}
+	}
+
+	/**
+	 * @return the smoothed RTT in milliseconds, or -1 if not yet measured
+	 */
+	public synchronized long getRtt(URI uri) {
+		Broker b = find(uri);
+		return b != null ? Math.round(b.rtt) : -1;
+	}
+
+	/**
+	 * @return a score where lower is better. Unmeasured brokers score 
+	 * below zero, so below every measured one.
+	 */
+	private static double score(Broker b) {
+		return b.rtt < 0 ? -1.0 / b.weight : b.rtt / b.weight;
+	}
+
+	private Broker find(URI uri) {
+		for (Broker b : brokers) {
+			if (b.uri.equals(uri)) {
+				return b;
+			}
+		}
+		return null;
+	}
+}
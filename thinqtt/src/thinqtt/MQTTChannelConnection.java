@@ -0,0 +1,208 @@
+package thinqtt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A client's connection on an MQTTEventLoop that selects over NIO
+ * channels.
+ *
+ * Each flush() is written straight to the non-blocking channel. Whatever
+ * the channel does not accept is queued and written when it becomes
+ * writable.
+ */
+class MQTTChannelConnection extends MQTTConnection {
+
+	private static final int INITIAL_BUFFER_SIZE = 512;
+	// Larger buffers, e.g. after a streamed publish, are not kept
+	private static final int MAX_KEPT_BUFFER_SIZE = 64 * 1024;
+
+	private final MQTTClient client;
+	private final MQTTEventLoop loop;
+	private final SocketChannel channel;
+	private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+	private MQTTFrameParser parser;
+	private SelectionKey key;
+	private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+	private int count = 0;
+	private boolean failed = false;
+	private volatile boolean established = false;
+
+	private final Runnable updateInterest = new Runnable() {
+		@Override
+		public void run() {
+			updateInterest();
+		}
+	};
+
+	/**
+	 * Starts connecting to address without waiting for the connection.
+	 */
+	MQTTChannelConnection(MQTTClient client, MQTTEventLoop loop, InetSocketAddress address) throws IOException {
+		this.client = client;
+		this.loop = loop;
+		if (address.isUnresolved())
+			throw new UnknownHostException(address.getHostString());
+		this.channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			established = channel.connect(address);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	boolean isEstablished() {
+		return established;
+	}
+
+	@Override
+	void register(final MQTTFrameParser parser) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				MQTTChannelConnection.this.parser = parser;
+				try {
+					key = channel.register(loop.selector(), 0, MQTTChannelConnection.this);
+					updateInterest();
+				} catch (ClosedChannelException e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	@Override
+	void interestChanged() {
+		loop.execute(updateInterest);
+	}
+
+	/**
+	 * Called by the loop when the channel is ready.
+	 */
+	void ready(SelectionKey key, ByteBuffer readBuffer) {
+		try {
+			if (key.isConnectable()) {
+				established = channel.finishConnect();
+				writePending();
+			}
+			if (key.isValid() && key.isWritable()) {
+				writePending();
+			}
+			if (key.isValid() && key.isReadable()) {
+				// One read per select keeps a busy connection from starving the rest
+				readBuffer.clear();
+				if (channel.read(readBuffer) < 0) {
+					throw new EOFException("Connection closed by broker");
+				}
+				readBuffer.flip();
+				parser.feed(readBuffer);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		if (pending.isEmpty() && channel.isConnected()) {
+			ByteBuffer out = ByteBuffer.wrap(buf, 0, count);
+			channel.write(out);
+			if (out.hasRemaining()) {
+				pending.add(ByteBuffer.wrap(Arrays.copyOfRange(buf, out.position(), count)));
+			}
+		} else {
+			pending.add(ByteBuffer.wrap(Arrays.copyOf(buf, count)));
+		}
+		count = 0;
+		if (buf.length > MAX_KEPT_BUFFER_SIZE) {
+			buf = new byte[INITIAL_BUFFER_SIZE];
+		}
+		if (!pending.isEmpty()) {
+			updateInterest();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void writePending() throws IOException {
+		while (!pending.isEmpty()) {
+			ByteBuffer out = pending.peek();
+			channel.write(out);
+			if (out.hasRemaining()) {
+				break;
+			}
+			pending.poll();
+		}
+		updateInterest();
+	}
+
+	private void updateInterest() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		int ops = 0;
+		if (channel.isConnectionPending()) {
+			ops = SelectionKey.OP_CONNECT;
+		} else {
+			if (!client.isReadPaused()) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (!pending.isEmpty()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+		}
+		key.interestOps(ops);
+	}
+
+	private void ensureCapacity(int size) {
+		if (size > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(size, buf.length * 2));
+		}
+	}
+
+	private void fail(IOException e) {
+		if (failed) {
+			return;
+		}
+		failed = true;
+		try {
+			channel.close();
+		} catch (IOException e1) {}
+		pending.clear();
+		if (parser != null) {
+			parser.reset();
+		}
+		client.channelFailed(this, e);
+	}
+}
@@ -2,8 +2,11 @@ package thinqtt;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -11,13 +14,30 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,6 +47,11 @@ public class MQTTClient extends MQTTDecoderListener {
 	
 	private static final int SOCKET_TIMEOUT = 5000;
 	private static final int DEFAULT_BUFFER_SIZE = 512 * 1024;
+	private static final int DRAIN_BATCH_SIZE = 256;
+	private static final int ACTIVITY_TICK = 1000;
+	private static final int MIN_ACTIVITY_TICK = 50;
+	private static final int DEFAULT_SUBSCRIBE_PACKET_BYTES = 16 * 1024;
+	private static final int MAX_MESSAGE_ID = 0xFFFF;
 	
 	public static final String[] CONNECTION_ERRMSG = new String[] {
 			"Connection Refused: unacceptable protocol version",
@@ -40,27 +65,178 @@ public class MQTTClient extends MQTTDecoderListener {
 	
 	private static Logger log = Logger.getLogger(MQTTClient.class.getName());
 
-	private final 	URI 			uri;
+	private final	MQTTBrokerList	brokers;
+	private volatile URI 			uri;
 	private final 	String 			clientId;
 	private final 	MQTTCallback 	cb;
 	private final 	MQTTMessageStore store = new MQTTMessageStore();
-	private 		MQTTMessage		retainedMsg;
+	// Inbound QoS 2 messages awaiting PUBREL, kept apart from the outbound 
+	// ones in store since the broker picks their IDs from its own range
+	private final 	MQTTMessageStore inbound = new MQTTMessageStore();
+	private volatile MQTTRetainedCache retainedCache;
+	private volatile MQTTDuplicateFilter duplicateFilter;
+	// IDs of inbound QoS 2 messages delivered on PUBLISH and awaiting PUBREL
+	private final	BitSet			awaitingRel = new BitSet();
+	private volatile boolean		qos2DeliverOnPublish = false;
+	private volatile boolean		cleanSession = false;
 	private 		Socket 			socket;
 	private 		DataInputStream input;
 	private 		DataOutputStream output;
 	private 		long		 	keepAlive;
-	private 		long 			reconnectInterval;
 	private 		long 			reconnectIntervalInc;
 	private 		long 			reconnectIntervalMax;
-	private 		boolean 		active = false;
-	private 		long 			lastActivityCheck;
-	private final	AtomicInteger 	msgId = new AtomicInteger(0);
+	private 		MQTTReconnectController reconnect;
+	private 		boolean 		restoreSubscriptions = true;
+	private 		boolean			sessionStarted = false;
+	// Topic patterns and QoS to restore after a reconnect
+	private final	Map<String, Integer> subscriptions = new ConcurrentHashMap<String, Integer>();
+	// Bulk SUBSCRIBEs and UNSUBSCRIBEs awaiting their acks, by message ID
+	private final	Map<Integer, PendingSubscription> pendingSubs = new ConcurrentHashMap<Integer, PendingSubscription>();
+	private 		int				subscribePacketBytes = DEFAULT_SUBSCRIBE_PACKET_BYTES;
+	// Publishes are held in offlineQueue, if there is one, until online
+	private volatile boolean		online = false;
+	private 		MQTTOfflineQueue offlineQueue;
+	private 		boolean			zeroCopy = false;
+	// A connected socket to another broker, ready to take over on failure
+	private 		boolean			useStandby = false;
+	private 		long			standbyRefresh;
+	private 		Socket			standby;
+	private 		URI				standbyUri;
+	// When the standby was last opened, or last failed to open
+	private volatile long			standbyOpened;
+	private final	AtomicBoolean	standbyOpening = new AtomicBoolean(false);
+	private final	Object			standbyLock = new Object();
+	// Runs onTick() for a client with a reader thread of its own
+	private 		Timer			ticker;
+	private final	Object			closeLock = new Object();
+	// Socket reads stop while this is above zero
+	private final	AtomicInteger	readPauses = new AtomicInteger(0);
+	private final	Object			readGate = new Object();
+	private 		MQTTBackpressure backpressure;
+	private final	CopyOnWriteArrayList<FilterListener> listeners = new CopyOnWriteArrayList<FilterListener>();
+
+	private static class PendingSubscription {
+		private static final AtomicLong created = new AtomicLong();
+
+		final int msgId;
+		// Message IDs wrap, so the order requests were made in is kept apart
+		final long sequence = created.incrementAndGet();
+		final boolean unsubscribe;
+		final String[] topicPatterns;
+		final int[] qos;
+		final MQTTSubscribeCallback callback;
+
+		PendingSubscription(int msgId, boolean unsubscribe, String[] topicPatterns, int[] qos,
+				MQTTSubscribeCallback callback) {
+			this.msgId = msgId;
+			this.unsubscribe = unsubscribe;
+			this.topicPatterns = topicPatterns;
+			this.qos = qos;
+			this.callback = callback;
+		}
+	}
+
+	private static final Comparator<PendingSubscription> BY_SEQUENCE = new Comparator<PendingSubscription>() {
+		@Override
+		public int compare(PendingSubscription p1, PendingSubscription p2) {
+			return Long.compare(p1.sequence, p2.sequence);
+		}
+	};
+
+	private static class FilterListener {
+		final String filter;
+		final MQTTMessageListener listener;
+		final TypedListener<?> typed;
+
+		FilterListener(String filter, MQTTMessageListener listener) {
+			this.filter = filter;
+			this.listener = listener;
+			this.typed = null;
+		}
+
+		FilterListener(String filter, TypedListener<?> typed) {
+			this.filter = filter;
+			this.listener = null;
+			this.typed = typed;
+		}
+	}
+
+	private static class TypedListener<T> {
+		final MQTTDeserializer<? extends T> deserializer;
+		final MQTTTypedListener<T> listener;
+
+		TypedListener(MQTTDeserializer<? extends T> deserializer, MQTTTypedListener<T> listener) {
+			this.deserializer = deserializer;
+			this.listener = listener;
+		}
+
+		void deliver(String topic, byte[] buf, int off, int len, int qos, boolean retained) 
+				throws IOException {
+			listener.messageArrived(topic, deserializer.deserialize(buf, off, len), qos, retained);
+		}
+	}
+	private 		long			connectSent;
+	private volatile long			pingSent;
+	private volatile boolean 		active = false;
+	private volatile long 			lastActivityCheck;
+	// IDs of outbound messages and subscriptions that are not yet acked
+	private final	BitSet			idsInUse = new BitSet(MAX_MESSAGE_ID + 1);
+	private 		int				lastMessageId;
+	private			boolean			drainStalled;
 	private final	AtomicBoolean	isRunning = new AtomicBoolean(false);
 	// workQ is a thread pool that handles decoding tasks. 
 	// Calls to the MQTTCallback will be made on one of these threads.
 	private final 	Executor 		workQ;
-	private 	 	ExecutorService	writeQ = Executors.newSingleThreadExecutor();
+	// writeQ is the event loop, when there is one
+	private final 	Executor		writeQ;
+	private final	MQTTEventLoop	loop;
+	private 		MQTTConnection	connection;
 	private 		Properties      connectProps;
+	private volatile MQTTCodecPipeline codecs;
+	private volatile MQTTStreamCallback streamCb;
+	private volatile MQTTAckCallback ackCb;
+	private volatile MQTTPublishFilter publishFilter;
+	// Reads the event loop connection, if there is one
+	private 		MQTTFrameParser parser;
+	private final	MQTTAckTracker	acks = new MQTTAckTracker();
+	private 		int				maxPacketSize = MQTTDecoder.MAX_PACKET_SIZE;
+	private 		int				streamingThreshold = Integer.MAX_VALUE;
+	private volatile int			protocolVersion = 3;
+	// The empty property block every packet carries with MQTT 5, or null
+	private volatile MQTTPropertiesBuilder packetProps;
+	private volatile MQTTProperties connAckProps = MQTTProperties.EMPTY;
+
+	// Keepalive check for a client on an event loop
+	private final	Runnable		activityTimer = new Runnable() {
+		@Override
+		public void run() {
+			if (isRunning.get()) {
+				if (connection != null) {
+					checkActivity();
+				}
+				loop.schedule(this, tickInterval());
+			}
+		}
+	};
+
+	// Reconnect attempt for a client on an event loop
+	private final	Runnable		reconnectTask = new Runnable() {
+		@Override
+		public void run() {
+			if (!isRunning.get() || connection != null) {
+				return;
+			}
+			try {
+				openConnection(connectProps);
+			} catch (IOException e) {
+				connection = null;
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("Reconnect attempt " + reconnect.getAttempts() + " failed: " + e.getMessage());
+				}
+				loop.schedule(this, reconnect.nextDelay());
+			}
+		}
+	};
 
 	// Main loop (which runs on its own thread). 
 	// Handles reading input OR connecting to the server depending 
@@ -69,7 +245,11 @@ public class MQTTClient extends MQTTDecoderListener {
 		@Override
 		public void run() {
 			while (isRunning.get()) {
-				if (socket != null) {
+				if (socket != null && readPauses.get() > 0) {
+					waitWhilePaused();
+				}
+				
+				else if (socket != null) {
 					handleInput(); 
 				}
 				
@@ -95,14 +275,51 @@ public class MQTTClient extends MQTTDecoderListener {
 	 * @param listener the callback to notify of events
 	 */
 	public MQTTClient(URI uri, String clientId, Executor workPool, MQTTCallback listener) {
+		this(new MQTTBrokerList(checkUri(uri)), clientId, workPool, listener);
+	}
+
+	/**
+	 * Creates a client that fails over between several brokers, picking
+	 * healthy ones by measured round trip time.
+	 * @param brokers the brokers to choose from
+	 * @param clientId ID of this client
+	 * @param workPool a thread pool for decoding tasks, or null if synchronous required
+	 * @param listener the callback to notify of events
+	 */
+	public MQTTClient(MQTTBrokerList brokers, String clientId, Executor workPool, MQTTCallback listener) {
+		this(brokers, clientId, null, workPool, listener);
+	}
+
+	/**
+	 * Creates a client whose connection is run by one of the loops of a
+	 * shared MQTTEventLoopGroup instead of by threads of its own.
+	 * @param uri uri of MQTT server
+	 * @param clientId ID of this client
+	 * @param group the event loops to share
+	 * @param workPool a thread pool for decoding tasks, or null to decode on the loop
+	 * @param listener the callback to notify of events
+	 */
+	public MQTTClient(URI uri, String clientId, MQTTEventLoopGroup group, Executor workPool, MQTTCallback listener) {
+		this(new MQTTBrokerList(checkUri(uri)), clientId, group, workPool, listener);
+	}
+
+	/**
+	 * @param brokers the brokers to choose from
+	 * @param clientId ID of this client
+	 * @param group the event loops to share, or null for a reader thread of its own
+	 * @param workPool a thread pool for decoding tasks, or null if synchronous required
+	 * @param listener the callback to notify of events
+	 */
+	public MQTTClient(MQTTBrokerList brokers, String clientId, MQTTEventLoopGroup group, 
+			Executor workPool, MQTTCallback listener) {
+		// Validate arguments
+		if (brokers == null || brokers.size() == 0)
+			throw new IllegalArgumentException("At least one broker URI is required.");
+		this.brokers = brokers;
+		this.uri = brokers.select();
 		if (log.isLoggable(Level.FINER)) {
 			log.entering(getClass().getName(), "<INIT>", uri.toASCIIString());
 		}
-		
-		// Validate arguments
-		if (uri == null)
-			throw new IllegalArgumentException("URI cannot be null.");
-		this.uri = uri;
 
 		this.clientId = clientId == null ? generateRandomId() : clientId.trim();
 		if (this.clientId.length() == 0	|| this.clientId.length() > 23)
@@ -113,6 +330,8 @@ public class MQTTClient extends MQTTDecoderListener {
 		this.cb = listener;
 		
 		this.workQ = workPool;
+		this.loop = group != null ? group.next() : null;
+		this.writeQ = loop != null ? loop : Executors.newSingleThreadExecutor();
 
 		log.exiting(getClass().getName(), "<INIT>");
 	}
@@ -120,6 +339,12 @@ public class MQTTClient extends MQTTDecoderListener {
 	public MQTTClient(URI uri, String clientId, MQTTCallback listener) {
 		this(uri, clientId, null, listener);
 	}
+
+	private static URI checkUri(URI uri) {
+		if (uri == null)
+			throw new IllegalArgumentException("URI cannot be null.");
+		return uri;
+	}
 	
 	public void connect() throws UnknownHostException, IOException {
 		connect(new Properties());
@@ -130,11 +355,26 @@ public class MQTTClient extends MQTTDecoderListener {
 		log.entering(getClass().getName(), "connect", connectionProperties.toString());
 		
 		this.connectProps = connectionProperties;
+		if (loop != null) {
+			// Connection failures after this point are handled by reconnecting
+			isRunning.set(true);
+			try {
+				openConnection(this.connectProps);
+			} catch (IOException e) {
+				isRunning.set(false);
+				throw e;
+			}
+			lastActivityCheck = System.currentTimeMillis();
+			loop.schedule(activityTimer, tickInterval());
+			log.exiting(getClass().getName(), "connect");
+			return;
+		}
 		openConnection(this.connectProps);
 
 		// Start the main loop.
 		isRunning.set(true);
 		new Thread(reader).start();
+		startTicker();
 		
 		// Start the activity check task
 		lastActivityCheck = System.currentTimeMillis();
@@ -142,12 +382,28 @@ public class MQTTClient extends MQTTDecoderListener {
 		log.exiting(getClass().getName(), "connect");
 	}
 
+	/**
+	 * Sends DISCONNECT and stops the client. Messages still held in the
+	 * offline queue are discarded along with its spill file.
+	 */
 	public void disconnect() {
 		log.entering(getClass().getName(), "disconnect");
 
 		try {
 			isRunning.set(false);
-			socket.shutdownInput();
+			stopTicker();
+			closeStandby();
+			MQTTOfflineQueue queue = offlineQueue;
+			if (queue != null) {
+				queue.close();
+			}
+			synchronized (readGate) {
+				readGate.notifyAll();
+			}
+			// A loop would see the shutdown as EOF and close before DISCONNECT is sent
+			if (loop == null) {
+				socket.shutdownInput();
+			}
 			writeQ.execute(doDisconnect());
 		} catch (Exception e) {}
 		active = true;
@@ -155,18 +411,186 @@ public class MQTTClient extends MQTTDecoderListener {
 		log.exiting(getClass().getName(), "disconnect");
 	}
 
+	/**
+	 * Subscribes to a topic filter, which may be a shared subscription
+	 * of the form "$share/{ShareName}/{filter}" (see MQTTTopic.shared()).
+	 */
 	public void subscribe(final String topicPattern, final int qos)
 			throws IOException {
+		MQTTTopic.validateFilter(topicPattern);
 		int msgId = nextMessageId();
+		subscriptions.put(topicPattern, qos);
 		store.put(MQTTMessage.SUBSCRIBE, msgId, qos, topicPattern, null, false);
 		writeQ.execute(doSubscribe(topicPattern, qos, msgId));
 		active = true;
 	}
 
-	public int publish(final String topic, final byte[] message, final int qos, final boolean retained)
+	/**
+	 * Subscribes to a topic filter and passes the messages that match it
+	 * to listener instead of to MQTTCallback.messageArrived.
+	 */
+	public void subscribe(final String topicPattern, final int qos, MQTTMessageListener listener)
 			throws IOException {
-		int msgId = qos > 0 ? nextMessageId() : 0;
+		addMessageListener(topicPattern, listener);
+		subscribe(topicPattern, qos);
+	}
+
+	/**
+	 * Subscribes to many topic filters at once, each with the QoS at the
+	 * same index of qos. The filters are packed into as few SUBSCRIBE
+	 * packets as the subscribePacketBytes connection property allows, and
+	 * all of them are sent without waiting for a SUBACK in between.
+	 * @param callback receives the granted QoS of each filter as each 
+	 * SUBACK arrives, or may be null
+	 */
+	public void subscribe(String[] topicPatterns, int[] qos, MQTTSubscribeCallback callback)
+			throws IOException {
+		if (topicPatterns.length != qos.length)
+			throw new IllegalArgumentException("Every topic filter needs a QoS.");
+		for (String topicPattern : topicPatterns) {
+			MQTTTopic.validateFilter(topicPattern);
+		}
+		for (int i = 0; i < topicPatterns.length; i++) {
+			subscriptions.put(topicPatterns[i], qos[i]);
+		}
+		writeQ.execute(doSubscribeAll(pack(false, topicPatterns, qos, callback)));
+		active = true;
+	}
+
+	public void unsubscribe(String topicPattern) throws IOException {
+		unsubscribe(new String[] { topicPattern }, null);
+	}
 
+	/**
+	 * Unsubscribes from many topic filters at once, packed into as few
+	 * UNSUBSCRIBE packets as the subscribePacketBytes connection property
+	 * allows. The filters are no longer restored on reconnect.
+	 * @param callback is told as each UNSUBACK arrives, or may be null
+	 */
+	public void unsubscribe(String[] topicPatterns, MQTTSubscribeCallback callback) throws IOException {
+		for (String topicPattern : topicPatterns) {
+			MQTTTopic.validateFilter(topicPattern);
+		}
+		for (String topicPattern : topicPatterns) {
+			subscriptions.remove(topicPattern);
+		}
+		writeQ.execute(doSubscribeAll(pack(true, topicPatterns, null, callback)));
+		active = true;
+	}
+
+	/**
+	 * Passes inbound messages matching topicPattern to listener instead
+	 * of to MQTTCallback.messageArrived.
+	 */
+	public void addMessageListener(String topicPattern, MQTTMessageListener listener) {
+		MQTTTopic.validateFilter(topicPattern);
+		listeners.add(new FilterListener(topicPattern, listener));
+	}
+
+	public void removeMessageListener(MQTTMessageListener listener) {
+		for (FilterListener fl : listeners) {
+			if (fl.listener == listener) {
+				listeners.remove(fl);
+			}
+		}
+	}
+
+	/**
+	 * @return true if a listener of either kind was added for exactly
+	 * this topic filter and has not been removed
+	 */
+	public boolean hasMessageListener(String topicPattern) {
+		for (FilterListener fl : listeners) {
+			if (fl.filter.equals(topicPattern)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the client is subscribed to exactly this topic 
+	 * filter, or has asked to be
+	 */
+	public boolean isSubscribed(String topicPattern) {
+		return subscriptions.containsKey(topicPattern);
+	}
+
+	/**
+	 * Subscribes to a topic filter and passes the messages that match it
+	 * to listener, as values read by deserializer straight from the frame
+	 * they arrived in, instead of to MQTTCallback.messageArrived.
+	 */
+	public <T> void subscribe(String topicPattern, int qos, MQTTDeserializer<? extends T> deserializer,
+			MQTTTypedListener<T> listener) throws IOException {
+		addMessageListener(topicPattern, deserializer, listener);
+		subscribe(topicPattern, qos);
+	}
+
+	/**
+	 * Passes inbound messages matching topicPattern to listener, as values
+	 * read by deserializer, instead of to MQTTCallback.messageArrived.
+	 */
+	public <T> void addMessageListener(String topicPattern, MQTTDeserializer<? extends T> deserializer,
+			MQTTTypedListener<T> listener) {
+		MQTTTopic.validateFilter(topicPattern);
+		listeners.add(new FilterListener(topicPattern, new TypedListener<T>(deserializer, listener)));
+	}
+
+	public void removeTypedListener(MQTTTypedListener<?> listener) {
+		for (FilterListener fl : listeners) {
+			if (fl.typed != null && fl.typed.listener == listener) {
+				listeners.remove(fl);
+			}
+		}
+	}
+
+	/**
+	 * Stops reading from the socket until a matching call to
+	 * resumeReading(), so that TCP flow control pushes back on the
+	 * broker. Calls nest: reading resumes when every pause is resumed.
+	 */
+	public void pauseReading() {
+		if (readPauses.incrementAndGet() == 1) {
+			MQTTConnection c = connection;
+			if (c != null) {
+				c.interestChanged();
+			}
+		}
+	}
+
+	public void resumeReading() {
+		if (readPauses.decrementAndGet() <= 0) {
+			synchronized (readGate) {
+				readGate.notifyAll();
+			}
+			MQTTConnection c = connection;
+			if (c != null) {
+				c.interestChanged();
+			}
+		}
+	}
+
+	/**
+	 * @return the message ID, or 0 for QoS 0 or a message held in the 
+	 * offline queue, which is given its ID when it is sent
+	 */
+	public int publish(final String topic, byte[] message, final int qos, final boolean retained)
+			throws IOException {
+		if (codecs != null) {
+			message = codecs.encode(topic, message);
+		}
+
+		if (offlineQueue != null) {
+			synchronized (offlineQueue) {
+				if (mustQueue()) {
+					offlineQueue.offer(topic, message, qos, retained);
+					return 0;
+				}
+			}
+		}
+
+		int msgId = qos > 0 ? nextMessageId() : 0;
 		if (qos > 0) {
 			store.put(MQTTMessage.PUBLISH, msgId, qos, topic, message, retained);
 		}
@@ -177,6 +601,248 @@ public class MQTTClient extends MQTTDecoderListener {
 		return msgId;
 	}
 
+	/**
+	 * Publishes a value that serializer writes straight into a pooled
+	 * outbound frame buffer, so it is never held in an array of its own.
+	 * The value is serialized before this returns, on the calling thread,
+	 * so an exception from the serializer is thrown from here and no
+	 * message ID is used up. If payload codecs are set or the client is
+	 * offline and queueing, it is serialized into an array and published
+	 * as one instead.
+	 * @return the message ID, or 0 for QoS 0 or a queued message
+	 */
+	public <T> int publish(final String topic, final T value, final MQTTSerializer<? super T> serializer,
+			final int qos, final boolean retained) throws IOException {
+		if (codecs != null) {
+			return publish(topic, serialize(value, serializer), qos, retained);
+		}
+		if (offlineQueue != null) {
+			synchronized (offlineQueue) {
+				if (mustQueue()) {
+					return publish(topic, serialize(value, serializer), qos, retained);
+				}
+			}
+		}
+		int msgId = qos > 0 ? nextMessageId() : 0;
+		MQTTFrameBuffer frame;
+		try {
+			frame = MQTTEncoder.encodePublish(topic, value, serializer, msgId, qos, retained, packetProps);
+		} catch (IOException | RuntimeException e) {
+			// Nothing is sent or stored, so the ID is free again
+			if (msgId != 0) {
+				releaseMessageId(msgId);
+			}
+			throw e;
+		}
+		if (qos > 0) {
+			store.put(MQTTMessage.PUBLISH, msgId, qos, topic, frame.copyPayload(), retained);
+		}
+		writeQ.execute(doPublishFrame(frame));
+		active = true;
+		return msgId;
+	}
+
+	private static <T> byte[] serialize(T value, MQTTSerializer<? super T> serializer) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		serializer.serialize(value, buf);
+		return buf.toByteArray();
+	}
+
+	/**
+	 * Publishes length bytes of a file or other seekable channel, starting
+	 * at position, without reading the payload into memory. A FileChannel
+	 * is sent with transferTo() when connected with the zeroCopy property.
+	 * For QoS 1 and 2 only a reference to the channel is stored, so the 
+	 * channel must stay open until publishComplete() for this message.
+	 * <p>
+	 * These messages never go into the offline queue, which would have to
+	 * copy the payload. While offline, one at QoS 1 or 2 is only stored, 
+	 * and is sent with the rest of the session on reconnect, ahead of the
+	 * offline queue; one at QoS 0 is dropped.
+	 * @return the message ID, or 0 for QoS 0
+	 */
+	public int publish(final String topic, final SeekableByteChannel source, final long position,
+			final long length, final int qos, final boolean retained) throws IOException {
+		if (offlineQueue != null) {
+			synchronized (offlineQueue) {
+				if (!online) {
+					if (qos == 0) {
+						return 0;
+					}
+					int msgId = nextMessageId();
+					store.putStreamed(msgId, qos, topic, source, position, length, retained);
+					return msgId;
+				}
+			}
+		}
+
+		int msgId = qos > 0 ? nextMessageId() : 0;
+		if (qos > 0) {
+			store.putStreamed(msgId, qos, topic, source, position, length, retained);
+		}
+
+		writeQ.execute(doPublishStream(topic, source, position, length, qos, msgId, retained));
+
+		active = true;
+		return msgId;
+	}
+
+	/**
+	 * Publishes the next length bytes read from a channel. Channels that
+	 * cannot be re-read on redelivery may only be sent at QoS 0.
+	 * @return the message ID, or 0 for QoS 0
+	 */
+	public int publish(final String topic, final ReadableByteChannel source, final long length,
+			final int qos, final boolean retained) throws IOException {
+		if (source instanceof SeekableByteChannel) {
+			SeekableByteChannel seekable = (SeekableByteChannel) source;
+			return publish(topic, seekable, seekable.position(), length, qos, retained);
+		}
+		if (qos > 0)
+			throw new IllegalArgumentException("Only seekable channels can be published with QoS > 0.");
+
+		writeQ.execute(doPublishStream(topic, source, -1L, length, qos, 0, retained));
+		active = true;
+		return 0;
+	}
+
+	/**
+	 * Publishes a batch of messages with a single write to the socket.
+	 * Message IDs for the batch are allocated in one step. While offline,
+	 * each message is offered to the offline queue in turn, with no ID
+	 * until it is sent, and one that does not fit is reported rather than
+	 * failing the rest of the batch.
+	 * @return the message ID and status of each message, in order
+	 * @throws IllegalArgumentException if a message is too large for a 
+	 * PUBLISH, or the batch too large to write in one piece
+	 */
+	public MQTTBatchResult publishBatch(List<MQTTPublication> messages) throws IOException {
+		int count = messages.size();
+		if (codecs != null) {
+			List<MQTTPublication> encoded = new ArrayList<MQTTPublication>(count);
+			for (MQTTPublication msg : messages) {
+				encoded.add(new MQTTPublication(msg.getTopic(), 
+						codecs.encode(msg.getTopic(), msg.getPayload()), msg.getQos(), msg.isRetained()));
+			}
+			messages = encoded;
+		}
+
+		// Refused here rather than on the writer thread, before anything is stored
+		MQTTPropertiesBuilder props = packetProps;
+		MQTTEncoder.publishBatchLength(messages, null, props != null ? props.encodedLength() : 0);
+		int[] statuses = new int[count];
+
+		if (offlineQueue != null) {
+			synchronized (offlineQueue) {
+				if (mustQueue()) {
+					for (int i = 0; i < count; i++) {
+						MQTTPublication msg = messages.get(i);
+						try {
+							statuses[i] = offlineQueue.offer(msg.getTopic(), msg.getPayload(), 
+									msg.getQos(), msg.isRetained()) 
+									? MQTTBatchResult.QUEUED : MQTTBatchResult.DROPPED;
+						} catch (MQTTException e) {
+							statuses[i] = MQTTBatchResult.REJECTED;
+						}
+					}
+					return new MQTTBatchResult(new int[count], statuses);
+				}
+			}
+		}
+
+		int[] ids = nextMessageIds(messages);
+		store.putBatch(messages, ids);
+		writeQ.execute(doPublishBatch(messages, ids));
+
+		active = true;
+		return new MQTTBatchResult(ids, statuses);
+	}
+
+	/**
+	 * Called holding the offline queue's lock. Once back online, messages
+	 * still go to the queue until it has been drained, so that they are
+	 * not sent ahead of those queued before them.
+	 */
+	private boolean mustQueue() {
+		return !online || !offlineQueue.isEmpty();
+	}
+
+	/**
+	 * Sets the payload codecs used to encode published messages by topic
+	 * pattern and to decode inbound messages before messageArrived.
+	 * @param pipeline the codecs to use, or null to send payloads unchanged
+	 */
+	public void setCodecPipeline(MQTTCodecPipeline pipeline) {
+		this.codecs = pipeline;
+	}
+
+	/**
+	 * Sets the callback that receives PUBLISH payloads larger than the
+	 * streamingThreshold connection property as chunks. Without one,
+	 * all messages are delivered whole to messageArrived.
+	 */
+	public void setStreamCallback(MQTTStreamCallback streamCallback) {
+		this.streamCb = streamCallback;
+	}
+
+	/**
+	 * Sets the callback that receives messages for the application to
+	 * acknowledge itself, through ack or ackUpTo, once it has processed
+	 * them. Without one, QoS 1 messages are acknowledged as soon as 
+	 * messageArrived returns. The dedupe window is not applied while
+	 * there is one, since the handles of a lost connection are void and
+	 * a redelivery is only acked once the application acks it again.
+	 */
+	public void setAckCallback(MQTTAckCallback ackCallback) {
+		this.ackCb = ackCallback;
+	}
+
+	/**
+	 * Sets the filter that sees the topic and payload length of each 
+	 * inbound PUBLISH before the payload is read. Messages it rejects are
+	 * acknowledged but never read into memory or delivered.
+	 * @param filter the filter to use, or null to read every message
+	 */
+	public void setPublishFilter(MQTTPublishFilter filter) {
+		this.publishFilter = filter;
+		MQTTFrameParser p = parser;
+		if (p != null) {
+			p.setPublishFilter(filter);
+		}
+	}
+
+	/**
+	 * Acknowledges a message passed to the MQTTAckCallback. Its PUBACK is
+	 * sent once every message that arrived before it has been acked, 
+	 * together with theirs. A handle from before the last reconnect, or 
+	 * one already acked, is ignored, as the broker redelivers the message.
+	 * @throws IllegalArgumentException if no message has that handle
+	 */
+	public void ack(long ackHandle) {
+		synchronized (acks) {
+			sendPubAcks(acks.ack(ackHandle));
+		}
+	}
+
+	/**
+	 * Acknowledges a message passed to the MQTTAckCallback and every
+	 * message that arrived before it, e.g. once a batch has been committed.
+	 * @throws IllegalArgumentException if no message has that handle
+	 */
+	public void ackUpTo(long ackHandle) {
+		synchronized (acks) {
+			sendPubAcks(acks.ackUpTo(ackHandle));
+		}
+	}
+
+	/**
+	 * @return the number of messages passed to the MQTTAckCallback on
+	 * this connection and not yet acked
+	 */
+	public int getOutstandingAcks() {
+		return acks.outstanding();
+	}
+
 	public URI getUri() {
 		return uri;
 	}
@@ -186,11 +852,75 @@ public class MQTTClient extends MQTTDecoderListener {
 	}
 
 	public boolean isConnected() {
-		return socket != null;
+		return socket != null || connection != null;
 	}
 
 	public int getPendingMessageCount() {
-		return store.count();
+		return store.count() + inbound.count();
+	}
+
+	/**
+	 * @return the limits on frames queued for the work pool, with the 
+	 * time spent paused, or null if no limits are set
+	 */
+	public MQTTBackpressure getBackpressure() {
+		return backpressure;
+	}
+
+	/**
+	 * @return the last retained message received for topic, or null if 
+	 * none is cached
+	 */
+	public MQTTPublication getRetained(String topic) {
+		MQTTRetainedCache cache = retainedCache;
+		return cache != null ? cache.get(topic) : null;
+	}
+
+	/**
+	 * @return the cached retained messages for the topics that match 
+	 * topicPattern, which may contain wildcards
+	 */
+	public List<MQTTPublication> getRetainedMatching(String topicPattern) {
+		MQTTRetainedCache cache = retainedCache;
+		return cache != null ? cache.query(topicPattern) : new ArrayList<MQTTPublication>();
+	}
+
+	/**
+	 * @return the cache of retained messages, or null if it is disabled
+	 */
+	public MQTTRetainedCache getRetainedCache() {
+		return retainedCache;
+	}
+
+	/**
+	 * @return the window of recent QoS 1 messages used to suppress 
+	 * redeliveries, or null if it is disabled
+	 */
+	public MQTTDuplicateFilter getDuplicateFilter() {
+		return duplicateFilter;
+	}
+
+	/**
+	 * @return the off-heap storage for in-flight payloads, or null if
+	 * they are held on the heap
+	 */
+	public MQTTPayloadArena getPayloadArena() {
+		return store.getArena();
+	}
+
+	/**
+	 * @return the properties of the last CONNACK, which are only ever sent
+	 * with the protocolVersion connection property set to 5
+	 */
+	public MQTTProperties getConnAckProperties() {
+		return connAckProps;
+	}
+
+	/**
+	 * @return the number of publishes held until the client reconnects
+	 */
+	public int getOfflineMessageCount() {
+		return offlineQueue != null ? offlineQueue.size() : 0;
 	}
 
 	/**************************************************************
@@ -200,12 +930,59 @@ public class MQTTClient extends MQTTDecoderListener {
 	 * MQTT messages received on the socket input stream
 	 */
 
+	@Override
+	protected int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	@Override
+	protected void onProtocolError(IOException e) {
+		// The broker is redelivering or waiting on a frame we could not read
+		handleSocketError(e);
+	}
+
+	@Override
+	protected void onConnAck(int responseCode, MQTTProperties props) {
+		// The frame it was read from is reused
+		connAckProps = props.copy();
+		long serverKeepAlive = props.getInt(MQTTProperties.SERVER_KEEP_ALIVE, -1);
+		if (responseCode == 0 && serverKeepAlive >= 0) {
+			keepAlive = serverKeepAlive * 1000;
+		}
+		onConnAck(responseCode);
+	}
+
 	@Override
 	protected void onConnAck(int responseCode) throws MQTTException {
 		active = true;
 
 		if (responseCode == 0) {
 			log.info("Connected to " + this.uri.toASCIIString() + " with ID " + this.clientId);
+			reconnect.reset();
+			// Unacked messages will be redelivered under new handles
+			acks.reset();
+			if (cleanSession) {
+				clearInboundQos2();
+			}
+			brokers.recordSuccess(uri);
+			brokers.recordRtt(uri, System.currentTimeMillis() - connectSent);
+			if (useStandby) {
+				openStandby();
+			}
+			// Queue the resumed state ahead of anything the callback sends
+			if (sessionStarted) {
+				writeQ.execute(doResume());
+			}
+			sessionStarted = true;
+			if (offlineQueue != null) {
+				// Anything queued before this point is drained ahead of new publishes
+				synchronized (offlineQueue) {
+					writeQ.execute(doDrain());
+					online = true;
+				}
+			} else {
+				online = true;
+			}
 			cb.onConnected();
 		}
 
@@ -213,6 +990,7 @@ public class MQTTClient extends MQTTDecoderListener {
 			Exception e = new MQTTException(responseCode > 0 && responseCode <= 5 
 					? CONNECTION_ERRMSG[responseCode - 1]
 					: CONNECTION_ERRMSG[5] + responseCode);
+			brokers.recordFailure(uri);
 			cb.errorOccurred(e);
 			log.severe(e.getMessage());
 		}
@@ -227,54 +1005,152 @@ public class MQTTClient extends MQTTDecoderListener {
 
 	@Override
 	protected void onPingResp() {
-		active = true;
+		// Not activity, or an idle connection would only be pinged every
+		// other keepalive period and a dead one noticed that much later
+		if (pingSent > 0) {
+			brokers.recordRtt(uri, System.currentTimeMillis() - pingSent);
+			pingSent = 0;
+		}
 	}
 
 	@Override
 	protected void onUnsubAck(int messageId) {
 		active = true;
-		super.onUnsubAck(messageId);
+		releaseMessageId(messageId);
+		PendingSubscription pending = pendingSubs.remove(messageId);
+		if (pending != null && pending.callback != null) {
+			pending.callback.unsubscribed(pending.topicPatterns);
+		}
 	}
 
 	@Override
 	protected void onSubAck(int messageId, byte[] qosList) {
 		active = true;
 		store.delete(messageId);
+		releaseMessageId(messageId);
+		PendingSubscription pending = pendingSubs.remove(messageId);
+		if (pending != null) {
+			int[] granted = new int[pending.topicPatterns.length];
+			for (int i = 0; i < granted.length; i++) {
+				granted[i] = qosList != null && i < qosList.length 
+						? qosList[i] & 0xFF : MQTTSubscribeCallback.FAILURE;
+				if (granted[i] >= MQTTSubscribeCallback.FAILURE) {
+					// MQTT 5 gives a reason for refusing, as a code of 0x80 or more
+					granted[i] = MQTTSubscribeCallback.FAILURE;
+					// Refused, so not to be restored either
+					subscriptions.remove(pending.topicPatterns[i]);
+				}
+			}
+			if (pending.callback != null) {
+				pending.callback.subscribed(pending.topicPatterns, granted);
+			}
+		}
 	}
 
 	@Override
 	protected void onPublish(String topic, final int messageId, byte[] payload,
 			int qos, boolean retain, boolean dup) {
+		onPublish(topic, messageId, payload, 0, payload.length, qos, retain, dup);
+	}
+
+	/**
+	 * Handles a PUBLISH in place in the frame it was read in. The payload
+	 * is only copied out when it has to be kept or passed on as a byte[].
+	 */
+	@Override
+	protected void onPublish(String topic, final int messageId, byte[] buf, int off, int len,
+			int qos, boolean retain, boolean dup) {
 		active = true;
 		
 		switch (qos) {
 		case 0:
-			cb.messageArrived(topic, payload);
+			deliver(topic, buf, off, len, qos, retain, -1);
 			break;
 		case 1:
-			store.put(MQTTMessage.PUBACK, messageId, qos, topic, payload, retain);
-			cb.messageArrived(topic, payload);
-			store.delete(messageId);
+			// With manual acks a redelivery may be of a message the application
+			// never acked, so it has to be delivered again rather than acked here
+			MQTTDuplicateFilter filter = ackCb == null ? duplicateFilter : null;
+			if (filter != null && filter.isDuplicate(topic, messageId, buf, off, len, dup)) {
+				// Already delivered, but the broker still needs its ack
+				writeQ.execute(doPubAck(messageId));
+				break;
+			}
+			if (ackCb != null) {
+				long handle = acks.add(messageId);
+				if (!deliver(topic, buf, off, len, qos, retain, handle)) {
+					// Taken by a message listener, so done once the earlier ones are
+					ack(handle);
+				}
+				break;
+			}
+			deliver(topic, buf, off, len, qos, retain, -1);
 			writeQ.execute(doPubAck(messageId));
 			break;
 		case 2:
-			store.put(MQTTMessage.PUBREC, messageId, qos, topic, payload, retain);
+			if (qos2DeliverOnPublish) {
+				// Only the ID is kept, to recognise a redelivery until PUBREL
+				if (markAwaitingRel(messageId)) {
+					deliver(topic, buf, off, len, qos, retain, -1);
+				}
+			} else {
+				inbound.put(MQTTMessage.PUBREC, messageId, qos, topic, copy(buf, off, len), retain);
+			}
 			writeQ.execute(doPubRec(messageId));
 			break;
 		default:
 			cb.errorOccurred(new MQTTException(MQTT_INVALID_QOS + qos));
 		}
+	}
 
-		if (retain) {
-            retainedMsg = new MQTTMessage(MQTTMessage.PUBLISH, messageId, qos, topic, payload, true);
+	@Override
+	protected void onPublishSkipped(int messageId, int qos, boolean dup) {
+		active = true;
+		switch (qos) {
+		case 1:
+			writeQ.execute(doPubAck(messageId));
+			break;
+		case 2:
+			// Completed by PUBREL like any message delivered on PUBLISH
+			markAwaitingRel(messageId);
+			writeQ.execute(doPubRec(messageId));
+			break;
 		}
+	}
 
+	@Override
+	protected void onPublishChunk(String topic, int messageId, int qos, boolean retain,
+			boolean dup, byte[] chunk, int length, long offset, long totalLength) {
+		active = true;
+		streamCb.chunkArrived(topic, chunk, length, offset, totalLength);
+		if (offset + length < totalLength) {
+			return;
+		}
+
+		// The payload has already been delivered, so nothing is kept for QoS 2
+		switch (qos) {
+		case 0:
+			break;
+		case 1:
+			writeQ.execute(doPubAck(messageId));
+			break;
+		case 2:
+			if (qos2DeliverOnPublish) {
+				markAwaitingRel(messageId);
+			} else {
+				inbound.put(MQTTMessage.PUBREC, messageId, qos, topic, null, retain);
+			}
+			writeQ.execute(doPubRec(messageId));
+			break;
+		default:
+			cb.errorOccurred(new MQTTException(MQTT_INVALID_QOS + qos));
+		}
 	}
 
 	@Override
 	protected void onPubComp(int messageId) {
 		active = true;
 		store.delete(messageId);
+		releaseMessageId(messageId);
 		cb.publishComplete(messageId);
 	}
 
@@ -282,6 +1158,7 @@ public class MQTTClient extends MQTTDecoderListener {
 	protected void onPubAck(int messageId) {
 		active = true;
 		store.delete(messageId);
+		releaseMessageId(messageId);
 		cb.publishComplete(messageId);
 	}
 
@@ -289,7 +1166,8 @@ public class MQTTClient extends MQTTDecoderListener {
 	protected void onPubRec(final int messageId) {
 		active = true;
 		if (store.contains(messageId)) {
-//			MQTTMessage msg = store.get(messageId);
+			// Now awaiting PUBCOMP, so a reconnect must replay the PUBREL
+			store.updateType(messageId, MQTTMessage.PUBREL);
 			writeQ.execute(doPubRel(messageId));
 		}
 	}
@@ -297,11 +1175,99 @@ public class MQTTClient extends MQTTDecoderListener {
 	@Override
 	protected void onPubRel(final int messageId, boolean dup) {
 		active = true;
-		if (store.contains(messageId)) {
-			MQTTMessage msg = store.get(messageId);
-			cb.messageArrived(msg.getTopic(), msg.getMsg());
+		boolean delivered;
+		synchronized (awaitingRel) {
+			delivered = awaitingRel.get(messageId);
+			awaitingRel.clear(messageId);
+		}
+		if (delivered) {
+			writeQ.execute(doPubComp(messageId));
+		} else if (inbound.contains(messageId)) {
+			MQTTMessage msg = inbound.get(messageId);
+			if (msg.getMsg() != null) {
+				deliver(msg.getTopic(), msg.getMsg(), msg.getQos(), msg.isRetained());
+			}
 			writeQ.execute(doPubComp(messageId));
-			store.delete(messageId);
+			inbound.delete(messageId);
+		}
+	}
+
+	/**
+	 * Splits topic filters into SUBSCRIBE or UNSUBSCRIBE packets of at 
+	 * most subscribePacketBytes each, and records them as awaiting acks.
+	 */
+	private List<PendingSubscription> pack(boolean unsubscribe, String[] topicPatterns, int[] qos,
+			MQTTSubscribeCallback callback) {
+		List<PendingSubscription> packets = new ArrayList<PendingSubscription>();
+		int start = 0;
+		// The message ID and any properties
+		MQTTPropertiesBuilder props = packetProps;
+		int headerSize = 2 + (props != null ? props.encodedLength() : 0);
+		int size = headerSize;
+		for (int i = 0; i <= topicPatterns.length; i++) {
+			int filterSize = i < topicPatterns.length 
+					? 2 + topicPatterns[i].getBytes(StandardCharsets.UTF_8).length + (unsubscribe ? 0 : 1) : 0;
+			if (i == topicPatterns.length || (i > start && size + filterSize > subscribePacketBytes)) {
+				if (i == start) {
+					break;
+				}
+				PendingSubscription packet = new PendingSubscription(nextMessageId(), unsubscribe,
+						Arrays.copyOfRange(topicPatterns, start, i), 
+						unsubscribe ? null : Arrays.copyOfRange(qos, start, i), callback);
+				pendingSubs.put(packet.msgId, packet);
+				packets.add(packet);
+				start = i;
+				size = headerSize;
+			}
+			size += filterSize;
+		}
+		return packets;
+	}
+
+	private static void writeSubscriptions(DataOutputStream dos, List<PendingSubscription> packets,
+			MQTTPropertiesBuilder props) throws IOException {
+		for (PendingSubscription packet : packets) {
+			if (packet.unsubscribe) {
+				MQTTEncoder.writeUnsubscribe(dos, packet.msgId, packet.topicPatterns, props);
+			} else {
+				MQTTEncoder.writeSubscribe(dos, packet.msgId, packet.topicPatterns, packet.qos, props);
+			}
+		}
+	}
+
+	private void sendPubAcks(int[] messageIds) {
+		if (messageIds != null) {
+			writeQ.execute(messageIds.length == 1 ? doPubAck(messageIds[0]) : doPubAcks(messageIds));
+		}
+	}
+
+	/**
+	 * Forgets the inbound QoS 2 messages awaiting PUBREL. A clean session
+	 * will never release them, and their IDs are free for the broker to
+	 * use again, so a new message under one would otherwise be taken
+	 * for a redelivery and dropped.
+	 */
+	private void clearInboundQos2() {
+		synchronized (awaitingRel) {
+			awaitingRel.clear();
+		}
+		for (MQTTMessage msg : inbound.list(MQTTMessage.PUBREC)) {
+			inbound.delete(msg.getId());
+		}
+	}
+
+	/**
+	 * Records an inbound QoS 2 message delivered on PUBLISH.
+	 * @return false if its ID is already awaiting PUBREL, so this is a 
+	 * redelivery that must not be delivered again
+	 */
+	private boolean markAwaitingRel(int messageId) {
+		synchronized (awaitingRel) {
+			if (awaitingRel.get(messageId)) {
+				return false;
+			}
+			awaitingRel.set(messageId);
+			return true;
 		}
 	}
 
@@ -312,15 +1278,112 @@ public class MQTTClient extends MQTTDecoderListener {
 	 * an MQTT message.
 	 */
 
-	private Runnable doConnect(final String user, final String password,
-			final String lwtTopic, final String lwtMsg, final int lwtQos,
-			final boolean lwtRetain, final boolean cleanSession) {
+	private Runnable doConnect(final String user, final String password,
+			final String lwtTopic, final String lwtMsg, final int lwtQos,
+			final boolean lwtRetain, final boolean cleanSession, final MQTTPropertiesBuilder props) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connectSent = System.currentTimeMillis();
+					MQTTEncoder.writeConnect(output, clientId, user, password, lwtTopic,
+							lwtMsg, lwtQos, lwtRetain, cleanSession, (int) (keepAlive/1000), props);
+				} catch (IOException e) {
+					handleSocketError(e);
+				}
+			}
+		};
+	}
+
+	private Runnable doDisconnect() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					MQTTEncoder.writeDisconnect(output);
+				} catch (IOException e) {
+					handleSocketError(e);
+				} 
+				
+				closeConnection();
+				if (loop == null) {
+					((ExecutorService) writeQ).shutdown();
+				}
+				cb.onDisconnected();
+			}
+		};
+	}
+
+	private Runnable doSubscribe(final String topicPattern, final int qos,
+			final int msgId) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					MQTTEncoder.writeSubscribe(output, msgId, topicPattern, qos, packetProps);
+				} catch (IOException e) {
+					handleSocketError(e);
+				}
+			}
+		};
+	}
+
+	private Runnable doSubscribeAll(final List<PendingSubscription> packets) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ByteArrayOutputStream buf = new ByteArrayOutputStream();
+					writeSubscriptions(new DataOutputStream(buf), packets, packetProps);
+					buf.writeTo(output);
+					output.flush();
+				} catch (IOException e) {
+					handleSocketError(e);
+				}
+			}
+		};
+	}
+
+	private Runnable doPublish(final String topic, final byte[] message,
+			final int qos, final int msgId, final boolean retained) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					MQTTEncoder.writePublish(output, topic, message, msgId, qos, retained, false, packetProps);
+				} catch (IOException e) {
+					handleSocketError(e);
+				}
+			}
+		};
+	}
+
+	private Runnable doPublishFrame(final MQTTFrameBuffer frame) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					frame.writeFrameTo(output);
+					output.flush();
+				} catch (IOException e) {
+					handleSocketError(e);
+				} finally {
+					MQTTEncoder.releaseFrame(frame);
+				}
+			}
+		};
+	}
+
+	private Runnable doPublishStream(final String topic, final ReadableByteChannel source,
+			final long position, final long length, final int qos, final int msgId, final boolean retained) {
 		return new Runnable() {
 			@Override
 			public void run() {
 				try {
-					MQTTEncoder.writeConnect(output, clientId, user, password, lwtTopic,
-							lwtMsg, lwtQos, lwtRetain, cleanSession, (int) (keepAlive/1000));
+					// A loop's channel is non-blocking, so its writes must go through output
+					Socket s = loop == null ? socket : null;
+					MQTTEncoder.writePublishStream(output, s != null ? s.getChannel() : null, topic, source, 
+							position, length, msgId, qos, retained, packetProps);
 				} catch (IOException e) {
 					handleSocketError(e);
 				}
@@ -328,34 +1391,76 @@ public class MQTTClient extends MQTTDecoderListener {
 		};
 	}
 
-	private Runnable doDisconnect() {
+	private Runnable doPublishBatch(final List<MQTTPublication> messages, final int[] msgIds) {
 		return new Runnable() {
 			@Override
 			public void run() {
 				try {
-					MQTTEncoder.writeDisconnect(output);
+					MQTTEncoder.writePublishBatch(output, messages, msgIds, packetProps);
 				} catch (IOException e) {
 					handleSocketError(e);
-				} 
-				
-				try {
-					socket.close();
-				} catch (IOException e) {}
-				
-				socket = null;
-				writeQ.shutdown();
-				cb.onDisconnected();
+				}
 			}
 		};
 	}
 
-	private Runnable doSubscribe(final String topicPattern, final int qos,
-			final int msgId) {
+	/**
+	 * Restores subscriptions and replays in-flight messages after a 
+	 * reconnect, pipelined into a single write.
+	 */
+	private Runnable doResume() {
 		return new Runnable() {
 			@Override
 			public void run() {
 				try {
-					MQTTEncoder.writeSubscribe(output, msgId, topicPattern, qos);
+					// Superseded by the restored subscriptions
+					for (MQTTMessage msg : store.list(MQTTMessage.SUBSCRIBE)) {
+						store.delete(msg.getId());
+						releaseMessageId(msg.getId());
+					}
+
+					// Bulk requests the application still awaits are sent again as they
+					// were, and the rest of the subscriptions are packed after them
+					List<PendingSubscription> packets = new ArrayList<PendingSubscription>();
+					Map<String, Integer> restore = new HashMap<String, Integer>();
+					if (restoreSubscriptions) {
+						restore.putAll(subscriptions);
+					}
+					for (PendingSubscription pending : pendingSubs.values()) {
+						if (pending.callback == null) {
+							pendingSubs.remove(pending.msgId);
+							releaseMessageId(pending.msgId);
+						} else {
+							packets.add(pending);
+							if (!pending.unsubscribe) {
+								restore.keySet().removeAll(Arrays.asList(pending.topicPatterns));
+							}
+						}
+					}
+					Collections.sort(packets, BY_SEQUENCE);
+					if (!restore.isEmpty()) {
+						String[] topicPatterns = new String[restore.size()];
+						int[] qos = new int[restore.size()];
+						int i = 0;
+						for (Map.Entry<String, Integer> sub : restore.entrySet()) {
+							topicPatterns[i] = sub.getKey();
+							qos[i++] = sub.getValue();
+						}
+						packets.addAll(pack(false, topicPatterns, qos, null));
+					}
+					if (!packets.isEmpty()) {
+						ByteArrayOutputStream buf = new ByteArrayOutputStream();
+						writeSubscriptions(new DataOutputStream(buf), packets, packetProps);
+						buf.writeTo(output);
+					}
+
+					List<MQTTMessage> inFlight = store.list(MQTTMessage.PUBLISH);
+					inFlight.addAll(store.list(MQTTMessage.PUBREL));
+					MQTTEncoder.writeReplay(output, inFlight, packetProps);
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("Resumed " + subscriptions.size() + " subscriptions and " 
+								+ inFlight.size() + " in-flight messages");
+					}
 				} catch (IOException e) {
 					handleSocketError(e);
 				}
@@ -363,13 +1468,38 @@ public class MQTTClient extends MQTTDecoderListener {
 		};
 	}
 
-	private Runnable doPublish(final String topic, final byte[] message,
-			final int qos, final int msgId, final boolean retained) {
+	/**
+	 * Sends the messages held while offline in batches, each encoded
+	 * into a single write.
+	 */
+	private Runnable doDrain() {
 		return new Runnable() {
 			@Override
 			public void run() {
+				List<MQTTPublication> batch = new ArrayList<MQTTPublication>(DRAIN_BATCH_SIZE);
 				try {
-					MQTTEncoder.writePublish(output, topic, message, msgId, qos, retained);
+					// Only as many messages are taken as there are free IDs
+					// for, so the rest wait in the queue until IDs are released
+					int[] reserved;
+					while ((reserved = reserveMessageIds(DRAIN_BATCH_SIZE)).length > 0) {
+						int n = offlineQueue.drainTo(batch, reserved.length);
+						int[] ids = new int[n];
+						int used = 0;
+						for (int i = 0; i < n; i++) {
+							if (batch.get(i).getQos() > 0) {
+								ids[i] = reserved[used++];
+							}
+						}
+						for (int i = used; i < reserved.length; i++) {
+							releaseMessageId(reserved[i]);
+						}
+						if (n == 0) {
+							break;
+						}
+						store.putBatch(batch, ids);
+						MQTTEncoder.writePublishBatch(output, batch, ids, packetProps);
+						batch.clear();
+					}
 				} catch (IOException e) {
 					handleSocketError(e);
 				}
@@ -429,11 +1559,37 @@ public class MQTTClient extends MQTTDecoderListener {
 		};
 	}
 
+	/**
+	 * Writes several PUBACKs with a single flush.
+	 */
+	private Runnable doPubAcks(final int[] messageIds) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ByteArrayOutputStream buf = new ByteArrayOutputStream(messageIds.length * 4);
+					DataOutputStream dos = new DataOutputStream(buf);
+					for (int id : messageIds) {
+						MQTTEncoder.writePubAck(dos, id);
+					}
+					buf.writeTo(output);
+					output.flush();
+				} catch (IOException e) {
+					handleSocketError(e);
+				}
+			}
+		};
+	}
+
 	private Runnable doPing() {
 		return new Runnable() {
 			@Override
 			public void run() {
 				try {
+					// A ping sent while one is unanswered must not restart its timeout
+					if (pingSent == 0) {
+						pingSent = System.currentTimeMillis();
+					}
 					MQTTEncoder.writePing(output);
 				} catch (IOException e) {
 					handleSocketError(e);
@@ -448,28 +1604,53 @@ public class MQTTClient extends MQTTDecoderListener {
 	 */
 	
 	private void openConnection(Properties connectionProperties) throws IOException, SocketException {
-		if (socket != null) {
+		closeConnection();
+		pingSent = 0;
+		this.zeroCopy = Boolean.parseBoolean(connectionProperties.getProperty("zeroCopy", "False"));
+		this.useStandby = loop == null && Boolean.parseBoolean(connectionProperties.getProperty("standby", "False"));
+		this.standbyRefresh = Integer.parseInt(connectionProperties.getProperty("standbyRefreshSecs", "30")) * 1000;
+
+		if (loop != null) {
+			URI target = brokers.select();
 			try {
-				socket.close();
-			} catch (Exception e) {}
-		}
-		// Set up the TCP connection
-		socket = SocketFactory.getDefault().createSocket();
-		socket.setReceiveBufferSize(DEFAULT_BUFFER_SIZE);
-		socket.setSoTimeout(SOCKET_TIMEOUT);
-		int port = uri.getPort() == -1 ? 1883 : uri.getPort();
-		socket.connect(new InetSocketAddress(uri.getHost(), port));
-		
-		input = new DataInputStream(
-				new BufferedInputStream(
-						socket.getInputStream()
-						)
-				);
-		output = new DataOutputStream(
-				new BufferedOutputStream(
-						socket.getOutputStream()
-						)
-				);
+				connection = loop.connect(this, address(target));
+			} catch (IOException e) {
+				brokers.recordFailure(target);
+				throw e;
+			}
+			uri = target;
+			input = null;
+			output = new DataOutputStream(connection);
+		}
+		else {
+			// Promote the standby connection if there is a usable one
+			Socket promoted = takeStandby();
+			if (promoted != null) {
+				socket = promoted;
+				log.info("Failing over to standby connection " + uri.toASCIIString());
+			} 
+			else {
+				URI target = brokers.select();
+				try {
+					socket = createSocket(target);
+				} catch (IOException e) {
+					brokers.recordFailure(target);
+					throw e;
+				}
+				uri = target;
+			}
+			
+			input = new DataInputStream(
+					new BufferedInputStream(
+							socket.getInputStream()
+							)
+					);
+			output = new DataOutputStream(
+					new BufferedOutputStream(
+							socket.getOutputStream()
+							)
+					);
+		}
 		
 		// Save our properties
 		String user = connectionProperties.getProperty("user");
@@ -479,22 +1660,415 @@ public class MQTTClient extends MQTTDecoderListener {
 		int lwtQos = Integer.parseInt(connectionProperties.getProperty("lwtQos", "0"));
 		boolean lwtRetain = Boolean.parseBoolean(connectionProperties.getProperty("lwtRetain", "False"));
 		boolean cleanSession = Boolean.parseBoolean(connectionProperties.getProperty("cleanSession", "False"));
+		this.cleanSession = cleanSession;
 		// KeepAlive is stored as millis
 		this.keepAlive = Integer.parseInt(connectionProperties.getProperty("keepAliveSecs", "60")) * 1000; 
 		this.reconnectIntervalInc = Integer.parseInt(connectionProperties.getProperty("reconnectIntervalInc", "3")) * 1000;
 		this.reconnectIntervalMax = Integer.parseInt(connectionProperties.getProperty("reconnectIntervalMax", "120")) * 1000;
+		if (this.backpressure == null && workQ != null) {
+			this.backpressure = createBackpressure(connectionProperties);
+		}
+		if (this.offlineQueue == null || this.offlineQueue.isClosed()) {
+			this.offlineQueue = createOfflineQueue(connectionProperties);
+		}
+		if (this.retainedCache == null) {
+			this.retainedCache = createRetainedCache(connectionProperties);
+		}
+		if (this.duplicateFilter == null) {
+			this.duplicateFilter = createDuplicateFilter(connectionProperties);
+		}
+		if (store.getArena() == null) {
+			store.setArena(createPayloadArena(connectionProperties));
+			inbound.setArena(store.getArena());
+		}
+		this.qos2DeliverOnPublish = Boolean.parseBoolean(connectionProperties.getProperty("qos2DeliverOnPublish", "False"));
+		this.subscribePacketBytes = Integer.parseInt(connectionProperties.getProperty("subscribePacketBytes", 
+				String.valueOf(DEFAULT_SUBSCRIBE_PACKET_BYTES)));
+		this.restoreSubscriptions = Boolean.parseBoolean(connectionProperties.getProperty("restoreSubscriptions", "True"));
+		if (this.reconnect == null) {
+			this.reconnect = new MQTTReconnectController(reconnectIntervalInc, reconnectIntervalMax);
+		} else {
+			this.reconnect.configure(reconnectIntervalInc, reconnectIntervalMax);
+		}
+		this.maxPacketSize = Integer.parseInt(connectionProperties.getProperty("maxPacketSize", 
+				String.valueOf(MQTTDecoder.MAX_PACKET_SIZE)));
+		this.streamingThreshold = Integer.parseInt(connectionProperties.getProperty("streamingThreshold", 
+				String.valueOf(Integer.MAX_VALUE)));
+		MQTTPropertiesBuilder connectBlock = createConnectProperties(connectionProperties, cleanSession);
+		this.packetProps = connectBlock != null ? new MQTTPropertiesBuilder(1) : null;
+		this.protocolVersion = connectBlock != null ? 5 : 3;
+		this.connAckProps = MQTTProperties.EMPTY;
+
+		if (connection != null) {
+			parser = new MQTTFrameParser(this, workQ, maxPacketSize, backpressure);
+			parser.setPublishFilter(publishFilter);
+			connection.register(parser);
+		}
 
 		// Send the CONNECT msg
 		writeQ.execute(doConnect(user, password, lwtTopic, lwtMsg, lwtQos,
-				lwtRetain, cleanSession));
+				lwtRetain, cleanSession, connectBlock));
+
+	}
+
+	/**
+	 * Opens a TCP connection to target. A channel-backed socket lets 
+	 * streamed publishes use FileChannel.transferTo() straight to the socket.
+	 */
+	private Socket createSocket(URI target) throws IOException {
+		Socket s = zeroCopy ? SocketChannel.open().socket() : SocketFactory.getDefault().createSocket();
+		try {
+			s.setReceiveBufferSize(DEFAULT_BUFFER_SIZE);
+			s.setSoTimeout(SOCKET_TIMEOUT);
+			s.connect(address(target), SOCKET_TIMEOUT);
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		return s;
+	}
+
+	private static InetSocketAddress address(URI target) {
+		int port = target.getPort() == -1 ? 1883 : target.getPort();
+		return new InetSocketAddress(target.getHost(), port);
+	}
+
+	/**
+	 * Opens (or replaces) the standby connection to the best broker other 
+	 * than the current one, on its own thread. The time taken to connect
+	 * is recorded as an RTT sample for that broker.
+	 */
+	private void openStandby() {
+		if (brokers.size() < 2 || !standbyOpening.compareAndSet(false, true)) {
+			return;
+		}
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				URI target = brokers.select(uri);
+				try {
+					if (target == null) {
+						return;
+					}
+					long start = System.currentTimeMillis();
+					Socket s = createSocket(target);
+					brokers.recordRtt(target, System.currentTimeMillis() - start);
+					synchronized (standbyLock) {
+						closeStandby();
+						standby = s;
+						standbyUri = target;
+						standbyOpened = System.currentTimeMillis();
+					}
+				} catch (IOException e) {
+					brokers.recordFailure(target);
+					// Retried at the next refresh rather than on every tick
+					standbyOpened = System.currentTimeMillis();
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("Standby connection to " + target + " failed: " + e.getMessage());
+					}
+				} finally {
+					standbyOpening.set(false);
+				}
+			}
+		}, "thinqtt-standby-" + clientId).start();
+	}
+
+	/**
+	 * @return the standby socket, making its broker the current one, or
+	 * null if there is no standby or it has gone stale
+	 */
+	private Socket takeStandby() {
+		synchronized (standbyLock) {
+			Socket s = standby;
+			standby = null;
+			if (s == null) {
+				return null;
+			}
+			if (!isOpen(s) || System.currentTimeMillis() - standbyOpened > 2 * standbyRefresh) {
+				try {
+					s.close();
+				} catch (IOException e) {}
+				return null;
+			}
+			uri = standbyUri;
+			return s;
+		}
+	}
+
+	private void closeStandby() {
+		synchronized (standbyLock) {
+			if (standby != null) {
+				try {
+					standby.close();
+				} catch (IOException e) {}
+				standby = null;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the standby connection when it is due for a refresh, or 
+	 * at once if the broker has closed it.
+	 */
+	private void checkStandby() {
+		boolean dead;
+		synchronized (standbyLock) {
+			dead = standby != null && !isOpen(standby);
+			if (dead) {
+				closeStandby();
+			}
+		}
+		if (dead || System.currentTimeMillis() - standbyOpened > standbyRefresh) {
+			openStandby();
+		}
+	}
+
+	/**
+	 * Probes a socket that nothing is expected on with a read of at 
+	 * most a millisecond. isClosed() only tells whether this end has been
+	 * closed, while the read sees the broker closing or resetting it.
+	 * @return false if the socket is closed at either end
+	 */
+	private static boolean isOpen(Socket s) {
+		if (s.isClosed()) {
+			return false;
+		}
+		try {
+			s.setSoTimeout(1);
+			try {
+				// Any byte at all means the socket can no longer be used for MQTT
+				s.getInputStream().read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				s.setSoTimeout(SOCKET_TIMEOUT);
+				return true;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void startTicker() {
+		stopTicker();
+		ticker = new Timer("thinqtt-tick-" + clientId, true);
+		ticker.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if (isRunning.get()) {
+					onTick();
+				}
+			}
+		}, tickInterval(), tickInterval());
+	}
+
+	/**
+	 * @return how often the activity timer ticks, which is often enough
+	 * for short keepalives to be kept to as well as long ones
+	 */
+	private long tickInterval() {
+		return Math.max(MIN_ACTIVITY_TICK, Math.min(ACTIVITY_TICK, keepAlive / 4));
+	}
+
+	private void stopTicker() {
+		Timer t = ticker;
+		ticker = null;
+		if (t != null) {
+			t.cancel();
+		}
+	}
+
+	/**
+	 * Runs on every tick of the timer of a client with a reader thread of
+	 * its own, whether or not anything is being read.
+	 */
+	private void onTick() {
+		if (isConnected()) {
+			checkActivity();
+		}
+		// Brokers may drop idle connections that never send CONNECT
+		if (useStandby && isConnected()) {
+			checkStandby();
+		}
+	}
+
+	/**
+	 * @return the limits on frames queued for the work pool, or null if
+	 * neither workQueueHighMessages nor workQueueHighBytes is set.
+	 */
+	private MQTTBackpressure createBackpressure(Properties props) {
+		String highMessages = props.getProperty("workQueueHighMessages");
+		String highBytes = props.getProperty("workQueueHighBytes");
+		if (highMessages == null && highBytes == null) {
+			return null;
+		}
+		int highMsgs = highMessages != null ? Integer.parseInt(highMessages) : Integer.MAX_VALUE;
+		long highBts = highBytes != null ? Long.parseLong(highBytes) : Long.MAX_VALUE;
+		int lowMsgs = Integer.parseInt(props.getProperty("workQueueLowMessages", String.valueOf(highMsgs / 2)));
+		long lowBts = Long.parseLong(props.getProperty("workQueueLowBytes", String.valueOf(highBts / 2)));
+		return new MQTTBackpressure(this, highMsgs, lowMsgs, highBts, lowBts);
+	}
+
+	/**
+	 * @return the properties of an MQTT 5 CONNECT, or null if the 
+	 * protocolVersion property is 3, for MQTT 3.1. A persistent session
+	 * lasts sessionExpirySecs after the connection closes, by default 
+	 * forever, as it does with MQTT 3.1.
+	 */
+	private MQTTPropertiesBuilder createConnectProperties(Properties props, boolean cleanSession) {
+		int version = Integer.parseInt(props.getProperty("protocolVersion", "3"));
+		if (version == 3) {
+			return null;
+		}
+		if (version != 5)
+			throw new IllegalArgumentException("Unsupported protocol version: " + version);
+		MQTTPropertiesBuilder connect = new MQTTPropertiesBuilder();
+		if (!cleanSession) {
+			connect.add(MQTTProperties.SESSION_EXPIRY_INTERVAL, 
+					Long.parseLong(props.getProperty("sessionExpirySecs", "4294967295")));
+		}
+		if (maxPacketSize < MQTTDecoder.MAX_PACKET_SIZE) {
+			// Counts the whole packet, not just the remaining length
+			connect.add(MQTTProperties.MAXIMUM_PACKET_SIZE, 
+					1 + MQTTEncoder.remainingLengthSize(maxPacketSize) + maxPacketSize);
+		}
+		return connect;
+	}
+
+	/**
+	 * @return a cache of inbound retained messages, or null if the 
+	 * retainedCacheSize property is 0.
+	 */
+	private MQTTRetainedCache createRetainedCache(Properties props) {
+		int size = Integer.parseInt(props.getProperty("retainedCacheSize", "1024"));
+		if (size <= 0) {
+			return null;
+		}
+		long maxBytes = Long.parseLong(props.getProperty("retainedCacheBytes", String.valueOf(16 * 1024 * 1024)));
+		return new MQTTRetainedCache(size, maxBytes);
+	}
+
+	/**
+	 * @return a window of the last dedupeWindowSize QoS 1 messages, kept 
+	 * for at most dedupeWindowSecs, or null if dedupeWindowSize is not set.
+	 */
+	private MQTTDuplicateFilter createDuplicateFilter(Properties props) {
+		int size = Integer.parseInt(props.getProperty("dedupeWindowSize", "0"));
+		if (size <= 0) {
+			return null;
+		}
+		long windowSecs = Long.parseLong(props.getProperty("dedupeWindowSecs", "300"));
+		return new MQTTDuplicateFilter(size, windowSecs * 1000);
+	}
+
+	/**
+	 * @return off-heap storage for in-flight payloads, or null if the 
+	 * inflightArenaBytes property is not set.
+	 */
+	private MQTTPayloadArena createPayloadArena(Properties props) {
+		long maxBytes = Long.parseLong(props.getProperty("inflightArenaBytes", "0"));
+		if (maxBytes <= 0) {
+			return null;
+		}
+		int slabSize = Integer.parseInt(props.getProperty("inflightArenaSlabBytes", 
+				String.valueOf(MQTTPayloadArena.DEFAULT_SLAB_SIZE)));
+		return new MQTTPayloadArena(slabSize, maxBytes);
+	}
+
+	/**
+	 * @return a queue for publishes made while disconnected, or null
+	 * if the offlineQueueSize property is not set.
+	 */
+	private MQTTOfflineQueue createOfflineQueue(Properties props) throws IOException {
+		int size = Integer.parseInt(props.getProperty("offlineQueueSize", "0"));
+		if (size <= 0) {
+			return null;
+		}
+		long maxBytes = Long.parseLong(props.getProperty("offlineQueueBytes", String.valueOf(16 * 1024 * 1024)));
+		String spillFile = props.getProperty("offlineSpillFile");
+		int spillBytes = Integer.parseInt(props.getProperty("offlineSpillBytes", String.valueOf(64 * 1024 * 1024)));
 
+		MQTTOfflineQueue queue = new MQTTOfflineQueue(size, maxBytes, 
+				spillFile != null ? new File(spillFile) : null, spillBytes);
+		for (int qos = 0; qos <= 2; qos++) {
+			String policy = props.getProperty("offlineDropPolicyQos" + qos);
+			if (policy != null) {
+				queue.setDropPolicy(qos, "reject".equalsIgnoreCase(policy) 
+						? MQTTOfflineQueue.POLICY_REJECT : MQTTOfflineQueue.POLICY_DROP);
+			}
+		}
+		return queue;
 	}
 
 	/**
-	 * @return the next integer in an incrementing count.
+	 * @return the next message ID from 1 to 65535 that is not in use, 
+	 * which stays in use until releaseMessageId()
+	 * @throws MQTTException if every message ID is in use
 	 */
 	private int nextMessageId() {
-		return msgId.incrementAndGet();
+		synchronized (idsInUse) {
+			int id = idsInUse.nextClearBit(lastMessageId + 1);
+			if (id > MAX_MESSAGE_ID) {
+				id = idsInUse.nextClearBit(1);
+				if (id > MAX_MESSAGE_ID)
+					throw new MQTTException("All " + MAX_MESSAGE_ID + " message IDs are in use");
+			}
+			idsInUse.set(id);
+			lastMessageId = id;
+			return id;
+		}
+	}
+
+	/**
+	 * Allocates the IDs of a batch in one step.
+	 * @return a message ID for each QoS 1 or 2 message and 0 for the rest
+	 */
+	private int[] nextMessageIds(List<MQTTPublication> messages) {
+		int[] ids = new int[messages.size()];
+		synchronized (idsInUse) {
+			try {
+				for (int i = 0; i < ids.length; i++) {
+					if (messages.get(i).getQos() > 0) {
+						ids[i] = nextMessageId();
+					}
+				}
+			} catch (MQTTException e) {
+				for (int id : ids) {
+					if (id != 0) {
+						releaseMessageId(id);
+					}
+				}
+				throw e;
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Takes up to max free message IDs for draining the offline queue. If
+	 * none are free, the drain is started again once one is released.
+	 */
+	private int[] reserveMessageIds(int max) {
+		synchronized (idsInUse) {
+			int[] ids = new int[Math.min(max, MAX_MESSAGE_ID - idsInUse.cardinality())];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = nextMessageId();
+			}
+			drainStalled = ids.length == 0;
+			return ids;
+		}
+	}
+
+	private void releaseMessageId(int id) {
+		boolean drain;
+		synchronized (idsInUse) {
+			idsInUse.clear(id);
+			drain = drainStalled;
+			drainStalled = false;
+		}
+		// While offline the drain waits for the next CONNACK instead
+		if (drain && online && isRunning.get()) {
+			writeQ.execute(doDrain());
+		}
 	}
 
 	/**
@@ -513,11 +2087,18 @@ public class MQTTClient extends MQTTDecoderListener {
 	/**
 	 * If it has been {keepAlive} milliseconds since the last call
 	 * and we have not recently had activity and we are still connected,
-	 * send a ping message to remote MQTT endpoint. 
+	 * send a ping message to remote MQTT endpoint. Called on every tick
+	 * of the activity timer, so a ping and its timeout are noticed within
+	 * a tick of being due however busy the connection is.
 	 */
 	private void checkActivity() {
 		long now = System.currentTimeMillis(); 
-		if (now - lastActivityCheck > keepAlive) {
+		if (isPingTimedOut(now)) {
+			pingSent = 0;
+			handleSocketError(new SocketTimeoutException("No response to ping in " + keepAlive + "ms"));
+			return;
+		}
+		if (now - lastActivityCheck >= keepAlive) {
 			// Time to check for activity
 			if (!active && isConnected()) {
 				writeQ.execute(doPing());
@@ -527,40 +2108,221 @@ public class MQTTClient extends MQTTDecoderListener {
 		}
 	}
 
+	/**
+	 * A ping unanswered for a whole keepalive period means the connection
+	 * is half open, which would otherwise never be noticed. While reading
+	 * is paused the answer may just be unread.
+	 */
+	private boolean isPingTimedOut(long now) {
+		long ping = pingSent;
+		return ping > 0 && now - ping >= keepAlive && readPauses.get() == 0 && isConnected();
+	}
+
+	private void deliver(String topic, byte[] payload, int qos, boolean retained) {
+		deliver(topic, payload, 0, payload.length, qos, retained, -1);
+	}
+
+	/**
+	 * Passes an inbound message, held at buf[off, off + len), to the 
+	 * callback, decoding the payload first if it was encoded by a 
+	 * registered codec. A payload that carries a codec marker but does 
+	 * not decode is reported and then delivered as it arrived, since it
+	 * may be a binary payload that only looks encoded, and dropping it 
+	 * would lose a message that is acked anyway. Typed listeners read 
+	 * the payload in place, and it is copied only for whatever needs a
+	 * byte[].
+	 * @return true if the message went to the MQTTAckCallback with 
+	 * ackHandle, which the application will now ack
+	 */
+	private boolean deliver(String topic, byte[] buf, int off, int len, int qos, boolean retained, 
+			long ackHandle) {
+		byte[] payload = null;
+		MQTTCodecPipeline pipeline = codecs;
+		// Payloads without a marker are passed on from the frame like any other
+		if (pipeline != null && MQTTCodecPipeline.isEncoded(buf, off, len)) {
+			try {
+				byte[] decoded = pipeline.decode(buf, off, len);
+				if (decoded != null) {
+					payload = decoded;
+					buf = decoded;
+					off = 0;
+					len = decoded.length;
+				}
+			} catch (MQTTException e) {
+				cb.errorOccurred(e);
+			}
+		}
+		MQTTRetainedCache cache = retainedCache;
+		if (retained && cache != null) {
+			payload = copy(buf, off, len);
+			cache.update(topic, payload, qos);
+		}
+		boolean handled = false;
+		for (FilterListener fl : listeners) {
+			if (MQTTTopic.matches(fl.filter, topic)) {
+				if (fl.typed != null) {
+					try {
+						fl.typed.deliver(topic, buf, off, len, qos, retained);
+					} catch (IOException e) {
+						cb.errorOccurred(e);
+					}
+				} else {
+					if (payload == null) {
+						payload = copy(buf, off, len);
+					}
+					fl.listener.messageArrived(topic, payload, qos, retained);
+				}
+				handled = true;
+			}
+		}
+		if (handled) {
+			return false;
+		}
+		if (payload == null) {
+			payload = copy(buf, off, len);
+		}
+		MQTTAckCallback ac = ackCb;
+		if (ac != null) {
+			ac.messageArrived(topic, payload, qos, retained, ackHandle);
+			return ackHandle >= 0;
+		}
+		cb.messageArrived(topic, payload);
+		return false;
+	}
+
+	/**
+	 * @return buf[off, off + len), without copying if that is all of buf
+	 */
+	private static byte[] copy(byte[] buf, int off, int len) {
+		return off == 0 && len == buf.length ? buf : Arrays.copyOfRange(buf, off, off + len);
+	}
+
+	/**
+	 * Blocks the reader thread while reading is paused, waking at the 
+	 * socket timeout to check again. The activity timer keeps the 
+	 * connection alive meanwhile.
+	 */
+	private void waitWhilePaused() {
+		synchronized (readGate) {
+			if (readPauses.get() > 0) {
+				try {
+					readGate.wait(SOCKET_TIMEOUT);
+				} catch (InterruptedException e) { /* nop */ }
+			}
+		}
+	}
+
+	/**
+	 * Closes the socket or event loop connection, if there is one.
+	 * @return true if there was one
+	 */
+	private boolean closeConnection() {
+		Socket s;
+		MQTTConnection c;
+		// Only one caller may find the connection open
+		synchronized (closeLock) {
+			s = socket;
+			c = connection;
+			socket = null;
+			connection = null;
+		}
+		try {
+			if (s != null) {
+				s.close();
+			}
+			if (c != null) {
+				c.close();
+			}
+		} catch (IOException e) {}
+		return s != null || c != null;
+	}
+
+	/**
+	 * Closes the connection and reports its loss. The activity timer and
+	 * the reader or writer may all see the same failure, so only the 
+	 * first to close the connection reports it.
+	 */
 	private void handleSocketError(Exception e) {
-		socket = null;
-		this.reconnectInterval = 0L;
-		if (isRunning.get()) {
+		// Protocol errors leave the socket open, so make sure it is closed
+		boolean wasOpen = closeConnection();
+		online = false;
+		if (wasOpen && isRunning.get()) {
+			brokers.recordFailure(uri);
 			log.severe(e.getMessage());
 			cb.errorOccurred(e);
 			cb.connectionLost();
+			// Without a reader thread, the reconnect is a timer on the loop
+			if (loop != null) {
+				loop.schedule(reconnectTask, reconnect.nextDelay());
+			}
+		}
+	}
+
+	/**
+	 * Called on the loop thread when a connection on an event loop fails.
+	 */
+	void channelFailed(MQTTConnection failed, IOException e) {
+		if (failed != connection) {
+			return;
+		}
+		if (failed.isEstablished()) {
+			handleSocketError(e);
+			return;
+		}
+
+		// A connection attempt failed, which is retried as in handleReconnection()
+		connection = null;
+		if (isRunning.get()) {
+			brokers.recordFailure(uri);
+			if (!sessionStarted) {
+				cb.errorOccurred(e);
+			}
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Connection attempt to " + uri + " failed: " + e.getMessage());
+			}
+			loop.schedule(reconnectTask, reconnect.nextDelay());
 		}
 	}
 
+	boolean isReadPaused() {
+		return readPauses.get() > 0;
+	}
+
 	private void handleInput() {
 		try {
-			MQTTDecoder.decode(input, this, workQ);
+			MQTTDecoder.decode(input, this, workQ, maxPacketSize, 
+					streamCb != null ? streamingThreshold : Integer.MAX_VALUE, backpressure, publishFilter);
 		} catch (SocketTimeoutException ste) {
-			checkActivity();
+			// Nothing to read; pings are sent by the activity timer
+		} catch (EOFException eof) {
+			// Expected after disconnect() shuts down the input
+			if (isRunning.get()) {
+				handleSocketError(eof);
+			}
 		} catch (IOException ioe) {
 			handleSocketError(ioe);
 		}
 	}
 
 	private void handleReconnection() {
+		// The first retry is immediate, later ones back off with jitter
+		long delay = reconnect.nextDelay();
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e1) { /* nop */ }
+			if (!isRunning.get()) {
+				return;
+			}
+		}
+
 		try {
 			openConnection(connectProps);
 		} catch (IOException e) {
 			socket = null;
 			if (log.isLoggable(Level.FINE)) {
-				log.fine(e.getMessage());
+				log.fine("Reconnect attempt " + reconnect.getAttempts() + " failed: " + e.getMessage());
 			}
-			try {
-				if (this.reconnectInterval < this.reconnectIntervalMax) {
-					this.reconnectInterval += this.reconnectIntervalInc;
-				}
-				Thread.sleep(this.reconnectInterval);
-			} catch (InterruptedException e1) { /* nop */ }
 		}
 	}
 }
@@ -0,0 +1,172 @@
+package thinqtt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Selects a payload codec per topic pattern for outbound messages, and
+ * transparently decodes inbound messages that carry a codec marker.
+ *
+ * An encoded payload is laid out as
+ * <pre>
+ *   0xC0 0xDE codecId originalLength(varint) encodedBytes...
+ * </pre>
+ * 0xC0 can never start a valid UTF-8 payload, so text payloads without
+ * the marker are always delivered unchanged. Payloads that would not
+ * shrink are sent as they are. A binary payload may still happen to
+ * start with a marker, so callers should treat a failure to decode as
+ * a payload that was never encoded.
+ */
+public class MQTTCodecPipeline {
+
+	static final byte MARKER0 = (byte) 0xC0;
+	static final byte MARKER1 = (byte) 0xDE;
+
+	public static final int DEFAULT_MAX_DECODED_LENGTH = 16 * 1024 * 1024;
+
+	private static final int MAX_CACHED_TOPICS = 4096;
+	private static final MQTTPayloadCodec NONE = new MQTTPayloadCodec() {
+		public int getId() { return 0; }
+		public byte[] encode(byte[] payload, int headerLength) { return null; }
+		public byte[] decode(byte[] buf, int offset, int length, int originalLength) { return null; }
+	};
+
+	private static class Entry {
+		final String pattern;
+		final MQTTPayloadCodec codec;
+
+		Entry(String pattern, MQTTPayloadCodec codec) {
+			this.pattern = pattern;
+			this.codec = codec;
+		}
+	}
+
+	private final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<Entry>();
+	private final AtomicReferenceArray<MQTTPayloadCodec> codecsById = new AtomicReferenceArray<MQTTPayloadCodec>(256);
+	private final ConcurrentHashMap<String, MQTTPayloadCodec> topicCache = new ConcurrentHashMap<String, MQTTPayloadCodec>();
+	private volatile int maxDecodedLength = DEFAULT_MAX_DECODED_LENGTH;
+
+	/**
+	 * Sets the largest payload that an inbound message may claim to
+	 * decode to. The length is read from the message before anything is
+	 * decompressed, so this bounds what a single message can allocate.
+	 */
+	public MQTTCodecPipeline setMaxDecodedLength(int maxDecodedLength) {
+		if (maxDecodedLength < 0)
+			throw new IllegalArgumentException("Maximum decoded length cannot be negative.");
+		this.maxDecodedLength = maxDecodedLength;
+		return this;
+	}
+
+	/**
+	 * Makes a codec available for decoding inbound messages without
+	 * using it for any outbound topic.
+	 */
+	public synchronized MQTTCodecPipeline register(MQTTPayloadCodec codec) {
+		MQTTPayloadCodec existing = codecsById.get(codec.getId());
+		if (existing != null && existing != codec)
+			throw new IllegalArgumentException("Codec ID " + codec.getId() + " is already registered.");
+		codecsById.set(codec.getId(), codec);
+		return this;
+	}
+
+	/**
+	 * Encodes messages published to topics matching topicPattern with
+	 * codec. Patterns are tried in the order they were added.
+	 */
+	public synchronized MQTTCodecPipeline add(String topicPattern, MQTTPayloadCodec codec) {
+		register(codec);
+		entries.add(new Entry(topicPattern, codec));
+		topicCache.clear();
+		return this;
+	}
+
+	/**
+	 * @return the payload to send for topic, which is the original
+	 * payload if no pattern matches or compression does not help.
+	 */
+	public byte[] encode(String topic, byte[] payload) {
+		MQTTPayloadCodec codec = codecFor(topic);
+		if (codec == NONE) return payload;
+
+		int headerLength = 3 + MQTTProperties.varIntSize(payload.length);
+		byte[] encoded = codec.encode(payload, headerLength);
+		if (encoded == null) return payload;
+
+		encoded[0] = MARKER0;
+		encoded[1] = MARKER1;
+		encoded[2] = (byte) codec.getId();
+		int pos = 3;
+		int x = payload.length;
+		do {
+			int digit = x % 128;
+			x /= 128;
+			if (x > 0) {
+				digit |= 0x0080;
+			}
+			encoded[pos++] = (byte) digit;
+		} while (x > 0);
+		return encoded;
+	}
+
+	/**
+	 * @return the decoded payload if it carries the marker of a
+	 * registered codec, otherwise the payload itself.
+	 * @throws MQTTException if the payload carries a marker but does 
+	 * not decode
+	 */
+	public byte[] decode(byte[] payload) {
+		byte[] decoded = decode(payload, 0, payload.length);
+		return decoded != null ? decoded : payload;
+	}
+
+	/**
+	 * Decodes a payload held in len bytes of buf from off, such as one
+	 * still in the frame it arrived in.
+	 * @return the decoded payload, or null if it does not carry the 
+	 * marker of a registered codec
+	 * @throws MQTTException if the payload carries a marker but does 
+	 * not decode
+	 */
+	public byte[] decode(byte[] buf, int off, int len) {
+		if (!isEncoded(buf, off, len)) return null;
+
+		MQTTPayloadCodec codec = codecsById.get(buf[off + 2] & 0xFF);
+		if (codec == null) return null;
+
+		int end = off + len;
+		int originalLength = MQTTProperties.readVarInt(buf, off + 3, end);
+		if (originalLength > maxDecodedLength)
+			throw new MQTTException("Encoded payload claims " + originalLength 
+					+ " bytes, more than the maximum of " + maxDecodedLength);
+		int offset = off + 3 + MQTTProperties.varIntSize(originalLength);
+		return codec.decode(buf, offset, end - offset, originalLength);
+	}
+
+	public static boolean isEncoded(byte[] payload) {
+		return isEncoded(payload, 0, payload.length);
+	}
+
+	public static boolean isEncoded(byte[] buf, int off, int len) {
+		return len > 3 && buf[off] == MARKER0 && buf[off + 1] == MARKER1;
+	}
+
+	private MQTTPayloadCodec codecFor(String topic) {
+		MQTTPayloadCodec codec = topicCache.get(topic);
+		if (codec != null) return codec;
+
+		codec = NONE;
+		for (Entry entry : entries) {
+			if (MQTTTopic.matches(entry.pattern, topic)) {
+				codec = entry.codec;
+				break;
+			}
+		}
+		if (topicCache.size() >= MAX_CACHED_TOPICS) {
+			topicCache.clear();
+		}
+		topicCache.put(topic, codec);
+		return codec;
+	}
+}
@@ -0,0 +1,29 @@
+package thinqtt;
+
+import java.io.OutputStream;
+
+/**
+ * A client's connection on an MQTTEventLoop. 
+ *
+ * The encoder writes to it as an OutputStream, always on the loop
+ * thread, and flush() hands what has been written to the transport.
+ * Inbound bytes are fed to the MQTTFrameParser given to register(). 
+ * Failures are reported to MQTTClient.channelFailed().
+ */
+abstract class MQTTConnection extends OutputStream {
+
+	/**
+	 * Starts reading once connected. Inbound frames go to parser.
+	 */
+	abstract void register(MQTTFrameParser parser);
+
+	/**
+	 * Called on any thread when the client pauses or resumes reading.
+	 */
+	abstract void interestChanged();
+
+	/**
+	 * @return true once the TCP connection has been made
+	 */
+	abstract boolean isEstablished();
+}
@@ -0,0 +1,104 @@
+package thinqtt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Runs several connections that consume the same shared subscriptions,
+ * so the broker splits the messages between them instead of sending
+ * every message to every connection.
+ *
+ * Each member connection subscribes to "$share/{group}/{filter}" and
+ * decodes and delivers its messages on the shared worker pool, so the
+ * load is spread over local threads as well as connections. Running a
+ * group with the same name in several processes scales consumption
+ * across processes in the same way. Messages from all members arrive at
+ * the one callback, which must therefore be thread-safe.
+ */
+public class MQTTConsumerGroup {
+
+	private static Logger log = Logger.getLogger(MQTTConsumerGroup.class.getName());
+
+	private final String group;
+	private final List<MQTTClient> members;
+
+	/**
+	 * @param brokers the brokers every member connects to
+	 * @param group the share name
+	 * @param clientIdPrefix member client IDs are this prefix plus the member index
+	 * @param connections the number of member connections
+	 * @param workers the pool that decodes and delivers messages for all members
+	 * @param listener the callback to notify of events from any member
+	 */
+	public MQTTConsumerGroup(MQTTBrokerList brokers, String group, String clientIdPrefix,
+			int connections, Executor workers, MQTTCallback listener) {
+		// Validates the share name
+		MQTTTopic.shared(group, "#");
+		if (connections <= 0)
+			throw new IllegalArgumentException("A consumer group needs at least one connection.");
+		if (workers == null)
+			throw new IllegalArgumentException("A consumer group needs a worker pool.");
+		this.group = group;
+
+		List<MQTTClient> clients = new ArrayList<MQTTClient>(connections);
+		for (int i = 0; i < connections; i++) {
+			clients.add(new MQTTClient(brokers, clientIdPrefix + i, workers, listener));
+		}
+		this.members = Collections.unmodifiableList(clients);
+	}
+
+	public void connect() throws IOException {
+		connect(new Properties());
+	}
+
+	/**
+	 * Connects every member with the same connection properties. If any
+	 * member fails to connect, those already connected are disconnected
+	 * again, so the group is either connected as a whole or not at all.
+	 */
+	public void connect(Properties connectionProperties) throws IOException {
+		int connected = 0;
+		try {
+			for (MQTTClient member : members) {
+				member.connect(connectionProperties);
+				connected++;
+			}
+		} finally {
+			if (connected < members.size()) {
+				for (int i = 0; i < connected; i++) {
+					members.get(i).disconnect();
+				}
+			}
+		}
+		log.info("Consumer group " + group + " connected " + members.size() + " members");
+	}
+
+	/**
+	 * Subscribes every member to the shared form of topicPattern.
+	 */
+	public void subscribe(String topicPattern, int qos) throws IOException {
+		String shared = MQTTTopic.shared(group, topicPattern);
+		for (MQTTClient member : members) {
+			member.subscribe(shared, qos);
+		}
+	}
+
+	public void disconnect() {
+		for (MQTTClient member : members) {
+			member.disconnect();
+		}
+	}
+
+	public String getGroup() {
+		return group;
+	}
+
+	public List<MQTTClient> getMembers() {
+		return members;
+	}
+}
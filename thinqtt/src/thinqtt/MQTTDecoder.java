@@ -4,21 +4,36 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.SocketException;
+import java.net.ProtocolException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.Executor;
 
 public class MQTTDecoder {
-	
-	public static void decode(DataInputStream dis, final MQTTDecoderListener listener, Executor exec) throws IOException {
-		final int fixedHeader;
-		try {
-			fixedHeader = dis.readByte();
-		} catch (EOFException e) {
-			return;
+
+	public static final int MAX_PACKET_SIZE = 268435455;
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<byte[]> chunkBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[CHUNK_SIZE];
 		}
-		
+	};
+
+	// Big enough for the longest topic name, a message ID and an MQTT 5 property length
+	private static final ThreadLocal<byte[]> headerBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[2 + 65535 + 2 + 4];
+		}
+	};
+	
+	/**
+	 * Reads the remaining length that follows the first byte of a fixed header.
+	 */
+	static int readRemainingLength(DataInputStream dis) throws IOException {
 		// ALGORITHM FOR DECODING REMAINING LENGTH (from MQTT spec)
 		// multiplier = 1
 		// value = 0
@@ -32,16 +47,134 @@ public class MQTTDecoder {
 		int multiplier = 1;
 		int digit;
 		do {
-			digit = dis.readByte();
-			if (digit == -1) throw new SocketException("EOF on input stream");
+			// Unsigned, as 0xFF is a valid digit; EOF surfaces as EOFException
+			digit = dis.readUnsignedByte();
 			remainingLength += (digit & 0x007F) * multiplier;
 			multiplier *= 128;
+			if ((digit & 0x0080) != 0 && multiplier == 128 * 128 * 128 * 128) 
+				throw new ProtocolException("Malformed remaining length");
 		} while ((digit & 0x0080) != 0);
+		return remainingLength;
+	}
+
+	public static void decode(DataInputStream dis, final MQTTDecoderListener listener, Executor exec) throws IOException {
+		decode(dis, listener, exec, MAX_PACKET_SIZE, Integer.MAX_VALUE);
+	}
 
-		final byte[] payload = new byte[remainingLength];
-		dis.readFully(payload);
+	/**
+	 * @param maxPacketSize frames with a larger remaining length are rejected 
+	 * before anything is allocated for them
+	 * @param streamingThreshold PUBLISH payloads larger than this are passed to 
+	 * onPublishChunk() on the calling thread as they are read, instead of being
+	 * read into memory whole
+	 */
+	public static void decode(DataInputStream dis, final MQTTDecoderListener listener, Executor exec,
+			int maxPacketSize, int streamingThreshold) throws IOException {
+		decode(dis, listener, exec, maxPacketSize, streamingThreshold, null);
+	}
+
+	/**
+	 * @param backpressure if not null, counts the frames handed to exec
+	 * until they have been read
+	 */
+	public static void decode(DataInputStream dis, final MQTTDecoderListener listener, Executor exec,
+			int maxPacketSize, int streamingThreshold, final MQTTBackpressure backpressure) 
+			throws IOException {
+		decode(dis, listener, exec, maxPacketSize, streamingThreshold, backpressure, null);
+	}
+
+	/**
+	 * @param filter if not null, sees the topic of each PUBLISH before its 
+	 * payload is read, and the payloads of those it rejects are skipped
+	 */
+	public static void decode(DataInputStream dis, final MQTTDecoderListener listener, Executor exec,
+			int maxPacketSize, int streamingThreshold, final MQTTBackpressure backpressure,
+			MQTTPublishFilter filter) throws IOException {
+		// EOFException here means the peer closed the connection
+		final int fixedHeader = dis.readByte();
+		int remainingLength = readRemainingLength(dis);
+
+		if (remainingLength > maxPacketSize) {
+			throw new ProtocolException("Packet of " + remainingLength 
+					+ " bytes exceeds maximum packet size of " + maxPacketSize);
+		}
+
+		byte[] frame = null;
+		int headerLength = 0;
+		if (((fixedHeader & 0xF0) >> 4) == MQTTMessage.PUBLISH 
+				&& (filter != null || remainingLength > streamingThreshold)) {
+			// Only the topic and message ID are read until the payload is known to be wanted
+			int qos = (fixedHeader & 0x06) >> 1;
+			byte[] header = headerBuffers.get();
+			dis.readFully(header, 0, 2);
+			int topicLength = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+			headerLength = 2 + topicLength + (qos > 0 ? 2 : 0);
+			if (headerLength > remainingLength)
+				throw new ProtocolException("Malformed PUBLISH");
+			dis.readFully(header, 2, headerLength - 2);
+			int messageId = qos > 0 
+					? ((header[headerLength - 2] & 0xFF) << 8) | (header[headerLength - 1] & 0xFF) : 0;
+			if (listener.getProtocolVersion() >= 5) {
+				// The properties are read as part of the header, ahead of the payload
+				int propsStart = headerLength;
+				int digit;
+				do {
+					if (headerLength == remainingLength || headerLength - propsStart == 4)
+						throw new ProtocolException("Malformed PUBLISH");
+					digit = dis.readUnsignedByte();
+					header[headerLength++] = (byte) digit;
+				} while ((digit & 0x80) != 0);
+				int propsLength = MQTTProperties.readVarInt(header, propsStart, headerLength);
+				if (propsLength > remainingLength - headerLength)
+					throw new ProtocolException("Malformed PUBLISH");
+				if (headerLength + propsLength > header.length) {
+					header = Arrays.copyOf(header, headerLength + propsLength);
+				}
+				dis.readFully(header, headerLength, propsLength);
+				headerLength += propsLength;
+			}
+			if (filter != null && !filter.accept(fixedHeader, header, 2, topicLength, 
+					remainingLength - headerLength)) {
+				skipFully(dis, remainingLength - headerLength);
+				listener.onPublishSkipped(messageId, qos, (fixedHeader & 0x08) != 0);
+				return;
+			}
+			if (remainingLength > streamingThreshold) {
+				readPublishChunks(dis, fixedHeader, new String(header, 2, topicLength, "UTF-8"), 
+						messageId, remainingLength - headerLength, listener);
+				return;
+			}
+			frame = new byte[remainingLength];
+			System.arraycopy(header, 0, frame, 0, headerLength);
+		} else {
+			frame = new byte[remainingLength];
+		}
+
+		final byte[] payload = frame;
+		dis.readFully(payload, headerLength, remainingLength - headerLength);
 		
-		if (exec != null) {
+		if (exec != null && backpressure != null) {
+			backpressure.dispatched(remainingLength);
+			try {
+				exec.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							read(fixedHeader, payload, listener);
+						} finally {
+							backpressure.completed(payload.length);
+						}
+					}
+
+				});
+			} catch (RuntimeException e) {
+				backpressure.completed(remainingLength);
+				throw e;
+			}
+		}
+
+		else if (exec != null) {
 			exec.execute(new Runnable() {
 
 				@Override
@@ -57,8 +190,55 @@ public class MQTTDecoder {
 		}
 	}
 
+	/**
+	 * Reads a PUBLISH off the stream in fixed-size chunks, passing each 
+	 * one to the listener before reading the next. The chunk buffer is
+	 * reused, so listeners must consume it before returning.
+	 * @param total the payload length, the remaining length less the header
+	 */
+	private static void readPublishChunks(DataInputStream dis, int fixedHeader, String topic,
+			int messageId, long total, MQTTDecoderListener listener) throws IOException {
+		if (total < 0)
+			throw new ProtocolException("Malformed PUBLISH");
+		boolean dup = (fixedHeader & 0x08) != 0;
+		int qos = (fixedHeader & 0x06) >> 1;
+		boolean retain = (fixedHeader & 0x01) != 0;
+
+		byte[] chunk = chunkBuffers.get();
+		long offset = 0;
+		do {
+			int n = (int) Math.min(chunk.length, total - offset);
+			dis.readFully(chunk, 0, n);
+			listener.onPublishChunk(topic, messageId, qos, retain, dup, chunk, n, offset, total);
+			offset += n;
+		} while (offset < total);
+	}
+
+	private static void skipFully(DataInputStream dis, int n) throws IOException {
+		while (n > 0) {
+			int skipped = dis.skipBytes(n);
+			if (skipped == 0) {
+				// skipBytes returns 0 at EOF as well as when nothing is buffered
+				if (dis.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
 	private static void read(final int fixedHeader, final byte[] payload,
 			final MQTTDecoderListener listener) {
+		read(fixedHeader, payload, 0, payload.length, listener);
+	}
+
+	/**
+	 * Dispatches the frame whose variable header and payload are
+	 * buf[off, off+len) to the listener. Nothing in buf is retained.
+	 */
+	static void read(final int fixedHeader, final byte[] buf, final int off, final int len,
+			final MQTTDecoderListener listener) {
 		int messageType = (fixedHeader & 0xF0) >> 4;
 		boolean dup = (fixedHeader & 0x08) != 0;
 		int qos = (fixedHeader & 0x06) >> 1;
@@ -67,37 +247,37 @@ public class MQTTDecoder {
 		try {
 			switch (messageType) {
 			case MQTTMessage.CONNECT:
-				readConnect(payload, listener);
+				readConnect(buf, off, len, listener);
 				break;
 			case MQTTMessage.CONNACK:
-				readConnAck(payload, listener);
+				readConnAck(buf, off, len, listener);
 				break;
 			case MQTTMessage.PUBLISH:
-				readPublish(payload, qos, retain, dup, listener);
+				readPublish(buf, off, len, qos, retain, dup, listener);
 				break;
 			case MQTTMessage.PUBACK:
-				readPubAck(payload, listener);
+				readPubAck(buf, off, len, listener);
 				break;
 			case MQTTMessage.PUBREC:
-				readPubRec(payload, listener);
+				readPubRec(buf, off, len, listener);
 				break;
 			case MQTTMessage.PUBREL:
-				readPubRel(payload, dup, listener);
+				readPubRel(buf, off, len, dup, listener);
 				break;
 			case MQTTMessage.PUBCOMP:
-				readPubComp(payload, listener);
+				readPubComp(buf, off, len, listener);
 				break;
 			case MQTTMessage.SUBSCRIBE:
-				readSubscribe(payload, dup, listener);
+				readSubscribe(buf, off, len, dup, listener);
 				break;
 			case MQTTMessage.SUBACK:
-				readSubAck(payload, listener);
+				readSubAck(buf, off, len, listener);
 				break;
 			case MQTTMessage.UNSUBSCRIBE:
-				readUnsubscribe(payload, dup, listener);
+				readUnsubscribe(buf, off, len, dup, listener);
 				break;
 			case MQTTMessage.UNSUBACK:
-				readUnsubAck(payload, listener);
+				readUnsubAck(buf, off, len, listener);
 				break;
 			case MQTTMessage.PINGREQ:
 				readPingReq(listener);
@@ -112,7 +292,7 @@ public class MQTTDecoder {
 				throw new MQTTException("unknown message type: " + messageType);
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			listener.onProtocolError(e);
 		}
 	}
 
@@ -128,20 +308,20 @@ public class MQTTDecoder {
 		listener.onPingReq();
 	}
 
-	private static void readUnsubAck(byte[] payload, MQTTDecoderListener listener) throws IOException {
+	private static void readUnsubAck(byte[] buf, int off, int len, MQTTDecoderListener listener) throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
-		int messageId = dis.readShort();
+		int messageId = dis.readUnsignedShort();
 		listener.onUnsubAck(messageId);
 	}
 
-	private static void readUnsubscribe(byte[] payload, boolean dup, MQTTDecoderListener listener)
+	private static void readUnsubscribe(byte[] buf, int off, int len, boolean dup, MQTTDecoderListener listener)
 			throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
-		int messageId = dis.readShort();
+		int messageId = dis.readUnsignedShort();
 		Collection<String> subList = new ArrayList<String>();
 		while (dis.available() > 0) {
 			String topic = dis.readUTF();
@@ -152,11 +332,15 @@ public class MQTTDecoder {
 		listener.onUnsubscribe(messageId, dup, subs);
 	}
 
-	private static void readSubAck(byte[] payload, MQTTDecoderListener listener) throws IOException {
+	private static void readSubAck(byte[] buf, int off, int len, MQTTDecoderListener listener) throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
-		int messageId = dis.readShort();
+		int messageId = dis.readUnsignedShort();
+		if (listener.getProtocolVersion() >= 5) {
+			// Nothing in a SUBACK's properties is needed
+			dis.skipBytes(MQTTProperties.wrap(buf, off + 2, off + len).encodedLength());
+		}
 		byte[] qosList = null;
 		if (dis.available() > 0) {
 			qosList = new byte[(int) dis.available()];
@@ -165,12 +349,12 @@ public class MQTTDecoder {
 		listener.onSubAck(messageId, qosList);
 	}
 
-	private static void readSubscribe(byte[] payload, boolean dup, MQTTDecoderListener listener)
+	private static void readSubscribe(byte[] buf, int off, int len, boolean dup, MQTTDecoderListener listener)
 			throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
-		int messageId = dis.readShort();
+		int messageId = dis.readUnsignedShort();
 		Collection<String> subList = new ArrayList<String>();
 		while (dis.available() > 0) {
 			String topic = dis.readUTF();
@@ -182,69 +366,81 @@ public class MQTTDecoder {
 		listener.onSubscribe(messageId, dup, subs);
 	}
 
-	private static void readPubComp(byte[] payload, MQTTDecoderListener listener) throws IOException {
+	private static void readPubComp(byte[] buf, int off, int len, MQTTDecoderListener listener) throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
-		int messageId = dis.readShort();
+		int messageId = dis.readUnsignedShort();
 		listener.onPubComp(messageId);
 	}
 
-	private static void readPubRel(byte[] payload, boolean dup, MQTTDecoderListener listener)
+	private static void readPubRel(byte[] buf, int off, int len, boolean dup, MQTTDecoderListener listener)
 			throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
-		int messageId = dis.readShort();
+		int messageId = dis.readUnsignedShort();
 		listener.onPubRel(messageId, dup);
 	}
 
-	private static void readPubRec(byte[] payload, MQTTDecoderListener listener) throws IOException {
+	private static void readPubRec(byte[] buf, int off, int len, MQTTDecoderListener listener) throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
-		int messageId = dis.readShort();
+		int messageId = dis.readUnsignedShort();
 		listener.onPubRec(messageId);
 	}
 
-	private static void readPubAck(byte[] payload, MQTTDecoderListener listener) throws IOException {
+	private static void readPubAck(byte[] buf, int off, int len, MQTTDecoderListener listener) throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
-		int messageId = dis.readShort();
+		int messageId = dis.readUnsignedShort();
 		listener.onPubAck(messageId);
 	}
 
-	private static void readPublish(byte[] payload, int qos, boolean retain,
+	private static void readPublish(byte[] buf, int off, int len, int qos, boolean retain,
 			boolean dup, MQTTDecoderListener listener) throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
 		String topic = dis.readUTF();
 		int messageId = 0;
 		if (qos > 0) {
-			messageId = dis.readShort();
+			messageId = dis.readUnsignedShort();
 		}
 
-		byte[] message = null;
-		if (dis.available() > 0) {
-			message = new byte[dis.available()];
-			dis.readFully(message);
-		} else {
-			message = new byte[0];
+		if (listener.getProtocolVersion() >= 5) {
+			MQTTProperties props = MQTTProperties.wrap(buf, off + len - dis.available(), off + len);
+			dis.skipBytes(props.encodedLength());
+			int payloadLength = dis.available();
+			listener.onPublish(topic, messageId, buf, off + len - payloadLength, payloadLength, 
+					qos, retain, dup, props);
+			return;
 		}
 
-		listener.onPublish(topic, messageId, message, qos, retain, dup);
+		// The payload is passed in place, for the listener to copy if it needs to
+		int payloadLength = dis.available();
+		listener.onPublish(topic, messageId, buf, off + len - payloadLength, payloadLength, 
+				qos, retain, dup);
 	}
 
-	private static void readConnAck(byte[] payload, MQTTDecoderListener listener) throws IOException {
-		int responseCode = payload[1];
+	private static void readConnAck(byte[] buf, int off, int len, MQTTDecoderListener listener) throws IOException {
+		if (len < 2)
+			throw new ProtocolException("Malformed CONNACK");
+		// MQTT 5 reason codes for failures are 0x80 and above
+		int responseCode = buf[off + 1] & 0xFF;
+		if (listener.getProtocolVersion() >= 5) {
+			listener.onConnAck(responseCode, len > 2 
+					? MQTTProperties.wrap(buf, off + 2, off + len) : MQTTProperties.EMPTY);
+			return;
+		}
 		listener.onConnAck(responseCode);
 	}
 
-	private static void readConnect(byte[] payload, MQTTDecoderListener listener) throws IOException {
+	private static void readConnect(byte[] buf, int off, int len, MQTTDecoderListener listener) throws IOException {
 		DataInputStream dis = new DataInputStream(
-				new ByteArrayInputStream(payload));
+				new ByteArrayInputStream(buf, off, len));
 		
 		String protocol = dis.readUTF();
 		int version = dis.readByte();
@@ -257,7 +453,7 @@ public class MQTTDecoder {
 		boolean hasLWT = (flags & 0x04) != 0;
 		boolean cleanSession = (flags & 0x02) != 0;
 
-		int keepAliveTime = dis.readShort();
+		int keepAliveTime = dis.readUnsignedShort();
 
 		String clientId = dis.readUTF();
 		String lwtTopic = hasLWT ? dis.readUTF() : null;
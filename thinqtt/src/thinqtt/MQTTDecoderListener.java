@@ -1,5 +1,8 @@
 package thinqtt;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 public abstract class MQTTDecoderListener {
 
 	protected void onDisconnect() {}
@@ -27,8 +30,67 @@ public abstract class MQTTDecoderListener {
 	protected void onPublish(String topic, int messageId, byte[] payload, int qos,
 			boolean retain, boolean dup) {}
 
+	/**
+	 * Receives a PUBLISH whose payload is buf[off, off + len), within the
+	 * frame as it was read. buf may be reused once this returns, so by 
+	 * default the payload is copied out and passed to the other onPublish.
+	 */
+	protected void onPublish(String topic, int messageId, byte[] buf, int off, int len, int qos,
+			boolean retain, boolean dup) {
+		onPublish(topic, messageId, Arrays.copyOfRange(buf, off, off + len), qos, retain, dup);
+	}
+
+	/**
+	 * Receives a large PUBLISH payload piece by piece. The last chunk is 
+	 * the one for which offset + length == totalLength.
+	 */
+	protected void onPublishChunk(String topic, int messageId, int qos, boolean retain,
+			boolean dup, byte[] chunk, int length, long offset, long totalLength) {}
+
+	/**
+	 * Receives an MQTT 5 PUBLISH along with its properties, which are a
+	 * view of buf and so no longer valid once this returns. By default 
+	 * they are ignored.
+	 */
+	protected void onPublish(String topic, int messageId, byte[] buf, int off, int len, int qos,
+			boolean retain, boolean dup, MQTTProperties props) {
+		onPublish(topic, messageId, buf, off, len, qos, retain, dup);
+	}
+
+	/**
+	 * Called instead of onPublish for a PUBLISH rejected by an 
+	 * MQTTPublishFilter, whose payload was never read.
+	 */
+	protected void onPublishSkipped(int messageId, int qos, boolean dup) {}
+
+	/**
+	 * Called instead of a handler for a frame that is too short or whose
+	 * contents are malformed, e.g. a CONNACK without a return code or a
+	 * PUBLISH with a bad property block. The frame has been consumed, but
+	 * the connection should be dropped, so by default this throws.
+	 */
+	protected void onProtocolError(IOException e) {
+		throw new MQTTException(e.getMessage(), e);
+	}
+
 	protected void onConnAck(int responseCode) {}
 
+	/**
+	 * Receives an MQTT 5 CONNACK along with its properties, which by
+	 * default are ignored.
+	 */
+	protected void onConnAck(int responseCode, MQTTProperties props) {
+		onConnAck(responseCode);
+	}
+
+	/**
+	 * @return 5 if the packets read carry MQTT 5 property blocks, which
+	 * are then passed on or skipped, or 3 if they do not
+	 */
+	protected int getProtocolVersion() {
+		return 3;
+	}
+
 	protected void onConnect(String clientId, String userName, String password,
 			String protocol, int version, boolean hasLWT, String lwtMessage, 
 			String lwtTopic, int lwtQos, boolean retainLWT,
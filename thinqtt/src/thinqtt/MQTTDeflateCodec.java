@@ -0,0 +1,167 @@
+package thinqtt;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate payload codec with an optional pre-trained dictionary.
+ *
+ * Every service that exchanges messages on the same topics must
+ * register the same id with the same dictionary. Deflaters and
+ * inflaters are pooled and reset between messages rather than created
+ * for each one, and the compression output buffer is kept per thread.
+ * close() releases the native memory of the pooled instances.
+ */
+public class MQTTDeflateCodec implements MQTTPayloadCodec {
+
+	public static final int DEFAULT_ID = 1;
+
+	// Deflate cannot expand data by more than this factor
+	private static final int MAX_RATIO = 1032;
+	private static final int MAX_POOLED = 16;
+	// Output buffers grown past this by a large payload are not kept for reuse
+	private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+	private final int id;
+	private final int level;
+	private final byte[] dictionary;
+
+	// Deflaters and inflaters hold native memory until end() is called
+	private final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(MAX_POOLED);
+	private final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(MAX_POOLED);
+
+	private static final ThreadLocal<byte[]> outBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[8 * 1024];
+		}
+	};
+
+	public MQTTDeflateCodec() {
+		this(DEFAULT_ID, null, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param id codec identifier written into the payload marker
+	 * @param dictionary a pre-trained dictionary shared with all receivers, or null
+	 * @param level a java.util.zip.Deflater compression level
+	 */
+	public MQTTDeflateCodec(int id, byte[] dictionary, int level) {
+		if (id < 1 || id > 255)
+			throw new IllegalArgumentException("Codec ID must be between 1 and 255.");
+		this.id = id;
+		this.dictionary = dictionary;
+		this.level = level;
+	}
+
+	@Override
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public byte[] encode(byte[] payload, int headerLength) {
+		// Anything at least as large as the input is not worth sending
+		int limit = payload.length - headerLength;
+		if (limit <= 0) {
+			return null;
+		}
+		byte[] out = outBuffers.get();
+		if (out.length < limit) {
+			out = new byte[limit];
+			if (limit <= MAX_RETAINED_SIZE) {
+				outBuffers.set(out);
+			}
+		}
+
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+		}
+		int len = 0;
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(payload);
+			deflater.finish();
+			while (!deflater.finished() && len < limit) {
+				len += deflater.deflate(out, len, limit - len);
+			}
+			if (!deflater.finished()) {
+				return null;
+			}
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+
+		byte[] result = new byte[headerLength + len];
+		System.arraycopy(out, 0, result, headerLength, len);
+		return result;
+	}
+
+	@Override
+	public byte[] decode(byte[] buf, int offset, int length, int originalLength) {
+		if (originalLength < 0 || originalLength > (long) length * MAX_RATIO)
+			throw new MQTTException("Compressed payload of " + length 
+					+ " bytes cannot expand to " + originalLength);
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		byte[] result = new byte[originalLength];
+		try {
+			if (dictionary != null) {
+				// Raw deflate streams carry no dictionary id, so set it up front
+				inflater.setDictionary(dictionary);
+			}
+			inflater.setInput(buf, offset, length);
+			int len = 0;
+			while (len < originalLength && !inflater.finished()) {
+				int n = inflater.inflate(result, len, originalLength - len);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				len += n;
+			}
+			if (len != originalLength) {
+				throw new MQTTException("Compressed payload is truncated");
+			}
+		} catch (DataFormatException e) {
+			throw new MQTTException("Invalid compressed payload", e);
+		} finally {
+			inflater.reset();
+			if (!inflaters.offer(inflater)) {
+				inflater.end();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Frees the pooled deflaters and inflaters. The codec can still be
+	 * used afterwards, at the cost of creating new ones.
+	 */
+	public void close() {
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {
+			deflater.end();
+		}
+		Inflater inflater;
+		while ((inflater = inflaters.poll()) != null) {
+			inflater.end();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "deflate[" + id + (dictionary != null
+				? ", dictionary=" + Integer.toHexString(Arrays.hashCode(dictionary)) : "") + "]";
+	}
+}
@@ -0,0 +1,16 @@
+package thinqtt;
+
+import java.io.IOException;
+
+/**
+ * Reads a value from a PUBLISH payload.
+ */
+public interface MQTTDeserializer<T> {
+
+	/**
+	 * Reads the payload held at buf[off, off + len), which is the frame
+	 * as it was read off the connection. buf is reused once this returns,
+	 * so the value must not refer to it.
+	 */
+	public T deserialize(byte[] buf, int off, int len) throws IOException;
+}
@@ -0,0 +1,221 @@
+package thinqtt;
+
+/**
+ * Recognises redelivered QoS 1 messages so they are acknowledged but
+ * not passed to the callback a second time.
+ *
+ * Every QoS 1 message is recorded by its topic, message ID, payload
+ * length and a 64-bit hash of its payload. A message that arrives with
+ * the DUP flag set is a duplicate if a message in the window has the
+ * same topic, ID and length and the same payload hash. The payload
+ * itself is not kept, so two different payloads are only confused if
+ * everything else matches and their hashes collide, with a chance of
+ * about 2^-64. The window holds the last capacity messages, no older 
+ * than windowMillis, in a ring of primitives and topic references
+ * indexed by an open-addressing hash table, so it takes no allocation
+ * per message.
+ */
+public class MQTTDuplicateFilter {
+
+	private final int capacity;
+	private final long windowMillis;
+	// Index hash, topic, message ID, payload length and payload hash of each message
+	private final long[] keys;
+	private final String[] topics;
+	private final int[] ids;
+	private final int[] lengths;
+	private final long[] hashes;
+	private final long[] times;
+	// Ring slot + 1 of each key, 0 for empty, linearly probed
+	private final int[] table;
+	private final int mask;
+	private int head = 0;
+	private int count = 0;
+	private long checked = 0;
+	private long suppressed = 0;
+
+	/**
+	 * @param capacity the number of messages remembered
+	 * @param windowMillis how long a message is remembered, or 0 for
+	 * as long as it is among the last capacity messages
+	 */
+	public MQTTDuplicateFilter(int capacity, long windowMillis) {
+		if (capacity <= 0 || capacity > (1 << 29))
+			throw new IllegalArgumentException("Duplicate window must hold between 1 and 2^29 messages.");
+		this.capacity = capacity;
+		this.windowMillis = windowMillis;
+		this.keys = new long[capacity];
+		this.topics = new String[capacity];
+		this.ids = new int[capacity];
+		this.lengths = new int[capacity];
+		this.hashes = new long[capacity];
+		this.times = new long[capacity];
+		this.table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+		this.mask = table.length - 1;
+	}
+
+	/**
+	 * Records a message, and checks it against the window if it is a
+	 * redelivery.
+	 * @return true if the message should be suppressed
+	 */
+	public boolean isDuplicate(String topic, int messageId, byte[] payload, boolean dup) {
+		return isDuplicate(topic, messageId, payload, 0, payload.length, dup);
+	}
+
+	/**
+	 * As isDuplicate(), for the payload held at buf[off, off + len).
+	 */
+	public synchronized boolean isDuplicate(String topic, int messageId, byte[] buf, int off, int len, 
+			boolean dup) {
+		long now = windowMillis > 0 ? System.currentTimeMillis() : 0;
+		expire(now);
+		long hash = payloadHash(buf, off, len);
+		long key = key(topic, messageId, hash);
+		if (dup) {
+			checked++;
+			if (contains(key, topic, messageId, len, hash)) {
+				suppressed++;
+				return true;
+			}
+		}
+		add(key, topic, messageId, len, hash, now);
+		return false;
+	}
+
+	/**
+	 * @return the number of redeliveries suppressed
+	 */
+	public synchronized long getSuppressedCount() {
+		return suppressed;
+	}
+
+	/**
+	 * @return the number of messages with the DUP flag checked
+	 */
+	public synchronized long getCheckedCount() {
+		return checked;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	private boolean contains(long key, String topic, int messageId, int len, long hash) {
+		for (int i = index(key); table[i] != 0; i = (i + 1) & mask) {
+			int slot = table[i] - 1;
+			if (keys[slot] == key && ids[slot] == messageId && lengths[slot] == len 
+					&& hashes[slot] == hash && topics[slot].equals(topic)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void add(long key, String topic, int messageId, int len, long hash, long now) {
+		if (count == capacity) {
+			removeOldest();
+		}
+		int slot = head;
+		keys[slot] = key;
+		topics[slot] = topic;
+		ids[slot] = messageId;
+		lengths[slot] = len;
+		hashes[slot] = hash;
+		times[slot] = now;
+		int i = index(key);
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = slot + 1;
+		head = (head + 1) % capacity;
+		count++;
+	}
+
+	private void expire(long now) {
+		if (windowMillis > 0) {
+			while (count > 0 && now - times[oldest()] > windowMillis) {
+				removeOldest();
+			}
+		}
+	}
+
+	private int oldest() {
+		return (head - count + capacity) % capacity;
+	}
+
+	/**
+	 * Removes the oldest key from the table, shifting back any keys
+	 * probed past it so that lookups still find them.
+	 */
+	private void removeOldest() {
+		int slot = oldest();
+		int i = index(keys[slot]);
+		while (table[i] != slot + 1) {
+			i = (i + 1) & mask;
+		}
+		for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+			int home = index(keys[table[j] - 1]);
+			// An entry can fill the gap at i unless its home lies cyclically in (i, j]
+			boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (!stays) {
+				table[i] = table[j];
+				i = j;
+			}
+		}
+		table[i] = 0;
+		topics[slot] = null;
+		count--;
+	}
+
+	private int index(long key) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/**
+	 * @return the hash a message is indexed by
+	 */
+	static long key(String topic, int messageId, long payloadHash) {
+		long h = topic.hashCode() * 0x9E3779B97F4A7C15L + messageId;
+		return mix(mix(h) ^ payloadHash);
+	}
+
+	/**
+	 * @return a 64-bit hash of buf[off, off + len), mixed eight bytes at
+	 * a time as in the body of MurmurHash3
+	 */
+	static long payloadHash(byte[] buf, int off, int len) {
+		long h = 0x9E3779B97F4A7C15L;
+		int i = off, end = off + len;
+		for (; i + 8 <= end; i += 8) {
+			long k = (buf[i] & 0xFFL) | (buf[i + 1] & 0xFFL) << 8 | (buf[i + 2] & 0xFFL) << 16
+					| (buf[i + 3] & 0xFFL) << 24 | (buf[i + 4] & 0xFFL) << 32 | (buf[i + 5] & 0xFFL) << 40
+					| (buf[i + 6] & 0xFFL) << 48 | (buf[i + 7] & 0xFFL) << 56;
+			h = mixBlock(h, k);
+		}
+		long k = 0;
+		for (int shift = 0; i < end; i++, shift += 8) {
+			k |= (buf[i] & 0xFFL) << shift;
+		}
+		h = mixBlock(h, k);
+		return mix(h ^ len);
+	}
+
+	private static long mixBlock(long h, long k) {
+		k *= 0x87C37B91114253D5L;
+		k = Long.rotateLeft(k, 31);
+		k *= 0x4CF5AD432745937FL;
+		h ^= k;
+		return Long.rotateLeft(h, 27) * 5 + 0x52DCE729;
+	}
+
+	// The MurmurHash3 64-bit finaliser
+	private static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xFF51AFD7ED558CCDL;
+		k ^= k >>> 33;
+		k *= 0xC4CEB93FE53C0A4BL;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -3,9 +3,37 @@ package thinqtt;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 
 public class MQTTEncoder {
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	static final int MAX_REMAINING_LENGTH = 268435455;
+	// The largest array most JVMs will allocate
+	private static final int MAX_BATCH_LENGTH = Integer.MAX_VALUE - 8;
+	private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> streamBuffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+		}
+	};
+
+	private static final int MAX_POOLED_FRAMES = 16;
+
+	// Frames are encoded on the publishing thread and written on the
+	// writer thread, which hands them back here
+	private static final ArrayBlockingQueue<MQTTFrameBuffer> frameBuffers = 
+			new ArrayBlockingQueue<MQTTFrameBuffer>(MAX_POOLED_FRAMES);
+
 	public static void writePing(DataOutputStream dos) throws IOException {
 		writeFixedHeader(dos, MQTTMessage.PINGREQ, false, 0, false);
 		writeRemainingLength(dos, 0);
@@ -15,11 +43,28 @@ public class MQTTEncoder {
 	public static void writeConnect(DataOutputStream dos, String clientId, String user, String password,
 			String lwtTopic, String lwtMsg, int lwtQos, boolean lwtRetain,
 			boolean cleanSession, int keepAliveSecs) throws IOException {
+		writeConnect(dos, clientId, user, password, lwtTopic, lwtMsg, lwtQos, lwtRetain, cleanSession,
+				keepAliveSecs, null);
+	}
+
+	/**
+	 * @param props if not null, an MQTT 5 CONNECT carrying these properties
+	 * is written instead of an MQTT 3.1 one, and every later packet on the
+	 * connection must be written with a property block too
+	 */
+	public static void writeConnect(DataOutputStream dos, String clientId, String user, String password,
+			String lwtTopic, String lwtMsg, int lwtQos, boolean lwtRetain,
+			boolean cleanSession, int keepAliveSecs, MQTTPropertiesBuilder props) throws IOException {
 		
 		ByteArrayOutputStream payload = new ByteArrayOutputStream();
 		DataOutputStream dos2 = new DataOutputStream(payload);
-		dos2.writeUTF("MQIsdp");
-		dos2.writeByte(3);
+		if (props == null) {
+			dos2.writeUTF("MQIsdp");
+			dos2.writeByte(3);
+		} else {
+			dos2.writeUTF("MQTT");
+			dos2.writeByte(5);
+		}
 		dos2.writeByte((user != null ? 0x80 : 0x00)
 				| (password != null ? 0x40 : 0x00) 
 				| (lwtRetain ? 0x20 : 0x00)
@@ -27,8 +72,15 @@ public class MQTTEncoder {
 				| (lwtTopic != null ? 0x04 : 0x00)
 				| (cleanSession ? 0x02 : 0x00));
 		dos2.writeShort(keepAliveSecs);
+		if (props != null) {
+			props.writeTo(dos2);
+		}
 		dos2.writeUTF(clientId);
 		if (lwtTopic != null) {
+			if (props != null) {
+				// No will properties
+				dos2.writeByte(0);
+			}
 			dos2.writeUTF(lwtTopic);
 			dos2.writeUTF(lwtMsg);
 		}
@@ -53,9 +105,20 @@ public class MQTTEncoder {
 
 	public static void writeSubscribe(DataOutputStream dos, int msgId, String topicPattern, int qos)
 			throws IOException {
+		writeSubscribe(dos, msgId, topicPattern, qos, null);
+	}
+
+	/**
+	 * @param props the properties of an MQTT 5 SUBSCRIBE, or null for MQTT 3.1
+	 */
+	public static void writeSubscribe(DataOutputStream dos, int msgId, String topicPattern, int qos,
+			MQTTPropertiesBuilder props) throws IOException {
 		ByteArrayOutputStream payload = new ByteArrayOutputStream();
 		DataOutputStream dos2 = new DataOutputStream(payload);
 		dos2.writeShort(msgId);
+		if (props != null) {
+			props.writeTo(dos2);
+		}
 		dos2.writeUTF(topicPattern);
 		dos2.writeByte(qos);
 
@@ -65,6 +128,63 @@ public class MQTTEncoder {
 		dos.flush();
 	}
 
+	/**
+	 * Writes a single SUBSCRIBE for several topic filters, each with the
+	 * QoS at the same index of qos.
+	 */
+	public static void writeSubscribe(DataOutputStream dos, int msgId, String[] topicPatterns, int[] qos)
+			throws IOException {
+		writeSubscribe(dos, msgId, topicPatterns, qos, null);
+	}
+
+	/**
+	 * @param props the properties of an MQTT 5 SUBSCRIBE, or null for MQTT 3.1
+	 */
+	public static void writeSubscribe(DataOutputStream dos, int msgId, String[] topicPatterns, int[] qos,
+			MQTTPropertiesBuilder props) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream dos2 = new DataOutputStream(payload);
+		dos2.writeShort(msgId);
+		if (props != null) {
+			props.writeTo(dos2);
+		}
+		for (int i = 0; i < topicPatterns.length; i++) {
+			dos2.writeUTF(topicPatterns[i]);
+			dos2.writeByte(qos[i]);
+		}
+
+		writeFixedHeader(dos, MQTTMessage.SUBSCRIBE, false, 1, false);
+		writeRemainingLength(dos, payload.size());
+		payload.writeTo(dos);
+		dos.flush();
+	}
+
+	public static void writeUnsubscribe(DataOutputStream dos, int msgId, String[] topicPatterns)
+			throws IOException {
+		writeUnsubscribe(dos, msgId, topicPatterns, null);
+	}
+
+	/**
+	 * @param props the properties of an MQTT 5 UNSUBSCRIBE, or null for MQTT 3.1
+	 */
+	public static void writeUnsubscribe(DataOutputStream dos, int msgId, String[] topicPatterns,
+			MQTTPropertiesBuilder props) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream dos2 = new DataOutputStream(payload);
+		dos2.writeShort(msgId);
+		if (props != null) {
+			props.writeTo(dos2);
+		}
+		for (String topicPattern : topicPatterns) {
+			dos2.writeUTF(topicPattern);
+		}
+
+		writeFixedHeader(dos, MQTTMessage.UNSUBSCRIBE, false, 1, false);
+		writeRemainingLength(dos, payload.size());
+		payload.writeTo(dos);
+		dos.flush();
+	}
+
 	public static void writePubAck(DataOutputStream dos, int messageId) throws IOException {
 		writeFixedHeader(dos, MQTTMessage.PUBACK, false, 0, false);
 		writeRemainingLength(dos, 2);
@@ -96,70 +216,354 @@ public class MQTTEncoder {
 	public static void writePublish(DataOutputStream dos, String topic, byte[] message, int msgId, 
 			int qos, boolean retain)
 			throws IOException {
+		writePublish(dos, topic, message, msgId, qos, retain, false);
+	}
+
+	public static void writePublish(DataOutputStream dos, String topic, byte[] message, int msgId, 
+			int qos, boolean retain, boolean dup)
+			throws IOException {
+		writePublish(dos, topic, message, msgId, qos, retain, dup, null);
+	}
+
+	/**
+	 * @param props the properties of an MQTT 5 PUBLISH, or null for MQTT 3.1
+	 */
+	public static void writePublish(DataOutputStream dos, String topic, byte[] message, int msgId, 
+			int qos, boolean retain, boolean dup, MQTTPropertiesBuilder props)
+			throws IOException {
 		ByteArrayOutputStream payload = new ByteArrayOutputStream();
 		DataOutputStream dos2 = new DataOutputStream(payload);
 		dos2.writeUTF(topic);
 		if (qos > 0) {
 			dos2.writeShort(msgId);
 		}
+		if (props != null) {
+			props.writeTo(dos2);
+		}
 		dos2.write(message);
 
-		writeFixedHeader(dos, MQTTMessage.PUBLISH, false, qos, retain);
+		writeFixedHeader(dos, MQTTMessage.PUBLISH, dup, qos, retain);
 		writeRemainingLength(dos, payload.size());
 		payload.writeTo(dos);
 		dos.flush();
 	}
 	
-	static void writeMessage(DataOutputStream dos, MQTTMessage msg) {
+	/**
+	 * Encodes a PUBLISH whose payload the serializer writes straight into
+	 * a pooled frame buffer, which is returned and must be handed back
+	 * with releaseFrame() once written. If the serializer throws, the
+	 * buffer goes back to the pool before the exception is rethrown.
+	 * @param props the properties of an MQTT 5 PUBLISH, or null for MQTT 3.1
+	 */
+	static <T> MQTTFrameBuffer encodePublish(String topic, T value, MQTTSerializer<? super T> serializer,
+			int msgId, int qos, boolean retain, MQTTPropertiesBuilder props) throws IOException {
+		byte[] topicBytes = topic.getBytes(UTF8);
+		MQTTFrameBuffer frame = frameBuffers.poll();
+		if (frame == null) {
+			frame = new MQTTFrameBuffer();
+		}
 		try {
-			switch (msg.getType()) {
-//			case MQTTMessage.CONNECT:
-//				writeConnect(dos);
-//				break;
-//			case MQTTMessage.CONNACK:
-//				writeConnAck(dos);
-//				break;
-			case MQTTMessage.PUBLISH:
-				writePublish(dos, msg.getTopic(), msg.getMsg(), msg.getId(), msg.getQos(), msg.isRetained());
-				break;
-			case MQTTMessage.PUBACK:
-				writePubAck(dos, msg.getId());
-				break;
-			case MQTTMessage.PUBREC:
-				writePubRec(dos, msg.getId());
-				break;
-			case MQTTMessage.PUBREL:
-				writePubRel(dos, msg.getId());
-				break;
-			case MQTTMessage.PUBCOMP:
-				writePubComp(dos, msg.getId());
-				break;
-			case MQTTMessage.SUBSCRIBE:
-				writeSubscribe(dos, msg.getId(), msg.getTopic(), msg.getQos());
-				break;
-//			case MQTTMessage.SUBACK:
-//				writeSubAck(dos);
-//				break;
-//			case MQTTMessage.UNSUBSCRIBE:
-//				writeUnsubscribe(dup, dos);
-//				break;
-//			case MQTTMessage.UNSUBACK:
-//				writeUnsubAck(dos);
-//				break;
-			case MQTTMessage.PINGREQ:
-				writePing(dos);
-				break;
-//			case MQTTMessage.PINGRESP:
-//				writePingResp(dos);
-//				break;
-			case MQTTMessage.DISCONNECT:
-				writeDisconnect(dos);
-				break;
-			default:
-				throw new MQTTException("unknown message type: " + msg.getType());
+			frame.begin();
+			frame.write(topicBytes.length >> 8);
+			frame.write(topicBytes.length);
+			frame.write(topicBytes, 0, topicBytes.length);
+			if (qos > 0) {
+				frame.write(msgId >> 8);
+				frame.write(msgId);
+			}
+			if (props != null) {
+				props.writeTo(new DataOutputStream(frame));
+			}
+			frame.markPayload();
+			serializer.serialize(value, frame);
+			frame.finish((MQTTMessage.PUBLISH << 4) | (qos << 1) | (retain ? 0x01 : 0x00));
+			return frame;
+		} catch (IOException | RuntimeException e) {
+			releaseFrame(frame);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a frame from encodePublish() to the pool once it is written.
+	 */
+	static void releaseFrame(MQTTFrameBuffer frame) {
+		frameBuffers.offer(frame);
+	}
+
+	/**
+	 * Writes a PUBLISH whose payload is length bytes of source, starting
+	 * at position, or at the current position of a channel that is not 
+	 * seekable. If target is the socket's channel and source is a
+	 * FileChannel the payload is sent with transferTo(), otherwise it is
+	 * copied through a reused chunk buffer. Either way the payload is 
+	 * never held in memory as a whole.
+	 * @param target the socket channel, or null to write everything to dos
+	 */
+	public static void writePublishStream(DataOutputStream dos, WritableByteChannel target,
+			String topic, ReadableByteChannel source, long position, long length,
+			int msgId, int qos, boolean retain) throws IOException {
+		writePublishStream(dos, target, topic, source, position, length, msgId, qos, retain, null);
+	}
+
+	/**
+	 * @param props the properties of an MQTT 5 PUBLISH, or null for MQTT 3.1
+	 */
+	public static void writePublishStream(DataOutputStream dos, WritableByteChannel target,
+			String topic, ReadableByteChannel source, long position, long length,
+			int msgId, int qos, boolean retain, MQTTPropertiesBuilder props) throws IOException {
+		writePublishStream(dos, target, topic, source, position, length, msgId, qos, retain, false, props);
+	}
+
+	/**
+	 * @param dup true when the message is sent again, e.g. on resuming a session
+	 */
+	public static void writePublishStream(DataOutputStream dos, WritableByteChannel target,
+			String topic, ReadableByteChannel source, long position, long length,
+			int msgId, int qos, boolean retain, boolean dup, MQTTPropertiesBuilder props) 
+			throws IOException {
+		byte[] topicBytes = topic.getBytes(UTF8);
+		long remainingLength = 2 + topicBytes.length + (qos > 0 ? 2 : 0) 
+				+ (props != null ? props.encodedLength() : 0) + length;
+		if (remainingLength > MAX_REMAINING_LENGTH)
+			throw new MQTTException("Payload too large for a single MQTT message: " + length);
+
+		writeFixedHeader(dos, MQTTMessage.PUBLISH, dup, qos, retain);
+		writeRemainingLength(dos, (int) remainingLength);
+		dos.writeShort(topicBytes.length);
+		dos.write(topicBytes);
+		if (qos > 0) {
+			dos.writeShort(msgId);
+		}
+		if (props != null) {
+			props.writeTo(dos);
+		}
+
+		if (target != null && source instanceof FileChannel) {
+			dos.flush();
+			FileChannel file = (FileChannel) source;
+			long sent = 0;
+			while (sent < length) {
+				long n = file.transferTo(position + sent, length - sent, target);
+				if (n <= 0 && position + sent >= file.size())
+					throw new IOException("Source channel ended before declared length");
+				sent += n;
+			}
+		}
+
+		else {
+			ByteBuffer buf = streamBuffers.get();
+			if (source instanceof SeekableByteChannel) {
+				((SeekableByteChannel) source).position(position);
+			}
+			long sent = 0;
+			while (sent < length) {
+				buf.clear();
+				if (length - sent < buf.capacity()) {
+					buf.limit((int) (length - sent));
+				}
+				int n = source.read(buf);
+				if (n < 0)
+					throw new IOException("Source channel ended before declared length");
+				dos.write(buf.array(), 0, n);
+				sent += n;
+			}
+			dos.flush();
+		}
+	}
+
+	/**
+	 * Encodes every message into one contiguous buffer and writes it 
+	 * with a single write and flush.
+	 * @param msgIds the message ID of each message, ignored for QoS 0
+	 */
+	public static void writePublishBatch(DataOutputStream dos, List<MQTTPublication> messages, 
+			int[] msgIds) throws IOException {
+		writePublishBatch(dos, messages, msgIds, null);
+	}
+
+	/**
+	 * @param props the properties of every MQTT 5 PUBLISH, or null for MQTT 3.1
+	 * @throws IllegalArgumentException if a message is too large for a 
+	 * PUBLISH, or the batch too large to write from a single array
+	 */
+	public static void writePublishBatch(DataOutputStream dos, List<MQTTPublication> messages, 
+			int[] msgIds, MQTTPropertiesBuilder props) throws IOException {
+		int count = messages.size();
+		byte[][] topics = new byte[count][];
+		byte[] properties = props != null ? props.toByteArray() : null;
+		int propsLength = properties != null ? properties.length : 0;
+
+		byte[] buf = new byte[publishBatchLength(messages, topics, propsLength)];
+		int pos = 0;
+		for (int i = 0; i < count; i++) {
+			MQTTPublication msg = messages.get(i);
+			byte[] topic = topics[i];
+			byte[] payload = msg.getPayload();
+			int qos = msg.getQos();
+
+			buf[pos++] = (byte) ((MQTTMessage.PUBLISH << 4) | (qos << 1) 
+					| (msg.isRetained() ? 0x01 : 0x00));
+			pos = putRemainingLength(buf, pos, (int) publishLength(topic, msg, propsLength));
+
+			buf[pos++] = (byte) (topic.length >> 8);
+			buf[pos++] = (byte) topic.length;
+			System.arraycopy(topic, 0, buf, pos, topic.length);
+			pos += topic.length;
+			if (qos > 0) {
+				buf[pos++] = (byte) (msgIds[i] >> 8);
+				buf[pos++] = (byte) msgIds[i];
+			}
+			if (properties != null) {
+				System.arraycopy(properties, 0, buf, pos, properties.length);
+				pos += properties.length;
+			}
+			System.arraycopy(payload, 0, buf, pos, payload.length);
+			pos += payload.length;
+		}
+
+		// Larger than the stream buffer, so this goes straight to the socket
+		dos.write(buf, 0, pos);
+		dos.flush();
+	}
+
+	/**
+	 * Sizes a batch for writePublishBatch(), keeping each encoded topic in
+	 * topics unless it is null.
+	 * @return the length of all the batch's frames together
+	 * @throws IllegalArgumentException if a message is too large for a 
+	 * PUBLISH, or the batch too large to write from a single array
+	 */
+	static int publishBatchLength(List<MQTTPublication> messages, byte[][] topics, int propsLength) {
+		long total = 0;
+		for (int i = 0; i < messages.size(); i++) {
+			MQTTPublication msg = messages.get(i);
+			byte[] topic = msg.getTopic().getBytes(UTF8);
+			if (topics != null) {
+				topics[i] = topic;
+			}
+			long len = publishLength(topic, msg, propsLength);
+			if (len > MAX_REMAINING_LENGTH)
+				throw new IllegalArgumentException("Payload too large for a single MQTT message: " 
+						+ msg.getPayload().length);
+			total += 1 + remainingLengthSize((int) len) + len;
+		}
+		if (total > MAX_BATCH_LENGTH)
+			throw new IllegalArgumentException("Batch of " + total + " bytes is too large to write at once.");
+		return (int) total;
+	}
+
+	private static long publishLength(byte[] topic, MQTTPublication msg, int propsLength) {
+		return 2L + topic.length + (msg.getQos() > 0 ? 2 : 0) + propsLength + msg.getPayload().length;
+	}
+
+	static int remainingLengthSize(int len) {
+		return len < 0x80 ? 1 : len < 0x4000 ? 2 : len < 0x200000 ? 3 : 4;
+	}
+
+	/**
+	 * Writes an MQTT 5 property block, or an empty block if props is null.
+	 */
+	public static void writeProperties(DataOutputStream dos, MQTTPropertiesBuilder props)
+			throws IOException {
+		if (props == null) {
+			dos.writeByte(0);
+		} else {
+			props.writeTo(dos);
+		}
+	}
+
+	/**
+	 * Writes every stored message, as a redelivery, into one buffer that
+	 * is written with a single flush. Streamed payloads follow it, read
+	 * from their source channels.
+	 */
+	public static void writeReplay(DataOutputStream dos, List<MQTTMessage> messages) throws IOException {
+		writeReplay(dos, messages, null);
+	}
+
+	/**
+	 * @param props the properties of every MQTT 5 PUBLISH, or null for MQTT 3.1
+	 */
+	public static void writeReplay(DataOutputStream dos, List<MQTTMessage> messages, 
+			MQTTPropertiesBuilder props) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream dos2 = new DataOutputStream(buf);
+		for (MQTTMessage msg : messages) {
+			if (msg.getType() == MQTTMessage.PUBLISH && !msg.isStreamed()) {
+				byte[] payload = msg.getMsg();
+				// An off-heap payload is gone once the message has been acked
+				if (payload != null || !msg.isOffHeap()) {
+					writePublish(dos2, msg.getTopic(), payload, msg.getId(), msg.getQos(), 
+							msg.isRetained(), true, props);
+				}
+			} else if (!msg.isStreamed()) {
+				writeMessage(dos2, msg, props);
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		}
+		buf.writeTo(dos);
+		for (MQTTMessage msg : messages) {
+			if (msg.isStreamed()) {
+				writePublishStream(dos, null, msg.getTopic(), msg.getSource(), msg.getSourcePosition(),
+						msg.getPayloadLength(), msg.getId(), msg.getQos(), msg.isRetained(), true, props);
+			}
+		}
+		dos.flush();
+	}
+
+	static void writeMessage(DataOutputStream dos, MQTTMessage msg, MQTTPropertiesBuilder props)
+			throws IOException {
+		switch (msg.getType()) {
+//		case MQTTMessage.CONNECT:
+//			writeConnect(dos);
+//			break;
+//		case MQTTMessage.CONNACK:
+//			writeConnAck(dos);
+//			break;
+		case MQTTMessage.PUBLISH:
+			if (msg.isStreamed()) {
+				writePublishStream(dos, null, msg.getTopic(), msg.getSource(), msg.getSourcePosition(),
+						msg.getPayloadLength(), msg.getId(), msg.getQos(), msg.isRetained(), props);
+			} else {
+				writePublish(dos, msg.getTopic(), msg.getMsg(), msg.getId(), msg.getQos(), 
+						msg.isRetained(), false, props);
+			}
+			break;
+		case MQTTMessage.PUBACK:
+			writePubAck(dos, msg.getId());
+			break;
+		case MQTTMessage.PUBREC:
+			writePubRec(dos, msg.getId());
+			break;
+		case MQTTMessage.PUBREL:
+			writePubRel(dos, msg.getId());
+			break;
+		case MQTTMessage.PUBCOMP:
+			writePubComp(dos, msg.getId());
+			break;
+		case MQTTMessage.SUBSCRIBE:
+			writeSubscribe(dos, msg.getId(), msg.getTopic(), msg.getQos(), props);
+			break;
+//		case MQTTMessage.SUBACK:
+//			writeSubAck(dos);
+//			break;
+//		case MQTTMessage.UNSUBSCRIBE:
+//			writeUnsubscribe(dup, dos);
+//			break;
+//		case MQTTMessage.UNSUBACK:
+//			writeUnsubAck(dos);
+//			break;
+		case MQTTMessage.PINGREQ:
+			writePing(dos);
+			break;
+//		case MQTTMessage.PINGRESP:
+//			writePingResp(dos);
+//			break;
+		case MQTTMessage.DISCONNECT:
+			writeDisconnect(dos);
+			break;
+		default:
+			throw new MQTTException("unknown message type: " + msg.getType());
 		}
 	}
 
@@ -170,7 +574,22 @@ public class MQTTEncoder {
 		dos.writeByte(fixedHeader);
 	}
 
-	private static void writeRemainingLength(DataOutputStream dos, int len)
+	/**
+	 * Writes the remaining length into buf at off, for frames built in
+	 * arrays. buf must have remainingLengthSize(len) bytes free there.
+	 * @return the offset after it
+	 */
+	static int putRemainingLength(byte[] buf, int off, int len) {
+		int x = len;
+		do {
+			int digit = x % 128;
+			x /= 128;
+			buf[off++] = (byte) (x > 0 ? digit | 0x80 : digit);
+		} while (x > 0);
+		return off;
+	}
+
+	static void writeRemainingLength(DataOutputStream dos, int len)
 			throws IOException {
 		// ALGORITHM FOR ENCODING REMAINING LENGTH
 		// do
@@ -0,0 +1,271 @@
+package thinqtt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One thread of an MQTTEventLoopGroup. It selects over the channels of
+ * every connection assigned to it, or polls the native transport for 
+ * their completed operations, and runs their output tasks and timers in
+ * between, so all of a connection's I/O happens on this one thread.
+ *
+ * Tasks may be submitted from any thread. Timers are kept in a heap that
+ * only the loop thread touches.
+ */
+class MQTTEventLoop implements Executor, Runnable {
+
+	private static Logger log = Logger.getLogger(MQTTEventLoop.class.getName());
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private static class Timer implements Comparable<Timer> {
+		final long due;
+		final long seq;
+		final Runnable task;
+
+		Timer(long due, long seq, Runnable task) {
+			this.due = due;
+			this.seq = seq;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			if (due != other.due) {
+				return due < other.due ? -1 : 1;
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+	}
+
+	private final Selector selector;
+	private final MQTTNativeTransport transport;
+	// Native connections by ID, which is the high bits of their operation tokens
+	private MQTTNativeConnection[] connections;
+	private int[] freeIds;
+	private int freeCount = 0;
+	private int nextId = 0;
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	// Shared by every connection on this loop, as reads never overlap
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private volatile boolean running = true;
+	private long timerSeq = 0;
+
+	/**
+	 * @param transport the native transport to use, or null to use a selector
+	 */
+	MQTTEventLoop(String name, MQTTNativeTransport transport) throws IOException {
+		this.transport = transport;
+		this.selector = transport == null ? Selector.open() : null;
+		if (transport != null) {
+			connections = new MQTTNativeConnection[64];
+			freeIds = new int[64];
+		}
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	void shutdown() {
+		running = false;
+		wakeup();
+	}
+
+	boolean isNative() {
+		return transport != null;
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	Selector selector() {
+		return selector;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (!inLoop()) {
+			wakeup();
+		}
+	}
+
+	/**
+	 * Starts a connection to address for client. It is connected, and
+	 * then read, once client registers it.
+	 */
+	MQTTConnection connect(MQTTClient client, InetSocketAddress address) throws IOException {
+		if (transport != null) {
+			return new MQTTNativeConnection(client, this, transport, address);
+		}
+		return new MQTTChannelConnection(client, this, address);
+	}
+
+	/**
+	 * @return the ID for a native connection's operation tokens
+	 */
+	int add(MQTTNativeConnection connection) {
+		int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+		if (id == connections.length) {
+			connections = Arrays.copyOf(connections, id * 2);
+			freeIds = Arrays.copyOf(freeIds, id * 2);
+		}
+		connections[id] = connection;
+		return id;
+	}
+
+	void remove(int id) {
+		connections[id] = null;
+		freeIds[freeCount++] = id;
+	}
+
+	private void wakeup() {
+		if (transport != null) {
+			transport.wakeup();
+		} else {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs task on the loop thread after at least delayMillis.
+	 */
+	void schedule(final Runnable task, long delayMillis) {
+		final long due = System.nanoTime() / 1000000L + delayMillis;
+		if (inLoop()) {
+			timers.add(new Timer(due, timerSeq++, task));
+		} else {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					timers.add(new Timer(due, timerSeq++, task));
+				}
+			});
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				if (transport != null) {
+					pollNative();
+					runTasks();
+					runTimers();
+					continue;
+				}
+				select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						((MQTTChannelConnection) key.attachment()).ready(key, readBuffer);
+					} catch (RuntimeException e) {
+						log.log(Level.SEVERE, "Connection handler failed", e);
+					}
+				}
+				runTasks();
+				runTimers();
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Event loop select failed", e);
+			}
+		}
+
+		if (transport != null) {
+			for (MQTTNativeConnection connection : connections) {
+				if (connection != null) {
+					connection.close();
+				}
+			}
+			transport.destroy();
+			return;
+		}
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Submits every operation queued by the last round of completions,
+	 * tasks and timers in one go, and handles the completions that follow.
+	 */
+	private void pollNative() throws IOException {
+		int n = transport.poll(transport.isFull() || !tasks.isEmpty() ? 0 : timeout());
+		for (int i = 0; i < n; i++) {
+			int token = transport.token(i);
+			MQTTNativeConnection connection = connections[token >>> 2];
+			if (connection != null) {
+				try {
+					connection.completed(token & 3, transport.result(i), readBuffer);
+				} catch (RuntimeException e) {
+					log.log(Level.SEVERE, "Connection handler failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the time until the next timer is due, or -1 if none
+	 */
+	private long timeout() {
+		Timer next = timers.peek();
+		return next == null ? -1 : Math.max(0, next.due - System.nanoTime() / 1000000L);
+	}
+
+	private void select() throws IOException {
+		long wait = tasks.isEmpty() ? timeout() : 0;
+		if (wait > 0) {
+			selector.select(wait);
+		} else if (wait == 0) {
+			selector.selectNow();
+		} else {
+			selector.select();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE, "Event loop task failed", e);
+			}
+		}
+	}
+
+	private void runTimers() {
+		long now = System.nanoTime() / 1000000L;
+		Timer t;
+		while ((t = timers.peek()) != null && t.due <= now) {
+			timers.poll();
+			try {
+				t.task.run();
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE, "Event loop timer failed", e);
+			}
+		}
+	}
+}
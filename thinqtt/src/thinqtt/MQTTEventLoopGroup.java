@@ -0,0 +1,84 @@
+package thinqtt;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small set of I/O threads, each owning many client connections.
+ *
+ * A client constructed against a group is assigned one of its loops,
+ * round robin, for life. Its reads, writes, keepalive pings and
+ * reconnects all run on that loop over a non-blocking channel, so there
+ * is no reader thread per client and no hand-off between threads for
+ * output. Callbacks run on the loop too, unless the client has a work
+ * pool, and so must not block.
+ *
+ * On a loop, a client does not support the standby connection or the
+ * streamingThreshold property, and a streamed publish is buffered in
+ * memory while it is written.
+ */
+public class MQTTEventLoopGroup {
+
+	private final MQTTEventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	/**
+	 * Creates a group with one loop per available processor.
+	 */
+	public MQTTEventLoopGroup() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a group that uses the native transport if it is available.
+	 */
+	public MQTTEventLoopGroup(int threads) throws IOException {
+		this(threads, MQTTNativeTransport.isAvailable());
+	}
+
+	/**
+	 * @param useNative true to use the native Linux transport, which uses
+	 * epoll instead of io_uring if the thinqtt.native system property is
+	 * "epoll"
+	 * @throws IOException if useNative is true and the native transport 
+	 * cannot be loaded or started
+	 */
+	public MQTTEventLoopGroup(int threads, boolean useNative) throws IOException {
+		if (threads <= 0)
+			throw new IllegalArgumentException("An event loop group needs at least one thread.");
+		boolean forceEpoll = "epoll".equalsIgnoreCase(System.getProperty("thinqtt.native"));
+		loops = new MQTTEventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new MQTTEventLoop("thinqtt-loop-" + i, 
+					useNative ? new MQTTNativeTransport(forceEpoll) : null);
+		}
+		for (MQTTEventLoop loop : loops) {
+			loop.start();
+		}
+	}
+
+	MQTTEventLoop next() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	public int size() {
+		return loops.length;
+	}
+
+	/**
+	 * @return true if the loops use the native transport
+	 */
+	public boolean isNative() {
+		return loops[0].isNative();
+	}
+
+	/**
+	 * Stops every loop, closing any connections still open. Clients
+	 * should be disconnected first.
+	 */
+	public void shutdown() {
+		for (MQTTEventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+}
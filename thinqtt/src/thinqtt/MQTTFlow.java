@@ -0,0 +1,29 @@
+package thinqtt;
+
+/**
+ * Demand-driven stream interfaces with the same contract as
+ * java.util.concurrent.Flow (and org.reactivestreams), declared here
+ * because the client still builds for Java 7. On Java 9 or later an
+ * MQTTFlow.Publisher is adapted to a Flow.Publisher by forwarding each
+ * of these methods one-to-one.
+ */
+public final class MQTTFlow {
+
+	private MQTTFlow() {}
+
+	public interface Publisher<T> {
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	public interface Subscriber<T> {
+		public void onSubscribe(Subscription subscription);
+		public void onNext(T item);
+		public void onError(Throwable throwable);
+		public void onComplete();
+	}
+
+	public interface Subscription {
+		public void request(long n);
+		public void cancel();
+	}
+}
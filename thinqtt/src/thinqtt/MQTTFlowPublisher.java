@@ -0,0 +1,250 @@
+package thinqtt;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Exposes one subscription as a demand-driven MQTTFlow.Publisher.
+ *
+ * Messages are passed to onNext only as the subscriber requests them,
+ * and wait in a buffer of this publisher's own until then. Only when
+ * that buffer is full does the client stop reading from its socket, so
+ * that TCP flow control pushes back on the broker instead of messages
+ * piling up in memory. That pause is a last resort, as it holds up the
+ * whole connection: acks, pings and the messages of every other 
+ * subscription and listener wait with it. Reading resumes once the 
+ * subscriber has taken messages from a full buffer.
+ *
+ * Cancelling unsubscribes the client from the topic filter, unless the
+ * client was already subscribed to it or another listener still takes
+ * its messages. A publisher for a filter the client is already 
+ * subscribed to only listens, at the QoS of that subscription. Only one
+ * subscriber is supported per publisher.
+ */
+public class MQTTFlowPublisher implements MQTTFlow.Publisher<MQTTPublication>, MQTTMessageListener {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	private final MQTTClient client;
+	private final String topicPattern;
+	private final int qos;
+	private final int bufferSize;
+
+	private final ArrayDeque<MQTTPublication> queue = new ArrayDeque<MQTTPublication>();
+	private MQTTFlow.Subscriber<? super MQTTPublication> subscriber;
+	private long demand = 0;
+	private boolean draining = false;
+	private boolean paused = false;
+	private boolean cancelled = false;
+	private boolean completed = false;
+	// Whether the subscription to topicPattern is this publisher's to end
+	private boolean ownsSubscription = false;
+
+	/**
+	 * @param bufferSize how many undelivered messages may wait before 
+	 * reads are paused on the whole connection
+	 */
+	public MQTTFlowPublisher(MQTTClient client, String topicPattern, int qos, int bufferSize) {
+		if (client == null)
+			throw new IllegalArgumentException("Client cannot be null.");
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("Buffer size must be positive.");
+		MQTTTopic.validateFilter(topicPattern);
+		this.client = client;
+		this.topicPattern = topicPattern;
+		this.qos = qos;
+		this.bufferSize = bufferSize;
+	}
+
+	public MQTTFlowPublisher(MQTTClient client, String topicPattern, int qos) {
+		this(client, topicPattern, qos, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Subscribes the client to the topic filter on behalf of subscriber.
+	 * Messages that arrive before the subscriber first requests any are
+	 * buffered.
+	 */
+	@Override
+	public void subscribe(MQTTFlow.Subscriber<? super MQTTPublication> s) {
+		synchronized (this) {
+			if (subscriber != null) {
+				s.onSubscribe(new MQTTFlow.Subscription() {
+					public void request(long n) {}
+					public void cancel() {}
+				});
+				s.onError(new IllegalStateException("Publisher for " + topicPattern + " already has a subscriber"));
+				return;
+			}
+			subscriber = s;
+			ownsSubscription = !client.isSubscribed(topicPattern);
+		}
+
+		s.onSubscribe(new MQTTFlow.Subscription() {
+			@Override
+			public void request(long n) {
+				if (n <= 0) {
+					cancel();
+					subscriber.onError(new IllegalArgumentException("Requested " + n + " items, which is not positive"));
+					return;
+				}
+				synchronized (MQTTFlowPublisher.this) {
+					// Saturate at Long.MAX_VALUE, meaning unbounded
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+				drain();
+			}
+
+			@Override
+			public void cancel() {
+				synchronized (MQTTFlowPublisher.this) {
+					if (cancelled) {
+						return;
+					}
+					cancelled = true;
+					queue.clear();
+					updateReads();
+				}
+				try {
+					stopListening();
+				} catch (IOException e) {
+					// The subscriber has gone, so there is no one to tell
+				}
+			}
+		});
+
+		if (!ownsSubscription) {
+			client.addMessageListener(topicPattern, this);
+			return;
+		}
+		try {
+			client.subscribe(topicPattern, qos, this);
+		} catch (IOException e) {
+			error(e);
+		}
+	}
+
+	@Override
+	public void messageArrived(String topic, byte[] payload, int msgQos, boolean retained) {
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			queue.add(new MQTTPublication(topic, payload, msgQos, retained));
+			updateReads();
+		}
+		drain();
+	}
+
+	/**
+	 * Signals onComplete to the subscriber once the messages already
+	 * received have been requested, and stops listening as cancel() does.
+	 */
+	public void complete() throws IOException {
+		synchronized (this) {
+			completed = true;
+		}
+		try {
+			stopListening();
+		} finally {
+			drain();
+		}
+	}
+
+	/**
+	 * Removes this publisher's listener, and unsubscribes from the topic
+	 * filter if this publisher subscribed to it and no other listener 
+	 * takes its messages. Otherwise the subscription is left to whoever
+	 * made it or still listens on it.
+	 */
+	private void stopListening() throws IOException {
+		client.removeMessageListener(this);
+		boolean owned;
+		synchronized (this) {
+			owned = ownsSubscription;
+			ownsSubscription = false;
+		}
+		if (owned && !client.hasMessageListener(topicPattern)) {
+			client.unsubscribe(topicPattern);
+		}
+	}
+
+	private void error(Throwable t) {
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			queue.clear();
+			updateReads();
+		}
+		try {
+			stopListening();
+		} catch (IOException e) {
+			// t is what the subscriber needs to know about
+		}
+		subscriber.onError(t);
+	}
+
+	/**
+	 * Delivers as many queued messages as there is demand for. Only one
+	 * thread drains at a time; a thread that changes the state while
+	 * another is draining leaves the delivery to it.
+	 */
+	private void drain() {
+		synchronized (this) {
+			if (draining || subscriber == null) {
+				return;
+			}
+			draining = true;
+		}
+
+		for (;;) {
+			MQTTPublication next;
+			boolean done = false;
+			synchronized (this) {
+				if (cancelled || demand == 0 || queue.isEmpty()) {
+					if (!cancelled && completed && queue.isEmpty()) {
+						cancelled = true;
+						done = true;
+					}
+					updateReads();
+					draining = false;
+					if (!done) {
+						return;
+					}
+					next = null;
+				} else {
+					next = queue.poll();
+					if (demand != Long.MAX_VALUE) {
+						demand--;
+					}
+				}
+			}
+			if (done) {
+				subscriber.onComplete();
+				return;
+			}
+			subscriber.onNext(next);
+		}
+	}
+
+	/**
+	 * Pauses socket reads while the buffer is full and resumes them once
+	 * it is not. Must be called holding this publisher's lock.
+	 */
+	private void updateReads() {
+		boolean shouldPause = !cancelled && queue.size() >= bufferSize;
+		if (shouldPause && !paused) {
+			client.pauseReading();
+			paused = true;
+		} else if (!shouldPause && paused) {
+			client.resumeReading();
+			paused = false;
+		}
+	}
+
+	public String getTopicPattern() {
+		return topicPattern;
+	}
+}
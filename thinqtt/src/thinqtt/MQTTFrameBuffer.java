@@ -0,0 +1,83 @@
+package thinqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A reusable buffer that a PUBLISH is encoded into with space reserved
+ * ahead of it for the fixed header. The remaining length is only known
+ * once the payload has been written, so the header is then written 
+ * into the end of that space and the frame starts wherever it begins.
+ */
+class MQTTFrameBuffer extends ByteArrayOutputStream {
+
+	// The fixed header byte and up to four bytes of remaining length
+	static final int HEADER_SPACE = 5;
+	// Buffers grown past this by a large payload are not kept for reuse
+	private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+	private int start;
+	private int payloadStart;
+
+	MQTTFrameBuffer() {
+		super(4096);
+	}
+
+	/**
+	 * Empties the buffer and reserves the header space.
+	 */
+	void begin() {
+		if (buf.length > MAX_RETAINED_SIZE) {
+			buf = new byte[4096];
+		}
+		count = HEADER_SPACE;
+		start = HEADER_SPACE;
+	}
+
+	/**
+	 * Marks the end of the variable header and the start of the payload.
+	 */
+	void markPayload() {
+		payloadStart = count;
+	}
+
+	/**
+	 * Writes the fixed header in front of everything written since begin().
+	 * @return the remaining length
+	 */
+	int finish(int fixedHeader) throws IOException {
+		int remainingLength = count - HEADER_SPACE;
+		if (remainingLength > MQTTEncoder.MAX_REMAINING_LENGTH)
+			throw new MQTTException("Payload too large for a single MQTT message: " 
+					+ (count - payloadStart));
+		int digits = 1;
+		for (int x = remainingLength / 128; x > 0; x /= 128) {
+			digits++;
+		}
+		start = HEADER_SPACE - digits - 1;
+		buf[start] = (byte) fixedHeader;
+		int x = remainingLength;
+		for (int i = start + 1; i < HEADER_SPACE; i++) {
+			int digit = x % 128;
+			x /= 128;
+			buf[i] = (byte) (x > 0 ? digit | 0x80 : digit);
+		}
+		return remainingLength;
+	}
+
+	/**
+	 * @return a copy of the payload, e.g. to keep until it is acknowledged
+	 */
+	byte[] copyPayload() {
+		return Arrays.copyOfRange(buf, payloadStart, count);
+	}
+
+	/**
+	 * Writes the finished frame.
+	 */
+	void writeFrameTo(OutputStream out) throws IOException {
+		out.write(buf, start, count - start);
+	}
+}
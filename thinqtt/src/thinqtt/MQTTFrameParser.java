@@ -0,0 +1,330 @@
+package thinqtt;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * A resumable, push-driven counterpart to MQTTDecoder.decode().
+ *
+ * Bytes are fed in arbitrary ByteBuffer fragments, as they arrive from a
+ * non-blocking channel. Partial fixed header, remaining length and body
+ * state is kept between calls, and every completed frame is passed to
+ * the listener. When a frame lies entirely inside a heap buffer and
+ * frames are dispatched synchronously, it is read in place without
+ * being copied, so a single read holding several frames costs no
+ * copies at all.
+ *
+ * A parser belongs to one connection and is not thread-safe.
+ */
+public class MQTTFrameParser {
+
+	private static final int STATE_HEADER = 0;
+	private static final int STATE_LENGTH = 1;
+	private static final int STATE_BODY = 2;
+	private static final int STATE_PUBLISH_HEADER = 3;
+	private static final int STATE_SKIP = 4;
+
+	// What the bytes of a PUBLISH header being collected are
+	private static final int HEADER_TOPIC_LENGTH = 0;
+	private static final int HEADER_TOPIC = 1;
+	private static final int HEADER_PROPERTY_LENGTH = 2;
+	private static final int HEADER_PROPERTIES = 3;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final MQTTDecoderListener listener;
+	private final Executor exec;
+	private final int maxPacketSize;
+	private final MQTTBackpressure backpressure;
+
+	private int state = STATE_HEADER;
+	private int fixedHeader;
+	private int remainingLength;
+	private int multiplier;
+	private byte[] body;
+	private int bodyPos;
+	private volatile MQTTPublishFilter filter;
+	// The topic, message ID and properties of a PUBLISH, collected for the filter
+	private byte[] header;
+	private int headerPos;
+	private int headerLength;
+	private int headerStage;
+	private int topicLength;
+	private int propsStart;
+	// True while the header collected so far is all in the buffer being fed
+	private boolean headerInBuffer;
+	private int skipRemaining;
+
+	/**
+	 * @param exec if not null, frames are dispatched on this executor,
+	 * which means each frame is copied out of the fed buffer first
+	 * @param backpressure if not null, counts the frames handed to exec
+	 */
+	public MQTTFrameParser(MQTTDecoderListener listener, Executor exec, int maxPacketSize,
+			MQTTBackpressure backpressure) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null.");
+		this.listener = listener;
+		this.exec = exec;
+		this.maxPacketSize = maxPacketSize;
+		this.backpressure = backpressure;
+	}
+
+	public MQTTFrameParser(MQTTDecoderListener listener, Executor exec, int maxPacketSize) {
+		this(listener, exec, maxPacketSize, null);
+	}
+
+	public MQTTFrameParser(MQTTDecoderListener listener) {
+		this(listener, null, MQTTDecoder.MAX_PACKET_SIZE);
+	}
+
+	/**
+	 * Sets the filter that sees the topic of each PUBLISH before its 
+	 * payload is read. The payloads of those it rejects are skipped.
+	 */
+	public void setPublishFilter(MQTTPublishFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Consumes every remaining byte of in, dispatching each frame that
+	 * is completed along the way.
+	 * @return the number of frames completed
+	 * @throws ProtocolException if the stream is malformed, after which
+	 * the parser must be reset() along with the connection
+	 */
+	public int feed(ByteBuffer in) throws ProtocolException {
+		int frames = 0;
+		while (in.hasRemaining()) {
+			switch (state) {
+			case STATE_HEADER:
+				fixedHeader = in.get() & 0xFF;
+				remainingLength = 0;
+				multiplier = 1;
+				state = STATE_LENGTH;
+				break;
+
+			case STATE_LENGTH:
+				int digit = in.get() & 0xFF;
+				remainingLength += (digit & 0x007F) * multiplier;
+				if ((digit & 0x0080) != 0) {
+					if (multiplier == 128 * 128 * 128)
+						throw new ProtocolException("Malformed remaining length");
+					multiplier *= 128;
+					break;
+				}
+				if (remainingLength > maxPacketSize) {
+					throw new ProtocolException("Packet of " + remainingLength
+							+ " bytes exceeds maximum packet size of " + maxPacketSize);
+				}
+				if (remainingLength == 0) {
+					dispatch(EMPTY, 0);
+					frames++;
+					state = STATE_HEADER;
+				}
+				else if (filter != null && remainingLength >= 2 
+						&& (fixedHeader >> 4) == MQTTMessage.PUBLISH) {
+					if (header == null) {
+						header = new byte[64];
+					}
+					headerPos = 0;
+					headerLength = 2;
+					headerStage = HEADER_TOPIC_LENGTH;
+					headerInBuffer = true;
+					state = STATE_PUBLISH_HEADER;
+				}
+				else if (startBody(in, 0)) {
+					frames++;
+				}
+				break;
+
+			case STATE_PUBLISH_HEADER:
+				int h = Math.min(in.remaining(), headerLength - headerPos);
+				in.get(header, headerPos, h);
+				headerPos += h;
+				if (headerPos < headerLength) {
+					break;
+				}
+				if (!isPublishHeaderComplete()) {
+					break;
+				}
+				int qos = (fixedHeader & 0x06) >> 1;
+				MQTTPublishFilter f = filter;
+				if (f == null || f.accept(fixedHeader, header, 2, topicLength, remainingLength - headerLength)) {
+					if (startBody(in, headerLength)) {
+						frames++;
+					}
+					break;
+				}
+				int idEnd = 2 + topicLength + 2;
+				int messageId = qos > 0 
+						? ((header[idEnd - 2] & 0xFF) << 8) | (header[idEnd - 1] & 0xFF) : 0;
+				listener.onPublishSkipped(messageId, qos, (fixedHeader & 0x08) != 0);
+				frames++;
+				skipRemaining = remainingLength - headerLength;
+				state = skipRemaining > 0 ? STATE_SKIP : STATE_HEADER;
+				break;
+
+			case STATE_SKIP:
+				int skip = Math.min(in.remaining(), skipRemaining);
+				in.position(in.position() + skip);
+				skipRemaining -= skip;
+				if (skipRemaining == 0) {
+					state = STATE_HEADER;
+				}
+				break;
+
+			case STATE_BODY:
+				int n = Math.min(in.remaining(), remainingLength - bodyPos);
+				in.get(body, bodyPos, n);
+				bodyPos += n;
+				if (bodyPos == remainingLength) {
+					byte[] frame = body;
+					body = null;
+					dispatch(frame, remainingLength);
+					frames++;
+					state = STATE_HEADER;
+				}
+				break;
+			}
+		}
+		// Whatever header has been collected is no longer in a buffer
+		headerInBuffer = false;
+		return frames;
+	}
+
+	/**
+	 * Works out how much of a PUBLISH header is left to collect, now that
+	 * headerLength bytes of it have been.
+	 * @return true if the whole header has been collected
+	 */
+	private boolean isPublishHeaderComplete() throws ProtocolException {
+		while (headerPos == headerLength) {
+			switch (headerStage) {
+			case HEADER_TOPIC_LENGTH:
+				topicLength = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+				extendHeader(topicLength + ((fixedHeader & 0x06) != 0 ? 2 : 0));
+				headerStage = HEADER_TOPIC;
+				break;
+			case HEADER_TOPIC:
+				if (listener.getProtocolVersion() < 5) {
+					return true;
+				}
+				// The properties follow the message ID, so are collected too
+				propsStart = headerLength;
+				extendHeader(1);
+				headerStage = HEADER_PROPERTY_LENGTH;
+				break;
+			case HEADER_PROPERTY_LENGTH:
+				if ((header[headerLength - 1] & 0x80) != 0) {
+					if (headerLength - propsStart == 4)
+						throw new ProtocolException("Malformed PUBLISH");
+					extendHeader(1);
+				} else {
+					extendHeader(MQTTProperties.readVarInt(header, propsStart, headerLength));
+					headerStage = HEADER_PROPERTIES;
+				}
+				break;
+			default:
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void extendHeader(int n) throws ProtocolException {
+		if (n > remainingLength - headerLength)
+			throw new ProtocolException("Malformed PUBLISH");
+		headerLength += n;
+		if (header.length < headerLength) {
+			header = Arrays.copyOf(header, Math.max(headerLength, header.length * 2));
+		}
+	}
+
+	/**
+	 * Starts reading the body of the current frame, of which read bytes
+	 * have already been taken from in into the header buffer.
+	 * @return true if the whole frame was in the buffer and has been 
+	 * dispatched
+	 */
+	private boolean startBody(ByteBuffer in, int read) {
+		if (exec == null && in.hasArray() && in.remaining() >= remainingLength - read
+				&& (read == 0 || headerInBuffer)) {
+			// Whole frame is in the caller's buffer; read it in place
+			int pos = in.position() - read;
+			MQTTDecoder.read(fixedHeader, in.array(), in.arrayOffset() + pos,
+					remainingLength, listener);
+			in.position(pos + remainingLength);
+			state = STATE_HEADER;
+			return true;
+		}
+		body = new byte[remainingLength];
+		if (read > 0) {
+			System.arraycopy(header, 0, body, 0, read);
+		}
+		bodyPos = read;
+		if (bodyPos == remainingLength) {
+			byte[] frame = body;
+			body = null;
+			dispatch(frame, remainingLength);
+			state = STATE_HEADER;
+			return true;
+		}
+		state = STATE_BODY;
+		return false;
+	}
+
+	/**
+	 * @return true if the parser is between frames
+	 */
+	public boolean isIdle() {
+		return state == STATE_HEADER;
+	}
+
+	/**
+	 * Discards any partial frame, e.g. after the connection is lost.
+	 */
+	public void reset() {
+		state = STATE_HEADER;
+		body = null;
+		bodyPos = 0;
+		skipRemaining = 0;
+	}
+
+	private void dispatch(final byte[] frame, final int len) {
+		final int header = fixedHeader;
+		if (exec != null && backpressure != null) {
+			backpressure.dispatched(len);
+			try {
+				exec.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							MQTTDecoder.read(header, frame, 0, len, listener);
+						} finally {
+							backpressure.completed(len);
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				backpressure.completed(len);
+				throw e;
+			}
+		}
+
+		else if (exec != null) {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					MQTTDecoder.read(header, frame, 0, len, listener);
+				}
+			});
+		}
+
+		else {
+			MQTTDecoder.read(header, frame, 0, len, listener);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package thinqtt;
 
+import java.nio.channels.SeekableByteChannel;
 
 
 public class MQTTMessage {
@@ -28,6 +29,13 @@ public class MQTTMessage {
 	private final long time;
 	private final boolean retain;
 	private int retries;
+	// Set instead of msg for payloads streamed from a channel
+	private final SeekableByteChannel source;
+	private final long sourcePosition;
+	private final long sourceLength;
+	// Set instead of msg for payloads held in an off-heap arena
+	private final MQTTPayloadArena arena;
+	private final long handle;
 	
 	public MQTTMessage(int type, int id, int qos, String topic, byte[] msg, boolean retain) {
 		this.type = type;
@@ -38,6 +46,75 @@ public class MQTTMessage {
 		this.time = System.currentTimeMillis();
 		this.retries = 0;
 		this.retain = retain;
+		this.source = null;
+		this.sourcePosition = 0L;
+		this.sourceLength = msg != null ? msg.length : 0L;
+		this.arena = null;
+		this.handle = -1L;
+	}
+
+	/**
+	 * Creates a message whose payload of length bytes is held in arena.
+	 */
+	MQTTMessage(int type, int id, int qos, String topic, MQTTPayloadArena arena, 
+			long handle, int length, boolean retain) {
+		this.type = type;
+		this.id = id;
+		this.qos = qos;
+		this.topic = topic;
+		this.msg = null;
+		this.time = System.currentTimeMillis();
+		this.retries = 0;
+		this.retain = retain;
+		this.source = null;
+		this.sourcePosition = 0L;
+		this.sourceLength = length;
+		this.arena = arena;
+		this.handle = handle;
+	}
+
+	/**
+	 * Creates a PUBLISH whose payload is re-read from the channel on
+	 * redelivery rather than held in memory.
+	 */
+	public MQTTMessage(int id, int qos, String topic, SeekableByteChannel source, 
+			long position, long length, boolean retain) {
+		this.type = PUBLISH;
+		this.id = id;
+		this.qos = qos;
+		this.topic = topic;
+		this.msg = null;
+		this.time = System.currentTimeMillis();
+		this.retries = 0;
+		this.retain = retain;
+		this.source = source;
+		this.sourcePosition = position;
+		this.sourceLength = length;
+		this.arena = null;
+		this.handle = -1L;
+	}
+
+	/**
+	 * @return a copy of this message with a different type
+	 */
+	MQTTMessage withType(int newType) {
+		return new MQTTMessage(this, newType);
+	}
+
+	private MQTTMessage(MQTTMessage other, int type) {
+		this.type = type;
+		this.id = other.id;
+		this.qos = other.qos;
+		this.topic = other.topic;
+		this.msg = other.msg;
+		this.time = other.time;
+		this.retries = other.retries;
+		this.retain = other.retain;
+		this.source = other.source;
+		this.sourcePosition = other.sourcePosition;
+		this.sourceLength = other.sourceLength;
+		this.arena = other.arena;
+		this.handle = other.handle;
 	}
 
 	public boolean isRetained() {
@@ -60,8 +137,40 @@ public class MQTTMessage {
 		return topic;
 	}
 
+	/**
+	 * @return the payload, which for an off-heap message is a copy, or 
+	 * null if the message has been deleted from the store since
+	 */
 	public byte[] getMsg() {
-		return msg;
+		return arena != null ? arena.read(handle, (int) sourceLength) : msg;
+	}
+
+	public boolean isOffHeap() {
+		return arena != null;
+	}
+
+	MQTTPayloadArena getArena() {
+		return arena;
+	}
+
+	long getHandle() {
+		return handle;
+	}
+
+	public boolean isStreamed() {
+		return source != null;
+	}
+
+	public SeekableByteChannel getSource() {
+		return source;
+	}
+
+	public long getSourcePosition() {
+		return sourcePosition;
+	}
+
+	public long getPayloadLength() {
+		return sourceLength;
 	}
 
 	public long getTime() {
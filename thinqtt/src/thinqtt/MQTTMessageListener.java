@@ -0,0 +1,10 @@
+package thinqtt;
+
+/**
+ * Receives the messages that match one subscription's topic filter,
+ * in place of MQTTCallback.messageArrived.
+ */
+public interface MQTTMessageListener {
+
+	public void messageArrived(String topic, byte[] payload, int qos, boolean retained);
+}
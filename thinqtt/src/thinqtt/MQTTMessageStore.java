@@ -1,21 +1,104 @@
 package thinqtt;
 
-import java.util.HashMap;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MQTTMessageStore {
-	private final Map<Integer, MQTTMessage> store = new HashMap<>();
+	// Written by publishing threads and the reader, iterated on reconnect
+	private final Map<Integer, MQTTMessage> store = new ConcurrentHashMap<>();
+	private volatile MQTTPayloadArena arena;
+
+	private static final Comparator<MQTTMessage> BY_TIME = new Comparator<MQTTMessage>() {
+		@Override
+		public int compare(MQTTMessage m1, MQTTMessage m2) {
+			return m1.getTime() != m2.getTime() 
+					? Long.compare(m1.getTime(), m2.getTime())
+					: Integer.compare(m1.getId(), m2.getId());
+		}
+	};
 	
+	/**
+	 * Holds the payloads of outbound PUBLISHes, and inbound ones awaiting
+	 * PUBREL, in arena from now on. Payloads that do not fit in the arena
+	 * stay on the heap.
+	 */
+	public void setArena(MQTTPayloadArena arena) {
+		this.arena = arena;
+	}
+
+	public MQTTPayloadArena getArena() {
+		return arena;
+	}
+
 	public void put(int type, int id, int qos, String topic, byte[] msg, boolean retained) {
-		store.put(id, new MQTTMessage(type, id, qos, topic, msg, retained));
+		replace(id, create(type, id, qos, topic, msg, retained));
+	}
+
+	/**
+	 * Stores a streamed PUBLISH by reference to its source channel.
+	 */
+	public void putStreamed(int id, int qos, String topic, SeekableByteChannel source, 
+			long position, long length, boolean retained) {
+		replace(id, new MQTTMessage(id, qos, topic, source, position, length, retained));
+	}
+
+	/**
+	 * Stores every QoS 1 or 2 message of a batch under its message ID.
+	 */
+	public void putBatch(List<MQTTPublication> messages, int[] ids) {
+		for (int i = 0; i < ids.length; i++) {
+			MQTTPublication msg = messages.get(i);
+			if (msg.getQos() > 0) {
+				replace(ids[i], create(MQTTMessage.PUBLISH, ids[i], msg.getQos(), 
+						msg.getTopic(), msg.getPayload(), msg.isRetained()));
+			}
+		}
+	}
+
+	/**
+	 * Replaces a stored message with one of a new type, keeping its 
+	 * contents, e.g. a PUBLISH that is now awaiting PUBCOMP.
+	 */
+	public void updateType(int id, int type) {
+		MQTTMessage msg = store.get(id);
+		if (msg != null && msg.getType() != type) {
+			store.put(id, msg.withType(type));
+		}
+	}
+
+	/**
+	 * @return the stored messages of the given type, oldest first
+	 */
+	public List<MQTTMessage> list(int type) {
+		List<MQTTMessage> result = new ArrayList<MQTTMessage>();
+		for (MQTTMessage msg : store.values()) {
+			if (msg.getType() == type) {
+				result.add(msg);
+			}
+		}
+		Collections.sort(result, BY_TIME);
+		return result;
 	}
 
 	public MQTTMessage get(int id) {
 		return store.get(id);
 	}
 
+	/**
+	 * Removes a message, returning an off-heap payload's chunk to the 
+	 * arena, after which the message's getMsg() returns null.
+	 */
 	public MQTTMessage delete(int id) {
-		return store.remove(id);
+		MQTTMessage msg = store.remove(id);
+		if (msg != null && msg.isOffHeap()) {
+			msg.getArena().free(msg.getHandle());
+		}
+		return msg;
 	}
 	
 	public boolean contains(int id) {
@@ -25,4 +108,23 @@ public class MQTTMessageStore {
 	public int count() {
 		return store.size();
 	}
+
+	private MQTTMessage create(int type, int id, int qos, String topic, byte[] msg, boolean retained) {
+		MQTTPayloadArena a = arena;
+		// Only payloads that stay until a later ack go off the heap
+		if (a != null && msg != null && (type == MQTTMessage.PUBLISH || type == MQTTMessage.PUBREC)) {
+			long handle = a.allocate(msg);
+			if (handle >= 0) {
+				return new MQTTMessage(type, id, qos, topic, a, handle, msg.length, retained);
+			}
+		}
+		return new MQTTMessage(type, id, qos, topic, msg, retained);
+	}
+
+	private void replace(int id, MQTTMessage msg) {
+		MQTTMessage old = store.put(id, msg);
+		if (old != null && old.isOffHeap()) {
+			old.getArena().free(old.getHandle());
+		}
+	}
 }
@@ -0,0 +1,252 @@
+package thinqtt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A client's connection on an MQTTEventLoop that uses the native
+ * transport.
+ *
+ * At most one read and one write are outstanding at a time. Output
+ * flushed while a write is outstanding is held and sent, together with
+ * anything else flushed meanwhile, when that write completes, so a busy
+ * connection makes fewer, larger writes.
+ */
+class MQTTNativeConnection extends MQTTConnection {
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final int INITIAL_BUFFER_SIZE = 512;
+	// Larger buffers, e.g. after a streamed publish, are not kept
+	private static final int MAX_KEPT_BUFFER_SIZE = 64 * 1024;
+
+	private final MQTTClient client;
+	private final MQTTEventLoop loop;
+	private final MQTTNativeTransport transport;
+	private final InetSocketAddress address;
+	private int id = -1;
+	private int fd = -1;
+	// Direct buffers stay referenced until their operations complete
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+	private MQTTFrameParser parser;
+	private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+	private int count = 0;
+	private boolean connecting = false;
+	private boolean reading = false;
+	private boolean writing = false;
+	private boolean failed = false;
+	private volatile boolean established = false;
+
+	private final Runnable updateReads = new Runnable() {
+		@Override
+		public void run() {
+			startRead();
+		}
+	};
+
+	/**
+	 * The connect is started by register(), as operations may only be
+	 * submitted on the loop thread.
+	 */
+	MQTTNativeConnection(MQTTClient client, MQTTEventLoop loop, MQTTNativeTransport transport,
+			InetSocketAddress address) throws IOException {
+		if (address.isUnresolved())
+			throw new UnknownHostException(address.getHostString());
+		this.client = client;
+		this.loop = loop;
+		this.transport = transport;
+		this.address = address;
+		this.writeBuffer.limit(0);
+	}
+
+	@Override
+	boolean isEstablished() {
+		return established;
+	}
+
+	@Override
+	void register(final MQTTFrameParser parser) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				MQTTNativeConnection.this.parser = parser;
+				if (failed) {
+					return;
+				}
+				id = loop.add(MQTTNativeConnection.this);
+				try {
+					fd = transport.connect(address.getAddress().getAddress(), address.getPort(),
+							token(MQTTNativeTransport.OP_CONNECT));
+					connecting = true;
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	@Override
+	void interestChanged() {
+		loop.execute(updateReads);
+	}
+
+	/**
+	 * Called by the loop as each operation completes.
+	 */
+	void completed(int op, int result, ByteBuffer heapBuffer) {
+		try {
+			switch (op) {
+			case MQTTNativeTransport.OP_CONNECT:
+				connecting = false;
+				if (failed) {
+					return;
+				}
+				int err = result < 0 ? -result : transport.finishConnect(fd);
+				if (err != 0)
+					throw new IOException("Connect failed: " + MQTTNativeTransport.errorMessage(-err));
+				established = true;
+				startRead();
+				startWrite();
+				break;
+
+			case MQTTNativeTransport.OP_READ:
+				reading = false;
+				if (failed) {
+					return;
+				}
+				if (result == 0)
+					throw new EOFException("Connection closed by broker");
+				if (result < 0)
+					throw new IOException(MQTTNativeTransport.errorMessage(result));
+				// The parser reads frames in place from a heap buffer
+				readBuffer.limit(result).position(0);
+				heapBuffer.clear();
+				heapBuffer.put(readBuffer).flip();
+				parser.feed(heapBuffer);
+				startRead();
+				break;
+
+			case MQTTNativeTransport.OP_WRITE:
+				writing = false;
+				if (failed) {
+					return;
+				}
+				if (result < 0)
+					throw new IOException(MQTTNativeTransport.errorMessage(result));
+				writeBuffer.position(writeBuffer.position() + result);
+				startWrite();
+				break;
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+		release();
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (failed)
+			throw new IOException("Connection is closed");
+		startWrite();
+	}
+
+	@Override
+	public void close() {
+		if (!failed) {
+			failed = true;
+			if (fd >= 0) {
+				transport.close(fd);
+			}
+			release();
+		}
+	}
+
+	/**
+	 * Gives up this connection's place on the loop once it is closed
+	 * and none of its operations, or their buffers, are outstanding.
+	 */
+	private void release() {
+		if (failed && id >= 0 && !connecting && !reading && !writing) {
+			loop.remove(id);
+			id = -1;
+		}
+	}
+
+	private void startRead() {
+		if (!established || reading || failed || parser == null || client.isReadPaused()) {
+			return;
+		}
+		try {
+			transport.read(fd, readBuffer, 0, READ_BUFFER_SIZE, token(MQTTNativeTransport.OP_READ));
+			reading = true;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Writes what is left of the outstanding write, or else everything
+	 * flushed since it started.
+	 */
+	private void startWrite() throws IOException {
+		if (!established || writing) {
+			return;
+		}
+		if (!writeBuffer.hasRemaining()) {
+			if (count == 0) {
+				return;
+			}
+			if (writeBuffer.capacity() < count || writeBuffer.capacity() > Math.max(count, MAX_KEPT_BUFFER_SIZE)) {
+				writeBuffer = ByteBuffer.allocateDirect(Math.max(count, INITIAL_BUFFER_SIZE));
+			}
+			writeBuffer.clear();
+			writeBuffer.put(buf, 0, count).flip();
+			count = 0;
+			if (buf.length > MAX_KEPT_BUFFER_SIZE) {
+				buf = new byte[INITIAL_BUFFER_SIZE];
+			}
+		}
+		transport.write(fd, writeBuffer, writeBuffer.position(), writeBuffer.remaining(),
+				token(MQTTNativeTransport.OP_WRITE));
+		writing = true;
+	}
+
+	private int token(int op) {
+		return (id << 2) | op;
+	}
+
+	private void ensureCapacity(int size) {
+		if (size > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(size, buf.length * 2));
+		}
+	}
+
+	private void fail(IOException e) {
+		if (failed) {
+			return;
+		}
+		close();
+		count = 0;
+		if (parser != null) {
+			parser.reset();
+		}
+		client.channelFailed(this, e);
+	}
+}
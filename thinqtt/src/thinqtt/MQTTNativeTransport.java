@@ -0,0 +1,207 @@
+package thinqtt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Linux socket I/O for an MQTTEventLoop through the libthinqtt JNI
+ * library, built from native/ with the "native" Maven profile.
+ *
+ * Reads, writes and connects are submitted as operations that complete
+ * later. With io_uring the operations submitted by every connection on
+ * the loop go to the kernel in one system call per loop iteration, and
+ * their completions are collected with the same call. Where io_uring is
+ * not available the library falls back to epoll, which still collects
+ * the readiness of all connections with one call but then reads and
+ * writes each socket separately.
+ *
+ * The library is looked up on java.library.path and then in the jar
+ * at /native/linux-x86_64/libthinqtt.so. If neither loads, or the
+ * system property thinqtt.native is "false", event loops use NIO
+ * selectors instead.
+ */
+class MQTTNativeTransport {
+
+	private static Logger log = Logger.getLogger(MQTTNativeTransport.class.getName());
+
+	static final int OP_READ = 0;
+	static final int OP_WRITE = 1;
+	static final int OP_CONNECT = 2;
+
+	private static final int RING_ENTRIES = 4096;
+	private static final int MAX_COMPLETIONS = 1024;
+	private static final String RESOURCE = "/native/linux-x86_64/libthinqtt.so";
+
+	private static final Throwable loadError = load();
+
+	private final long handle;
+	// Each completion is the operation's token in the high word and its result in the low word
+	private final long[] completions = new long[MAX_COMPLETIONS];
+	private int completed = 0;
+
+	private static Throwable load() {
+		if (!"false".equalsIgnoreCase(System.getProperty("thinqtt.native"))
+				&& System.getProperty("os.name", "").toLowerCase().startsWith("linux")) {
+			try {
+				System.loadLibrary("thinqtt");
+				return null;
+			} catch (UnsatisfiedLinkError e) {
+				try {
+					loadResource();
+					return null;
+				} catch (Throwable t) {
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("Native transport not available: " + t.getMessage());
+					}
+					return t;
+				}
+			}
+		}
+		return new UnsupportedOperationException("Native transport is disabled or not supported on this OS");
+	}
+
+	private static void loadResource() throws IOException {
+		InputStream in = MQTTNativeTransport.class.getResourceAsStream(RESOURCE);
+		if (in == null)
+			throw new UnsatisfiedLinkError("No " + RESOURCE + " on the class path");
+		File lib = File.createTempFile("libthinqtt", ".so");
+		lib.deleteOnExit();
+		try {
+			OutputStream out = new FileOutputStream(lib);
+			try {
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					out.write(buf, 0, n);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		System.load(lib.getAbsolutePath());
+	}
+
+	/**
+	 * @return true if the native library is loaded
+	 */
+	static boolean isAvailable() {
+		return loadError == null;
+	}
+
+	/**
+	 * @param forceEpoll use epoll even where io_uring is available
+	 */
+	MQTTNativeTransport(boolean forceEpoll) throws IOException {
+		if (loadError != null)
+			throw new IOException("Native transport not available", loadError);
+		long h = create(RING_ENTRIES, forceEpoll);
+		if (h < 0)
+			throw new IOException("Native transport failed: " + strerror((int) -h));
+		this.handle = h;
+	}
+
+	boolean isIoUring() {
+		return isIoUring(handle);
+	}
+
+	/**
+	 * Starts a non-blocking connect, completing as OP_CONNECT.
+	 * @return the socket's file descriptor
+	 */
+	int connect(byte[] address, int port, int token) throws IOException {
+		int fd = connect(handle, address, port, token);
+		if (fd < 0)
+			throw new IOException("Connect failed: " + strerror(-fd));
+		return fd;
+	}
+
+	/**
+	 * @return 0 once fd is connected, or the errno of the failed connect
+	 */
+	int finishConnect(int fd) {
+		return finishConnect(handle, fd);
+	}
+
+	void read(int fd, ByteBuffer buf, int off, int len, int token) throws IOException {
+		check(submitRead(handle, fd, buf, off, len, token));
+	}
+
+	void write(int fd, ByteBuffer buf, int off, int len, int token) throws IOException {
+		check(submitWrite(handle, fd, buf, off, len, token));
+	}
+
+	/**
+	 * Shuts down and closes fd. Its outstanding operations still complete.
+	 */
+	void close(int fd) {
+		close(handle, fd);
+	}
+
+	void wakeup() {
+		wakeup(handle);
+	}
+
+	/**
+	 * Submits the operations queued since the last call and waits up
+	 * to timeoutMillis for completions, or indefinitely if negative.
+	 * @return the number of completions, read with token() and result()
+	 */
+	int poll(long timeoutMillis) throws IOException {
+		int n = poll(handle, completions, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+		check(n);
+		completed = n;
+		return n;
+	}
+
+	int token(int i) {
+		return (int) (completions[i] >>> 32);
+	}
+
+	/**
+	 * @return the byte count or 0 for success, or minus the errno
+	 */
+	int result(int i) {
+		return (int) completions[i];
+	}
+
+	/**
+	 * @return true if the last poll() filled its completion array, so
+	 * more may already be waiting
+	 */
+	boolean isFull() {
+		return completed == MAX_COMPLETIONS;
+	}
+
+	void destroy() {
+		destroy(handle);
+	}
+
+	static String errorMessage(int result) {
+		return strerror(-result);
+	}
+
+	private static void check(int result) throws IOException {
+		if (result < 0)
+			throw new IOException(strerror(-result));
+	}
+
+	private static native long create(int entries, boolean forceEpoll);
+	private static native boolean isIoUring(long handle);
+	private static native void destroy(long handle);
+	private static native void wakeup(long handle);
+	private static native int poll(long handle, long[] completions, int timeoutMillis);
+	private static native int connect(long handle, byte[] address, int port, int token);
+	private static native int finishConnect(long handle, int fd);
+	private static native int submitRead(long handle, int fd, ByteBuffer buf, int off, int len, int token);
+	private static native int submitWrite(long handle, int fd, ByteBuffer buf, int off, int len, int token);
+	private static native void close(long handle, int fd);
+	private static native String strerror(int errno);
+}
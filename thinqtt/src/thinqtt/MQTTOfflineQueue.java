@@ -0,0 +1,148 @@
+package thinqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds messages published while the client is disconnected.
+ *
+ * Messages go into a bounded in-memory ring first. Once that is full
+ * they spill to a memory-mapped MQTTSpillSegment, if one is configured,
+ * and stay in FIFO order across both. When neither has room, the drop
+ * policy of the message's QoS decides between silently dropping it and
+ * rejecting the publish with an MQTTException.
+ *
+ * Queued messages hold no message ID. They are given one as they are
+ * drained, so a long outage fills the queue, and then its drop policy
+ * applies, rather than running out of IDs.
+ */
+public class MQTTOfflineQueue {
+
+	public static final int POLICY_DROP 	= 0;
+	public static final int POLICY_REJECT 	= 1;
+
+	private final MQTTMessage[] ring;
+	private final long maxBytes;
+	private final MQTTSpillSegment spill;
+	private final int[] policies = new int[] { POLICY_DROP, POLICY_REJECT, POLICY_REJECT };
+
+	private int head = 0;
+	private int size = 0;
+	private long bytes = 0;
+	private long dropped = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param maxMessages capacity of the in-memory ring
+	 * @param maxBytes total payload bytes allowed in the in-memory ring
+	 * @param spillFile file to map for overflow, or null for memory only
+	 * @param spillSize size of the mapped overflow segment in bytes
+	 */
+	public MQTTOfflineQueue(int maxMessages, long maxBytes, File spillFile, int spillSize)
+			throws IOException {
+		if (maxMessages <= 0)
+			throw new IllegalArgumentException("Offline queue size must be positive.");
+		this.ring = new MQTTMessage[maxMessages];
+		this.maxBytes = maxBytes;
+		this.spill = spillFile != null ? new MQTTSpillSegment(spillFile, spillSize) : null;
+	}
+
+	/**
+	 * Sets what happens to messages of the given QoS when the queue is
+	 * full. By default QoS 0 messages are dropped and QoS 1 and 2
+	 * publishes are rejected.
+	 */
+	public synchronized void setDropPolicy(int qos, int policy) {
+		if (policy != POLICY_DROP && policy != POLICY_REJECT)
+			throw new IllegalArgumentException("Unknown drop policy " + policy);
+		policies[qos] = policy;
+	}
+
+	/**
+	 * @return false if the message was dropped because the queue is full
+	 * @throws MQTTException if the queue is full and the QoS policy is POLICY_REJECT
+	 */
+	public synchronized boolean offer(String topic, byte[] payload, int qos, boolean retained) {
+		MQTTMessage msg = new MQTTMessage(MQTTMessage.PUBLISH, 0, qos, topic, payload, retained);
+
+		// Once anything has spilled, newer messages must follow it to disk
+		boolean spilling = spill != null && spill.count() > 0;
+		if (!closed && !spilling && size < ring.length && bytes + payload.length <= maxBytes) {
+			ring[(head + size) % ring.length] = msg;
+			size++;
+			bytes += payload.length;
+			return true;
+		}
+		if (spill != null && spill.append(msg)) {
+			return true;
+		}
+
+		dropped++;
+		if (policies[qos] == POLICY_REJECT)
+			throw new MQTTException("Offline queue is " + (closed ? "closed" : "full") 
+					+ ", message to " + topic + " rejected");
+		return false;
+	}
+
+	/**
+	 * Moves up to max of the oldest messages into messages.
+	 * @return the number of messages moved
+	 */
+	public synchronized int drainTo(List<MQTTPublication> messages, int max) {
+		int n = 0;
+		while (n < max) {
+			MQTTMessage msg;
+			if (size > 0) {
+				msg = ring[head];
+				ring[head] = null;
+				head = (head + 1) % ring.length;
+				size--;
+				bytes -= msg.getMsg().length;
+			} else if (spill != null && spill.count() > 0) {
+				msg = spill.poll();
+			} else {
+				break;
+			}
+			messages.add(new MQTTPublication(msg.getTopic(), msg.getMsg(), msg.getQos(), msg.isRetained()));
+			n++;
+		}
+		return n;
+	}
+
+	public synchronized int size() {
+		return size + (spill != null ? spill.count() : 0);
+	}
+
+	public synchronized boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the number of messages dropped or rejected because the queue was full
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Discards the queued messages and unmaps and deletes the spill file.
+	 * Messages offered afterwards are dropped or rejected by the policy
+	 * of their QoS.
+	 */
+	public synchronized void close() {
+		closed = true;
+		Arrays.fill(ring, null);
+		head = 0;
+		size = 0;
+		bytes = 0;
+		if (spill != null) {
+			spill.close();
+		}
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+}
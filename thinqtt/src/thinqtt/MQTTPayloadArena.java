@@ -0,0 +1,207 @@
+package thinqtt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap storage for the payloads of in-flight messages.
+ *
+ * Memory is taken from the OS in direct ByteBuffer slabs. Each slab is
+ * cut into chunks of one power-of-two size class, from 64 bytes up to
+ * the slab size, and a payload takes the smallest chunk that holds it.
+ * Freed chunks go on a free list for their size class and are reused
+ * before any new slab is allocated, so a steady in-flight window settles
+ * on a fixed set of slabs that the garbage collector never has to copy.
+ *
+ * A chunk is referred to by a long handle that carries a generation
+ * count, so reading through the handle of a chunk that has since been
+ * freed returns null rather than another message's payload.
+ */
+public class MQTTPayloadArena {
+
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	private static final int MIN_CHUNK_SHIFT = 6;
+	// Keeps handles positive, so -1 is never one
+	private static final int MAX_SLABS = 1 << 19;
+	private static final int MAX_CHUNKS = 1 << 20;
+	private static final long CHUNK_MASK = 0xFFFFFL;
+	private static final long GENERATION_MASK = 0xFFFFFFL;
+
+	private static class Slab {
+		final int index;
+		final ByteBuffer buffer;
+		final SizeClass sizeClass;
+		final int[] generations;
+		int carved = 0;
+
+		Slab(int index, ByteBuffer buffer, SizeClass sizeClass) {
+			this.index = index;
+			this.buffer = buffer;
+			this.sizeClass = sizeClass;
+			this.generations = new int[buffer.capacity() / sizeClass.chunkSize];
+		}
+	}
+
+	private static class SizeClass {
+		final int chunkSize;
+		long[] free = new long[16];
+		int freeCount = 0;
+		// The slab new chunks are carved from, once the free list is empty
+		Slab current;
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+	}
+
+	private final int slabSize;
+	private final long maxBytes;
+	private final SizeClass[] classes;
+	// Replaced, never changed, as slabs are added, so it can be read without a lock
+	private volatile Slab[] slabs = new Slab[0];
+	private long reserved = 0;
+	private final AtomicLong used = new AtomicLong(0);
+
+	/**
+	 * @param slabSize the size of each direct buffer, a power of two from
+	 * 64 bytes to 64MB, and the largest payload held off the heap
+	 * @param maxBytes the most memory to allocate in slabs
+	 */
+	public MQTTPayloadArena(int slabSize, long maxBytes) {
+		if (slabSize < (1 << MIN_CHUNK_SHIFT) || slabSize > (MAX_CHUNKS << MIN_CHUNK_SHIFT) 
+				|| Integer.bitCount(slabSize) != 1)
+			throw new IllegalArgumentException("Slab size must be a power of two from 64 bytes to 64MB.");
+		this.slabSize = slabSize;
+		this.maxBytes = maxBytes;
+		int n = Integer.numberOfTrailingZeros(slabSize) - MIN_CHUNK_SHIFT + 1;
+		classes = new SizeClass[n];
+		for (int i = 0; i < n; i++) {
+			classes[i] = new SizeClass(1 << (MIN_CHUNK_SHIFT + i));
+		}
+	}
+
+	/**
+	 * Copies payload into the arena.
+	 * @return the handle of its chunk, or -1 if it is larger than a slab
+	 * or the arena is full, in which case the caller keeps it on the heap
+	 */
+	public long allocate(byte[] payload) {
+		if (payload.length > slabSize) {
+			return -1;
+		}
+		SizeClass sc = classes[classOf(payload.length)];
+		long handle;
+		Slab slab;
+		synchronized (sc) {
+			if (sc.freeCount > 0) {
+				handle = sc.free[--sc.freeCount];
+				slab = slab(handle);
+			} else {
+				if (sc.current == null || sc.current.carved == sc.current.generations.length) {
+					sc.current = newSlab(sc);
+					if (sc.current == null) {
+						return -1;
+					}
+				}
+				slab = sc.current;
+				handle = handle(slab.index, slab.carved++, 0);
+			}
+			ByteBuffer dst = slab.buffer.duplicate();
+			dst.position(chunk(handle) * sc.chunkSize);
+			dst.put(payload);
+		}
+		used.addAndGet(sc.chunkSize);
+		return handle;
+	}
+
+	/**
+	 * @return a copy of the length bytes held at handle, or null if the
+	 * chunk has been freed since
+	 */
+	public byte[] read(long handle, int length) {
+		Slab slab = slab(handle);
+		synchronized (slab.sizeClass) {
+			int chunk = chunk(handle);
+			if (slab.generations[chunk] != generation(handle)) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			ByteBuffer src = slab.buffer.duplicate();
+			src.position(chunk * slab.sizeClass.chunkSize);
+			src.get(payload);
+			return payload;
+		}
+	}
+
+	/**
+	 * Returns a chunk for reuse. Freeing a handle twice has no effect.
+	 */
+	public void free(long handle) {
+		Slab slab = slab(handle);
+		SizeClass sc = slab.sizeClass;
+		synchronized (sc) {
+			int chunk = chunk(handle);
+			if (slab.generations[chunk] != generation(handle)) {
+				return;
+			}
+			int generation = (int) ((slab.generations[chunk] + 1) & GENERATION_MASK);
+			slab.generations[chunk] = generation;
+			if (sc.freeCount == sc.free.length) {
+				long[] free = new long[sc.free.length * 2];
+				System.arraycopy(sc.free, 0, free, 0, sc.freeCount);
+				sc.free = free;
+			}
+			sc.free[sc.freeCount++] = handle(slab.index, chunk, generation);
+		}
+		used.addAndGet(-sc.chunkSize);
+	}
+
+	/**
+	 * @return the bytes of direct memory allocated in slabs
+	 */
+	public synchronized long getReservedBytes() {
+		return reserved;
+	}
+
+	/**
+	 * @return the bytes of the chunks holding payloads
+	 */
+	public long getUsedBytes() {
+		return used.get();
+	}
+
+	private synchronized Slab newSlab(SizeClass sc) {
+		if (reserved + slabSize > maxBytes || slabs.length == MAX_SLABS) {
+			return null;
+		}
+		Slab slab = new Slab(slabs.length, ByteBuffer.allocateDirect(slabSize), sc);
+		Slab[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+		grown[slab.index] = slab;
+		slabs = grown;
+		reserved += slabSize;
+		return slab;
+	}
+
+	private Slab slab(long handle) {
+		return slabs[(int) (handle >>> 44)];
+	}
+
+	private static long handle(int slab, int chunk, int generation) {
+		return ((long) slab << 44) | ((long) chunk << 24) | generation;
+	}
+
+	private static int chunk(long handle) {
+		return (int) ((handle >>> 24) & CHUNK_MASK);
+	}
+
+	private static int generation(long handle) {
+		return (int) (handle & GENERATION_MASK);
+	}
+
+	private static int classOf(int length) {
+		int shift = length <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+		return Math.max(0, shift - MIN_CHUNK_SHIFT);
+	}
+}
@@ -0,0 +1,30 @@
+package thinqtt;
+
+/**
+ * Service provider interface for payload compression algorithms
+ * used by an MQTTCodecPipeline.
+ *
+ * Implementations are shared between threads and are expected to keep
+ * any compressor state in per-thread, reusable instances.
+ */
+public interface MQTTPayloadCodec {
+
+	/**
+	 * @return an identifier from 1 to 255, written into the payload
+	 * marker so that receivers can pick the matching codec.
+	 */
+	public int getId();
+
+	/**
+	 * Compresses payload into a new array that starts with headerLength
+	 * unused bytes, for the caller to fill in. Returns null if the
+	 * compressed form would not be smaller than the original.
+	 */
+	public byte[] encode(byte[] payload, int headerLength);
+
+	/**
+	 * Decompresses buf[offset, offset+length) into a new array of
+	 * exactly originalLength bytes.
+	 */
+	public byte[] decode(byte[] buf, int offset, int length, int originalLength);
+}
@@ -0,0 +1,385 @@
+package thinqtt;
+
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+
+/**
+ * A read-only view over an MQTT 5 property block.
+ *
+ * The properties are left as an undecoded slice of the frame buffer.
+ * Individual properties are only located (and Strings only created)
+ * when a caller asks for them, so consumers that never look at the
+ * properties pay nothing more than skipping the block. Wrapping a block
+ * walks it once to check that every property lies within it, so that
+ * nothing read later can run past its end.
+ */
+public class MQTTProperties {
+
+	public static final int PAYLOAD_FORMAT_INDICATOR			= 0x01;
+	public static final int MESSAGE_EXPIRY_INTERVAL				= 0x02;
+	public static final int CONTENT_TYPE						= 0x03;
+	public static final int RESPONSE_TOPIC						= 0x08;
+	public static final int CORRELATION_DATA					= 0x09;
+	public static final int SUBSCRIPTION_IDENTIFIER				= 0x0B;
+	public static final int SESSION_EXPIRY_INTERVAL				= 0x11;
+	public static final int ASSIGNED_CLIENT_IDENTIFIER			= 0x12;
+	public static final int SERVER_KEEP_ALIVE					= 0x13;
+	public static final int AUTHENTICATION_METHOD				= 0x15;
+	public static final int AUTHENTICATION_DATA					= 0x16;
+	public static final int REQUEST_PROBLEM_INFORMATION			= 0x17;
+	public static final int WILL_DELAY_INTERVAL					= 0x18;
+	public static final int REQUEST_RESPONSE_INFORMATION		= 0x19;
+	public static final int RESPONSE_INFORMATION				= 0x1A;
+	public static final int SERVER_REFERENCE					= 0x1C;
+	public static final int REASON_STRING						= 0x1F;
+	public static final int RECEIVE_MAXIMUM						= 0x21;
+	public static final int TOPIC_ALIAS_MAXIMUM					= 0x22;
+	public static final int TOPIC_ALIAS							= 0x23;
+	public static final int MAXIMUM_QOS							= 0x24;
+	public static final int RETAIN_AVAILABLE					= 0x25;
+	public static final int USER_PROPERTY						= 0x26;
+	public static final int MAXIMUM_PACKET_SIZE					= 0x27;
+	public static final int WILDCARD_SUBSCRIPTION_AVAILABLE		= 0x28;
+	public static final int SUBSCRIPTION_IDENTIFIER_AVAILABLE	= 0x29;
+	public static final int SHARED_SUBSCRIPTION_AVAILABLE		= 0x2A;
+
+	// Wire types of the property values
+	static final int TYPE_UNKNOWN	= 0;
+	static final int TYPE_BYTE 		= 1;
+	static final int TYPE_SHORT		= 2;
+	static final int TYPE_INT 		= 3;
+	static final int TYPE_VARINT	= 4;
+	static final int TYPE_UTF8 		= 5;
+	static final int TYPE_BINARY	= 6;
+	static final int TYPE_PAIR 		= 7;
+
+	private static final byte[] TYPES = new byte[SHARED_SUBSCRIPTION_AVAILABLE + 1];
+	static {
+		TYPES[PAYLOAD_FORMAT_INDICATOR] 			= TYPE_BYTE;
+		TYPES[MESSAGE_EXPIRY_INTERVAL] 				= TYPE_INT;
+		TYPES[CONTENT_TYPE] 						= TYPE_UTF8;
+		TYPES[RESPONSE_TOPIC] 						= TYPE_UTF8;
+		TYPES[CORRELATION_DATA] 					= TYPE_BINARY;
+		TYPES[SUBSCRIPTION_IDENTIFIER] 				= TYPE_VARINT;
+		TYPES[SESSION_EXPIRY_INTERVAL] 				= TYPE_INT;
+		TYPES[ASSIGNED_CLIENT_IDENTIFIER] 			= TYPE_UTF8;
+		TYPES[SERVER_KEEP_ALIVE] 					= TYPE_SHORT;
+		TYPES[AUTHENTICATION_METHOD] 				= TYPE_UTF8;
+		TYPES[AUTHENTICATION_DATA] 					= TYPE_BINARY;
+		TYPES[REQUEST_PROBLEM_INFORMATION] 			= TYPE_BYTE;
+		TYPES[WILL_DELAY_INTERVAL] 					= TYPE_INT;
+		TYPES[REQUEST_RESPONSE_INFORMATION] 		= TYPE_BYTE;
+		TYPES[RESPONSE_INFORMATION] 				= TYPE_UTF8;
+		TYPES[SERVER_REFERENCE] 					= TYPE_UTF8;
+		TYPES[REASON_STRING] 						= TYPE_UTF8;
+		TYPES[RECEIVE_MAXIMUM] 						= TYPE_SHORT;
+		TYPES[TOPIC_ALIAS_MAXIMUM] 					= TYPE_SHORT;
+		TYPES[TOPIC_ALIAS] 							= TYPE_SHORT;
+		TYPES[MAXIMUM_QOS] 							= TYPE_BYTE;
+		TYPES[RETAIN_AVAILABLE] 					= TYPE_BYTE;
+		TYPES[USER_PROPERTY] 						= TYPE_PAIR;
+		TYPES[MAXIMUM_PACKET_SIZE] 					= TYPE_INT;
+		TYPES[WILDCARD_SUBSCRIPTION_AVAILABLE] 		= TYPE_BYTE;
+		TYPES[SUBSCRIPTION_IDENTIFIER_AVAILABLE] 	= TYPE_BYTE;
+		TYPES[SHARED_SUBSCRIPTION_AVAILABLE] 		= TYPE_BYTE;
+	}
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final MQTTProperties EMPTY = new MQTTProperties(new byte[1], 0, 1, 0);
+
+	/**
+	 * Receives each raw property in a block without any decoding.
+	 * The value is the slice buf[offset, offset+length), which for
+	 * strings and binary data excludes the 2-byte length prefix.
+	 * For user properties the slice covers both prefixed strings.
+	 */
+	public interface Visitor {
+		public void property(int id, byte[] buf, int offset, int length);
+	}
+
+	private final byte[] buf;
+	private final int start;		// first byte of the property data
+	private final int end;			// one past the last byte of the property data
+	private final int encodedLength;	// length varint + property data
+
+	private MQTTProperties(byte[] buf, int start, int encodedLength, int dataLength) {
+		this.buf = buf;
+		this.start = start + encodedLength - dataLength;
+		this.end = this.start + dataLength;
+		this.encodedLength = encodedLength;
+	}
+
+	/**
+	 * Wraps the property block that starts (with its length varint) at
+	 * buf[offset]. Nothing is copied and no property is decoded.
+	 * @throws ProtocolException if the block is malformed
+	 */
+	public static MQTTProperties wrap(byte[] buf, int offset) throws ProtocolException {
+		return wrap(buf, offset, buf.length);
+	}
+
+	/**
+	 * Wraps the property block that starts at buf[offset] and must end
+	 * by buf[limit], e.g. the end of the packet it is in.
+	 * @throws ProtocolException if the block is malformed or runs past limit
+	 */
+	public static MQTTProperties wrap(byte[] buf, int offset, int limit) throws ProtocolException {
+		if (offset >= limit)
+			throw new ProtocolException("Property block overruns packet");
+		int dataLength = readMinimalVarInt(buf, offset, limit);
+		int encodedLength = varIntSize(dataLength) + dataLength;
+		if (encodedLength > limit - offset)
+			throw new ProtocolException("Property block overruns packet");
+		MQTTProperties props = new MQTTProperties(buf, offset, encodedLength, dataLength);
+		props.check();
+		return props;
+	}
+
+	/**
+	 * Walks the block without decoding any value, so that the accessors
+	 * can trust every identifier and length in it.
+	 */
+	private void check() throws ProtocolException {
+		int pos = start;
+		while (pos < end) {
+			int id = buf[pos++] & 0xFF;
+			if (typeOf(id) == TYPE_UNKNOWN)
+				throw new ProtocolException("Unknown property identifier: " + id);
+			if (typeOf(id) == TYPE_VARINT) {
+				// Skipping assumes the value takes as few bytes as it can
+				readMinimalVarInt(buf, pos, end);
+			}
+			pos = skipValue(id, pos);
+			if (pos < 0)
+				throw new ProtocolException("Property " + id + " overruns property block");
+		}
+	}
+
+	/**
+	 * @return the number of bytes the block occupies in the packet,
+	 * including the length prefix. Decoders add this to skip over it.
+	 */
+	public int encodedLength() {
+		return encodedLength;
+	}
+
+	public boolean isEmpty() {
+		return start == end;
+	}
+
+	/**
+	 * @return a copy of the block that does not share the buffer it was
+	 * read from, to keep once that buffer is reused
+	 */
+	public MQTTProperties copy() {
+		int blockStart = start - varIntSize(end - start);
+		byte[] copy = new byte[end - blockStart];
+		System.arraycopy(buf, blockStart, copy, 0, copy.length);
+		return new MQTTProperties(copy, 0, encodedLength, end - start);
+	}
+
+	public boolean contains(int id) {
+		return indexOf(id, start) >= 0;
+	}
+
+	/**
+	 * @return the value of a byte, two-byte, four-byte or variable byte
+	 * integer property, or defaultValue if it is absent.
+	 */
+	public long getInt(int id, long defaultValue) {
+		int pos = indexOf(id, start);
+		if (pos < 0) return defaultValue;
+
+		switch (typeOf(id)) {
+		case TYPE_BYTE:
+			return buf[pos] & 0xFF;
+		case TYPE_SHORT:
+			return readShort(buf, pos);
+		case TYPE_INT:
+			return ((long) readShort(buf, pos) << 16) | readShort(buf, pos + 2);
+		case TYPE_VARINT:
+			return readVarInt(buf, pos);
+		default:
+			throw new MQTTException("Property " + id + " is not an integer");
+		}
+	}
+
+	/**
+	 * @return the decoded UTF-8 String property, or null if absent.
+	 * This is the only point at which a String is created.
+	 */
+	public String getString(int id) {
+		int pos = indexOf(id, start);
+		if (pos < 0) return null;
+		if (typeOf(id) != TYPE_UTF8)
+			throw new MQTTException("Property " + id + " is not a string");
+		return new String(buf, pos + 2, readShort(buf, pos), UTF8);
+	}
+
+	/**
+	 * @return a copy of the binary property, or null if absent.
+	 */
+	public byte[] getBinary(int id) {
+		int pos = indexOf(id, start);
+		if (pos < 0) return null;
+		if (typeOf(id) != TYPE_BINARY)
+			throw new MQTTException("Property " + id + " is not binary data");
+		byte[] result = new byte[readShort(buf, pos)];
+		System.arraycopy(buf, pos + 2, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * @return the value of the first user property named key, or null.
+	 * Names are compared against the undecoded bytes.
+	 */
+	public String getUserProperty(String key) {
+		int pos = indexOf(USER_PROPERTY, start);
+		while (pos >= 0) {
+			int keyLen = readShort(buf, pos);
+			if (utf8Equals(buf, pos + 2, keyLen, key)) {
+				int valuePos = pos + 2 + keyLen;
+				return new String(buf, valuePos + 2, readShort(buf, valuePos), UTF8);
+			}
+			pos = indexOf(USER_PROPERTY, skipValue(USER_PROPERTY, pos));
+		}
+		return null;
+	}
+
+	/**
+	 * Passes every property to the visitor as a raw slice of the buffer.
+	 */
+	public void visit(Visitor visitor) {
+		int pos = start;
+		while (pos < end) {
+			int id = buf[pos++] & 0xFF;
+			int next = skipValue(id, pos);
+			switch (typeOf(id)) {
+			case TYPE_UTF8:
+			case TYPE_BINARY:
+				visitor.property(id, buf, pos + 2, next - pos - 2);
+				break;
+			default:
+				visitor.property(id, buf, pos, next - pos);
+			}
+			pos = next;
+		}
+	}
+
+	/**
+	 * @return the offset of the value of the first property with the
+	 * given id at or after pos, or -1 if there is none.
+	 */
+	private int indexOf(int id, int pos) {
+		while (pos < end) {
+			int current = buf[pos++] & 0xFF;
+			if (current == id) return pos;
+			pos = skipValue(current, pos);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the offset just past the value of property id at pos, or
+	 * -1 if it would run past the end of the block
+	 */
+	private int skipValue(int id, int pos) {
+		int next;
+		switch (typeOf(id)) {
+		case TYPE_BYTE:
+			next = pos + 1;
+			break;
+		case TYPE_SHORT:
+			next = pos + 2;
+			break;
+		case TYPE_INT:
+			next = pos + 4;
+			break;
+		case TYPE_VARINT:
+			try {
+				next = pos + varIntSize(readVarInt(buf, pos, end));
+			} catch (MQTTException e) {
+				return -1;
+			}
+			break;
+		case TYPE_UTF8:
+		case TYPE_BINARY:
+			next = pos + 2 > end ? -1 : pos + 2 + readShort(buf, pos);
+			break;
+		case TYPE_PAIR:
+			next = pos + 2 > end ? -1 : pos + 2 + readShort(buf, pos);
+			next = next < 0 || next + 2 > end ? -1 : next + 2 + readShort(buf, next);
+			break;
+		default:
+			throw new MQTTException("unknown property identifier: " + id);
+		}
+		return next > end ? -1 : next;
+	}
+
+	static int typeOf(int id) {
+		return id >= 0 && id < TYPES.length ? TYPES[id] : TYPE_UNKNOWN;
+	}
+
+	private static int readShort(byte[] buf, int pos) {
+		return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+	}
+
+	static int readVarInt(byte[] buf, int pos) throws MQTTException {
+		return readVarInt(buf, pos, buf.length);
+	}
+
+	/**
+	 * Same algorithm as the remaining length in MQTTDecoder.decode(), 
+	 * reading no further than buf[limit].
+	 */
+	static int readVarInt(byte[] buf, int pos, int limit) throws MQTTException {
+		int value = 0;
+		int multiplier = 1;
+		int digit;
+		do {
+			if (pos >= limit || multiplier > 128 * 128 * 128)
+				throw new MQTTException("Malformed variable byte integer");
+			digit = buf[pos++];
+			value += (digit & 0x007F) * multiplier;
+			multiplier *= 128;
+		} while ((digit & 0x0080) != 0);
+		return value;
+	}
+
+	/**
+	 * As readVarInt(), but rejects a value encoded in more bytes than it
+	 * needs, which the spec forbids and which varIntSize() would misjudge.
+	 */
+	static int readMinimalVarInt(byte[] buf, int pos, int limit) throws ProtocolException {
+		int value;
+		try {
+			value = readVarInt(buf, pos, limit);
+		} catch (MQTTException e) {
+			throw new ProtocolException(e.getMessage());
+		}
+		if ((buf[pos + varIntSize(value) - 1] & 0x80) != 0)
+			throw new ProtocolException("Variable byte integer is not minimally encoded");
+		return value;
+	}
+
+	static int varIntSize(int value) {
+		return value < 0x80 ? 1 : value < 0x4000 ? 2 : value < 0x200000 ? 3 : 4;
+	}
+
+	/**
+	 * Compares UTF-8 bytes with a String without decoding the bytes,
+	 * falling back to a decode only for non-ASCII input.
+	 */
+	static boolean utf8Equals(byte[] buf, int offset, int length, String s) {
+		if (length != s.length()) {
+			return length > s.length() && new String(buf, offset, length, UTF8).equals(s);
+		}
+		for (int i = 0; i < length; i++) {
+			int b = buf[offset + i];
+			if (b < 0) return new String(buf, offset, length, UTF8).equals(s);
+			if (b != s.charAt(i)) return false;
+		}
+		return true;
+	}
+}
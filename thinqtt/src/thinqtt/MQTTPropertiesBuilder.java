@@ -0,0 +1,165 @@
+package thinqtt;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Builds an MQTT 5 property block for the encoder.
+ *
+ * A builder owns a growable buffer that is kept across reset() calls,
+ * so a single instance can be reused for every packet written on a
+ * connection without allocating.
+ */
+public class MQTTPropertiesBuilder {
+
+	private byte[] buf;
+	private int size;
+
+	public MQTTPropertiesBuilder() {
+		this(64);
+	}
+
+	public MQTTPropertiesBuilder(int initialCapacity) {
+		buf = new byte[Math.max(initialCapacity, 8)];
+	}
+
+	public MQTTPropertiesBuilder reset() {
+		size = 0;
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Adds a byte, two-byte, four-byte or variable byte integer property.
+	 */
+	public MQTTPropertiesBuilder add(int id, long value) {
+		switch (MQTTProperties.typeOf(id)) {
+		case MQTTProperties.TYPE_BYTE:
+			ensure(2);
+			buf[size++] = (byte) id;
+			buf[size++] = (byte) value;
+			break;
+		case MQTTProperties.TYPE_SHORT:
+			ensure(3);
+			buf[size++] = (byte) id;
+			putShort((int) value);
+			break;
+		case MQTTProperties.TYPE_INT:
+			ensure(5);
+			buf[size++] = (byte) id;
+			putShort((int) (value >>> 16));
+			putShort((int) value);
+			break;
+		case MQTTProperties.TYPE_VARINT:
+			ensure(5);
+			buf[size++] = (byte) id;
+			putVarInt((int) value);
+			break;
+		default:
+			throw new MQTTException("Property " + id + " is not an integer");
+		}
+		return this;
+	}
+
+	public MQTTPropertiesBuilder add(int id, String value) {
+		if (MQTTProperties.typeOf(id) != MQTTProperties.TYPE_UTF8)
+			throw new MQTTException("Property " + id + " is not a string");
+		ensure(1);
+		buf[size++] = (byte) id;
+		putUTF(value);
+		return this;
+	}
+
+	public MQTTPropertiesBuilder add(int id, byte[] value) {
+		if (MQTTProperties.typeOf(id) != MQTTProperties.TYPE_BINARY)
+			throw new MQTTException("Property " + id + " is not binary data");
+		ensure(3 + value.length);
+		buf[size++] = (byte) id;
+		putShort(value.length);
+		System.arraycopy(value, 0, buf, size, value.length);
+		size += value.length;
+		return this;
+	}
+
+	public MQTTPropertiesBuilder addUserProperty(String key, String value) {
+		ensure(1);
+		buf[size++] = (byte) MQTTProperties.USER_PROPERTY;
+		putUTF(key);
+		putUTF(value);
+		return this;
+	}
+
+	/**
+	 * @return the number of bytes writeTo() will produce.
+	 */
+	public int encodedLength() {
+		return MQTTProperties.varIntSize(size) + size;
+	}
+
+	/**
+	 * Writes the length prefix followed by the properties.
+	 */
+	public void writeTo(DataOutputStream dos) throws IOException {
+		MQTTEncoder.writeRemainingLength(dos, size);
+		dos.write(buf, 0, size);
+	}
+
+	/**
+	 * @return what writeTo() writes, for encoders that build frames in arrays
+	 */
+	public byte[] toByteArray() {
+		byte[] block = new byte[encodedLength()];
+		int pos = MQTTEncoder.putRemainingLength(block, 0, size);
+		System.arraycopy(buf, 0, block, pos, size);
+		return block;
+	}
+
+	private void putShort(int value) {
+		buf[size++] = (byte) (value >> 8);
+		buf[size++] = (byte) value;
+	}
+
+	private void putVarInt(int value) {
+		do {
+			int digit = value % 128;
+			value /= 128;
+			if (value > 0) {
+				digit |= 0x0080;
+			}
+			buf[size++] = (byte) digit;
+		} while (value > 0);
+	}
+
+	private void putUTF(String s) {
+		// Worst case of 3 bytes per char
+		ensure(2 + s.length() * 3);
+		int lenPos = size;
+		size += 2;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buf[size++] = (byte) c;
+			} else {
+				byte[] encoded = s.substring(i).getBytes(MQTTProperties.UTF8);
+				System.arraycopy(encoded, 0, buf, size, encoded.length);
+				size += encoded.length;
+				break;
+			}
+		}
+		int len = size - lenPos - 2;
+		if (len > 0xFFFF)
+			throw new MQTTException("String property longer than 65535 bytes");
+		buf[lenPos] = (byte) (len >> 8);
+		buf[lenPos + 1] = (byte) len;
+	}
+
+	private void ensure(int extra) {
+		if (size + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+		}
+	}
+}
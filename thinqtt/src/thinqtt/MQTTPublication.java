@@ -0,0 +1,41 @@
+package thinqtt;
+
+/**
+ * A message's topic, payload, QoS and retain flag, as passed to 
+ * MQTTClient.publishBatch() or delivered by an MQTTFlowPublisher.
+ */
+public class MQTTPublication {
+	private final String topic;
+	private final byte[] payload;
+	private final int qos;
+	private final boolean retained;
+
+	public MQTTPublication(String topic, byte[] payload, int qos, boolean retained) {
+		if (qos < 0 || qos > 2)
+			throw new IllegalArgumentException(MQTTClient.MQTT_INVALID_QOS + qos);
+		this.topic = topic;
+		this.payload = payload;
+		this.qos = qos;
+		this.retained = retained;
+	}
+
+	public MQTTPublication(String topic, byte[] payload, int qos) {
+		this(topic, payload, qos, false);
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	public int getQos() {
+		return qos;
+	}
+
+	public boolean isRetained() {
+		return retained;
+	}
+}
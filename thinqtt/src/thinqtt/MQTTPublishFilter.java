@@ -0,0 +1,21 @@
+package thinqtt;
+
+/**
+ * Decides from its headers alone whether an inbound PUBLISH is wanted.
+ *
+ * The filter runs on the thread reading the connection, in arrival
+ * order, before the payload has been read. A rejected message's payload
+ * is skipped over without being allocated, and the message is still
+ * acknowledged to the broker but never delivered.
+ */
+public interface MQTTPublishFilter {
+
+	/**
+	 * @param fixedHeader the first byte of the frame, holding the DUP, 
+	 * QoS and RETAIN flags
+	 * @param topic holds the UTF-8 topic name at topic[topicOffset, 
+	 * topicOffset + topicLength); the array is reused after this returns
+	 * @return true to read and deliver the message, false to skip it
+	 */
+	public boolean accept(int fixedHeader, byte[] topic, int topicOffset, int topicLength, int payloadLength);
+}
@@ -0,0 +1,67 @@
+package thinqtt;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before each reconnection attempt.
+ *
+ * The first attempt after a connection is lost is made immediately.
+ * Later attempts use "decorrelated jitter" exponential backoff:
+ * <pre>
+ *   delay = min(max, random(base, previousDelay * 3))
+ * </pre>
+ * so that clients dropped by the same broker restart spread their
+ * retries out instead of reconnecting in lockstep.
+ */
+public class MQTTReconnectController {
+
+	private final Random random;
+	private long base;
+	private long max;
+	private long previousDelay;
+	private int attempts;
+
+	public MQTTReconnectController(long baseMillis, long maxMillis) {
+		this(baseMillis, maxMillis, new Random());
+	}
+
+	MQTTReconnectController(long baseMillis, long maxMillis, Random random) {
+		this.random = random;
+		configure(baseMillis, maxMillis);
+		reset();
+	}
+
+	/**
+	 * Changes the backoff bounds without resetting the attempt count.
+	 */
+	public synchronized void configure(long baseMillis, long maxMillis) {
+		if (baseMillis <= 0 || maxMillis < baseMillis)
+			throw new IllegalArgumentException("Reconnect interval must be positive and no more than the maximum.");
+		this.base = baseMillis;
+		this.max = maxMillis;
+	}
+
+	/**
+	 * @return the delay in milliseconds before the next attempt
+	 */
+	public synchronized long nextDelay() {
+		if (attempts++ == 0) {
+			return 0L;
+		}
+		long upper = Math.max(base + 1, Math.min(max, previousDelay * 3));
+		previousDelay = Math.min(max, base + (long) (random.nextDouble() * (upper - base)));
+		return previousDelay;
+	}
+
+	/**
+	 * Called once a connection has been accepted by the server.
+	 */
+	public synchronized void reset() {
+		attempts = 0;
+		previousDelay = base;
+	}
+
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+}
@@ -0,0 +1,113 @@
+package thinqtt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last retained message received for each topic, so that
+ * last-known values can be looked up locally.
+ *
+ * Entries are kept in least recently used order and the oldest are
+ * evicted once there are more than maxEntries of them or their payloads
+ * add up to more than maxBytes. A retained message with an empty payload
+ * clears its topic, as it does on the broker.
+ */
+public class MQTTRetainedCache {
+
+	private final int maxEntries;
+	private final long maxBytes;
+	// Access ordered, so iteration starts at the least recently used
+	private final LinkedHashMap<String, MQTTPublication> entries =
+			new LinkedHashMap<String, MQTTPublication>(16, 0.75f, true);
+	private long bytes = 0;
+	private long evictions = 0;
+
+	public MQTTRetainedCache(int maxEntries, long maxBytes) {
+		if (maxEntries <= 0 || maxBytes <= 0)
+			throw new IllegalArgumentException("Retained cache limits must be positive.");
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Records a retained message, or clears the topic if payload is empty.
+	 */
+	public synchronized void update(String topic, byte[] payload, int qos) {
+		MQTTPublication old;
+		if (payload == null || payload.length == 0) {
+			old = entries.remove(topic);
+		} else if (payload.length > maxBytes) {
+			// Would only evict everything else and then itself
+			old = entries.remove(topic);
+		} else {
+			old = entries.put(topic, new MQTTPublication(topic, payload, qos, true));
+			bytes += payload.length;
+		}
+		if (old != null) {
+			bytes -= old.getPayload().length;
+		}
+		evict();
+	}
+
+	/**
+	 * @return the last retained message for topic, or null if there is
+	 * none in the cache
+	 */
+	public synchronized MQTTPublication get(String topic) {
+		return entries.get(topic);
+	}
+
+	/**
+	 * @return the cached retained messages whose topics match a filter
+	 * that may contain wildcards, least recently used first
+	 */
+	public synchronized List<MQTTPublication> query(String topicFilter) {
+		MQTTTopic.validateFilter(topicFilter);
+		List<MQTTPublication> result = new ArrayList<MQTTPublication>();
+		if (!MQTTTopic.isWildcard(topicFilter)) {
+			MQTTPublication pub = entries.get(topicFilter);
+			if (pub != null) {
+				result.add(pub);
+			}
+			return result;
+		}
+		for (MQTTPublication pub : entries.values()) {
+			if (MQTTTopic.matches(topicFilter, pub.getTopic())) {
+				result.add(pub);
+			}
+		}
+		return result;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the total size of the cached payloads
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, MQTTPublication>> it = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+			bytes -= it.next().getValue().getPayload().length;
+			it.remove();
+			evictions++;
+		}
+	}
+}
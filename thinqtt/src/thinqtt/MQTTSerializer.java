@@ -0,0 +1,16 @@
+package thinqtt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a value as a PUBLISH payload.
+ */
+public interface MQTTSerializer<T> {
+
+	/**
+	 * Writes value to out, which is the client's outbound frame buffer.
+	 * out must not be kept, or closed, once this returns.
+	 */
+	public void serialize(T value, OutputStream out) throws IOException;
+}
@@ -0,0 +1,164 @@
+package thinqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A fixed-size, memory-mapped file that holds PUBLISH messages in FIFO
+ * order once the in-memory part of an MQTTOfflineQueue is full.
+ *
+ * Each record is laid out as
+ * <pre>
+ *   recordLength(int) flags(byte) topicLength(short) topic payload
+ * </pre>
+ * The segment is used as a ring. Records are appended until one does
+ * not fit before the end, which then goes to the front if the records
+ * there have been read back, so space is reused without waiting for
+ * the segment to drain. The contents are not meant to survive a
+ * restart of the JVM, and close() unmaps and deletes the file.
+ */
+class MQTTSpillSegment {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int RECORD_HEADER = 4 + 1 + 2;
+
+	private final File file;
+	private MappedByteBuffer buf;
+	private int readPos = 0;
+	private int writePos = 0;
+	// Where the records before the front ones end, once writing has wrapped
+	private int wrapPos = -1;
+	private int count = 0;
+
+	MQTTSpillSegment(File file, int size) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return false if the message does not fit in the remaining space
+	 */
+	boolean append(MQTTMessage msg) {
+		byte[] topic = msg.getTopic().getBytes(UTF8);
+		byte[] payload = msg.getMsg();
+		int length = RECORD_HEADER + topic.length + payload.length;
+		if (buf == null) {
+			return false;
+		}
+		if (wrapPos >= 0) {
+			if (writePos + length > readPos) {
+				return false;
+			}
+		} else if (writePos + length > buf.capacity()) {
+			if (length > readPos) {
+				return false;
+			}
+			wrapPos = writePos;
+			writePos = 0;
+		}
+
+		buf.position(writePos);
+		buf.putInt(length);
+		buf.put((byte) ((msg.getQos() << 1) | (msg.isRetained() ? 0x01 : 0x00)));
+		buf.putShort((short) topic.length);
+		buf.put(topic);
+		buf.put(payload);
+		writePos += length;
+		count++;
+		return true;
+	}
+
+	/**
+	 * @return the oldest message, or null if the segment is empty
+	 */
+	MQTTMessage poll() {
+		if (count == 0) {
+			return null;
+		}
+
+		buf.position(readPos);
+		int length = buf.getInt();
+		int flags = buf.get();
+		byte[] topic = new byte[buf.getShort() & 0xFFFF];
+		buf.get(topic);
+		byte[] payload = new byte[length - RECORD_HEADER - topic.length];
+		buf.get(payload);
+		readPos += length;
+		if (readPos == wrapPos) {
+			readPos = 0;
+			wrapPos = -1;
+		}
+
+		if (--count == 0) {
+			readPos = 0;
+			writePos = 0;
+			wrapPos = -1;
+		}
+		return new MQTTMessage(MQTTMessage.PUBLISH, 0, (flags & 0x06) >> 1,
+				new String(topic, UTF8), payload, (flags & 0x01) != 0);
+	}
+
+	int count() {
+		return count;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Discards any records, unmaps the segment and deletes its file.
+	 */
+	void close() {
+		if (buf == null) {
+			return;
+		}
+		MappedByteBuffer mapped = buf;
+		buf = null;
+		count = 0;
+		unmap(mapped);
+		if (!file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Releases a mapping now rather than when the buffer is collected,
+	 * which is what lets its file be deleted on every platform. Falls 
+	 * back to waiting for collection where neither way is available.
+	 */
+	private static void unmap(MappedByteBuffer mapped) {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(field.get(null), mapped);
+		} catch (NoSuchMethodException e) {
+			try {
+				// Java 7 and 8
+				Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(mapped);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			} catch (Exception e2) {
+			}
+		} catch (Exception e) {
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package thinqtt;
+
+/**
+ * Receives PUBLISH payloads above the client's streamingThreshold as a 
+ * sequence of chunks while they are read off the socket, so that very 
+ * large messages are handled in constant memory.
+ */
+public interface MQTTStreamCallback {
+
+	/**
+	 * Called on the reader thread for each chunk in order. The chunk
+	 * buffer is reused for the next chunk once this method returns.
+	 * @param offset the position of this chunk within the payload
+	 * @param totalLength the full payload length; the chunk with 
+	 * offset + length == totalLength is the last one
+	 */
+	public void chunkArrived(String topic, byte[] chunk, int length, long offset, long totalLength);
+}
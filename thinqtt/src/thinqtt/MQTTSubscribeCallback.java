@@ -0,0 +1,25 @@
+package thinqtt;
+
+/**
+ * Receives the outcome of a bulk subscribe or unsubscribe, once for
+ * each SUBSCRIBE or UNSUBSCRIBE packet its topic filters were packed into.
+ */
+public interface MQTTSubscribeCallback {
+
+	/**
+	 * The QoS the broker grants a filter it has refused.
+	 */
+	public static final int FAILURE = 0x80;
+
+	/**
+	 * Called when a SUBACK arrives.
+	 * @param grantedQos the QoS granted for the filter at the same index
+	 * of topicPatterns, or FAILURE
+	 */
+	public void subscribed(String[] topicPatterns, int[] grantedQos);
+
+	/**
+	 * Called when an UNSUBACK arrives.
+	 */
+	public void unsubscribed(String[] topicPatterns);
+}
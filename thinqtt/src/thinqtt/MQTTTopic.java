@@ -0,0 +1,110 @@
+package thinqtt;
+
+/**
+ * Topic filter helpers.
+ */
+public class MQTTTopic {
+
+	public static final String SHARE_PREFIX = "$share/";
+
+	/**
+	 * @return the topic filter for a shared subscription, e.g. 
+	 * "$share/group/sensors/#"
+	 * @throws IllegalArgumentException if the group name is not valid
+	 */
+	public static String shared(String group, String filter) {
+		if (group == null || group.length() == 0 || group.indexOf('/') >= 0 || isWildcard(group))
+			throw new IllegalArgumentException("Share name must be non-empty and cannot contain '/', '+' or '#'.");
+		return SHARE_PREFIX + group + "/" + filter;
+	}
+
+	public static boolean isShared(String filter) {
+		return filter.startsWith(SHARE_PREFIX);
+	}
+
+	/**
+	 * @return the share name of a shared subscription, or null
+	 */
+	public static String getShareGroup(String filter) {
+		int end = shareEnd(filter);
+		return end < 0 ? null : filter.substring(SHARE_PREFIX.length(), end);
+	}
+
+	/**
+	 * @return the topic filter without any "$share/group/" prefix
+	 */
+	public static String unshared(String filter) {
+		int end = shareEnd(filter);
+		return end < 0 ? filter : filter.substring(end + 1);
+	}
+
+	/**
+	 * Checks that a filter passed to subscribe() is well formed.
+	 * @throws IllegalArgumentException if it is not
+	 */
+	public static void validateFilter(String filter) {
+		if (filter == null || filter.length() == 0)
+			throw new IllegalArgumentException("Topic filter cannot be empty.");
+		if (isShared(filter)) {
+			int end = shareEnd(filter);
+			if (end < 0 || end == SHARE_PREFIX.length() || end == filter.length() - 1)
+				throw new IllegalArgumentException("Shared subscription must be $share/{ShareName}/{filter}: " + filter);
+			if (isWildcard(filter.substring(SHARE_PREFIX.length(), end)))
+				throw new IllegalArgumentException("Share name cannot contain wildcards: " + filter);
+		}
+		int hash = filter.indexOf('#');
+		if (hash >= 0 && (hash != filter.length() - 1 || (hash > 0 && filter.charAt(hash - 1) != '/')))
+			throw new IllegalArgumentException("'#' must be the last level of a topic filter: " + filter);
+		for (int plus = filter.indexOf('+'); plus >= 0; plus = filter.indexOf('+', plus + 1)) {
+			if ((plus > 0 && filter.charAt(plus - 1) != '/') 
+					|| (plus < filter.length() - 1 && filter.charAt(plus + 1) != '/'))
+				throw new IllegalArgumentException("'+' must be a whole level of a topic filter: " + filter);
+		}
+	}
+
+	private static int shareEnd(String filter) {
+		return isShared(filter) ? filter.indexOf('/', SHARE_PREFIX.length()) : -1;
+	}
+
+	/**
+	 * Matches a topic name against a topic filter that may contain the
+	 * '+' and '#' wildcards. Scans both Strings in place without
+	 * splitting them into levels.
+	 */
+	public static boolean matches(String filter, String topic) {
+		// A shared subscription receives messages for the filter after its share name
+		int f = shareEnd(filter) + 1, t = 0;
+		int flen = filter.length(), tlen = topic.length();
+
+		// Wildcards must not match topics beginning with '$'
+		if (tlen > 0 && topic.charAt(0) == '$' && flen > f
+				&& (filter.charAt(f) == '+' || filter.charAt(f) == '#')) {
+			return false;
+		}
+
+		while (f < flen) {
+			char c = filter.charAt(f);
+			if (c == '#') {
+				// Multi-level wildcard also matches the parent level
+				return true;
+			}
+			if (c == '+') {
+				while (t < tlen && topic.charAt(t) != '/') t++;
+				f++;
+			} else {
+				if (t >= tlen) {
+					// "a/b" matches "a/b/#"
+					return filter.regionMatches(f, "/#", 0, 2) && f + 2 == flen;
+				}
+				if (topic.charAt(t) != c) return false;
+				f++;
+				t++;
+			}
+		}
+		return t == tlen;
+	}
+
+	public static boolean isWildcard(String filter) {
+		return filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0;
+	}
+}
@@ -0,0 +1,11 @@
+package thinqtt;
+
+/**
+ * Receives the messages that match one subscription's topic filter as
+ * values read by an MQTTDeserializer, in place of 
+ * MQTTCallback.messageArrived.
+ */
+public interface MQTTTypedListener<T> {
+
+	public void messageArrived(String topic, T value, int qos, boolean retained);
+}
@@ -0,0 +1,282 @@
+package thinqtt.tests;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process TCP proxy that sits between a client and a broker and
+ * injects network faults: latency with jitter, a bandwidth cap, dropped
+ * connections, half-open connections that stay up but carry nothing, and
+ * refused connections. Faults can be changed while traffic is flowing.
+ *
+ * Each direction of each connection is read by one thread and written
+ * by another, so latency delays bytes without limiting throughput, and
+ * bytes are never reordered.
+ */
+public class FaultProxy implements Closeable {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final ServerSocket server;
+	private final int targetPort;
+	private final List<Link> links = new CopyOnWriteArrayList<Link>();
+	private final Random random = new Random();
+	private final AtomicLong forwarded = new AtomicLong(0);
+	private volatile long latencyMillis = 0;
+	private volatile long jitterMillis = 0;
+	private volatile long bytesPerSecond = 0;
+	private volatile boolean halfOpen = false;
+	private volatile boolean refusing = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Starts a proxy on an ephemeral local port in front of a broker on
+	 * targetPort of the local host.
+	 */
+	public FaultProxy(int targetPort) throws IOException {
+		this.targetPort = targetPort;
+		this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "fault-proxy-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return the URI for clients to connect to the broker through the proxy
+	 */
+	public URI getUri() {
+		return URI.create("tcp://localhost:" + getPort());
+	}
+
+	/**
+	 * Delays every chunk of bytes, in each direction, by latencyMillis plus
+	 * a random amount up to jitterMillis.
+	 */
+	public void setLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+	}
+
+	/**
+	 * Caps each direction of each connection at bytesPerSecond, or 0 for
+	 * no cap.
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * While set, bytes are silently discarded in both directions but no
+	 * connection is closed, as when a NAT entry or a peer vanishes. New
+	 * connections are accepted and are half open too.
+	 */
+	public void setHalfOpen(boolean halfOpen) {
+		this.halfOpen = halfOpen;
+	}
+
+	/**
+	 * While set, new connections are closed as soon as they are accepted,
+	 * as when the broker is down.
+	 */
+	public void setRefusing(boolean refusing) {
+		this.refusing = refusing;
+	}
+
+	/**
+	 * Closes every connection through the proxy, as a broker failover or
+	 * a network reset would.
+	 */
+	public void dropConnections() {
+		for (Link link : links) {
+			link.close();
+		}
+	}
+
+	public int getConnectionCount() {
+		return links.size();
+	}
+
+	/**
+	 * @return the total bytes written on in both directions
+	 */
+	public long getBytesForwarded() {
+		return forwarded.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+		dropConnections();
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket client = server.accept();
+				if (refusing) {
+					client.close();
+					continue;
+				}
+				Socket broker;
+				try {
+					broker = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+				} catch (IOException e) {
+					client.close();
+					continue;
+				}
+				client.setTcpNoDelay(true);
+				broker.setTcpNoDelay(true);
+				Link link = new Link(client, broker);
+				links.add(link);
+				link.start();
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	private static class Chunk {
+		final byte[] data;
+		final long releaseAt;
+
+		Chunk(byte[] data, long releaseAt) {
+			this.data = data;
+			this.releaseAt = releaseAt;
+		}
+	}
+
+	/**
+	 * One proxied connection: the client and broker sockets and a pair of
+	 * pumps between them.
+	 */
+	private class Link {
+		final Socket client;
+		final Socket broker;
+
+		Link(Socket client, Socket broker) {
+			this.client = client;
+			this.broker = broker;
+		}
+
+		void start() throws IOException {
+			pump(client.getInputStream(), broker.getOutputStream(), "up");
+			pump(broker.getInputStream(), client.getOutputStream(), "down");
+		}
+
+		void close() {
+			links.remove(this);
+			try {
+				client.close();
+			} catch (IOException e) {}
+			try {
+				broker.close();
+			} catch (IOException e) {}
+		}
+
+		private void pump(final InputStream in, final OutputStream out, String direction) {
+			final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buf = new byte[BUFFER_SIZE];
+					// Release times never go backwards, so jitter cannot reorder bytes
+					long lastRelease = 0;
+					try {
+						for (int n; (n = in.read(buf)) > 0;) {
+							if (halfOpen) {
+								continue;
+							}
+							long delay = latencyMillis + (jitterMillis > 0 ? nextJitter() : 0);
+							lastRelease = Math.max(lastRelease, System.nanoTime() + delay * 1000000L);
+							byte[] data = new byte[n];
+							System.arraycopy(buf, 0, data, 0, n);
+							queue.add(new Chunk(data, lastRelease));
+						}
+					} catch (IOException e) {
+						// Closed
+					}
+					queue.add(new Chunk(null, 0));
+				}
+			}, "fault-proxy-read-" + direction);
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (;;) {
+							Chunk chunk = queue.take();
+							if (chunk.data == null) {
+								break;
+							}
+							long wait = chunk.releaseAt - System.nanoTime();
+							if (wait > 0) {
+								Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+							}
+							if (halfOpen) {
+								continue;
+							}
+							write(out, chunk.data);
+						}
+					} catch (IOException e) {
+						// Closed
+					} catch (InterruptedException e) {
+						// Stopped
+					}
+					Link.this.close();
+				}
+			}, "fault-proxy-write-" + direction);
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			reader.start();
+			writer.start();
+		}
+
+		private void write(OutputStream out, byte[] data) throws IOException, InterruptedException {
+			long cap = bytesPerSecond;
+			if (cap <= 0) {
+				out.write(data);
+				forwarded.addAndGet(data.length);
+				return;
+			}
+			// Slices of about 10ms each keep the rate smooth
+			int slice = (int) Math.max(1, Math.min(data.length, cap / 100));
+			for (int off = 0; off < data.length; off += slice) {
+				int n = Math.min(slice, data.length - off);
+				long start = System.nanoTime();
+				out.write(data, off, n);
+				forwarded.addAndGet(n);
+				long wait = n * 1000000000L / cap - (System.nanoTime() - start);
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				}
+			}
+		}
+	}
+
+	private long nextJitter() {
+		synchronized (random) {
+			return (long) (random.nextDouble() * jitterMillis);
+		}
+	}
+}
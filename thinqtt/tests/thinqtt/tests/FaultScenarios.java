@@ -0,0 +1,360 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import thinqtt.MQTTCallback;
+import thinqtt.MQTTClient;
+
+/**
+ * Recovery scenarios run through a FaultProxy in front of an in-process
+ * MQTTBrokerStub, each printing one line of measurements: how long the
+ * client takes to reconnect after a dropped or half-open connection,
+ * how many messages each QoS level loses or duplicates while the
+ * connection keeps dropping, and how fast a backlog is redelivered over
+ * a slow link. They take a few seconds each, so they are named to stay
+ * out of a default test run: mvn test -Dtest=FaultScenarios
+ */
+public class FaultScenarios {
+
+	private static final String TOPIC = "fault/seq";
+	private static final int MESSAGES = 3000;
+
+	/**
+	 * Counts connections and records each sequence number received, so
+	 * that losses and duplicates can be told apart.
+	 */
+	private static class Recorder implements MQTTCallback {
+		final AtomicInteger connects = new AtomicInteger(0);
+		final AtomicInteger losses = new AtomicInteger(0);
+		final AtomicInteger received = new AtomicInteger(0);
+		final BitSet seen = new BitSet();
+		volatile long connectedAt;
+		volatile long lostAt;
+		int duplicates = 0;
+
+		@Override
+		public void onConnected() {
+			connectedAt = System.nanoTime();
+			connects.incrementAndGet();
+		}
+
+		@Override
+		public void connectionLost() {
+			lostAt = System.nanoTime();
+			losses.incrementAndGet();
+		}
+
+		@Override
+		public void messageArrived(String topic, byte[] payload) {
+			int seq = ByteBuffer.wrap(payload).getInt();
+			synchronized (seen) {
+				if (seen.get(seq)) {
+					duplicates++;
+				}
+				seen.set(seq);
+			}
+			received.incrementAndGet();
+		}
+
+		int distinct() {
+			synchronized (seen) {
+				return seen.cardinality();
+			}
+		}
+
+		int duplicates() {
+			synchronized (seen) {
+				return duplicates;
+			}
+		}
+
+		@Override
+		public void errorOccurred(Exception e) {}
+
+		@Override
+		public void onDisconnected() {}
+
+		@Override
+		public void publishComplete(int messageId) {}
+	}
+
+	@Test(timeout = 30000)
+	public void reconnectAfterDrop() throws Exception {
+		MQTTBrokerStub broker = new MQTTBrokerStub();
+		FaultProxy proxy = new FaultProxy(broker.getPort());
+		Recorder rec = new Recorder();
+		MQTTClient client = new MQTTClient(proxy.getUri(), "drop", rec);
+		try {
+			client.connect(properties(60));
+			assertTrue("connected", await(rec.connects, 1, 5000));
+
+			long start = System.nanoTime();
+			proxy.dropConnections();
+			assertTrue("reconnected", await(rec.connects, 2, 10000));
+			report("reconnect after drop", "reconnect=" + millis(start, rec.connectedAt) + "ms");
+		} finally {
+			client.disconnect();
+			proxy.close();
+			broker.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void reconnectAfterHalfOpen() throws Exception {
+		MQTTBrokerStub broker = new MQTTBrokerStub();
+		FaultProxy proxy = new FaultProxy(broker.getPort());
+		Recorder rec = new Recorder();
+		MQTTClient client = new MQTTClient(proxy.getUri(), "halfopen", rec);
+		try {
+			client.connect(properties(1));
+			assertTrue("connected", await(rec.connects, 1, 5000));
+
+			// Nothing is closed, so only the keepalive can notice. The broker
+			// stays unreachable until then, as if its host had vanished.
+			long start = System.nanoTime();
+			proxy.setHalfOpen(true);
+			proxy.setRefusing(true);
+			assertTrue("half open connection detected", await(rec.losses, 1, 30000));
+			long detected = rec.lostAt;
+			proxy.setHalfOpen(false);
+			proxy.setRefusing(false);
+			assertTrue("reconnected", await(rec.connects, 2, 10000));
+			report("reconnect after half open", "detect=" + millis(start, detected) + "ms reconnect="
+					+ millis(detected, rec.connectedAt) + "ms");
+		} finally {
+			client.disconnect();
+			proxy.close();
+			broker.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void deliveryUnderDropsQos0() throws Exception {
+		deliveryUnderDrops(0);
+	}
+
+	@Test(timeout = 60000)
+	public void deliveryUnderDropsQos1() throws Exception {
+		deliveryUnderDrops(1);
+	}
+
+	@Test(timeout = 60000)
+	public void deliveryUnderDropsQos2() throws Exception {
+		deliveryUnderDrops(2);
+	}
+
+	/**
+	 * Publishes through a jittery proxy that drops its connections every
+	 * 250ms, to a subscriber connected to the broker directly.
+	 */
+	private void deliveryUnderDrops(int qos) throws Exception {
+		MQTTBrokerStub broker = new MQTTBrokerStub();
+		FaultProxy proxy = new FaultProxy(broker.getPort());
+		proxy.setLatency(2, 3);
+		Recorder sub = new Recorder();
+		Recorder pub = new Recorder();
+		MQTTClient subscriber = new MQTTClient(broker.getUri(), "sub" + qos, sub);
+		MQTTClient publisher = new MQTTClient(proxy.getUri(), "pub" + qos, pub);
+		Dropper dropper = new Dropper(proxy, 250);
+		try {
+			subscriber.connect(properties(60));
+			assertTrue("subscriber connected", await(sub.connects, 1, 5000));
+			subscriber.subscribe(TOPIC, 2);
+			publisher.connect(properties(60));
+			assertTrue("publisher connected", await(pub.connects, 1, 5000));
+			Thread.sleep(200);
+
+			dropper.start();
+			long start = System.nanoTime();
+			for (int seq = 0; seq < MESSAGES; seq++) {
+				while (!publisher.isConnected()) {
+					Thread.sleep(1);
+				}
+				publisher.publish(TOPIC, sequence(seq, 64), qos, false);
+				if (seq % 50 == 49) {
+					Thread.sleep(20);
+				}
+			}
+			long published = System.nanoTime();
+			dropper.stop();
+
+			// Give redeliveries time to arrive once the drops stop
+			awaitQuiet(sub.received, qos == 0 ? 1000 : 3000, 20000);
+			int lost = MESSAGES - sub.distinct();
+			report("delivery under drops qos=" + qos, "published=" + MESSAGES + " drops=" + dropper.drops
+					+ " reconnects=" + (pub.connects.get() - 1) + " received=" + sub.received
+					+ " lost=" + lost + " duplicates=" + sub.duplicates()
+					+ " publish=" + millis(start, published) + "ms");
+			if (qos > 0) {
+				assertEquals("lost at qos " + qos, 0, lost);
+			}
+			if (qos == 2) {
+				assertEquals("duplicates at qos 2", 0, sub.duplicates());
+			}
+		} finally {
+			dropper.stop();
+			publisher.disconnect();
+			subscriber.disconnect();
+			proxy.close();
+			broker.close();
+		}
+	}
+
+	/**
+	 * Builds a backlog in a persistent session while its client cannot
+	 * connect, then times its redelivery over a link with 20ms latency
+	 * and a 1MB/s cap.
+	 */
+	@Test(timeout = 60000)
+	public void redeliveryThroughput() throws Exception {
+		final int backlog = 5000;
+		final int size = 256;
+		MQTTBrokerStub broker = new MQTTBrokerStub();
+		FaultProxy proxy = new FaultProxy(broker.getPort());
+		Recorder sub = new Recorder();
+		Recorder pub = new Recorder();
+		MQTTClient subscriber = new MQTTClient(proxy.getUri(), "backlog", sub);
+		MQTTClient publisher = new MQTTClient(broker.getUri(), "feeder", pub);
+		try {
+			subscriber.connect(properties(60));
+			assertTrue("subscriber connected", await(sub.connects, 1, 5000));
+			subscriber.subscribe(TOPIC, 1);
+			Thread.sleep(200);
+			proxy.setRefusing(true);
+			proxy.dropConnections();
+
+			publisher.connect(properties(60));
+			assertTrue("publisher connected", await(pub.connects, 1, 5000));
+			for (int seq = 0; seq < backlog; seq++) {
+				publisher.publish(TOPIC, sequence(seq, size), 1, false);
+			}
+			long deadline = System.currentTimeMillis() + 10000;
+			while (broker.getInflight("backlog") < backlog && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals("backlog held by the broker", backlog, broker.getInflight("backlog"));
+
+			proxy.setLatency(20, 10);
+			proxy.setBandwidth(1024 * 1024);
+			long start = System.nanoTime();
+			proxy.setRefusing(false);
+			assertTrue("backlog redelivered", await(sub.received, backlog, 30000));
+			long elapsed = System.nanoTime() - start;
+			double secs = elapsed / 1e9;
+			report("redelivery throughput", String.format("messages=%d time=%dms rate=%.0f msgs/s %.2f MB/s",
+					backlog, elapsed / 1000000, backlog / secs, backlog * (double) size / secs / (1024 * 1024)));
+			assertEquals("lost", 0, backlog - sub.distinct());
+		} finally {
+			publisher.disconnect();
+			subscriber.disconnect();
+			proxy.close();
+			broker.close();
+		}
+	}
+
+	/**
+	 * Drops the proxy's connections at a fixed interval until stopped.
+	 */
+	private static class Dropper implements Runnable {
+		final FaultProxy proxy;
+		final long intervalMillis;
+		volatile boolean running;
+		volatile int drops = 0;
+		Thread thread;
+
+		Dropper(FaultProxy proxy, long intervalMillis) {
+			this.proxy = proxy;
+			this.intervalMillis = intervalMillis;
+		}
+
+		void start() {
+			running = true;
+			thread = new Thread(this, "fault-dropper");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void stop() throws InterruptedException {
+			running = false;
+			if (thread != null) {
+				thread.join();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					Thread.sleep(intervalMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (running) {
+					proxy.dropConnections();
+					drops++;
+				}
+			}
+		}
+	}
+
+	private static Properties properties(int keepAliveSecs) {
+		Properties props = new Properties();
+		props.setProperty("keepAliveSecs", String.valueOf(keepAliveSecs));
+		props.setProperty("reconnectIntervalInc", "1");
+		props.setProperty("reconnectIntervalMax", "2");
+		props.setProperty("cleanSession", "False");
+		return props;
+	}
+
+	private static byte[] sequence(int seq, int size) {
+		return ByteBuffer.allocate(Math.max(4, size)).putInt(seq).array();
+	}
+
+	private static boolean await(AtomicInteger counter, int target, long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (counter.get() < target) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(5);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until counter has not changed for quietMillis.
+	 */
+	private static void awaitQuiet(AtomicInteger counter, long quietMillis, long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		int last = -1;
+		long changed = System.currentTimeMillis();
+		while (System.currentTimeMillis() < deadline) {
+			int now = counter.get();
+			if (now != last) {
+				last = now;
+				changed = System.currentTimeMillis();
+			} else if (System.currentTimeMillis() - changed > quietMillis) {
+				return;
+			}
+			Thread.sleep(20);
+		}
+	}
+
+	private static long millis(long fromNanos, long toNanos) {
+		return (toNanos - fromNanos) / 1000000;
+	}
+
+	private static void report(String scenario, String metrics) {
+		System.out.println(scenario + ": " + metrics);
+	}
+}
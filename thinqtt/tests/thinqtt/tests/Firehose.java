@@ -222,13 +222,13 @@ public class Firehose {
 			client.connect();
 			latch.await();
 			long sleep = 1000 / msgRate;
-			client.publish(topic, startMsg, qos);
+			client.publish(topic, startMsg, qos, false);
 			start = System.currentTimeMillis();
 			for (int i=0; i<msgCount; i++) {
 				sendMessage(client, topic, msgSize, qos);
 //				Thread.sleep(sleep);
 			}
-			stopId[0] = client.publish(topic, stopMsg, qos);
+			stopId[0] = client.publish(topic, stopMsg, qos, false);
 			end = System.currentTimeMillis();
 			if (qos == 0) {
 				client.disconnect();
@@ -250,7 +250,7 @@ public class Firehose {
 		byte[] msg = new byte[msgSize];
 		
 		rnd.nextBytes(msg);
-		client.publish(topic, msg, qos);
+		client.publish(topic, msg, qos, false);
 		System.out.print('.');
 	}
 
@@ -5,13 +5,12 @@ import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
-import org.eclipse.paho.client.mqttv3.MqttTopic;
 
 
 public class FirehosePaho {
@@ -136,7 +135,7 @@ public class FirehosePaho {
 			}
 
 			@Override
-			public void messageArrived(MqttTopic topic, MqttMessage message)
+			public void messageArrived(String topic, MqttMessage message)
 					throws Exception {
 				byte[] bs = message.getPayload();
 				if (Arrays.equals(bs, startMsg)) {
@@ -153,7 +152,7 @@ public class FirehosePaho {
 			}
 
 			@Override
-			public void deliveryComplete(MqttDeliveryToken arg0) {
+			public void deliveryComplete(IMqttDeliveryToken arg0) {
 				// TODO Auto-generated method stub
 				
 			}
@@ -192,14 +191,14 @@ public class FirehosePaho {
 			}
 
 			@Override
-			public void messageArrived(MqttTopic topic, MqttMessage message)
+			public void messageArrived(String topic, MqttMessage message)
 					throws Exception {
 				// TODO Auto-generated method stub
 				
 			}
 
 			@Override
-			public void deliveryComplete(MqttDeliveryToken token) {
+			public void deliveryComplete(IMqttDeliveryToken token) {
 				// TODO Auto-generated method stub
 				
 			}
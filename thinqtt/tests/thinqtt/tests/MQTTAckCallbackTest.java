@@ -0,0 +1,163 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import thinqtt.MQTTAckCallback;
+import thinqtt.MQTTCallback;
+import thinqtt.MQTTClient;
+import thinqtt.MQTTSubscribeCallback;
+
+/**
+ * Application acks against an in-process MQTTBrokerStub, across a lost
+ * connection.
+ */
+public class MQTTAckCallbackTest {
+
+	private static final String TOPIC = "acks/seq";
+
+	private static class Arrivals implements MQTTAckCallback {
+		final List<Integer> seqs = new ArrayList<Integer>();
+		final List<Long> handles = new ArrayList<Long>();
+
+		@Override
+		public synchronized void messageArrived(String topic, byte[] payload, int qos, boolean retained,
+				long ackHandle) {
+			seqs.add((int) payload[0]);
+			handles.add(ackHandle);
+			notifyAll();
+		}
+
+		synchronized boolean await(int count, long millis) throws InterruptedException {
+			long end = System.currentTimeMillis() + millis;
+			while (seqs.size() < count) {
+				long left = end - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				wait(left);
+			}
+			return true;
+		}
+
+		synchronized long handle(int index) {
+			return handles.get(index);
+		}
+
+		synchronized List<Integer> seqs(int from, int to) {
+			return new ArrayList<Integer>(seqs.subList(from, to));
+		}
+	}
+
+	private static class Connects implements MQTTCallback {
+		volatile int connects;
+
+		public void onConnected() { connects++; }
+		public void onDisconnected() {}
+		public void connectionLost() {}
+		public void errorOccurred(Exception e) {}
+		public void messageArrived(String topic, byte[] payload) {}
+		public void publishComplete(int messageId) {}
+	}
+
+	/**
+	 * Acks go to the broker in arrival order whatever order the
+	 * application acks in, and messages left unacked when the connection
+	 * drops are delivered again under new handles, not acked on the
+	 * application's behalf by the dedupe window.
+	 */
+	@Test(timeout = 30000)
+	public void ackOrderAcrossReconnect() throws Exception {
+		MQTTBrokerStub broker = new MQTTBrokerStub();
+		Arrivals arrivals = new Arrivals();
+		Connects connects = new Connects();
+		MQTTClient subscriber = new MQTTClient(broker.getUri(), "acker", connects);
+		MQTTClient publisher = new MQTTClient(broker.getUri(), "acks-pub", new Connects());
+		subscriber.setAckCallback(arrivals);
+		try {
+			Properties props = properties();
+			props.setProperty("dedupeWindowSize", "100");
+			subscriber.connect(props);
+			final CountDownLatch subscribed = new CountDownLatch(1);
+			subscriber.subscribe(new String[] { TOPIC }, new int[] { 1 }, new MQTTSubscribeCallback() {
+				public void subscribed(String[] topicPatterns, int[] grantedQos) {
+					subscribed.countDown();
+				}
+				public void unsubscribed(String[] topicPatterns) {}
+			});
+			assertTrue("subscribed", subscribed.await(5, TimeUnit.SECONDS));
+
+			publisher.connect(properties());
+			for (int i = 0; i < 10; i++) {
+				publisher.publish(TOPIC, new byte[] { (byte) i }, 1, false);
+			}
+			assertTrue("delivered", arrivals.await(10, 5000));
+			assertEquals(sequence(0, 10), arrivals.seqs(0, 10));
+
+			// 0 to 3 are released together once 0 is acked; 6 waits for 4 and 5
+			subscriber.ack(arrivals.handle(3));
+			subscriber.ack(arrivals.handle(1));
+			subscriber.ack(arrivals.handle(6));
+			assertTrue("nothing acked before 0", awaitInflight(broker, 10));
+			subscriber.ack(arrivals.handle(0));
+			subscriber.ack(arrivals.handle(2));
+			assertTrue("0 to 3 acked", awaitInflight(broker, 6));
+
+			broker.dropConnections();
+			assertTrue("redelivered", arrivals.await(16, 10000));
+			assertEquals(sequence(4, 10), arrivals.seqs(10, 16));
+			assertTrue(connects.connects >= 2);
+			assertEquals(6, subscriber.getOutstandingAcks());
+
+			// Handles from the lost connection are void
+			subscriber.ack(arrivals.handle(4));
+			Thread.sleep(200);
+			assertEquals(6, broker.getInflight("acker"));
+
+			for (int i = 15; i >= 10; i--) {
+				subscriber.ack(arrivals.handle(i));
+			}
+			assertTrue("all acked", awaitInflight(broker, 0));
+			assertEquals(0, subscriber.getOutstandingAcks());
+		} finally {
+			subscriber.disconnect();
+			publisher.disconnect();
+			broker.close();
+		}
+	}
+
+	private static boolean awaitInflight(MQTTBrokerStub broker, int inflight) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (broker.getInflight("acker") != inflight) {
+			if (System.currentTimeMillis() > end) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private static List<Integer> sequence(int from, int to) {
+		List<Integer> seqs = new ArrayList<Integer>();
+		for (int i = from; i < to; i++) {
+			seqs.add(i);
+		}
+		return seqs;
+	}
+
+	private static Properties properties() {
+		Properties props = new Properties();
+		props.setProperty("keepAliveSecs", "60");
+		props.setProperty("reconnectIntervalInc", "1");
+		props.setProperty("reconnectIntervalMax", "2");
+		props.setProperty("cleanSession", "False");
+		return props;
+	}
+}
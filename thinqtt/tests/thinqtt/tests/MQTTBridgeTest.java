@@ -0,0 +1,197 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import thinqtt.MQTTBridge;
+import thinqtt.MQTTCallback;
+import thinqtt.MQTTClient;
+import thinqtt.MQTTSubscribeCallback;
+
+/**
+ * MQTTBridge between two MQTTBrokerStubs, the remote one behind a
+ * FaultProxy so that it can be made unreachable.
+ */
+public class MQTTBridgeTest {
+
+	private static class Received implements MQTTCallback {
+		final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+		public void onConnected() {}
+		public void onDisconnected() {}
+		public void connectionLost() {}
+		public void errorOccurred(Exception e) {}
+		public void publishComplete(int messageId) {}
+
+		public void messageArrived(String topic, byte[] payload) {
+			messages.add(topic + " " + new String(payload));
+		}
+	}
+
+	/**
+	 * QoS 1 and 2 messages are not acknowledged to the broker they came
+	 * from until the broker they were forwarded to has acknowledged them,
+	 * so while that one is unreachable they stay in flight at both ends.
+	 */
+	@Test(timeout = 30000)
+	public void relaysAcksEndToEnd() throws Exception {
+		MQTTBrokerStub local = new MQTTBrokerStub();
+		MQTTBrokerStub remote = new MQTTBrokerStub();
+		FaultProxy proxy = new FaultProxy(remote.getPort());
+		proxy.setRefusing(true);
+		Received received = new Received();
+		MQTTClient hq = new MQTTClient(remote.getUri(), "hq", received);
+		MQTTClient site = new MQTTClient(local.getUri(), "site", new Received());
+		MQTTBridge bridge = new MQTTBridge(local.getUri(), proxy.getUri(), "bridge");
+		// A prefix of another length, so frames are rebuilt, and one rewritten in place
+		bridge.addOutbound("sensors/#", 1, "sensors/", "site1/sensors/");
+		bridge.addOutbound("alarms/#", 2, "alarms/", "alarms/");
+		try {
+			hq.connect(properties());
+			final CountDownLatch subscribed = new CountDownLatch(1);
+			hq.subscribe(new String[] { "site1/sensors/#", "alarms/#" }, new int[] { 1, 2 },
+					new MQTTSubscribeCallback() {
+						public void subscribed(String[] topicPatterns, int[] grantedQos) {
+							subscribed.countDown();
+						}
+						public void unsubscribed(String[] topicPatterns) {}
+					});
+			assertTrue("subscribed", subscribed.await(5, TimeUnit.SECONDS));
+
+			bridge.connect(properties());
+			long end = System.currentTimeMillis() + 5000;
+			while (!local.getSessions().contains("bridge") && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			// Time for the bridge's SUBSCRIBE to follow its CONNECT
+			Thread.sleep(200);
+
+			site.connect(properties());
+			for (int i = 0; i < 5; i++) {
+				site.publish("sensors/t", ("s" + i).getBytes(), 1, false);
+				site.publish("alarms/a", ("a" + i).getBytes(), 2, false);
+			}
+			assertTrue("held unacked", await(local, "bridge", 10));
+			Thread.sleep(300);
+			assertEquals(10, local.getInflight("bridge"));
+			assertEquals(10, bridge.getInflightCount());
+			assertTrue(received.messages.isEmpty());
+
+			proxy.setRefusing(false);
+			end = System.currentTimeMillis() + 10000;
+			while (received.messages.size() < 10 && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			assertTrue("acked at the source", await(local, "bridge", 0));
+			end = System.currentTimeMillis() + 5000;
+			while (bridge.getInflightCount() > 0 && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, bridge.getInflightCount());
+			assertEquals(0, remote.getInflight("bridge"));
+
+			List<String> messages = new ArrayList<String>(received.messages);
+			Collections.sort(messages);
+			List<String> expected = new ArrayList<String>();
+			for (int i = 0; i < 5; i++) {
+				expected.add("alarms/a a" + i);
+			}
+			for (int i = 0; i < 5; i++) {
+				expected.add("site1/sensors/t s" + i);
+			}
+			assertEquals(expected, messages);
+			assertEquals(10, bridge.getForwardedCount());
+		} finally {
+			bridge.disconnect();
+			hq.disconnect();
+			site.disconnect();
+			proxy.close();
+			local.close();
+			remote.close();
+		}
+	}
+
+	/**
+	 * A PUBACK too short to hold a message ID drops the connection as a
+	 * protocol error, and the bridge reconnects.
+	 */
+	@Test(timeout = 30000)
+	public void reconnectsAfterShortFrame() throws Exception {
+		MQTTBrokerStub local = new MQTTBrokerStub();
+		final ServerSocket server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+		final AtomicInteger connects = new AtomicInteger(0);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						Socket s = server.accept();
+						DataInputStream in = new DataInputStream(s.getInputStream());
+						// The CONNECT, whose remaining length fits in one byte
+						in.readUnsignedByte();
+						in.readFully(new byte[in.readUnsignedByte()]);
+						connects.incrementAndGet();
+						OutputStream out = s.getOutputStream();
+						out.write(new byte[] { 0x20, 2, 0, 0, 0x40, 0 });
+						out.flush();
+					}
+				} catch (IOException e) {
+					// Closed by the test
+				}
+			}
+		}, "bridge-test-broker");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		MQTTBridge bridge = new MQTTBridge(local.getUri(),
+				new URI("tcp://127.0.0.1:" + server.getLocalPort()), "bridge");
+		try {
+			bridge.connect(properties());
+			long end = System.currentTimeMillis() + 10000;
+			while (connects.get() < 2 && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			assertTrue("reconnected", connects.get() >= 2);
+		} finally {
+			bridge.disconnect();
+			server.close();
+			local.close();
+		}
+	}
+
+	private static boolean await(MQTTBrokerStub broker, String clientId, int inflight)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (broker.getInflight(clientId) != inflight) {
+			if (System.currentTimeMillis() > end) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private static Properties properties() {
+		Properties props = new Properties();
+		props.setProperty("keepAliveSecs", "60");
+		props.setProperty("reconnectIntervalInc", "1");
+		props.setProperty("reconnectIntervalMax", "2");
+		return props;
+	}
+}
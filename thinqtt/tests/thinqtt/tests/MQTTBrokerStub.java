@@ -0,0 +1,416 @@
+package thinqtt.tests;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import thinqtt.MQTTDecoder;
+import thinqtt.MQTTDecoderListener;
+import thinqtt.MQTTTopic;
+
+/**
+ * A minimal in-process MQTT 3.1 broker for tests, so that scenarios run
+ * without an external broker.
+ *
+ * It routes QoS 0, 1 and 2 messages between subscribers, keeps the
+ * sessions of clients that connect without cleanSession, including
+ * their unacknowledged messages and those published while they were
+ * away, and redelivers them with the DUP flag on reconnect. Retained
+ * messages, wills and authentication are not supported.
+ */
+public class MQTTBrokerStub implements Closeable {
+
+	private static final int CONNACK = 2, PUBLISH = 3, PUBACK = 4, PUBREC = 5, PUBREL = 6,
+			PUBCOMP = 7, SUBACK = 9, UNSUBACK = 11, PINGRESP = 13;
+
+	private final ServerSocket server;
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	private final AtomicLong publishesIn = new AtomicLong(0);
+	private final AtomicLong publishesOut = new AtomicLong(0);
+	private volatile boolean closed = false;
+
+	public MQTTBrokerStub() throws IOException {
+		server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "broker-stub-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public URI getUri() {
+		return URI.create("tcp://localhost:" + getPort());
+	}
+
+	/**
+	 * @return the number of PUBLISH packets received, including redeliveries
+	 */
+	public long getPublishesIn() {
+		return publishesIn.get();
+	}
+
+	/**
+	 * @return the number of PUBLISH packets sent, including redeliveries
+	 */
+	public long getPublishesOut() {
+		return publishesOut.get();
+	}
+
+	/**
+	 * @return the number of messages a client's session holds unacknowledged
+	 */
+	public int getInflight(String clientId) {
+		Session session = sessions.get(clientId);
+		if (session == null) {
+			return 0;
+		}
+		synchronized (session) {
+			return session.inflight.size();
+		}
+	}
+
+	/**
+	 * @return the client IDs of the sessions the broker holds
+	 */
+	public List<String> getSessions() {
+		return new ArrayList<String>(sessions.keySet());
+	}
+
+	/**
+	 * Closes every client connection, keeping their sessions.
+	 */
+	public void dropConnections() {
+		for (Connection c : connections) {
+			c.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+		dropConnections();
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				final Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						new Connection(socket).run();
+					}
+				}, "broker-stub-connection");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	/**
+	 * Sends a message to every session with a matching subscription, at
+	 * the lower of its QoS and the subscription's.
+	 */
+	private void route(String topic, byte[] payload, int qos) {
+		for (Session session : sessions.values()) {
+			int subQos = -1;
+			for (Map.Entry<String, Integer> sub : session.subscriptions.entrySet()) {
+				if (MQTTTopic.matches(sub.getKey(), topic)) {
+					subQos = Math.max(subQos, sub.getValue());
+				}
+			}
+			if (subQos >= 0) {
+				session.send(topic, payload, Math.min(qos, subQos));
+			}
+		}
+	}
+
+	private class Session {
+		final Map<String, Integer> subscriptions = new ConcurrentHashMap<String, Integer>();
+		// Outbound QoS 1 and 2 PUBLISH frames awaiting PUBACK or PUBREC, in order
+		final Map<Integer, byte[]> inflight = new LinkedHashMap<Integer, byte[]>();
+		// Outbound QoS 2 messages awaiting PUBCOMP
+		final Set<Integer> released = new HashSet<Integer>();
+		// Inbound QoS 2 messages delivered and awaiting PUBREL
+		final Set<Integer> received = new HashSet<Integer>();
+		Connection connection;
+		int nextId = 0;
+
+		synchronized void send(String topic, byte[] payload, int qos) {
+			int id = 0;
+			if (qos > 0) {
+				do {
+					nextId = nextId % 65535 + 1;
+				} while (inflight.containsKey(nextId) || released.contains(nextId));
+				id = nextId;
+			}
+			byte[] frame = publishFrame(topic, payload, qos, id);
+			if (qos > 0) {
+				inflight.put(id, frame);
+			}
+			if (connection != null) {
+				connection.write(frame);
+				publishesOut.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Hands the session to a new connection and redelivers what the
+		 * last one left unacknowledged.
+		 */
+		synchronized void resume(Connection c) {
+			if (connection != null && connection != c) {
+				connection.close();
+			}
+			connection = c;
+			for (byte[] frame : inflight.values()) {
+				byte[] dup = frame.clone();
+				dup[0] |= 0x08;
+				c.write(dup);
+				publishesOut.incrementAndGet();
+			}
+			for (int id : released) {
+				c.write(ackFrame(PUBREL, id));
+			}
+		}
+	}
+
+	private class Connection extends MQTTDecoderListener {
+		final Socket socket;
+		final OutputStream out;
+		Session session;
+		String clientId;
+		boolean cleanSession;
+
+		Connection(Socket socket) {
+			this.socket = socket;
+			OutputStream o = null;
+			try {
+				o = new BufferedOutputStream(socket.getOutputStream());
+			} catch (IOException e) {}
+			this.out = o;
+		}
+
+		void run() {
+			connections.add(this);
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while (!socket.isClosed()) {
+					MQTTDecoder.decode(in, this, null);
+				}
+			} catch (IOException e) {
+				// Closed by either side
+			} finally {
+				close();
+			}
+		}
+
+		synchronized void write(byte[] frame) {
+			try {
+				out.write(frame);
+				out.flush();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void close() {
+			connections.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {}
+			Session s = session;
+			if (s != null) {
+				synchronized (s) {
+					if (s.connection == this) {
+						s.connection = null;
+					}
+				}
+				if (cleanSession) {
+					sessions.remove(clientId, s);
+				}
+			}
+		}
+
+		@Override
+		protected void onConnect(String clientId, String userName, String password,
+				String protocol, int version, boolean hasLWT, String lwtMessage,
+				String lwtTopic, int lwtQos, boolean retainLWT,
+				boolean cleanSession, int keepAliveSecs) {
+			this.clientId = clientId;
+			this.cleanSession = cleanSession;
+			Session s = cleanSession ? null : sessions.get(clientId);
+			if (s == null) {
+				s = new Session();
+				Session old = sessions.put(clientId, s);
+				if (old != null && old.connection != null) {
+					old.connection.close();
+				}
+			}
+			session = s;
+			write(new byte[] { CONNACK << 4, 2, 0, 0 });
+			s.resume(this);
+		}
+
+		@Override
+		protected void onSubscribe(int messageId, boolean dup, String[] subs) {
+			// The decoder prefixes each filter with its QoS digit
+			ByteArrayOutputStream granted = new ByteArrayOutputStream();
+			for (String sub : subs) {
+				int qos = Math.min(2, sub.charAt(0) - '0');
+				session.subscriptions.put(sub.substring(1), qos);
+				granted.write(qos);
+			}
+			byte[] qosList = granted.toByteArray();
+			write(frame(SUBACK << 4, messageId & 0xFFFF, qosList));
+		}
+
+		@Override
+		protected void onUnsubscribe(int messageId, boolean dup, String[] subs) {
+			for (String sub : subs) {
+				session.subscriptions.remove(sub);
+			}
+			write(ackFrame(UNSUBACK, messageId & 0xFFFF));
+		}
+
+		@Override
+		protected void onPublish(String topic, int messageId, byte[] payload, int qos,
+				boolean retain, boolean dup) {
+			publishesIn.incrementAndGet();
+			int id = messageId & 0xFFFF;
+			switch (qos) {
+			case 0:
+				route(topic, payload, qos);
+				break;
+			case 1:
+				route(topic, payload, qos);
+				write(ackFrame(PUBACK, id));
+				break;
+			case 2:
+				boolean first;
+				synchronized (session) {
+					first = session.received.add(id);
+				}
+				if (first) {
+					route(topic, payload, qos);
+				}
+				write(ackFrame(PUBREC, id));
+				break;
+			}
+		}
+
+		@Override
+		protected void onPubRel(int messageId, boolean dup) {
+			int id = messageId & 0xFFFF;
+			synchronized (session) {
+				session.received.remove(id);
+			}
+			write(ackFrame(PUBCOMP, id));
+		}
+
+		@Override
+		protected void onPubAck(int messageId) {
+			synchronized (session) {
+				session.inflight.remove(messageId & 0xFFFF);
+			}
+		}
+
+		@Override
+		protected void onPubRec(int messageId) {
+			int id = messageId & 0xFFFF;
+			synchronized (session) {
+				session.inflight.remove(id);
+				session.released.add(id);
+			}
+			write(ackFrame(PUBREL, id));
+		}
+
+		@Override
+		protected void onPubComp(int messageId) {
+			synchronized (session) {
+				session.released.remove(messageId & 0xFFFF);
+			}
+		}
+
+		@Override
+		protected void onPingReq() {
+			write(new byte[] { (byte) (PINGRESP << 4), 0 });
+		}
+
+		@Override
+		protected void onDisconnect() {
+			close();
+		}
+	}
+
+	private static byte[] publishFrame(String topic, byte[] payload, int qos, int id) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(body);
+		try {
+			dos.writeUTF(topic);
+			if (qos > 0) {
+				dos.writeShort(id);
+			}
+			dos.write(payload);
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+		}
+		return frame(PUBLISH << 4 | qos << 1, -1, body.toByteArray());
+	}
+
+	private static byte[] ackFrame(int type, int id) {
+		// PUBREL is sent with QoS 1 set, as the protocol requires
+		return frame(type << 4 | (type == PUBREL ? 0x02 : 0), id, new byte[0]);
+	}
+
+	/**
+	 * @param id the message ID to write ahead of body, or -1 for none
+	 */
+	private static byte[] frame(int header, int id, byte[] body) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(body.length + 7);
+		frame.write(header);
+		int remaining = body.length + (id >= 0 ? 2 : 0);
+		do {
+			int digit = remaining % 128;
+			remaining /= 128;
+			frame.write(remaining > 0 ? digit | 0x80 : digit);
+		} while (remaining > 0);
+		if (id >= 0) {
+			frame.write(id >> 8);
+			frame.write(id);
+		}
+		frame.write(body, 0, body.length);
+		return frame.toByteArray();
+	}
+}
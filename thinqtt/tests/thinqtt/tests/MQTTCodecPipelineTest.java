@@ -0,0 +1,128 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import thinqtt.MQTTCodecPipeline;
+import thinqtt.MQTTDeflateCodec;
+import thinqtt.MQTTException;
+
+public class MQTTCodecPipelineTest {
+
+	@Test
+	public void roundTripByTopicPattern() {
+		MQTTCodecPipeline pipeline = new MQTTCodecPipeline().add("logs/#", new MQTTDeflateCodec());
+		byte[] payload = text(2000);
+
+		byte[] encoded = pipeline.encode("logs/app", payload);
+		assertTrue(MQTTCodecPipeline.isEncoded(encoded));
+		assertTrue(encoded.length < payload.length);
+		assertArrayEquals(payload, pipeline.decode(encoded));
+
+		// Other topics are sent as they are
+		assertSame(payload, pipeline.encode("metrics/app", payload));
+		assertSame(payload, pipeline.decode(payload));
+	}
+
+	@Test
+	public void roundTripWithDictionary() {
+		byte[] dictionary = "{\"level\":\"info\",\"message\":\"".getBytes();
+		MQTTCodecPipeline sender = new MQTTCodecPipeline().add("#", new MQTTDeflateCodec(7, dictionary, 9));
+		MQTTCodecPipeline receiver = new MQTTCodecPipeline().register(new MQTTDeflateCodec(7, dictionary, 9));
+		byte[] payload = "{\"level\":\"info\",\"message\":\"started\"}".getBytes();
+
+		byte[] encoded = sender.encode("t", payload);
+		assertTrue(MQTTCodecPipeline.isEncoded(encoded));
+		assertEquals(7, encoded[2]);
+		assertArrayEquals(payload, receiver.decode(encoded));
+	}
+
+	@Test(expected = MQTTException.class)
+	public void missingDictionaryDoesNotDecode() {
+		byte[] dictionary = "{\"level\":\"info\",\"message\":\"".getBytes();
+		MQTTCodecPipeline sender = new MQTTCodecPipeline().add("#", new MQTTDeflateCodec(7, dictionary, 9));
+		MQTTCodecPipeline receiver = new MQTTCodecPipeline().register(new MQTTDeflateCodec(7, null, 9));
+		receiver.decode(sender.encode("t", "{\"level\":\"info\",\"message\":\"started\"}".getBytes()));
+	}
+
+	@Test
+	public void decodeInPlace() {
+		MQTTCodecPipeline pipeline = new MQTTCodecPipeline().add("#", new MQTTDeflateCodec());
+		byte[] payload = text(1000);
+		byte[] encoded = pipeline.encode("t", payload);
+		// As if still in a frame, between a header and the next packet
+		byte[] frame = new byte[encoded.length + 9];
+		System.arraycopy(encoded, 0, frame, 5, encoded.length);
+		assertTrue(MQTTCodecPipeline.isEncoded(frame, 5, encoded.length));
+		assertArrayEquals(payload, pipeline.decode(frame, 5, encoded.length));
+
+		System.arraycopy(payload, 0, frame, 5, 40);
+		assertFalse(MQTTCodecPipeline.isEncoded(frame, 5, 40));
+		assertNull(pipeline.decode(frame, 5, 40));
+	}
+
+	@Test
+	public void incompressiblePayloadSentAsIs() {
+		MQTTCodecPipeline pipeline = new MQTTCodecPipeline().add("#", new MQTTDeflateCodec());
+		byte[] payload = new byte[200];
+		new Random(1).nextBytes(payload);
+		assertSame(payload, pipeline.encode("t", payload));
+		byte[] tiny = "ab".getBytes();
+		assertSame(tiny, pipeline.encode("t", tiny));
+	}
+
+	@Test
+	public void unknownCodecLeftAlone() {
+		byte[] encoded = new MQTTCodecPipeline().add("#", new MQTTDeflateCodec(9, null, 9))
+				.encode("t", text(500));
+		assertTrue(MQTTCodecPipeline.isEncoded(encoded));
+		MQTTCodecPipeline receiver = new MQTTCodecPipeline().register(new MQTTDeflateCodec());
+		assertSame(encoded, receiver.decode(encoded));
+	}
+
+	@Test(expected = MQTTException.class)
+	public void corruptBody() {
+		MQTTCodecPipeline pipeline = new MQTTCodecPipeline().register(new MQTTDeflateCodec());
+		byte[] payload = { (byte) 0xC0, (byte) 0xDE, 1, 100, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x12 };
+		pipeline.decode(payload);
+	}
+
+	@Test(expected = MQTTException.class)
+	public void truncatedBody() {
+		MQTTCodecPipeline pipeline = new MQTTCodecPipeline().add("#", new MQTTDeflateCodec());
+		byte[] encoded = pipeline.encode("t", text(2000));
+		pipeline.decode(Arrays.copyOf(encoded, encoded.length / 2));
+	}
+
+	@Test(expected = MQTTException.class)
+	public void claimedLengthOverMaximum() {
+		MQTTCodecPipeline pipeline = new MQTTCodecPipeline().add("#", new MQTTDeflateCodec());
+		byte[] encoded = pipeline.encode("t", text(2000));
+		pipeline.setMaxDecodedLength(1000).decode(encoded);
+	}
+
+	@Test(expected = MQTTException.class)
+	public void claimedLengthBeyondDeflateRatio() {
+		MQTTCodecPipeline pipeline = new MQTTCodecPipeline().register(new MQTTDeflateCodec());
+		// Five bytes of body claiming to inflate to 1MB
+		byte[] payload = { (byte) 0xC0, (byte) 0xDE, 1, (byte) 0x80, (byte) 0x80, 0x40, 1, 2, 3, 4, 5 };
+		pipeline.decode(payload);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void conflictingCodecIds() {
+		new MQTTCodecPipeline().register(new MQTTDeflateCodec()).add("#", new MQTTDeflateCodec());
+	}
+
+	private static byte[] text(int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < length; i++) {
+			sb.append("line ").append(i % 10).append(" of the log\n");
+		}
+		return sb.substring(0, length).getBytes();
+	}
+}
@@ -0,0 +1,81 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import thinqtt.MQTTDuplicateFilter;
+
+public class MQTTDuplicateFilterTest {
+
+	@Test
+	public void redeliveryInWindowSuppressed() {
+		MQTTDuplicateFilter filter = new MQTTDuplicateFilter(8, 0);
+		assertFalse(filter.isDuplicate("a/b", 1, bytes(3), false));
+		assertTrue(filter.isDuplicate("a/b", 1, bytes(3), true));
+		// Without the DUP flag a repeat is a new message
+		assertFalse(filter.isDuplicate("a/b", 1, bytes(3), false));
+		assertFalse(filter.isDuplicate("a/c", 1, bytes(3), true));
+		assertFalse(filter.isDuplicate("a/b", 2, bytes(3), true));
+		assertFalse(filter.isDuplicate("a/b", 1, bytes(4), true));
+		assertEquals(1, filter.getSuppressedCount());
+		assertEquals(4, filter.getCheckedCount());
+	}
+
+	@Test
+	public void samePayloadLengthDifferentBytes() {
+		MQTTDuplicateFilter filter = new MQTTDuplicateFilter(8, 0);
+		byte[] payload = bytes(16);
+		filter.isDuplicate("t", 5, payload, false);
+		payload[15]++;
+		assertFalse(filter.isDuplicate("t", 5, payload, true));
+	}
+
+	/**
+	 * Evicts through a table small enough that probe runs collide and
+	 * wrap around the end all the time, checking after every eviction
+	 * that the backward shift left each message still in the window
+	 * reachable, and that evicted ones are gone.
+	 */
+	@Test
+	public void backwardShiftKeepsProbeRunsReachable() {
+		int capacity = 8;
+		MQTTDuplicateFilter filter = new MQTTDuplicateFilter(capacity, 0);
+		Random random = new Random(42);
+		String[] topics = new String[2000];
+		int[] ids = new int[topics.length];
+		for (int n = 0; n < topics.length; n++) {
+			topics[n] = "t/" + random.nextInt(1000);
+			ids[n] = 1 + random.nextInt(65535);
+			assertFalse(filter.isDuplicate(topics[n], ids[n], bytes(n % 5), false));
+			assertEquals(Math.min(n + 1, capacity), filter.size());
+			for (int k = Math.max(0, n - capacity + 1); k <= n; k++) {
+				assertTrue("message " + k + " after " + n,
+						filter.isDuplicate(topics[k], ids[k], bytes(k % 5), true));
+			}
+		}
+		assertEquals(capacity, filter.size());
+		// Checking an evicted message records it, so only the oldest is tried
+		int evicted = topics.length - capacity - 1;
+		assertFalse(filter.isDuplicate(topics[evicted], ids[evicted], bytes(evicted % 5), true));
+	}
+
+	@Test
+	public void windowExpires() throws Exception {
+		MQTTDuplicateFilter filter = new MQTTDuplicateFilter(8, 50);
+		filter.isDuplicate("a", 1, bytes(1), false);
+		Thread.sleep(100);
+		assertFalse(filter.isDuplicate("a", 1, bytes(1), true));
+		assertEquals(1, filter.size());
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) {
+			b[i] = (byte) (i + 1);
+		}
+		return b;
+	}
+}
@@ -0,0 +1,88 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import thinqtt.MQTTDecoder;
+import thinqtt.MQTTDecoderListener;
+import thinqtt.MQTTEncoder;
+import thinqtt.MQTTMessage;
+
+public class MQTTEncoderTest {
+
+	/**
+	 * Records each frame decoded as a line of text.
+	 */
+	private static class Recorder extends MQTTDecoderListener {
+		final List<String> events = new ArrayList<String>();
+
+		@Override
+		protected void onPublish(String topic, int messageId, byte[] payload, int qos,
+				boolean retain, boolean dup) {
+			events.add("publish " + topic + " " + messageId + " " + qos + (dup ? " dup " : " ")
+					+ new String(payload));
+		}
+
+		@Override
+		protected void onPubRel(int messageId, boolean dup) {
+			events.add("pubrel " + messageId);
+		}
+	}
+
+	@Test
+	public void replaySetsDupOnEveryPublish() throws Exception {
+		File file = File.createTempFile("replay", ".bin");
+		file.deleteOnExit();
+		FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			source.write(ByteBuffer.wrap("..streamed..".getBytes()));
+			List<MQTTMessage> messages = Arrays.asList(
+					new MQTTMessage(MQTTMessage.PUBLISH, 1, 1, "a", "held".getBytes(), false),
+					new MQTTMessage(2, 2, "b", source, 2, 8, false),
+					new MQTTMessage(MQTTMessage.PUBREL, 3, 1, null, null, false));
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			MQTTEncoder.writeReplay(new DataOutputStream(buf), messages);
+
+			assertEquals(Arrays.asList(
+					"publish a 1 1 dup held",
+					"pubrel 3",
+					"publish b 2 2 dup streamed"), decodeAll(buf.toByteArray()));
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void replayThrowsWhenSourceFails() throws Exception {
+		File file = File.createTempFile("replay", ".bin");
+		file.deleteOnExit();
+		FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		source.close();
+		List<MQTTMessage> messages = Arrays.asList(new MQTTMessage(1, 1, "b", source, 0, 8, false));
+		MQTTEncoder.writeReplay(new DataOutputStream(new ByteArrayOutputStream()), messages);
+	}
+
+	static List<String> decodeAll(byte[] frames) throws IOException {
+		Recorder recorder = new Recorder();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(frames));
+		while (in.available() > 0) {
+			MQTTDecoder.decode(in, recorder, null);
+		}
+		return recorder.events;
+	}
+}
@@ -0,0 +1,213 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import thinqtt.MQTTDecoderListener;
+import thinqtt.MQTTEncoder;
+import thinqtt.MQTTFrameParser;
+import thinqtt.MQTTProperties;
+import thinqtt.MQTTPropertiesBuilder;
+import thinqtt.MQTTPublishFilter;
+
+public class MQTTFrameParserTest {
+
+	/**
+	 * Records each frame the parser completes as a line of text.
+	 */
+	private static class Recorder extends MQTTDecoderListener {
+		final List<String> events = new ArrayList<String>();
+		final int version;
+
+		Recorder(int version) {
+			this.version = version;
+		}
+
+		@Override
+		protected int getProtocolVersion() {
+			return version;
+		}
+
+		@Override
+		protected void onPublish(String topic, int messageId, byte[] payload, int qos,
+				boolean retain, boolean dup) {
+			events.add("publish " + topic + " " + messageId + " " + qos + " " + payload.length
+					+ " " + Arrays.hashCode(payload));
+		}
+
+		@Override
+		protected void onPublish(String topic, int messageId, byte[] buf, int off, int len, int qos,
+				boolean retain, boolean dup, MQTTProperties props) {
+			if (version >= 5) {
+				events.add("properties " + props.getString(MQTTProperties.CONTENT_TYPE));
+			}
+			super.onPublish(topic, messageId, buf, off, len, qos, retain, dup, props);
+		}
+
+		@Override
+		protected void onPublishSkipped(int messageId, int qos, boolean dup) {
+			events.add("skipped " + messageId + " " + qos);
+		}
+
+		@Override
+		protected void onPubAck(int messageId) {
+			events.add("puback " + messageId);
+		}
+
+		@Override
+		protected void onPingReq() {
+			events.add("pingreq");
+		}
+	}
+
+	private static final MQTTPublishFilter SKIP_IGNORED = new MQTTPublishFilter() {
+		@Override
+		public boolean accept(int fixedHeader, byte[] topic, int topicOffset, int topicLength,
+				int payloadLength) {
+			return !new String(topic, topicOffset, topicLength).startsWith("ignored/");
+		}
+	};
+
+	@Test
+	public void byteAtATimeMatchesOneSlice() throws Exception {
+		byte[] stream = stream(null);
+		List<String> whole = feedWhole(stream, null, 3);
+		assertEquals(Arrays.asList(
+				"publish a/b 7 1 5 " + Arrays.hashCode(payload(5)),
+				"pingreq",
+				"puback 9",
+				"publish c/d 0 0 300 " + Arrays.hashCode(payload(300))), whole);
+		assertEquals(whole, feedBytes(stream, null, 3));
+		assertEquals(whole, feedDirect(stream, null, 3));
+	}
+
+	@Test
+	public void filterSkipsPayload() throws Exception {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(buf);
+		MQTTEncoder.writePublish(dos, "ignored/x", payload(200), 5, 1, false, false, null);
+		MQTTEncoder.writePublish(dos, "kept/y", payload(20), 6, 2, false, false, null);
+		// Skipped with no payload at all, so the parser goes straight back to a header
+		MQTTEncoder.writePublish(dos, "ignored/z", new byte[0], 0, 0, false, false, null);
+		MQTTEncoder.writePubAck(dos, 11);
+		byte[] stream = buf.toByteArray();
+
+		List<String> expected = Arrays.asList(
+				"skipped 5 1",
+				"publish kept/y 6 2 20 " + Arrays.hashCode(payload(20)),
+				"skipped 0 0",
+				"puback 11");
+		assertEquals(expected, feedWhole(stream, SKIP_IGNORED, 3));
+		assertEquals(expected, feedBytes(stream, SKIP_IGNORED, 3));
+		assertEquals(expected, feedDirect(stream, SKIP_IGNORED, 3));
+	}
+
+	@Test
+	public void mqtt5PublishHeaderThroughFilter() throws Exception {
+		byte[] stream = stream(new MQTTPropertiesBuilder()
+				.add(MQTTProperties.CONTENT_TYPE, "text/plain")
+				// Over 127 bytes of properties, so their length takes two bytes
+				.addUserProperty("padding", new String(new char[150]).replace('\0', 'p')));
+		List<String> expected = Arrays.asList(
+				"properties text/plain",
+				"publish a/b 7 1 5 " + Arrays.hashCode(payload(5)),
+				"pingreq",
+				"puback 9",
+				"properties text/plain",
+				"publish c/d 0 0 300 " + Arrays.hashCode(payload(300)));
+		assertEquals(expected, feedWhole(stream, null, 5));
+		assertEquals(expected, feedBytes(stream, SKIP_IGNORED, 5));
+		assertEquals(expected, feedDirect(stream, SKIP_IGNORED, 5));
+	}
+
+	@Test
+	public void idleOnlyBetweenFrames() throws Exception {
+		byte[] stream = stream(null);
+		Recorder recorder = new Recorder(3);
+		MQTTFrameParser parser = new MQTTFrameParser(recorder);
+		assertEquals(0, parser.feed(ByteBuffer.wrap(stream, 0, 4)));
+		assertFalse(parser.isIdle());
+		parser.reset();
+		assertTrue(parser.isIdle());
+		assertEquals(4, parser.feed(ByteBuffer.wrap(stream)));
+		assertTrue(parser.isIdle());
+	}
+
+	/**
+	 * A QoS 1 PUBLISH, a PINGREQ with no body, a PUBACK and a QoS 0
+	 * PUBLISH whose remaining length takes two bytes.
+	 */
+	private static byte[] stream(MQTTPropertiesBuilder props) throws Exception {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(buf);
+		MQTTEncoder.writePublish(dos, "a/b", payload(5), 7, 1, false, false, props);
+		MQTTEncoder.writePing(dos);
+		MQTTEncoder.writePubAck(dos, 9);
+		MQTTEncoder.writePublish(dos, "c/d", payload(300), 0, 0, false, false, props);
+		return buf.toByteArray();
+	}
+
+	private static List<String> feedWhole(byte[] stream, MQTTPublishFilter filter, int version)
+			throws Exception {
+		Recorder recorder = new Recorder(version);
+		MQTTFrameParser parser = new MQTTFrameParser(recorder);
+		parser.setPublishFilter(filter);
+		ByteBuffer in = ByteBuffer.wrap(stream);
+		assertEquals(4, parser.feed(in));
+		assertFalse(in.hasRemaining());
+		assertTrue(parser.isIdle());
+		return recorder.events;
+	}
+
+	private static List<String> feedBytes(byte[] stream, MQTTPublishFilter filter, int version)
+			throws Exception {
+		Recorder recorder = new Recorder(version);
+		MQTTFrameParser parser = new MQTTFrameParser(recorder);
+		parser.setPublishFilter(filter);
+		int frames = 0;
+		for (int i = 0; i < stream.length; i++) {
+			frames += parser.feed(ByteBuffer.wrap(stream, i, 1));
+		}
+		assertEquals(4, frames);
+		assertTrue(parser.isIdle());
+		return recorder.events;
+	}
+
+	/**
+	 * Feeds a direct buffer, which the parser cannot read frames from in
+	 * place, in slices of 7 bytes.
+	 */
+	private static List<String> feedDirect(byte[] stream, MQTTPublishFilter filter, int version)
+			throws Exception {
+		Recorder recorder = new Recorder(version);
+		MQTTFrameParser parser = new MQTTFrameParser(recorder);
+		parser.setPublishFilter(filter);
+		ByteBuffer in = ByteBuffer.allocateDirect(7);
+		int frames = 0;
+		for (int i = 0; i < stream.length; i += 7) {
+			in.clear();
+			in.put(stream, i, Math.min(7, stream.length - i));
+			in.flip();
+			frames += parser.feed(in);
+		}
+		assertEquals(4, frames);
+		assertTrue(parser.isIdle());
+		return recorder.events;
+	}
+
+	private static byte[] payload(int length) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) (i * 31 + 7);
+		}
+		return payload;
+	}
+}
@@ -0,0 +1,158 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import thinqtt.MQTTException;
+import thinqtt.MQTTOfflineQueue;
+import thinqtt.MQTTPublication;
+
+public class MQTTOfflineQueueTest {
+
+	// Header, a one-byte topic and a ten-byte payload
+	private static final int RECORD = 7 + 1 + 10;
+
+	@Test
+	public void ringKeepsOrderAcrossWrap() throws Exception {
+		MQTTOfflineQueue queue = new MQTTOfflineQueue(3, 1024, null, 0);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(queue.offer("t", payload(i), 0, false));
+		}
+		assertEquals(Arrays.asList(0, 1), drain(queue, 2));
+		assertTrue(queue.offer("t", payload(3), 0, false));
+		assertTrue(queue.offer("t", payload(4), 0, false));
+		assertFalse(queue.offer("t", payload(5), 0, false));
+		assertEquals(3, queue.size());
+		assertEquals(Arrays.asList(2, 3, 4), drain(queue, 10));
+		assertTrue(queue.isEmpty());
+		assertEquals(1, queue.getDroppedCount());
+	}
+
+	@Test
+	public void byteLimitFillsQueue() throws Exception {
+		MQTTOfflineQueue queue = new MQTTOfflineQueue(10, 25, null, 0);
+		assertTrue(queue.offer("t", payload(0), 0, false));
+		assertTrue(queue.offer("t", payload(1), 0, false));
+		assertFalse(queue.offer("t", payload(2), 0, false));
+		assertEquals(2, queue.size());
+	}
+
+	/**
+	 * Messages spill once the ring is full, stay behind those already on
+	 * disk even when the ring has room again, and reuse the front of the
+	 * segment once it has been read.
+	 */
+	@Test
+	public void spillWrapsToFront() throws Exception {
+		File file = File.createTempFile("spill", ".bin");
+		MQTTOfflineQueue queue = new MQTTOfflineQueue(1, 1024, file, 5 * RECORD + 10);
+		try {
+			for (int i = 0; i < 6; i++) {
+				assertTrue(queue.offer("t", payload(i), i % 3, i % 2 == 0));
+			}
+			// The ring and the segment are both full
+			assertFalse(queue.offer("t", payload(6), 0, false));
+
+			List<MQTTPublication> first = new ArrayList<MQTTPublication>();
+			assertEquals(2, queue.drainTo(first, 2));
+			assertEquals(1, first.get(1).getQos());
+			assertFalse(first.get(1).isRetained());
+
+			// The ring is empty, but this goes to the freed front of the segment
+			assertTrue(queue.offer("t", payload(7), 2, true));
+			assertFalse(queue.offer("t", payload(8), 0, false));
+
+			List<MQTTPublication> rest = new ArrayList<MQTTPublication>();
+			assertEquals(5, queue.drainTo(rest, 10));
+			assertEquals(Arrays.asList(2, 3, 4, 5, 7), seqs(rest));
+			assertEquals(2, rest.get(0).getQos());
+			assertTrue(rest.get(0).isRetained());
+			assertEquals(2, rest.get(4).getQos());
+			assertTrue(rest.get(4).isRetained());
+			assertTrue(queue.isEmpty());
+
+			// Emptied, so both go back to the ring and the start of the segment
+			for (int i = 9; i < 12; i++) {
+				assertTrue(queue.offer("t", payload(i), 0, false));
+			}
+			assertEquals(Arrays.asList(9, 10, 11), drain(queue, 10));
+			assertEquals(2, queue.getDroppedCount());
+		} finally {
+			queue.close();
+		}
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void dropPolicies() throws Exception {
+		MQTTOfflineQueue queue = new MQTTOfflineQueue(1, 1024, null, 0);
+		assertTrue(queue.offer("t", payload(0), 0, false));
+		// QoS 0 is dropped and QoS 1 and 2 rejected by default
+		assertFalse(queue.offer("t", payload(1), 0, false));
+		assertRejected(queue, 1);
+		assertRejected(queue, 2);
+
+		queue.setDropPolicy(1, MQTTOfflineQueue.POLICY_DROP);
+		queue.setDropPolicy(0, MQTTOfflineQueue.POLICY_REJECT);
+		assertFalse(queue.offer("t", payload(1), 1, false));
+		assertRejected(queue, 0);
+		assertEquals(5, queue.getDroppedCount());
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void closedQueueRefusesMessages() throws Exception {
+		MQTTOfflineQueue queue = new MQTTOfflineQueue(4, 1024, null, 0);
+		queue.offer("t", payload(0), 0, false);
+		queue.close();
+		assertTrue(queue.isClosed());
+		assertTrue(queue.isEmpty());
+		assertFalse(queue.offer("t", payload(1), 0, false));
+		assertRejected(queue, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownPolicy() throws Exception {
+		new MQTTOfflineQueue(1, 1024, null, 0).setDropPolicy(0, 7);
+	}
+
+	private static void assertRejected(MQTTOfflineQueue queue, int qos) {
+		try {
+			queue.offer("t", payload(99), qos, false);
+			fail("QoS " + qos + " message accepted");
+		} catch (MQTTException e) {
+			// Expected
+		}
+	}
+
+	private static List<Integer> drain(MQTTOfflineQueue queue, int max) {
+		List<MQTTPublication> messages = new ArrayList<MQTTPublication>();
+		queue.drainTo(messages, max);
+		return seqs(messages);
+	}
+
+	private static List<Integer> seqs(List<MQTTPublication> messages) {
+		List<Integer> seqs = new ArrayList<Integer>();
+		for (MQTTPublication msg : messages) {
+			assertEquals("t", msg.getTopic());
+			assertEquals(10, msg.getPayload().length);
+			seqs.add((int) msg.getPayload()[0]);
+		}
+		return seqs;
+	}
+
+	/**
+	 * Ten bytes, the first of which is the message's sequence number.
+	 */
+	private static byte[] payload(int seq) {
+		byte[] payload = new byte[10];
+		Arrays.fill(payload, (byte) seq);
+		return payload;
+	}
+}
@@ -0,0 +1,93 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import thinqtt.MQTTPayloadArena;
+
+public class MQTTPayloadArenaTest {
+
+	@Test
+	public void freedHandleReadsNull() {
+		MQTTPayloadArena arena = new MQTTPayloadArena(1024, 1024);
+		long first = arena.allocate(bytes(40, 1));
+		assertArrayEquals(bytes(40, 1), arena.read(first, 40));
+		arena.free(first);
+		assertNull(arena.read(first, 40));
+
+		// The same chunk, under a new generation
+		long second = arena.allocate(bytes(50, 2));
+		assertTrue(second != first);
+		assertNull(arena.read(first, 40));
+		assertArrayEquals(bytes(50, 2), arena.read(second, 50));
+
+		// A stale handle frees nothing
+		arena.free(first);
+		assertArrayEquals(bytes(50, 2), arena.read(second, 50));
+		assertEquals(64, arena.getUsedBytes());
+		arena.free(second);
+		arena.free(second);
+		assertEquals(0, arena.getUsedBytes());
+	}
+
+	@Test
+	public void freeListReusedBeforeNewSlab() {
+		// Room for one slab of sixteen 64-byte chunks
+		MQTTPayloadArena arena = new MQTTPayloadArena(1024, 1024);
+		long[] handles = new long[16];
+		for (int i = 0; i < handles.length; i++) {
+			handles[i] = arena.allocate(bytes(64, i));
+			assertTrue(handles[i] >= 0);
+		}
+		assertEquals(1024, arena.getReservedBytes());
+		assertEquals(1024, arena.getUsedBytes());
+		assertEquals(-1, arena.allocate(bytes(10, 0)));
+
+		arena.free(handles[3]);
+		arena.free(handles[11]);
+		long a = arena.allocate(bytes(33, 100));
+		long b = arena.allocate(bytes(64, 101));
+		assertTrue(a >= 0 && b >= 0);
+		assertEquals(-1, arena.allocate(bytes(1, 0)));
+		assertEquals(1024, arena.getReservedBytes());
+
+		assertArrayEquals(bytes(33, 100), arena.read(a, 33));
+		assertArrayEquals(bytes(64, 101), arena.read(b, 64));
+		for (int i = 0; i < handles.length; i++) {
+			if (i != 3 && i != 11) {
+				assertArrayEquals(bytes(64, i), arena.read(handles[i], 64));
+			}
+		}
+	}
+
+	@Test
+	public void sizeClassesTakeTheirOwnSlabs() {
+		MQTTPayloadArena arena = new MQTTPayloadArena(1024, 2048);
+		long small = arena.allocate(bytes(64, 1));
+		long large = arena.allocate(bytes(65, 2));
+		assertEquals(2048, arena.getReservedBytes());
+		assertEquals(64 + 128, arena.getUsedBytes());
+		// A third size class finds no room for a slab
+		assertEquals(-1, arena.allocate(bytes(200, 3)));
+		assertEquals(-1, arena.allocate(bytes(1025, 4)));
+		assertArrayEquals(bytes(64, 1), arena.read(small, 64));
+		assertArrayEquals(bytes(65, 2), arena.read(large, 65));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void slabSizeMustBePowerOfTwo() {
+		new MQTTPayloadArena(1000, 1 << 20);
+	}
+
+	private static byte[] bytes(int length, int seed) {
+		byte[] b = new byte[length];
+		Arrays.fill(b, (byte) seed);
+		if (length > 0) {
+			b[length - 1] = (byte) (seed + length);
+		}
+		return b;
+	}
+}
@@ -0,0 +1,185 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import thinqtt.MQTTDecoder;
+import thinqtt.MQTTDecoderListener;
+import thinqtt.MQTTEncoder;
+import thinqtt.MQTTProperties;
+import thinqtt.MQTTPropertiesBuilder;
+
+public class MQTTPropertiesTest {
+
+	@Test
+	public void readsWhatTheBuilderWrites() throws Exception {
+		MQTTPropertiesBuilder builder = new MQTTPropertiesBuilder(8)
+				.add(MQTTProperties.PAYLOAD_FORMAT_INDICATOR, 1)
+				.add(MQTTProperties.MESSAGE_EXPIRY_INTERVAL, 0xFFFFFFFFL)
+				.add(MQTTProperties.SUBSCRIPTION_IDENTIFIER, 300000)
+				.add(MQTTProperties.CONTENT_TYPE, "application/json")
+				.add(MQTTProperties.CORRELATION_DATA, new byte[] { 1, 2, 3 })
+				.addUserProperty("region", "eu-west")
+				.addUserProperty("zone", "b");
+		MQTTProperties props = MQTTProperties.wrap(block(builder), 0);
+
+		assertEquals(builder.encodedLength(), props.encodedLength());
+		assertEquals(1, props.getInt(MQTTProperties.PAYLOAD_FORMAT_INDICATOR, -1));
+		assertEquals(0xFFFFFFFFL, props.getInt(MQTTProperties.MESSAGE_EXPIRY_INTERVAL, -1));
+		assertEquals(300000, props.getInt(MQTTProperties.SUBSCRIPTION_IDENTIFIER, -1));
+		assertEquals(-1, props.getInt(MQTTProperties.RECEIVE_MAXIMUM, -1));
+		assertEquals("application/json", props.getString(MQTTProperties.CONTENT_TYPE));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, props.getBinary(MQTTProperties.CORRELATION_DATA));
+		assertEquals("b", props.getUserProperty("zone"));
+		assertNull(props.getUserProperty("rack"));
+		assertEquals("eu-west", props.copy().getUserProperty("region"));
+	}
+
+	@Test
+	public void emptyBlock() throws Exception {
+		MQTTProperties props = MQTTProperties.wrap(new byte[] { 0 }, 0);
+		assertTrue(props.isEmpty());
+		assertEquals(1, props.encodedLength());
+		assertNull(props.getString(MQTTProperties.REASON_STRING));
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void blockLongerThanPacket() throws Exception {
+		MQTTProperties.wrap(new byte[] { 5, MQTTProperties.RECEIVE_MAXIMUM, 0, 10 }, 0);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void blockLongerThanLimit() throws Exception {
+		byte[] buf = block(new MQTTPropertiesBuilder().add(MQTTProperties.RECEIVE_MAXIMUM, 10));
+		MQTTProperties.wrap(buf, 0, buf.length - 1);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void valueOverrunsBlock() throws Exception {
+		// A four-byte integer in a block with room for two of its bytes
+		MQTTProperties.wrap(new byte[] { 3, MQTTProperties.MESSAGE_EXPIRY_INTERVAL, 0, 0, 0, 0 }, 0);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void stringLengthOverrunsBlock() throws Exception {
+		MQTTProperties.wrap(new byte[] { 4, MQTTProperties.CONTENT_TYPE, 0, 9, 'a' }, 0);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void stringLengthCutShort() throws Exception {
+		MQTTProperties.wrap(new byte[] { 2, MQTTProperties.CONTENT_TYPE, 0 }, 0);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void userPropertyValueOverrunsBlock() throws Exception {
+		MQTTProperties.wrap(new byte[] { 6, MQTTProperties.USER_PROPERTY, 0, 1, 'k', 0, 1 }, 0);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void unterminatedVarInt() throws Exception {
+		MQTTProperties.wrap(new byte[] { 2, MQTTProperties.SUBSCRIPTION_IDENTIFIER, (byte) 0x80 }, 0);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void unknownIdentifier() throws Exception {
+		MQTTProperties.wrap(new byte[] { 2, 0x7F, 0 }, 0);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void malformedBlockLength() throws Exception {
+		MQTTProperties.wrap(new byte[] { (byte) 0x80, (byte) 0x80 }, 0);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void nonMinimalBlockLength() throws Exception {
+		// A length of 3 in two bytes, which would be skipped as one
+		MQTTProperties.wrap(new byte[] { (byte) 0x83, 0, MQTTProperties.RECEIVE_MAXIMUM, 0, 10 }, 0);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void nonMinimalVarIntValue() throws Exception {
+		MQTTProperties.wrap(new byte[] { 3, MQTTProperties.SUBSCRIPTION_IDENTIFIER, (byte) 0x81, 0 }, 0);
+	}
+
+	@Test
+	public void malformedFramesReportedToListener() throws Exception {
+		final List<String> errors = new ArrayList<String>();
+		MQTTDecoderListener listener = new MQTTDecoderListener() {
+			@Override
+			protected int getProtocolVersion() {
+				return 5;
+			}
+
+			@Override
+			protected void onProtocolError(IOException e) {
+				errors.add(e.getMessage());
+			}
+
+			@Override
+			protected void onConnAck(int responseCode, MQTTProperties props) {
+				fail("CONNACK without a return code was passed on");
+			}
+
+			@Override
+			protected void onPublish(String topic, int messageId, byte[] buf, int off, int len, int qos,
+					boolean retain, boolean dup, MQTTProperties props) {
+				fail("PUBLISH with a bad property block was passed on");
+			}
+		};
+		// A CONNACK with only its flags byte
+		MQTTDecoder.decode(new DataInputStream(new ByteArrayInputStream(new byte[] { 0x20, 1, 0 })),
+				listener, null);
+		// A PUBLISH to "t" whose property block claims more than the packet holds
+		MQTTDecoder.decode(new DataInputStream(new ByteArrayInputStream(
+				new byte[] { 0x30, 5, 0, 1, 't', 9, 1 })), listener, null);
+		assertEquals(Arrays.asList("Malformed CONNACK", "Property block overruns packet"), errors);
+	}
+
+	@Test
+	public void decodesMqtt5Publish() throws Exception {
+		MQTTPropertiesBuilder builder = new MQTTPropertiesBuilder()
+				.add(MQTTProperties.CONTENT_TYPE, "text/plain");
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		MQTTEncoder.writePublish(new DataOutputStream(frame), "a/b", "hello".getBytes("UTF-8"),
+				7, 1, false, false, builder);
+
+		final String[] received = new String[3];
+		MQTTDecoderListener listener = new MQTTDecoderListener() {
+			@Override
+			protected int getProtocolVersion() {
+				return 5;
+			}
+
+			@Override
+			protected void onPublish(String topic, int messageId, byte[] buf, int off, int len, int qos,
+					boolean retain, boolean dup, MQTTProperties props) {
+				received[0] = topic + " " + messageId;
+				received[1] = new String(buf, off, len);
+				received[2] = props.getString(MQTTProperties.CONTENT_TYPE);
+			}
+		};
+		MQTTDecoder.decode(new DataInputStream(new ByteArrayInputStream(frame.toByteArray())),
+				listener, null);
+		assertEquals("a/b 7", received[0]);
+		assertEquals("hello", received[1]);
+		assertEquals("text/plain", received[2]);
+	}
+
+	private static byte[] block(MQTTPropertiesBuilder builder) throws Exception {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		builder.writeTo(new DataOutputStream(buf));
+		assertArrayEquals(buf.toByteArray(), builder.toByteArray());
+		return buf.toByteArray();
+	}
+}
@@ -0,0 +1,165 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import thinqtt.MQTTBatchResult;
+import thinqtt.MQTTCallback;
+import thinqtt.MQTTClient;
+import thinqtt.MQTTEncoder;
+import thinqtt.MQTTProperties;
+import thinqtt.MQTTPropertiesBuilder;
+import thinqtt.MQTTPublication;
+
+public class MQTTPublishBatchTest {
+
+	private static class Completions implements MQTTCallback {
+		final List<Integer> completed = new ArrayList<Integer>();
+
+		public void onConnected() {}
+		public void onDisconnected() {}
+		public void connectionLost() {}
+		public void errorOccurred(Exception e) {}
+		public void messageArrived(String topic, byte[] payload) {}
+
+		public synchronized void publishComplete(int messageId) {
+			completed.add(messageId);
+			notifyAll();
+		}
+
+		synchronized boolean await(int count, long millis) throws InterruptedException {
+			long end = System.currentTimeMillis() + millis;
+			while (completed.size() < count) {
+				long left = end - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				wait(left);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A batch is written as the same bytes as its messages published one
+	 * by one, including a remaining length over one byte.
+	 */
+	@Test
+	public void framesMatchSinglePublishes() throws Exception {
+		List<MQTTPublication> messages = Arrays.asList(
+				new MQTTPublication("a/b", payload(5), 1, false),
+				new MQTTPublication("c", payload(300), 0, true),
+				new MQTTPublication("d/e/f", new byte[0], 2, false));
+		int[] ids = { 7, 0, 65535 };
+		MQTTPropertiesBuilder props = new MQTTPropertiesBuilder().add(MQTTProperties.CONTENT_TYPE, "x");
+
+		for (MQTTPropertiesBuilder p : new MQTTPropertiesBuilder[] { null, props }) {
+			ByteArrayOutputStream batch = new ByteArrayOutputStream();
+			MQTTEncoder.writePublishBatch(new DataOutputStream(batch), messages, ids, p);
+			ByteArrayOutputStream single = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(single);
+			for (int i = 0; i < ids.length; i++) {
+				MQTTPublication msg = messages.get(i);
+				MQTTEncoder.writePublish(dos, msg.getTopic(), msg.getPayload(), ids[i], msg.getQos(),
+						msg.isRetained(), false, p);
+			}
+			assertArrayEquals(single.toByteArray(), batch.toByteArray());
+		}
+		assertEquals(Arrays.asList("publish a/b 7 1 " + new String(payload(5)),
+				"publish c 0 0 " + new String(payload(300)),
+				"publish d/e/f 65535 2 "), MQTTEncoderTest.decodeAll(batchBytes(messages, ids)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void oversizedMessageRejected() throws Exception {
+		// Would fit with a one-byte topic at QoS 0, but not with a message ID
+		byte[] large = new byte[268435455 - 3];
+		batchBytes(Collections.singletonList(new MQTTPublication("t", large, 1, false)), new int[] { 1 });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void batchOverArrayLimitRejected() throws Exception {
+		// Nine messages of 256MB add up to more than an int can count
+		MQTTPublication msg = new MQTTPublication("t", new byte[268435455 - 3], 0, false);
+		batchBytes(Collections.nCopies(9, msg), new int[9]);
+	}
+
+	/**
+	 * While offline, each message of a batch is queued, dropped or
+	 * rejected by its own QoS policy, and none is given an ID; once the
+	 * queue has drained, a batch is sent with IDs for QoS 1 and 2 only.
+	 */
+	@Test(timeout = 30000)
+	public void statusPerMessage() throws Exception {
+		MQTTBrokerStub broker = new MQTTBrokerStub();
+		FaultProxy proxy = new FaultProxy(broker.getPort());
+		Completions completions = new Completions();
+		MQTTClient client = new MQTTClient(proxy.getUri(), "batcher", completions);
+		try {
+			proxy.setRefusing(true);
+			Properties props = new Properties();
+			props.setProperty("reconnectIntervalInc", "1");
+			props.setProperty("reconnectIntervalMax", "1");
+			props.setProperty("offlineQueueSize", "2");
+			client.connect(props);
+
+			MQTTBatchResult result = client.publishBatch(Arrays.asList(
+					new MQTTPublication("t", payload(1), 0, false),
+					new MQTTPublication("t", payload(2), 1, false),
+					new MQTTPublication("t", payload(3), 0, false),
+					new MQTTPublication("t", payload(4), 2, false)));
+			assertEquals(4, result.size());
+			assertEquals(MQTTBatchResult.QUEUED, result.getStatus(0));
+			assertEquals(MQTTBatchResult.QUEUED, result.getStatus(1));
+			assertEquals(MQTTBatchResult.DROPPED, result.getStatus(2));
+			assertEquals(MQTTBatchResult.REJECTED, result.getStatus(3));
+			for (int i = 0; i < result.size(); i++) {
+				assertEquals(0, result.getMessageId(i));
+			}
+			assertFalse(result.isAccepted());
+
+			proxy.setRefusing(false);
+			assertTrue("queued message completed", completions.await(1, 10000));
+
+			result = client.publishBatch(Arrays.asList(
+					new MQTTPublication("t", payload(5), 1, false),
+					new MQTTPublication("t", payload(6), 0, false),
+					new MQTTPublication("t", payload(7), 2, false)));
+			assertTrue(result.isAccepted());
+			for (int i = 0; i < result.size(); i++) {
+				assertEquals(MQTTBatchResult.SENT, result.getStatus(i));
+			}
+			assertTrue(result.getMessageId(0) != 0);
+			assertEquals(0, result.getMessageId(1));
+			assertTrue(result.getMessageId(2) != 0);
+			assertTrue("sent messages completed", completions.await(3, 10000));
+		} finally {
+			client.disconnect();
+			proxy.close();
+			broker.close();
+		}
+	}
+
+	private static byte[] batchBytes(List<MQTTPublication> messages, int[] ids) throws Exception {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		MQTTEncoder.writePublishBatch(new DataOutputStream(buf), messages, ids);
+		return buf.toByteArray();
+	}
+
+	private static byte[] payload(int length) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) ('a' + i % 26);
+		}
+		return payload;
+	}
+}
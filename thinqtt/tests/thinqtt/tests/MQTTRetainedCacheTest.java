@@ -0,0 +1,112 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import thinqtt.MQTTPublication;
+import thinqtt.MQTTRetainedCache;
+
+public class MQTTRetainedCacheTest {
+
+	@Test
+	public void leastRecentlyUsedEvictedFirst() {
+		MQTTRetainedCache cache = new MQTTRetainedCache(3, 1000);
+		cache.update("a", bytes(1), 0);
+		cache.update("b", bytes(2), 1);
+		cache.update("c", bytes(3), 0);
+		assertNotNull(cache.get("a"));
+		cache.update("d", bytes(4), 0);
+
+		assertEquals(3, cache.size());
+		assertNull(cache.get("b"));
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(1 + 3 + 4, cache.getBytes());
+		assertEquals(Arrays.asList("c", "a", "d"), topics(cache.query("#")));
+	}
+
+	@Test
+	public void byteLimitEvicts() {
+		MQTTRetainedCache cache = new MQTTRetainedCache(10, 100);
+		cache.update("a", bytes(40), 0);
+		cache.update("b", bytes(40), 0);
+		cache.update("c", bytes(40), 0);
+		assertNull(cache.get("a"));
+		assertEquals(80, cache.getBytes());
+
+		// Replacing a payload counts only the new one
+		cache.update("b", bytes(10), 2);
+		assertEquals(50, cache.getBytes());
+		assertEquals(2, cache.get("b").getQos());
+		assertTrue(cache.get("b").isRetained());
+
+		// Larger than the whole cache, so it replaces nothing else
+		cache.update("c", bytes(101), 0);
+		assertNull(cache.get("c"));
+		assertNotNull(cache.get("b"));
+		assertEquals(10, cache.getBytes());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void emptyPayloadClearsTopic() {
+		MQTTRetainedCache cache = new MQTTRetainedCache(10, 100);
+		cache.update("a", bytes(5), 0);
+		cache.update("b", bytes(6), 0);
+		cache.update("a", new byte[0], 0);
+		cache.update("b", null, 0);
+		assertNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+		assertEquals(0, cache.getEvictionCount());
+		// Clearing a topic that is not cached does nothing
+		cache.update("c", new byte[0], 0);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void queryByFilter() {
+		MQTTRetainedCache cache = new MQTTRetainedCache(10, 100);
+		cache.update("s/1/temp", bytes(1), 0);
+		cache.update("s/2/temp", bytes(1), 0);
+		cache.update("s/2/hum", bytes(1), 0);
+		cache.update("$SYS/load", bytes(1), 0);
+		assertEquals(Arrays.asList("s/1/temp", "s/2/temp"), topics(cache.query("s/+/temp")));
+		assertEquals(Arrays.asList("s/2/temp", "s/2/hum"), topics(cache.query("s/2/#")));
+		assertEquals(Arrays.asList("s/2/hum"), topics(cache.query("s/2/hum")));
+		assertEquals(3, cache.query("#").size());
+		assertTrue(cache.query("s/3").isEmpty());
+		cache.clear();
+		assertEquals(0, cache.getBytes());
+		assertTrue(cache.query("#").isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidFilter() {
+		new MQTTRetainedCache(1, 1).query("a/#/b");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void limitsMustBePositive() {
+		new MQTTRetainedCache(0, 100);
+	}
+
+	private static List<String> topics(List<MQTTPublication> pubs) {
+		List<String> topics = new ArrayList<String>();
+		for (MQTTPublication pub : pubs) {
+			topics.add(pub.getTopic());
+		}
+		return topics;
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] b = new byte[length];
+		Arrays.fill(b, (byte) 1);
+		return b;
+	}
+}
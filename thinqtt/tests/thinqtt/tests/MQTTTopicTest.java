@@ -0,0 +1,98 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import thinqtt.MQTTTopic;
+
+public class MQTTTopicTest {
+
+	@Test
+	public void literalFilters() {
+		assertTrue(MQTTTopic.matches("a/b", "a/b"));
+		assertFalse(MQTTTopic.matches("a/b", "a/bc"));
+		assertFalse(MQTTTopic.matches("a/bc", "a/b"));
+		assertFalse(MQTTTopic.matches("a/b", "a/b/"));
+		assertTrue(MQTTTopic.matches("/", "/"));
+	}
+
+	@Test
+	public void singleLevelWildcard() {
+		assertTrue(MQTTTopic.matches("a/+/c", "a/b/c"));
+		assertTrue(MQTTTopic.matches("+", "a"));
+		assertTrue(MQTTTopic.matches("+/+", "/finance"));
+		// An empty level is still a level
+		assertTrue(MQTTTopic.matches("a/+", "a/"));
+		assertFalse(MQTTTopic.matches("a/+", "a"));
+		assertFalse(MQTTTopic.matches("a/+", "a/b/c"));
+		assertFalse(MQTTTopic.matches("+", "a/b"));
+	}
+
+	@Test
+	public void multiLevelWildcard() {
+		assertTrue(MQTTTopic.matches("#", "a/b/c"));
+		assertTrue(MQTTTopic.matches("a/#", "a/b/c"));
+		// Also matches the parent level
+		assertTrue(MQTTTopic.matches("a/#", "a"));
+		assertTrue(MQTTTopic.matches("a/+/#", "a/b"));
+		assertFalse(MQTTTopic.matches("a/#", "ab"));
+		assertFalse(MQTTTopic.matches("a/b/#", "a"));
+	}
+
+	@Test
+	public void dollarTopicsNotMatchedByLeadingWildcard() {
+		assertFalse(MQTTTopic.matches("#", "$SYS/uptime"));
+		assertFalse(MQTTTopic.matches("+/uptime", "$SYS/uptime"));
+		assertTrue(MQTTTopic.matches("$SYS/#", "$SYS/uptime"));
+		assertTrue(MQTTTopic.matches("$SYS/+", "$SYS/uptime"));
+		// Only the first level is special
+		assertTrue(MQTTTopic.matches("a/+", "a/$b"));
+	}
+
+	@Test
+	public void sharedFiltersMatchAfterShareName() {
+		assertTrue(MQTTTopic.matches("$share/g/a/+", "a/b"));
+		assertTrue(MQTTTopic.matches("$share/g/#", "a/b"));
+		assertFalse(MQTTTopic.matches("$share/g/a/+", "g/a/b"));
+		assertFalse(MQTTTopic.matches("$share/g/#", "$SYS/uptime"));
+		assertTrue(MQTTTopic.matches("$share/g/$SYS/#", "$SYS/uptime"));
+	}
+
+	@Test
+	public void sharedFilterParts() {
+		String filter = MQTTTopic.shared("workers", "jobs/#");
+		assertEquals("$share/workers/jobs/#", filter);
+		assertTrue(MQTTTopic.isShared(filter));
+		assertEquals("workers", MQTTTopic.getShareGroup(filter));
+		assertEquals("jobs/#", MQTTTopic.unshared(filter));
+		assertNull(MQTTTopic.getShareGroup("jobs/#"));
+		assertEquals("jobs/#", MQTTTopic.unshared("jobs/#"));
+	}
+
+	@Test
+	public void validFilters() {
+		for (String filter : new String[] { "a", "a/b", "#", "+", "+/+", "a/#", "a/+/c", "/", "$SYS/#",
+				"$share/g/a", "$share/g/#", "$share/g/+/b" }) {
+			MQTTTopic.validateFilter(filter);
+		}
+	}
+
+	@Test
+	public void invalidFilters() {
+		for (String filter : new String[] { "", "a#", "a/#/b", "#/a", "a+", "a/+b", "+a/b",
+				"$share/g", "$share//a", "$share/g/", "$share/g+/a", "$share/#/a" }) {
+			try {
+				MQTTTopic.validateFilter(filter);
+				fail("accepted " + filter);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shareNameWithSlash() {
+		MQTTTopic.shared("a/b", "t");
+	}
+}
@@ -0,0 +1,72 @@
+package thinqtt.tests;
+
+import java.net.URI;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * PerfClient over Paho's MqttAsyncClient, so that publishes are queued
+ * rather than each waiting for its acknowledgement, as with thinqtt.
+ */
+public class PahoPerfClient implements PerfClient {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+	// Paho refuses publishes beyond this many unacknowledged, until some are acked
+	private static final int MAX_INFLIGHT = 65535;
+
+	private MqttAsyncClient client;
+
+	@Override
+	public void connect(URI broker, String clientId, final Listener listener) throws Exception {
+		client = new MqttAsyncClient(broker.toString(), clientId, new MemoryPersistence());
+		client.setCallback(new MqttCallback() {
+
+			@Override
+			public void messageArrived(String topic, MqttMessage message) {
+				listener.messageArrived(message.getPayload());
+			}
+
+			@Override
+			public void connectionLost(Throwable cause) {}
+
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token) {}
+		});
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(true);
+		options.setMaxInflight(MAX_INFLIGHT);
+		client.connect(options).waitForCompletion(TIMEOUT_MILLIS);
+	}
+
+	@Override
+	public void subscribe(String topic, int qos) throws Exception {
+		client.subscribe(topic, qos).waitForCompletion(TIMEOUT_MILLIS);
+	}
+
+	@Override
+	public void publish(String topic, byte[] payload, int qos) throws Exception {
+		for (;;) {
+			try {
+				client.publish(topic, payload, qos, false);
+				return;
+			} catch (MqttException e) {
+				if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT) {
+					throw e;
+				}
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	@Override
+	public void disconnect() throws Exception {
+		client.disconnect().waitForCompletion(TIMEOUT_MILLIS);
+		client.close();
+	}
+}
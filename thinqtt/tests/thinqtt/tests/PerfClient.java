@@ -0,0 +1,31 @@
+package thinqtt.tests;
+
+import java.net.URI;
+
+/**
+ * The operations ThroughputRegression needs from an MQTT client library,
+ * so that thinqtt and Paho run the same scenarios. Each instance is one
+ * connection. Every call blocks until the client has done what was
+ * asked, except publish(), which returns as soon as the client has
+ * accepted the message.
+ */
+public interface PerfClient {
+
+	public interface Listener {
+		public void messageArrived(byte[] payload);
+	}
+
+	/**
+	 * Connects with a clean session, returning once the CONNACK arrives.
+	 */
+	public void connect(URI broker, String clientId, Listener listener) throws Exception;
+
+	/**
+	 * Subscribes, returning once the SUBACK arrives.
+	 */
+	public void subscribe(String topic, int qos) throws Exception;
+
+	public void publish(String topic, byte[] payload, int qos) throws Exception;
+
+	public void disconnect() throws Exception;
+}
@@ -0,0 +1,86 @@
+package thinqtt.tests;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import thinqtt.MQTTCallback;
+import thinqtt.MQTTClient;
+import thinqtt.MQTTSubscribeCallback;
+
+/**
+ * PerfClient over MQTTClient, with its callbacks on the reader thread.
+ */
+public class ThinqttPerfClient implements PerfClient {
+
+	private static final long TIMEOUT_SECS = 10;
+
+	private MQTTClient client;
+	private final CountDownLatch connected = new CountDownLatch(1);
+	private final CountDownLatch disconnected = new CountDownLatch(1);
+
+	@Override
+	public void connect(URI broker, String clientId, final Listener listener) throws Exception {
+		client = new MQTTClient(broker, clientId, new MQTTCallback() {
+
+			@Override
+			public void onConnected() {
+				connected.countDown();
+			}
+
+			@Override
+			public void onDisconnected() {
+				disconnected.countDown();
+			}
+
+			@Override
+			public void messageArrived(String topic, byte[] payload) {
+				listener.messageArrived(payload);
+			}
+
+			@Override
+			public void errorOccurred(Exception e) {}
+
+			@Override
+			public void connectionLost() {}
+
+			@Override
+			public void publishComplete(int messageId) {}
+		});
+		Properties props = new Properties();
+		props.setProperty("cleanSession", "True");
+		client.connect(props);
+		if (!connected.await(TIMEOUT_SECS, TimeUnit.SECONDS))
+			throw new IOException("No CONNACK for " + clientId);
+	}
+
+	@Override
+	public void subscribe(String topic, int qos) throws Exception {
+		final CountDownLatch acked = new CountDownLatch(1);
+		client.subscribe(new String[] { topic }, new int[] { qos }, new MQTTSubscribeCallback() {
+
+			@Override
+			public void subscribed(String[] topicPatterns, int[] grantedQos) {
+				acked.countDown();
+			}
+
+			@Override
+			public void unsubscribed(String[] topicPatterns) {}
+		});
+		if (!acked.await(TIMEOUT_SECS, TimeUnit.SECONDS))
+			throw new IOException("No SUBACK for " + topic);
+	}
+
+	@Override
+	public void publish(String topic, byte[] payload, int qos) throws Exception {
+		client.publish(topic, payload, qos, false);
+	}
+
+	@Override
+	public void disconnect() throws Exception {
+		client.disconnect();
+		disconnected.await(TIMEOUT_SECS, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,377 @@
+package thinqtt.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Runs thinqtt and Paho through the same fixed scenarios against an
+ * in-process MQTTBrokerStub and checks thinqtt's results against a
+ * stored baseline: mvn -Pperf test
+ *
+ * Each scenario has some publishers sending to one subscriber of the
+ * same library, at one QoS and payload size, and records msgs/s, MB/s,
+ * p50/p99/p999 latency from publish to arrival, and the rate at which
+ * every thread outside the broker allocates. thinqtt fails the run if
+ * its throughput falls, or its p99 latency or allocation per message
+ * rises, by more than the tolerance from the baseline. Paho's results
+ * are recorded alongside, as a yardstick for the machine.
+ *
+ * System properties, with their defaults:
+ * <ul>
+ * <li>perf.clients=thinqtt,paho</li>
+ * <li>perf.qos=0,1,2</li>
+ * <li>perf.payloadSizes=16,1024,65536,1048576</li>
+ * <li>perf.publishers=1,8,64</li>
+ * <li>perf.tolerance=0.10</li>
+ * <li>perf.baseline=tests/perf-baseline.properties</li>
+ * <li>perf.results=target/perf-results.properties</li>
+ * <li>perf.updateBaseline=false, true to store this run as the baseline</li>
+ * </ul>
+ */
+public class ThroughputRegression {
+
+	private static final String TOPIC = "perf/firehose";
+	private static final String CLIENT_UNDER_TEST = "thinqtt";
+	// Enough bytes per scenario to settle, without 1MB payloads taking minutes
+	private static final long SCENARIO_BYTES = 64L * 1024 * 1024;
+	private static final int MAX_MESSAGES = 20000;
+	private static final long STALL_MILLIS = 15000;
+
+	private static final AtomicInteger ids = new AtomicInteger(0);
+
+	static class Scenario {
+		final int qos;
+		final int payloadSize;
+		final int publishers;
+		final int messages;
+
+		Scenario(int qos, int payloadSize, int publishers, int messages) {
+			this.qos = qos;
+			this.payloadSize = payloadSize;
+			this.publishers = publishers;
+			this.messages = messages;
+		}
+
+		Scenario(int qos, int payloadSize, int publishers) {
+			this(qos, payloadSize, publishers, (int) Math.max(publishers * 4,
+					Math.min(MAX_MESSAGES, SCENARIO_BYTES / payloadSize)));
+		}
+
+		@Override
+		public String toString() {
+			return "qos" + qos + "-" + payloadSize + "B-" + publishers + "p";
+		}
+	}
+
+	static class Result {
+		double msgsPerSec;
+		double mbPerSec;
+		double p50Micros;
+		double p99Micros;
+		double p999Micros;
+		double allocMbPerSec;
+		double allocBytesPerMsg;
+		int lost;
+
+		void store(Properties props, String prefix) {
+			props.setProperty(prefix + ".msgsPerSec", format(msgsPerSec));
+			props.setProperty(prefix + ".mbPerSec", format(mbPerSec));
+			props.setProperty(prefix + ".p50Micros", format(p50Micros));
+			props.setProperty(prefix + ".p99Micros", format(p99Micros));
+			props.setProperty(prefix + ".p999Micros", format(p999Micros));
+			props.setProperty(prefix + ".allocMbPerSec", format(allocMbPerSec));
+			props.setProperty(prefix + ".allocBytesPerMsg", format(allocBytesPerMsg));
+			props.setProperty(prefix + ".lost", String.valueOf(lost));
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%10.0f msgs/s %8.2f MB/s  p50 %9.1fus  p99 %9.1fus  p999 %9.1fus"
+					+ "  alloc %8.1f MB/s %10.0f B/msg  lost %d", msgsPerSec, mbPerSec, p50Micros,
+					p99Micros, p999Micros, allocMbPerSec, allocBytesPerMsg, lost);
+		}
+	}
+
+	@Test
+	public void compareWithBaseline() throws Exception {
+		String[] clients = System.getProperty("perf.clients", "thinqtt,paho").split(",");
+		int[] qosLevels = ints(System.getProperty("perf.qos", "0,1,2"));
+		int[] sizes = ints(System.getProperty("perf.payloadSizes", "16,1024,65536,1048576"));
+		int[] publishers = ints(System.getProperty("perf.publishers", "1,8,64"));
+		double tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "0.10"));
+		File baselineFile = new File(System.getProperty("perf.baseline", "tests/perf-baseline.properties"));
+		File resultsFile = new File(System.getProperty("perf.results", "target/perf-results.properties"));
+
+		Properties results = new Properties();
+		List<String> failures = new ArrayList<String>();
+		MQTTBrokerStub broker = new MQTTBrokerStub();
+		try {
+			for (String client : clients) {
+				run(broker, client, new Scenario(1, 1024, 1, 5000));
+				run(broker, client, new Scenario(0, 1024, 4, 5000));
+			}
+			for (int qos : qosLevels) {
+				for (int size : sizes) {
+					for (int pubs : publishers) {
+						Scenario s = new Scenario(qos, size, pubs);
+						for (String client : clients) {
+							Result r = run(broker, client, s);
+							r.store(results, client + "." + s);
+							System.out.println(String.format("%-8s %-20s %s", client, s, r));
+							if (qos > 0 && r.lost > 0) {
+								failures.add(client + "." + s + " lost " + r.lost + " messages");
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			broker.close();
+		}
+		save(results, resultsFile);
+
+		if (Boolean.parseBoolean(System.getProperty("perf.updateBaseline", "false"))) {
+			save(results, baselineFile);
+			System.out.println("Stored baseline in " + baselineFile);
+		} else if (!baselineFile.exists()) {
+			System.out.println("No baseline at " + baselineFile + ", run with -Dperf.updateBaseline=true to store one");
+		} else {
+			failures.addAll(compare(load(baselineFile), results, tolerance));
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	/**
+	 * @return a description of each metric of the client under test that
+	 * is worse than its baseline by more than tolerance
+	 */
+	private static List<String> compare(Properties baseline, Properties results, double tolerance) {
+		List<String> regressions = new ArrayList<String>();
+		for (String key : results.stringPropertyNames()) {
+			String base = baseline.getProperty(key);
+			if (!key.startsWith(CLIENT_UNDER_TEST + ".") || base == null) {
+				continue;
+			}
+			double expected = Double.parseDouble(base);
+			double actual = Double.parseDouble(results.getProperty(key));
+			boolean worse;
+			if (key.endsWith(".msgsPerSec")) {
+				worse = actual < expected * (1 - tolerance);
+			} else if (key.endsWith(".p99Micros") || key.endsWith(".allocBytesPerMsg")) {
+				worse = actual > expected * (1 + tolerance);
+			} else {
+				continue;
+			}
+			if (worse) {
+				regressions.add(key + " " + format(actual) + " against " + format(expected));
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	 * Connects a subscriber and the scenario's publishers, then measures
+	 * from the moment all publishers start until every message arrives,
+	 * or until none has arrived for STALL_MILLIS.
+	 */
+	private static Result run(MQTTBrokerStub broker, String clientName, final Scenario s) throws Exception {
+		final int total = s.messages;
+		final long[] latencies = new long[total];
+		final AtomicInteger arrived = new AtomicInteger(0);
+		final AtomicLong lastArrival = new AtomicLong(0);
+
+		PerfClient subscriber = newClient(clientName);
+		subscriber.connect(broker.getUri(), id(clientName), new PerfClient.Listener() {
+			@Override
+			public void messageArrived(byte[] payload) {
+				long now = System.nanoTime();
+				int n = arrived.getAndIncrement();
+				if (n < total) {
+					latencies[n] = now - ByteBuffer.wrap(payload).getLong();
+				}
+				lastArrival.set(now);
+			}
+		});
+		subscriber.subscribe(TOPIC, s.qos);
+
+		final PerfClient[] pubs = new PerfClient[s.publishers];
+		for (int i = 0; i < pubs.length; i++) {
+			pubs[i] = newClient(clientName);
+			pubs[i].connect(broker.getUri(), id(clientName), new PerfClient.Listener() {
+				@Override
+				public void messageArrived(byte[] payload) {}
+			});
+		}
+
+		// Publisher threads outlive the measurement, so their allocation is counted
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		Thread[] threads = new Thread[pubs.length];
+		for (int i = 0; i < pubs.length; i++) {
+			final PerfClient pub = pubs[i];
+			final int count = total / pubs.length + (i < total % pubs.length ? 1 : 0);
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						go.await();
+						for (int n = 0; n < count; n++) {
+							byte[] payload = new byte[Math.max(8, s.payloadSize)];
+							ByteBuffer.wrap(payload).putLong(System.nanoTime());
+							pub.publish(TOPIC, payload, s.qos);
+						}
+						done.await();
+					} catch (Exception e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			}, "perf-publisher-" + i);
+			threads[i].start();
+		}
+
+		long allocStart = allocatedBytes();
+		long start = System.nanoTime();
+		go.countDown();
+		int seen = 0;
+		long progress = System.currentTimeMillis();
+		while (arrived.get() < total && error.get() == null
+				&& System.currentTimeMillis() - progress < STALL_MILLIS) {
+			Thread.sleep(1);
+			if (arrived.get() != seen) {
+				seen = arrived.get();
+				progress = System.currentTimeMillis();
+			}
+		}
+		long allocEnd = allocatedBytes();
+		done.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		for (PerfClient pub : pubs) {
+			pub.disconnect();
+		}
+		subscriber.disconnect();
+		if (error.get() != null) {
+			throw error.get();
+		}
+
+		int received = Math.min(arrived.get(), total);
+		double secs = Math.max(1, lastArrival.get() - start) / 1e9;
+		Result r = new Result();
+		r.lost = total - received;
+		r.msgsPerSec = received / secs;
+		r.mbPerSec = received * (double) s.payloadSize / secs / (1024 * 1024);
+		long[] sorted = Arrays.copyOf(latencies, received);
+		Arrays.sort(sorted);
+		r.p50Micros = percentile(sorted, 0.5) / 1e3;
+		r.p99Micros = percentile(sorted, 0.99) / 1e3;
+		r.p999Micros = percentile(sorted, 0.999) / 1e3;
+		if (allocStart >= 0) {
+			r.allocMbPerSec = (allocEnd - allocStart) / secs / (1024 * 1024);
+			r.allocBytesPerMsg = received > 0 ? (allocEnd - allocStart) / (double) received : 0;
+		}
+		return r;
+	}
+
+	private static PerfClient newClient(String name) {
+		if ("thinqtt".equals(name)) {
+			return new ThinqttPerfClient();
+		}
+		if ("paho".equals(name)) {
+			return new PahoPerfClient();
+		}
+		throw new IllegalArgumentException("Unknown client: " + name);
+	}
+
+	private static String id(String clientName) {
+		return clientName + "-" + ids.incrementAndGet();
+	}
+
+	private static long percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int i = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	/**
+	 * @return the bytes allocated so far by every live thread but the
+	 * broker's, or -1 if the JVM cannot tell
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long total = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (!t.getName().startsWith("broker-stub")) {
+				long bytes = threads.getThreadAllocatedBytes(t.getId());
+				if (bytes > 0) {
+					total += bytes;
+				}
+			}
+		}
+		return total;
+	}
+
+	private static int[] ints(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.2f", value);
+	}
+
+	private static Properties load(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return props;
+	}
+
+	private static void save(Properties props, File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			props.store(out, "thinqtt throughput regression results");
+		} finally {
+			out.close();
+		}
+	}
+}